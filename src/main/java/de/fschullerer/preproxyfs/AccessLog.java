@@ -0,0 +1,286 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous access log. The connection threads put one fixed-layout record per connection into
+ * a lock-free bounded ring buffer and never wait: If the buffer is full, the record is dropped and
+ * counted. One background thread writes the records in batches to a file and rotates the file if
+ * it is too big (access.log, access.log.1, access.log.2, ...).
+ *
+ * <p>Line format: start time, client address, host, upstream, request bytes, response bytes,
+ * routing time in microseconds, duration in milliseconds, separated by a space.
+ *
+ * @author Frank Schullerer
+ */
+public class AccessLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class.getName());
+
+    /** Number of records in the ring buffer. */
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+    /** Default maximum size of one access log file in megabytes. */
+    public static final long DEFAULT_MAX_SIZE_MB = 10;
+    /** Default number of rotated access log files. */
+    public static final int DEFAULT_MAX_FILES = 5;
+    /** Wait time of the writer if the buffer is empty. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final File file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    // ring buffer: one slot per record, the sequence of a slot tells who owns it
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] startTimes;
+    private final String[] clients;
+    private final String[] hosts;
+    private final String[] upstreams;
+    private final long[] requestBytes;
+    private final long[] responseBytes;
+    private final long[] routeMicros;
+    private final long[] durationMillis;
+    private final AtomicLong tail = new AtomicLong();
+    /** Only used by the writer thread. */
+    private long head;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+    private OutputStream out;
+    private long fileBytes;
+
+    /**
+     * Create an access log and start the writer thread.
+     *
+     * @param fileName The access log file e.g. /var/log/PreProxyFS/access.log
+     * @param maxSizeMb Maximum size of one file in megabytes before it is rotated.
+     * @param maxFiles Number of rotated files to keep (at least 1).
+     * @param bufferSize Number of records in the ring buffer (rounded up to a power of two).
+     */
+    public AccessLog(String fileName, long maxSizeMb, int maxFiles, int bufferSize) {
+        this.file = new File(fileName);
+        this.maxFileBytes = maxSizeMb * 1024 * 1024;
+        this.maxFiles = Math.max(1, maxFiles);
+        int capacity = 1;
+        while (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, i);
+        }
+        this.startTimes = new long[capacity];
+        this.clients = new String[capacity];
+        this.hosts = new String[capacity];
+        this.upstreams = new String[capacity];
+        this.requestBytes = new long[capacity];
+        this.responseBytes = new long[capacity];
+        this.routeMicros = new long[capacity];
+        this.durationMillis = new long[capacity];
+        this.writer = new Thread(this::writeLoop, "PreProxyFS-access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Add a record for a closed connection. Never blocks: if the buffer is full the record is
+     * dropped.
+     *
+     * @param startTime Start of the connection (epoch milliseconds).
+     * @param client The client address.
+     * @param host The destination host.
+     * @param upstream The upstream e.g. remote.proxy1.com:8080 or DIRECT
+     * @param requestByteCount Bytes sent to the upstream.
+     * @param responseByteCount Bytes sent to the client.
+     * @param routeTimeMicros Time to evaluate the PAC script and select the upstream.
+     * @param durationTimeMillis Duration of the connection.
+     */
+    void log(
+            long startTime,
+            String client,
+            String host,
+            String upstream,
+            long requestByteCount,
+            long responseByteCount,
+            long routeTimeMicros,
+            long durationTimeMillis) {
+        long position;
+        int slot;
+        do {
+            position = this.tail.get();
+            slot = (int) position & this.mask;
+            if (this.sequences.get(slot) != position) {
+                if (this.sequences.get(slot) < position) {
+                    // full: the writer has not consumed the record one round before
+                    this.droppedCount.incrementAndGet();
+                    return;
+                }
+                // another thread claimed the position
+                continue;
+            }
+        } while (!this.tail.compareAndSet(position, position + 1));
+        this.startTimes[slot] = startTime;
+        this.clients[slot] = client;
+        this.hosts[slot] = host;
+        this.upstreams[slot] = upstream;
+        this.requestBytes[slot] = requestByteCount;
+        this.responseBytes[slot] = responseByteCount;
+        this.routeMicros[slot] = routeTimeMicros;
+        this.durationMillis[slot] = durationTimeMillis;
+        // publish the record
+        this.sequences.set(slot, position + 1);
+    }
+
+    /**
+     * Write the available records to the buffer of the line batch.
+     *
+     * @param batch The line batch.
+     * @return The number of records.
+     */
+    private int drain(StringBuilder batch) {
+        int count = 0;
+        while (count <= this.mask) {
+            int slot = (int) this.head & this.mask;
+            if (this.sequences.get(slot) != this.head + 1) {
+                break;
+            }
+            batch.append(Instant.ofEpochMilli(this.startTimes[slot]))
+                    .append(' ')
+                    .append(this.clients[slot])
+                    .append(' ')
+                    .append(this.hosts[slot])
+                    .append(' ')
+                    .append(this.upstreams[slot])
+                    .append(' ')
+                    .append(this.requestBytes[slot])
+                    .append(' ')
+                    .append(this.responseBytes[slot])
+                    .append(' ')
+                    .append(this.routeMicros[slot])
+                    .append(' ')
+                    .append(this.durationMillis[slot])
+                    .append('\n');
+            this.clients[slot] = null;
+            this.hosts[slot] = null;
+            this.upstreams[slot] = null;
+            // free the slot for the next round
+            this.sequences.set(slot, this.head + this.mask + 1);
+            this.head++;
+            count++;
+        }
+        return count;
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            int count = drain(batch);
+            if (count > 0) {
+                write(batch);
+                this.writtenCount.addAndGet(count);
+                batch.setLength(0);
+            } else if (this.closed) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            long drops = this.droppedCount.get();
+            if (drops != reportedDrops) {
+                LOGGER.warn("Access log buffer full. {} records dropped.", drops - reportedDrops);
+                reportedDrops = drops;
+            }
+        }
+        closeFile();
+    }
+
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (null == this.out) {
+                this.out = new FileOutputStream(this.file, true);
+                this.fileBytes = this.file.length();
+            }
+            this.out.write(bytes);
+            this.out.flush();
+            this.fileBytes += bytes.length;
+            if (this.fileBytes >= this.maxFileBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Error writing access log {}: {}", this.file, e.getMessage());
+            closeFile();
+        }
+    }
+
+    /** Rename access.log to access.log.1, access.log.1 to access.log.2 and so on. */
+    private void rotate() {
+        closeFile();
+        File oldest = new File(this.file.getPath() + "." + this.maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            LOGGER.warn("Unable to delete old access log {}", oldest);
+        }
+        for (int i = this.maxFiles - 1; i >= 0; i--) {
+            File source = 0 == i ? this.file : new File(this.file.getPath() + "." + i);
+            File target = new File(this.file.getPath() + "." + (i + 1));
+            if (source.exists() && !source.renameTo(target)) {
+                LOGGER.warn("Unable to rotate access log {}", source);
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (null != this.out) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOGGER.trace("Error closing access log.", e);
+            }
+            this.out = null;
+        }
+    }
+
+    /** Write the remaining records and stop the writer thread. */
+    void close() {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the number of records that were dropped because the buffer was full.
+     *
+     * @return Dropped records since start.
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Get the number of records that were written to the file.
+     *
+     * @return Written records since start.
+     */
+    public long getWrittenCount() {
+        return this.writtenCount.get();
+    }
+}
@@ -0,0 +1,504 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Permanent running thread. Small Http admin endpoint of a PreProxyFS instance. Only bound to the
+ * loopback address. Requests with another Host header than localhost, 127.0.0.1 or [::1] are
+ * rejected (DNS rebinding of a web page). If an admin token is configured, every request needs
+ * the header Authorization: Bearer &lt;token&gt;. The requests are answered by a small pool, so a
+ * slow client does not block the endpoint. Every request is answered with plain text:
+ *
+ * <ul>
+ *   <li>GET /stats: Top hosts and upstreams by connections and bytes ({@link TrafficStatistics}).
+ *   <li>GET /upstreams: Latency, error rate, circuit breaker and in-flight connections of every
+ *       upstream (and the Http/2 connections and tunnels of a remote proxy with Http/2).
+ *   <li>GET /admission: Active, admitted and rejected connections of the {@link
+ *       AdmissionControl}.
+ *   <li>GET /connections: Every live connection with state, client, host, route, endpoints, age,
+ *       idle time and bytes in each direction. Optional parameters: sort (age, idle, up, down,
+ *       bytes; the highest first), host, route, client (substring), state and limit e.g.
+ *       /connections?sort=idle&amp;route=DIRECT&amp;limit=10
+ *   <li>DELETE /connections/&lt;id&gt;: Close a live connection. Only if enabled and an admin
+ *       token is configured.
+ * </ul>
+ *
+ * @author Frank Schullerer
+ */
+public class AdminServer extends Thread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdminServer.class.getName());
+    /** Read timeout for admin requests. */
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    /** Number of threads that answer admin requests. */
+    private static final int THREADS = 4;
+    /** Number of accepted admin requests that wait for a thread. More are closed at once. */
+    private static final int QUEUE_SIZE = 16;
+
+    private static final String CONNECTIONS_PATH = "/connections/";
+    private static final String BEARER = "Bearer ";
+
+    private final Object waitForMe = new Object();
+    private final PreProxyFSInstance instance;
+    private final int localBindPort;
+    /** Token of the Authorization header (null: no token needed). */
+    private final byte[] token;
+    /** TRUE if DELETE /connections/&lt;id&gt; is allowed. */
+    private final boolean deleteEnabled;
+
+    private ServerSocket serverSocketA;
+
+    /**
+     * Create a new AdminServer without admin token and without DELETE. Attention: the port must
+     * not be in use.
+     *
+     * @param instance The PreProxyFS instance.
+     * @param localBindPort Local bind port (0: random free port).
+     */
+    public AdminServer(PreProxyFSInstance instance, int localBindPort) {
+        this(instance, localBindPort, null, false);
+    }
+
+    /**
+     * Create a new AdminServer. Attention: the port must not be in use.
+     *
+     * @param instance The PreProxyFS instance.
+     * @param localBindPort Local bind port (0: random free port).
+     * @param token Token of the header Authorization: Bearer &lt;token&gt; (null or empty: no
+     *     token needed).
+     * @param deleteEnabled TRUE: DELETE /connections/&lt;id&gt; closes a connection. Only
+     *     enabled together with a token.
+     */
+    public AdminServer(
+            PreProxyFSInstance instance, int localBindPort, String token, boolean deleteEnabled) {
+        this.instance = instance;
+        this.localBindPort = localBindPort;
+        this.token =
+                null == token || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+        if (deleteEnabled && null == this.token) {
+            LOGGER.warn("DELETE of the admin endpoint needs an admin token. DELETE is disabled.");
+        }
+        this.deleteEnabled = deleteEnabled && null != this.token;
+        setDaemon(true);
+    }
+
+    /**
+     * The server socket port was not set directly. Get it here.
+     *
+     * @return The server socket port number.
+     */
+    public int getPort() {
+        waitForServerSocketToBeReady();
+        return this.serverSocketA.getLocalPort();
+    }
+
+    /**
+     * Get server socket for e.g. closing
+     *
+     * @return server socket
+     */
+    public ServerSocket getServerSocket() {
+        waitForServerSocketToBeReady();
+        return this.serverSocketA;
+    }
+
+    private void waitForServerSocketToBeReady() {
+        while (null == this.serverSocketA) {
+            synchronized (waitForMe) {
+                try {
+                    waitForMe.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PreProxyFSException(
+                            "Timeout waiting for server socket. Should not happen.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer one admin request on a thread of the pool and close the socket.
+     *
+     * @param clientSocket The socket of the admin client.
+     */
+    private void answer(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            handle(socket);
+        } catch (IOException e) {
+            LOGGER.debug("AdminServer request failed: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.warn("AdminServer request failed.", e);
+        }
+    }
+
+    private static ExecutorService createPool() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                THREADS,
+                THREADS,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                runnable -> {
+                    Thread thread =
+                            new Thread(
+                                    runnable, "PreProxyFS-admin-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Answer one admin request.
+     *
+     * @param clientSocket The socket of the admin client.
+     * @throws IOException Error while reading the request or writing the response.
+     */
+    private void handle(Socket clientSocket) throws IOException {
+        clientSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(
+                                clientSocket.getInputStream(), StandardCharsets.US_ASCII));
+        String requestLine = reader.readLine();
+        if (null == requestLine) {
+            return;
+        }
+        String host = null;
+        String authorization = null;
+        String header = reader.readLine();
+        while (null != header && !header.isEmpty()) {
+            int separator = header.indexOf(':');
+            if (separator > 0) {
+                String name = header.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+                if ("host".equals(name)) {
+                    host = header.substring(separator + 1).trim();
+                } else if ("authorization".equals(name)) {
+                    authorization = header.substring(separator + 1).trim();
+                }
+            }
+            header = reader.readLine();
+        }
+        String[] parts = requestLine.split(" ");
+        String body = null;
+        String status = "200 OK";
+        if (!isLocalHost(host)) {
+            status = "403 Forbidden";
+            body = "Only Host localhost, 127.0.0.1 or [::1] is allowed.\n";
+        } else if (!isAuthorized(authorization)) {
+            status = "401 Unauthorized";
+            body = "Missing or invalid admin token.\n";
+        } else if (parts.length >= 2 && "DELETE".equals(parts[0]) && !this.deleteEnabled) {
+            status = "403 Forbidden";
+            body = "DELETE is disabled.\n";
+        } else {
+            try {
+                if (parts.length >= 2 && "GET".equals(parts[0])) {
+                    body = getResponseBody(parts[1]);
+                } else if (parts.length >= 2 && "DELETE".equals(parts[0])) {
+                    body = killConnection(parts[1]);
+                }
+            } catch (IllegalArgumentException e) {
+                status = "400 Bad Request";
+                body = e.getMessage() + "\n";
+            }
+        }
+        if (null == body) {
+            status = "404 Not Found";
+            body = "Not found.\n";
+        }
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        OutputStream out = clientSocket.getOutputStream();
+        out.write(
+                ("HTTP/1.1 "
+                                + status
+                                + "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                                + content.length
+                                + "\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Check the Host header of a request. A web page that rebinds its own host name to 127.0.0.1
+     * sends its host name.
+     *
+     * @param host The Host header e.g. localhost:8099 (null if missing).
+     * @return TRUE for localhost, 127.0.0.1 and [::1] with or without port.
+     */
+    static boolean isLocalHost(String host) {
+        if (null == host) {
+            return false;
+        }
+        String name = host;
+        if (host.startsWith("[")) {
+            int end = host.indexOf(']');
+            name = end > 0 ? host.substring(1, end) : host;
+        } else if (host.indexOf(':') > 0) {
+            name = host.substring(0, host.indexOf(':'));
+        }
+        name = name.toLowerCase(Locale.ROOT);
+        return "localhost".equals(name) || "127.0.0.1".equals(name) || "::1".equals(name);
+    }
+
+    /**
+     * Check the Authorization header of a request.
+     *
+     * @param authorization The Authorization header e.g. Bearer secret (null if missing).
+     * @return TRUE if no token is configured or the header has the token.
+     */
+    boolean isAuthorized(String authorization) {
+        if (null == this.token) {
+            return true;
+        }
+        if (null == authorization || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        // constant time: the token can not be guessed byte by byte
+        return MessageDigest.isEqual(
+                this.token,
+                authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the response body for a path.
+     *
+     * @param target The path of the request with optional query e.g. /connections?sort=idle
+     * @return The body or null if the path is unknown.
+     * @throws IllegalArgumentException Invalid query parameter.
+     */
+    String getResponseBody(String target) {
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        Map<String, String> query =
+                parseQuery(queryStart < 0 ? "" : target.substring(queryStart + 1));
+        switch (path) {
+            case "/stats":
+                return this.instance.getTrafficStatistics().getReport();
+            case "/upstreams":
+                return getUpstreamReport();
+            case "/admission":
+                return this.instance.getAdmissionControl().getReport();
+            case "/connections":
+                return getConnectionReport(query);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Close a live connection.
+     *
+     * @param path The path of the request e.g. /connections/12
+     * @return The body or null if the path or the connection is unknown.
+     * @throws IllegalArgumentException Invalid connection id.
+     */
+    String killConnection(String path) {
+        if (!path.startsWith(CONNECTIONS_PATH)) {
+            return null;
+        }
+        long id;
+        try {
+            id = Long.parseLong(path.substring(CONNECTIONS_PATH.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid connection id.", e);
+        }
+        return this.instance.getConnectionRegistry().kill(id) ? "Connection closed.\n" : null;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                try {
+                    parameters.put(
+                            parameter.substring(0, separator),
+                            URLDecoder.decode(
+                                    parameter.substring(separator + 1),
+                                    StandardCharsets.UTF_8.name()));
+                } catch (UnsupportedEncodingException e) {
+                    throw new PreProxyFSException("UTF-8 is not supported.", e);
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Build the list of the live connections.
+     *
+     * @param query Sort, filter and limit parameters.
+     * @return One line per connection.
+     */
+    private String getConnectionReport(Map<String, String> query) {
+        List<ConnectionRegistry.ConnectionInfo> infos =
+                this.instance.getConnectionRegistry().getConnectionInfos();
+        infos.removeIf(info -> !matches(info, query));
+        infos.sort(getComparator(query.getOrDefault("sort", "age")));
+        int limit = infos.size();
+        if (query.containsKey("limit")) {
+            try {
+                limit = Math.min(limit, Integer.parseInt(query.get("limit")));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit.", e);
+            }
+        }
+        StringBuilder report = new StringBuilder();
+        for (ConnectionRegistry.ConnectionInfo info : infos.subList(0, Math.max(0, limit))) {
+            report.append(info).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static boolean matches(
+            ConnectionRegistry.ConnectionInfo info, Map<String, String> query) {
+        return contains(info.getHost(), query.get("host"))
+                && contains(info.getUpstream(), query.get("route"))
+                && contains(info.getClient(), query.get("client"))
+                && (!query.containsKey("state")
+                        || info.getState().name().equalsIgnoreCase(query.get("state")));
+    }
+
+    private static boolean contains(String value, String filter) {
+        return null == filter || (null != value && value.contains(filter));
+    }
+
+    private static Comparator<ConnectionRegistry.ConnectionInfo> getComparator(String sort) {
+        Comparator<ConnectionRegistry.ConnectionInfo> comparator;
+        switch (sort) {
+            case "age":
+                comparator =
+                        Comparator.comparingLong(ConnectionRegistry.ConnectionInfo::getAgeMillis);
+                break;
+            case "idle":
+                comparator =
+                        Comparator.comparingLong(ConnectionRegistry.ConnectionInfo::getIdleMillis);
+                break;
+            case "up":
+                comparator =
+                        Comparator.comparingLong(
+                                ConnectionRegistry.ConnectionInfo::getRequestBytes);
+                break;
+            case "down":
+                comparator =
+                        Comparator.comparingLong(
+                                ConnectionRegistry.ConnectionInfo::getResponseBytes);
+                break;
+            case "bytes":
+                comparator =
+                        Comparator.comparingLong(
+                                info -> info.getRequestBytes() + info.getResponseBytes());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort: " + sort);
+        }
+        return comparator.reversed();
+    }
+
+    private String getUpstreamReport() {
+        StringBuilder report = new StringBuilder();
+        Map<String, UpstreamStats> sorted = new TreeMap<>(this.instance.getAllUpstreamStats());
+        for (UpstreamStats stats : sorted.values()) {
+            // a report must not create bulkheads
+            UpstreamBulkhead bulkhead = this.instance.findBulkhead(stats.getUpstream());
+            report.append(
+                    String.format(
+                            Locale.ROOT,
+                            "%s state=%s opened=%d connectMs=%.1f firstResponseMs=%.1f"
+                                    + " errorRate=%.3f inFlight=%d",
+                            stats.getUpstream(),
+                            stats.getCircuitBreaker().getState(),
+                            stats.getCircuitBreaker().getOpenedCount(),
+                            stats.getConnectMillis(),
+                            stats.getFirstResponseMillis(),
+                            stats.getErrorRate(),
+                            null == bulkhead ? 0 : bulkhead.getInFlight()));
+            Http2UpstreamPool pool = this.instance.getHttp2UpstreamPool(stats.getUpstream());
+            if (null != pool) {
+                // fallbacks are the tunnels that got a Http/1.1 connection of their own
+                report.append(
+                        String.format(
+                                Locale.ROOT,
+                                " h2Connections=%d h2Tunnels=%d h2Fallbacks=%d",
+                                pool.getConnectionCount(),
+                                pool.getTunnelCount(),
+                                pool.getFallbackCount()));
+            }
+            report.append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    /**
+     * Starts the admin server - binds on the loopback address and answers admin requests on a
+     * pool of {@link #THREADS} threads.
+     */
+    @SuppressWarnings("InfiniteLoopStatement")
+    @Override
+    public void run() {
+        ExecutorService pool = createPool();
+        try (ServerSocket serverSocket =
+                new ServerSocket(this.localBindPort, 50, InetAddress.getLoopbackAddress())) {
+            this.serverSocketA = serverSocket;
+            LOGGER.info("Start AdminServer on TCP port: {}", serverSocket.getLocalPort());
+            synchronized (waitForMe) {
+                waitForMe.notifyAll();
+            }
+            while (true) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    try {
+                        pool.execute(() -> answer(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        LOGGER.debug("AdminServer is busy. Request is closed.");
+                        clientSocket.close();
+                    }
+                } catch (SocketException e) {
+                    if (serverSocket.isClosed()) {
+                        throw e;
+                    }
+                    LOGGER.debug("AdminServer request failed: {}", e.getMessage());
+                } catch (IOException e) {
+                    LOGGER.debug("AdminServer request failed: {}", e.getMessage());
+                }
+            }
+        } catch (BindException e) {
+            throw new PreProxyFSException(
+                    "Unable to bind AdminServer to local port " + this.localBindPort, e);
+        } catch (SocketException e) {
+            LOGGER.info("Closing AdminServer socket");
+        } catch (IOException e) {
+            throw new PreProxyFSException("Error creating AdminServer socket.", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
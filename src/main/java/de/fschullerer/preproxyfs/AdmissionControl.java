@@ -0,0 +1,271 @@
+package de.fschullerer.preproxyfs;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admission control for the main port of an instance. A new client connection is admitted only
+ * if:
+ *
+ * <ul>
+ *   <li>the number of concurrent connections is below the maximum,
+ *   <li>the rate of new connections is below the maximum (token bucket with a burst of one second)
+ *       and
+ *   <li>the routing stage is not overloaded.
+ * </ul>
+ *
+ * <p>The routing stage is overloaded if its queue delay (time from accept until the upstream is
+ * selected: thread start, PAC evaluation, upstream selection) stays above the target for a whole
+ * interval. Like CoDel, the minimum delay of the interval is used: A single slow PAC evaluation
+ * does not shed, a standing queue does. New connections are shed until an interval has a minimum
+ * delay below the target (or no routed connection).
+ *
+ * <p>Rejected connections are answered at once with 503 Service Unavailable and a Retry-After
+ * header, so the admitted connections keep their latency under overload.
+ *
+ * @author Frank Schullerer
+ */
+public class AdmissionControl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class.getName());
+
+    /** Default interval of the routing delay in milliseconds. */
+    public static final long DEFAULT_SHED_INTERVAL = 100;
+
+    /** Result of {@link #admit()}. */
+    public enum Verdict {
+        /** The connection is admitted. */
+        ADMITTED,
+        /** Rejected: maximum concurrent connections reached. */
+        MAX_CONNECTIONS,
+        /** Rejected: maximum rate of new connections reached. */
+        MAX_RATE,
+        /** Rejected: the routing stage is overloaded. */
+        OVERLOADED
+    }
+
+    private int maxConnections;
+    private int maxRate;
+    private long targetDelayNanos;
+    private long intervalNanos;
+
+    private int active;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    private long intervalStartNanos = System.nanoTime();
+    private long intervalMinDelayNanos = Long.MAX_VALUE;
+    private long lastIntervalMinDelayNanos;
+    private boolean overloaded;
+
+    private long admittedCount;
+    private long maxConnectionsCount;
+    private long maxRateCount;
+    private long overloadedCount;
+
+    /**
+     * Create the admission control.
+     *
+     * @param maxConnections Maximum concurrent connections. 0 means: no limit.
+     * @param maxRate Maximum new connections per second. 0 means: no limit.
+     * @param targetDelayMillis Target queue delay of the routing stage in milliseconds. 0 means:
+     *     no shedding.
+     * @param intervalMillis Interval of the routing delay in milliseconds.
+     */
+    public AdmissionControl(
+            int maxConnections, int maxRate, long targetDelayMillis, long intervalMillis) {
+        setLimits(maxConnections, maxRate, targetDelayMillis, intervalMillis);
+        this.tokens = maxRate;
+    }
+
+    /**
+     * Check if a new connection is admitted. Every admitted connection must be followed by one
+     * {@link #release()}.
+     *
+     * @return {@link Verdict#ADMITTED} or the reason of the rejection.
+     */
+    public synchronized Verdict admit() {
+        long now = System.nanoTime();
+        Verdict verdict = check(now);
+        switch (verdict) {
+            case ADMITTED:
+                this.active++;
+                this.admittedCount++;
+                if (this.maxRate > 0) {
+                    this.tokens--;
+                }
+                break;
+            case MAX_CONNECTIONS:
+                this.maxConnectionsCount++;
+                break;
+            case MAX_RATE:
+                this.maxRateCount++;
+                break;
+            default:
+                this.overloadedCount++;
+                break;
+        }
+        return verdict;
+    }
+
+    private Verdict check(long now) {
+        if (this.maxConnections > 0 && this.active >= this.maxConnections) {
+            return Verdict.MAX_CONNECTIONS;
+        }
+        if (this.maxRate > 0) {
+            this.tokens =
+                    Math.min(
+                            this.maxRate,
+                            this.tokens + (now - this.lastRefillNanos) * this.maxRate / 1e9);
+            this.lastRefillNanos = now;
+            if (this.tokens < 1) {
+                return Verdict.MAX_RATE;
+            }
+        }
+        if (this.targetDelayNanos > 0) {
+            closeIntervals(now);
+            if (this.overloaded) {
+                return Verdict.OVERLOADED;
+            }
+        }
+        return Verdict.ADMITTED;
+    }
+
+    /** Release the permit of an admitted connection. */
+    public synchronized void release() {
+        if (this.active > 0) {
+            this.active--;
+        }
+    }
+
+    /**
+     * Record the queue delay of the routing stage of a connection.
+     *
+     * @param delayNanos Time from accept until the upstream was selected in nanoseconds.
+     */
+    public synchronized void recordRoutingDelay(long delayNanos) {
+        if (this.targetDelayNanos <= 0) {
+            return;
+        }
+        closeIntervals(System.nanoTime());
+        this.intervalMinDelayNanos = Math.min(this.intervalMinDelayNanos, delayNanos);
+    }
+
+    /** Decide about the overload at the end of an interval. */
+    private void closeIntervals(long now) {
+        if (now - this.intervalStartNanos < this.intervalNanos) {
+            return;
+        }
+        boolean wasOverloaded = this.overloaded;
+        // an interval without routed connections ends the overload
+        this.overloaded =
+                now - this.intervalStartNanos < 2 * this.intervalNanos
+                        && this.intervalMinDelayNanos != Long.MAX_VALUE
+                        && this.intervalMinDelayNanos > this.targetDelayNanos;
+        if (this.intervalMinDelayNanos != Long.MAX_VALUE) {
+            this.lastIntervalMinDelayNanos = this.intervalMinDelayNanos;
+        }
+        if (this.overloaded != wasOverloaded) {
+            if (this.overloaded) {
+                LOGGER.warn(
+                        "Routing delay {} ms is above the target. Shedding new connections.",
+                        TimeUnit.NANOSECONDS.toMillis(this.intervalMinDelayNanos));
+            } else {
+                LOGGER.info("Routing delay is below the target. Admitting new connections.");
+            }
+        }
+        this.intervalStartNanos = now;
+        this.intervalMinDelayNanos = Long.MAX_VALUE;
+    }
+
+    /**
+     * Change the limits (e.g. on a reload of the settings). Admitted connections are not closed.
+     *
+     * @param newMaxConnections Maximum concurrent connections. 0 means: no limit.
+     * @param newMaxRate Maximum new connections per second. 0 means: no limit.
+     * @param newTargetDelayMillis Target queue delay of the routing stage in milliseconds. 0
+     *     means: no shedding.
+     * @param newIntervalMillis Interval of the routing delay in milliseconds.
+     */
+    public synchronized void setLimits(
+            int newMaxConnections,
+            int newMaxRate,
+            long newTargetDelayMillis,
+            long newIntervalMillis) {
+        this.maxConnections = newMaxConnections;
+        this.maxRate = newMaxRate;
+        this.tokens = Math.min(this.tokens, newMaxRate);
+        this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(newTargetDelayMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, newIntervalMillis));
+        if (this.targetDelayNanos <= 0) {
+            this.overloaded = false;
+        }
+    }
+
+    /**
+     * Get the number of admitted connections that are not released.
+     *
+     * @return Active connections.
+     */
+    public synchronized int getActive() {
+        return this.active;
+    }
+
+    /**
+     * Get the number of admitted connections since start.
+     *
+     * @return Admitted connections.
+     */
+    public synchronized long getAdmittedCount() {
+        return this.admittedCount;
+    }
+
+    /**
+     * Get the number of rejected connections since start.
+     *
+     * @param verdict The reason of the rejection.
+     * @return Rejected connections.
+     */
+    public synchronized long getRejectedCount(Verdict verdict) {
+        switch (verdict) {
+            case MAX_CONNECTIONS:
+                return this.maxConnectionsCount;
+            case MAX_RATE:
+                return this.maxRateCount;
+            case OVERLOADED:
+                return this.overloadedCount;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Check if new connections are shed because of the routing delay.
+     *
+     * @return TRUE if the routing stage is overloaded.
+     */
+    public synchronized boolean isOverloaded() {
+        return this.overloaded;
+    }
+
+    /**
+     * Get a one line report for the admin endpoint.
+     *
+     * @return The counters and the state.
+     */
+    synchronized String getReport() {
+        return String.format(
+                Locale.ROOT,
+                "active=%d admitted=%d rejectedMaxConnections=%d rejectedMaxRate=%d"
+                        + " rejectedOverloaded=%d overloaded=%s routingDelayMs=%.1f%n",
+                this.active,
+                this.admittedCount,
+                this.maxConnectionsCount,
+                this.maxRateCount,
+                this.overloadedCount,
+                this.overloaded,
+                this.lastIntervalMinDelayNanos / 1e6);
+    }
+}
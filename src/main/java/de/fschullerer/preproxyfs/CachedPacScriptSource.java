@@ -0,0 +1,260 @@
+package de.fschullerer.preproxyfs;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PAC script source for a Http(s) PAC URL with a local copy of the PAC script. The copy is stored
+ * with the ETag and Last-Modified header of the PAC server (in a second file with the ending
+ * .meta).
+ *
+ * <p>If a copy exists, the script content is taken from the copy without a download. So a slow or
+ * unreachable PAC server (e.g. VPN not up yet) does not delay or break the start. {@link
+ * #revalidate()} asks the PAC server with a conditional GET (If-None-Match, If-Modified-Since) if
+ * the script was changed. Only a changed script is downloaded. A downloaded script is stored with
+ * {@link #storeCopy()} after it was parsed: a broken script never replaces the last good copy.
+ *
+ * @author Frank Schullerer
+ */
+public class CachedPacScriptSource implements PacScriptSource {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(CachedPacScriptSource.class.getName());
+    /** Connect and read timeout of the PAC download. */
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private static final String URL_KEY = "url";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+
+    private final String pacUrl;
+    private final Path copyFile;
+    private final Path metaFile;
+    private volatile String scriptContent;
+    private String etag;
+    private String lastModified;
+    private boolean fromCopy;
+    /** Downloaded script that is not stored in the copy yet (null: nothing to store). */
+    private byte[] unstoredContent;
+    /** Script, ETag and Last-Modified before the unstored download (restored on discard). */
+    private String[] previousVersion;
+
+    /**
+     * Create a PAC script source with a local copy.
+     *
+     * @param pacUrl The Http(s) URL of the PAC script.
+     * @param copyFile Path to the local copy e.g. /var/cache/PreProxyFS/proxy.pac
+     */
+    public CachedPacScriptSource(String pacUrl, String copyFile) {
+        this.pacUrl = pacUrl;
+        this.copyFile = Paths.get(copyFile);
+        this.metaFile = Paths.get(copyFile + ".meta");
+    }
+
+    /**
+     * Check if a PAC URL can be used with this source.
+     *
+     * @param pacUrl The PAC URL/file.
+     * @return TRUE for a Http(s) URL.
+     */
+    static boolean isHttpUrl(String pacUrl) {
+        return pacUrl.startsWith("http://") || pacUrl.startsWith("https://");
+    }
+
+    /**
+     * Get the PAC script: From the local copy if it exists, else from the PAC server.
+     *
+     * @return The PAC script content.
+     * @throws IOException No local copy and the download failed.
+     */
+    @Override
+    public synchronized String getScriptContent() throws IOException {
+        if (null == this.scriptContent) {
+            if (loadCopy()) {
+                this.fromCopy = true;
+                LOGGER.info("Using local copy {} of PAC script {}", this.copyFile, this.pacUrl);
+            } else {
+                download(false);
+            }
+        }
+        return this.scriptContent;
+    }
+
+    @Override
+    public boolean isScriptValid() {
+        String content = this.scriptContent;
+        return null != content && content.contains("FindProxyForURL");
+    }
+
+    /**
+     * Check if the script content was taken from the local copy (and should be revalidated).
+     *
+     * @return TRUE if the script content was not downloaded.
+     */
+    public synchronized boolean isFromCopy() {
+        return this.fromCopy;
+    }
+
+    /**
+     * Ask the PAC server if the script was changed (conditional GET). A changed script must be
+     * parsed, then stored with {@link #storeCopy()} or discarded with {@link #discardDownload()}.
+     *
+     * @return TRUE if the script content was changed.
+     * @throws IOException The PAC server is not reachable or answered with an error.
+     */
+    public synchronized boolean revalidate() throws IOException {
+        String oldContent = this.scriptContent;
+        download(null != oldContent);
+        this.fromCopy = false;
+        return !this.scriptContent.equals(oldContent);
+    }
+
+    private void download(boolean conditional) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(this.pacUrl).openConnection(Proxy.NO_PROXY);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (conditional && null != this.etag) {
+            connection.setRequestProperty("If-None-Match", this.etag);
+        }
+        if (conditional && null != this.lastModified) {
+            connection.setRequestProperty("If-Modified-Since", this.lastModified);
+        }
+        try {
+            int status = connection.getResponseCode();
+            if (conditional && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                LOGGER.debug("PAC script {} is not modified.", this.pacUrl);
+                return;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException(
+                        "Download of PAC script " + this.pacUrl + " failed with status " + status);
+            }
+            byte[] content;
+            try (InputStream in = connection.getInputStream()) {
+                content = readAll(in);
+            }
+            String script = new String(content, StandardCharsets.UTF_8);
+            if (!script.contains("FindProxyForURL")) {
+                // e.g. the login page of a captive portal
+                throw new IOException(
+                        "Download of PAC script " + this.pacUrl + " is no PAC script");
+            }
+            this.previousVersion =
+                    new String[] {this.scriptContent, this.etag, this.lastModified};
+            this.scriptContent = script;
+            this.etag = connection.getHeaderField("ETag");
+            this.lastModified = connection.getHeaderField("Last-Modified");
+            this.unstoredContent = content;
+            LOGGER.info("Downloaded PAC script {} ({} bytes).", this.pacUrl, content.length);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[Util.DEFAULT_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Load the local copy if it belongs to the PAC URL.
+     *
+     * @return TRUE if the copy was loaded.
+     */
+    private boolean loadCopy() {
+        if (!Files.isRegularFile(this.copyFile) || !Files.isRegularFile(this.metaFile)) {
+            return false;
+        }
+        Properties meta = new Properties();
+        try (Reader in = Files.newBufferedReader(this.metaFile, StandardCharsets.UTF_8)) {
+            meta.load(in);
+            if (!this.pacUrl.equals(meta.getProperty(URL_KEY))) {
+                LOGGER.info("Local PAC copy {} belongs to another PAC URL.", this.copyFile);
+                return false;
+            }
+            this.scriptContent =
+                    new String(Files.readAllBytes(this.copyFile), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read local PAC copy {}: {}", this.copyFile, e.getMessage());
+            return false;
+        }
+        this.etag = meta.getProperty(ETAG_KEY);
+        this.lastModified = meta.getProperty(LAST_MODIFIED_KEY);
+        return true;
+    }
+
+    /**
+     * Discard a downloaded script that could not be parsed: the script of the last good version is
+     * used again and the local copy is not changed.
+     */
+    public synchronized void discardDownload() {
+        if (null != this.unstoredContent) {
+            LOGGER.warn("Downloaded PAC script {} is discarded.", this.pacUrl);
+            this.scriptContent = this.previousVersion[0];
+            this.etag = this.previousVersion[1];
+            this.lastModified = this.previousVersion[2];
+            this.unstoredContent = null;
+            this.previousVersion = null;
+        }
+    }
+
+    /**
+     * Store a downloaded script and the validators in the local copy. Call it after the script
+     * was parsed. A failure only disables the copy.
+     */
+    public synchronized void storeCopy() {
+        if (null == this.unstoredContent) {
+            return;
+        }
+        byte[] content = this.unstoredContent;
+        this.unstoredContent = null;
+        this.previousVersion = null;
+        Properties meta = new Properties();
+        meta.setProperty(URL_KEY, this.pacUrl);
+        if (null != this.etag) {
+            meta.setProperty(ETAG_KEY, this.etag);
+        }
+        if (null != this.lastModified) {
+            meta.setProperty(LAST_MODIFIED_KEY, this.lastModified);
+        }
+        try {
+            if (null != this.copyFile.toAbsolutePath().getParent()) {
+                Files.createDirectories(this.copyFile.toAbsolutePath().getParent());
+            }
+            Path tempCopy = Paths.get(this.copyFile + ".tmp");
+            Files.write(tempCopy, content);
+            // the copy is complete before it is used by the next start
+            Files.move(
+                    tempCopy,
+                    this.copyFile,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            try (Writer out = Files.newBufferedWriter(this.metaFile, StandardCharsets.UTF_8)) {
+                meta.store(out, "PreProxyFS PAC copy");
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to store local PAC copy {}: {}", this.copyFile, e.getMessage());
+        }
+    }
+}
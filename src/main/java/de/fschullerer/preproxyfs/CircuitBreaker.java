@@ -0,0 +1,172 @@
+package de.fschullerer.preproxyfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for one upstream (remote proxy). After a number of consecutive failures
+ * (connect failures, timeouts, gateway error responses) the breaker opens and new connections
+ * do not try the upstream any more, so they do not wait for the connect timeout of a dead proxy.
+ * After the open time one trial connection is allowed (half-open). If it succeeds the breaker
+ * closes, else it opens again.
+ *
+ * @author Frank Schullerer
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class.getName());
+
+    /** State of a circuit breaker. */
+    public enum State {
+        /** Normal operation. */
+        CLOSED,
+        /** The upstream is not used. */
+        OPEN,
+        /** One trial connection is allowed. */
+        HALF_OPEN
+    }
+
+    private final String upstream;
+    private int failureThreshold;
+    private long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+    private long trialStartedAt;
+    private long openedCount;
+
+    /**
+     * Create a circuit breaker for one upstream.
+     *
+     * @param upstream The remote proxy e.g. remote.proxy1.com:8080 (for log messages).
+     * @param failureThreshold Consecutive failures that open the breaker. 0 disables the breaker.
+     * @param openMillis Time in milliseconds the breaker stays open before a trial connection.
+     */
+    public CircuitBreaker(String upstream, int failureThreshold, long openMillis) {
+        this.upstream = upstream;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Change the configuration (e.g. on a reload of the settings). A disabled breaker is closed.
+     *
+     * @param newFailureThreshold Consecutive failures that open the breaker. 0 disables it.
+     * @param newOpenMillis Time in milliseconds the breaker stays open before a trial connection.
+     */
+    public synchronized void setConfiguration(int newFailureThreshold, long newOpenMillis) {
+        this.failureThreshold = newFailureThreshold;
+        this.openMillis = newOpenMillis;
+        if (newFailureThreshold <= 0) {
+            this.consecutiveFailures = 0;
+            this.trialInFlight = false;
+            if (this.state != State.CLOSED) {
+                transition(State.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * Check without side effects if a connection to the upstream would be allowed.
+     *
+     * @return TRUE if {@link #allowRequest()} would (most likely) return TRUE.
+     */
+    public synchronized boolean isCallPermitted() {
+        long now = System.currentTimeMillis();
+        switch (this.state) {
+            case OPEN:
+                return now - this.openedAt >= this.openMillis;
+            case HALF_OPEN:
+                return !this.trialInFlight || now - this.trialStartedAt >= this.openMillis;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Ask for a new connection to the upstream. In half-open state only one trial connection is
+     * allowed at the same time (a trial without result is replaced after the open time).
+     *
+     * @return TRUE if the connection is allowed.
+     */
+    public synchronized boolean allowRequest() {
+        if (this.failureThreshold <= 0) {
+            return true;
+        }
+        if (!isCallPermitted()) {
+            return false;
+        }
+        if (this.state != State.CLOSED) {
+            if (this.state == State.OPEN) {
+                transition(State.HALF_OPEN);
+            }
+            this.trialInFlight = true;
+            this.trialStartedAt = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    /** Record a successful connection (e.g. the upstream answered a CONNECT request). */
+    public synchronized void onSuccess() {
+        this.consecutiveFailures = 0;
+        this.trialInFlight = false;
+        if (this.state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    /** Record a failed connection (connect failure, timeout or gateway error response). */
+    public synchronized void onFailure() {
+        if (this.failureThreshold <= 0) {
+            return;
+        }
+        this.consecutiveFailures++;
+        this.trialInFlight = false;
+        if (this.state == State.HALF_OPEN
+                || (this.state == State.CLOSED
+                        && this.consecutiveFailures >= this.failureThreshold)) {
+            this.openedAt = System.currentTimeMillis();
+            this.openedCount++;
+            transition(State.OPEN);
+        }
+    }
+
+    private void transition(State newState) {
+        if (newState == State.OPEN) {
+            LOGGER.warn(
+                    "Circuit breaker of upstream {} changes from {} to OPEN after {} failures."
+                            + " No new connections for {} ms.",
+                    this.upstream,
+                    this.state,
+                    this.consecutiveFailures,
+                    this.openMillis);
+        } else {
+            LOGGER.info(
+                    "Circuit breaker of upstream {} changes from {} to {}.",
+                    this.upstream,
+                    this.state,
+                    newState);
+        }
+        this.state = newState;
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return The state.
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Get how often the breaker was opened since start.
+     *
+     * @return Number of times the breaker was opened.
+     */
+    public synchronized long getOpenedCount() {
+        return this.openedCount;
+    }
+}
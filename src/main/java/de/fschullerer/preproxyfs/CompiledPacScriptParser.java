@@ -0,0 +1,448 @@
+package de.fschullerer.preproxyfs;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptMethods;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptParser;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptSource;
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import com.github.markusbernhardt.proxy.selector.pac.ScriptMethods;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PAC script parser that compiles the PAC script with the Rhino {@link ClassCompiler} into JVM
+ * classes. The {@code JavaxPacScriptParser} of proxy-vole evaluates the complete PAC script in
+ * interpreted mode for every request. This parser runs the PAC script once and then only calls
+ * the compiled FindProxyForURL function.
+ *
+ * <p>The compiled classes are cached by the hash of the PAC script: In memory (e.g. a restart of
+ * the instance or a changed PAC script that is changed back) and optionally in a class cache
+ * directory for the next start of the JVM. The PAC helper functions (isInNet, dnsResolve, ...)
+ * are set up once in a shared sealed scope.
+ *
+ * <p>If classes can not be generated (GraalVM native image), the PAC script is run by the Rhino
+ * interpreter with the same scope setup.
+ *
+ * <p>The PAC script is sandboxed like in proxy-vole: The helper functions are plain JavaScript
+ * functions (no Java object in the scope), a {@code ClassShutter} hides all Java classes and an
+ * instruction observer stops a PAC script that runs longer than {@link #MAX_RUN_MILLIS} (e.g. an
+ * endless loop in a PAC script of a compromised server).
+ *
+ * @author Frank Schullerer
+ */
+public class CompiledPacScriptParser implements PacScriptParser {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(CompiledPacScriptParser.class.getName());
+
+    /** Default maximum time in milliseconds of one run of the PAC script. */
+    static final long MAX_RUN_MILLIS = 5_000;
+    /** Number of Rhino instructions between two checks of the run time. */
+    private static final int INSTRUCTION_THRESHOLD = 10_000;
+    /** Key of the deadline of the current run in the Rhino context. */
+    private static final String DEADLINE = "PreProxyFS.deadline";
+
+    private static final String CLASS_NAME_PREFIX = "de.fschullerer.preproxyfs.pac.PacScript_";
+    /** Class files without instruction observer (older versions) are not used. */
+    private static final String CLASS_FILE_ENDING = ".observed.classes";
+    /** Rhino optimization level for compiled classes. */
+    private static final int OPTIMIZATION_LEVEL = 9;
+    /** Rhino optimization level of the interpreter. */
+    private static final int INTERPRETED = -1;
+
+    /** Compiled PAC scripts by hash of the PAC script. */
+    private static final Map<Long, Script> COMPILED_SCRIPTS = new ConcurrentHashMap<>();
+
+    private static final SandboxContextFactory CONTEXT_FACTORY = new SandboxContextFactory();
+
+    private static Scriptable sharedScope;
+
+    private final PacScriptSource source;
+    private final long maxRunMillis;
+    private final Scriptable scope;
+    private final Function findProxyForUrl;
+    private final boolean compiled;
+
+    /**
+     * Compile a PAC script without a class cache directory.
+     *
+     * @param source The PAC script source.
+     * @throws ProxyEvaluationException The PAC script is invalid.
+     */
+    public CompiledPacScriptParser(PacScriptSource source) throws ProxyEvaluationException {
+        this(source, null);
+    }
+
+    /**
+     * Compile a PAC script.
+     *
+     * @param source The PAC script source.
+     * @param classCacheDir Directory for the compiled classes (null: only cached in memory).
+     * @throws ProxyEvaluationException The PAC script is invalid.
+     */
+    public CompiledPacScriptParser(PacScriptSource source, String classCacheDir)
+            throws ProxyEvaluationException {
+        this(source, classCacheDir, MAX_RUN_MILLIS);
+    }
+
+    /**
+     * Compile a PAC script with a maximum run time.
+     *
+     * @param source The PAC script source.
+     * @param classCacheDir Directory for the compiled classes (null: only cached in memory).
+     * @param maxRunMillis Maximum time in milliseconds of one run of the PAC script.
+     * @throws ProxyEvaluationException The PAC script is invalid.
+     */
+    CompiledPacScriptParser(PacScriptSource source, String classCacheDir, long maxRunMillis)
+            throws ProxyEvaluationException {
+        this.source = source;
+        this.maxRunMillis = maxRunMillis;
+        String content;
+        try {
+            content = source.getScriptContent();
+        } catch (IOException e) {
+            throw new ProxyEvaluationException("Error reading PAC script: " + e.getMessage(), e);
+        }
+        long start = System.nanoTime();
+        Context cx = enter(maxRunMillis);
+        try {
+            Script script = getCompiledScript(cx, content, classCacheDir);
+            this.compiled = null != script;
+            if (!this.compiled) {
+                cx.setOptimizationLevel(INTERPRETED);
+                script = cx.compileString(content, "PAC", 1, null);
+            }
+            Scriptable helperScope = getSharedScope(cx);
+            this.scope = cx.newObject(helperScope);
+            this.scope.setPrototype(helperScope);
+            this.scope.setParentScope(null);
+            script.exec(cx, this.scope);
+            Object function = ScriptableObject.getProperty(this.scope, "FindProxyForURL");
+            if (!(function instanceof Function)) {
+                throw new ProxyEvaluationException("PAC script has no function FindProxyForURL.");
+            }
+            this.findProxyForUrl = (Function) function;
+        } catch (RhinoException | RunTimeExceededError e) {
+            throw new ProxyEvaluationException("Invalid PAC script: " + e.getMessage(), e);
+        } finally {
+            Context.exit();
+        }
+        LOGGER.info(
+                "PAC script {} in {} ms.",
+                this.compiled ? "compiled" : "loaded (interpreted)",
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Get the compiled PAC script: From memory, from the class cache directory or compile it.
+     *
+     * @return The script or null if classes can not be generated in this JVM.
+     */
+    private static Script getCompiledScript(Context cx, String content, String classCacheDir) {
+        if (isNativeImage()) {
+            return null;
+        }
+        long hash = PacDecisionCache.hashPacScript(content);
+        Script script = COMPILED_SCRIPTS.get(hash);
+        if (null != script) {
+            return script;
+        }
+        String mainClassName = CLASS_NAME_PREFIX + Long.toHexString(hash);
+        Path classFile =
+                null == classCacheDir
+                        ? null
+                        : Paths.get(classCacheDir, Long.toHexString(hash) + CLASS_FILE_ENDING);
+        try {
+            Map<String, byte[]> classes = null == classFile ? null : readClasses(classFile);
+            if (null == classes) {
+                classes = compile(cx, content, mainClassName);
+                if (null != classFile) {
+                    writeClasses(classFile, classes);
+                }
+            } else {
+                LOGGER.info("Using compiled PAC script {}", classFile);
+            }
+            script = defineScript(cx, classes, mainClassName);
+        } catch (RhinoException e) {
+            // syntax errors are reported by the interpreter
+            return null;
+        } catch (Exception | LinkageError e) {
+            LOGGER.warn("Unable to compile PAC script, using interpreter: {}", e.toString());
+            return null;
+        }
+        COMPILED_SCRIPTS.put(hash, script);
+        return script;
+    }
+
+    private static Map<String, byte[]> compile(Context cx, String content, String mainClassName) {
+        CompilerEnvirons environment = new CompilerEnvirons();
+        environment.initFromContext(cx);
+        environment.setOptimizationLevel(OPTIMIZATION_LEVEL);
+        // the compiled classes call the instruction observer (run time limit)
+        environment.setGenerateObserverCount(true);
+        Object[] nameAndBytes =
+                new ClassCompiler(environment)
+                        .compileToClassFiles(content, "PAC", 1, mainClassName);
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (int i = 0; i < nameAndBytes.length; i += 2) {
+            classes.put((String) nameAndBytes[i], (byte[]) nameAndBytes[i + 1]);
+        }
+        return classes;
+    }
+
+    private static Script defineScript(
+            Context cx, Map<String, byte[]> classes, String mainClassName)
+            throws ReflectiveOperationException {
+        GeneratedClassLoader loader =
+                cx.createClassLoader(CompiledPacScriptParser.class.getClassLoader());
+        Class<?> mainClass = null;
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            Class<?> definedClass = loader.defineClass(entry.getKey(), entry.getValue());
+            if (entry.getKey().equals(mainClassName)) {
+                mainClass = definedClass;
+            }
+        }
+        if (null == mainClass) {
+            throw new ClassNotFoundException(mainClassName);
+        }
+        loader.linkClass(mainClass);
+        return (Script) mainClass.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Read the compiled classes of a PAC script.
+     *
+     * @return Class names and bytes or null if there is no (valid) class file.
+     */
+    private static Map<String, byte[]> readClasses(Path classFile) {
+        if (!Files.isRegularFile(classFile)) {
+            return null;
+        }
+        try (InputStream fileIn = Files.newInputStream(classFile);
+                DataInputStream in = new DataInputStream(fileIn)) {
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(name, bytes);
+            }
+            return classes;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read compiled PAC script {}: {}", classFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /** Store the compiled classes. A failure only disables the class cache. */
+    private static void writeClasses(Path classFile, Map<String, byte[]> classes) {
+        try {
+            Files.createDirectories(classFile.toAbsolutePath().getParent());
+            Path tempFile = Paths.get(classFile + ".tmp");
+            try (OutputStream fileOut = Files.newOutputStream(tempFile);
+                    DataOutputStream out = new DataOutputStream(fileOut)) {
+                out.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+            Files.move(tempFile, classFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to store compiled PAC script {}: {}", classFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Get the sealed scope with the standard objects and the PAC helper functions. Created once
+     * for all parsers.
+     */
+    private static synchronized Scriptable getSharedScope(Context cx) {
+        if (null == sharedScope) {
+            ScriptableObject scope = cx.initSafeStandardObjects(null, true);
+            PacScriptMethods scriptMethods = new PacScriptMethods();
+            for (Method method : ScriptMethods.class.getMethods()) {
+                PacHelperFunction function = new PacHelperFunction(scope, scriptMethods, method);
+                function.sealObject();
+                ScriptableObject.putProperty(scope, method.getName(), function);
+            }
+            scope.sealObject();
+            sharedScope = scope;
+        }
+        return sharedScope;
+    }
+
+    /**
+     * Enter a Rhino context of the sandbox and start the run time of the PAC script.
+     *
+     * @param maxRunMillis Maximum run time in milliseconds.
+     * @return The context. Must be closed with {@link Context#exit()}.
+     */
+    private static Context enter(long maxRunMillis) {
+        Context cx = CONTEXT_FACTORY.enterContext();
+        cx.putThreadLocal(
+                DEADLINE, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxRunMillis));
+        return cx;
+    }
+
+    private static boolean isNativeImage() {
+        return null != System.getProperty("org.graalvm.nativeimage.imagecode");
+    }
+
+    /**
+     * Check if the PAC script runs as compiled classes.
+     *
+     * @return TRUE if compiled, FALSE if interpreted.
+     */
+    public boolean isCompiled() {
+        return this.compiled;
+    }
+
+    @Override
+    public PacScriptSource getScriptSource() {
+        return this.source;
+    }
+
+    /**
+     * Call FindProxyForURL of the PAC script.
+     *
+     * @param url The URL of the request.
+     * @param host The host of the request.
+     * @return The PAC decision e.g. PROXY remote.proxy1.com:8080; DIRECT or null if the PAC
+     *     script returned nothing.
+     * @throws ProxyEvaluationException Error in the PAC script.
+     */
+    @Override
+    public String evaluate(String url, String host) throws ProxyEvaluationException {
+        Context cx = enter(this.maxRunMillis);
+        try {
+            Object result =
+                    this.findProxyForUrl.call(cx, this.scope, this.scope, new Object[] {url, host});
+            return null == result || result instanceof Undefined ? null : Context.toString(result);
+        } catch (RhinoException | RunTimeExceededError e) {
+            throw new ProxyEvaluationException("Error evaluating PAC script: " + e.getMessage(), e);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Rhino contexts of the sandbox: No Java class is visible to the PAC script and the run time
+     * is checked every {@link #INSTRUCTION_THRESHOLD} instructions.
+     */
+    private static final class SandboxContextFactory extends ContextFactory {
+
+        @Override
+        protected Context makeContext() {
+            Context cx = super.makeContext();
+            cx.setClassShutter(fullClassName -> false);
+            cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+            return cx;
+        }
+
+        @Override
+        protected void observeInstructionCount(Context cx, int instructionCount) {
+            Object deadline = cx.getThreadLocal(DEADLINE);
+            if (deadline instanceof Long && System.nanoTime() - (Long) deadline > 0) {
+                throw new RunTimeExceededError();
+            }
+        }
+    }
+
+    /**
+     * Stops a PAC script that runs too long. An Error (not an exception) can not be caught by the
+     * PAC script.
+     */
+    private static final class RunTimeExceededError extends Error {
+
+        private static final long serialVersionUID = 1L;
+
+        RunTimeExceededError() {
+            super("PAC script exceeded the maximum run time.");
+        }
+    }
+
+    /**
+     * PAC helper function (isInNet, dnsResolve, ...) as plain JavaScript function. Calls the
+     * method of {@link PacScriptMethods} without exposing the Java object to the PAC script.
+     */
+    private static final class PacHelperFunction extends BaseFunction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient PacScriptMethods scriptMethods;
+        private final transient Method method;
+
+        PacHelperFunction(Scriptable scope, PacScriptMethods scriptMethods, Method method) {
+            super(scope, ScriptableObject.getFunctionPrototype(scope));
+            this.scriptMethods = scriptMethods;
+            this.method = method;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            Class<?>[] parameterTypes = this.method.getParameterTypes();
+            Object[] javaArgs = new Object[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                // optional arguments (e.g. weekdayRange) are null in Java
+                Object arg = i < args.length ? args[i] : null;
+                javaArgs[i] =
+                        null == arg || arg instanceof Undefined
+                                ? null
+                                : Context.jsToJava(arg, parameterTypes[i]);
+            }
+            try {
+                // String, Boolean or Integer: primitive values in JavaScript
+                return this.method.invoke(this.scriptMethods, javaArgs);
+            } catch (InvocationTargetException e) {
+                throw Context.reportRuntimeError(
+                        getFunctionName() + ": " + e.getCause().getMessage());
+            } catch (IllegalAccessException e) {
+                throw Context.reportRuntimeError(getFunctionName() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public String getFunctionName() {
+            return this.method.getName();
+        }
+
+        @Override
+        public int getArity() {
+            return this.method.getParameterTypes().length;
+        }
+
+        @Override
+        public int getLength() {
+            return getArity();
+        }
+    }
+}
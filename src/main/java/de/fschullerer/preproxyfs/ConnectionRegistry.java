@@ -0,0 +1,319 @@
+package de.fschullerer.preproxyfs;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the live client connections of an instance ({@link DistributeForwardClientThread}
+ * with its client socket, upstream socket, route, start time and byte counters). The clients of
+ * the main port and of the Unix domain socket are {@link DistributeForwardClientThread}s. The
+ * Http/2 streams (h2c) are registered in addition: their requests are connections of the main
+ * port, but a stream still sends the response to the client after that connection is closed. Used
+ * to drain the connections on stop: Wait until the in-flight connections and streams are finished
+ * or a deadline is reached and close the rest. The admin endpoint lists the connections with {@link
+ * #getConnectionInfos()} and closes single connections with {@link #kill(long)}.
+ *
+ * @author Frank Schullerer
+ */
+public class ConnectionRegistry {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ConnectionRegistry.class.getName());
+    /** Check interval while draining. */
+    private static final long DRAIN_CHECK_MILLIS = 50;
+
+    private final Map<Long, DistributeForwardClientThread> connections = new ConcurrentHashMap<>();
+    private final Set<Http2Stream> streams = ConcurrentHashMap.newKeySet();
+    /** Local port of the loopback connection of a Http/2 stream to the h2c client address. */
+    private final Map<Integer, SocketAddress> bridgedClients = new ConcurrentHashMap<>();
+    private final AtomicLong connectionIds = new AtomicLong();
+
+    /**
+     * Create a new id for a connection.
+     *
+     * @return The id (never 0).
+     */
+    long newConnectionId() {
+        return this.connectionIds.incrementAndGet();
+    }
+
+    /**
+     * Add a new connection.
+     *
+     * @param id The id of {@link #newConnectionId()}.
+     * @param connection The connection.
+     */
+    void register(long id, DistributeForwardClientThread connection) {
+        this.connections.put(id, connection);
+    }
+
+    /**
+     * Remove a closed connection.
+     *
+     * @param id The id of the connection.
+     */
+    void unregister(long id) {
+        this.connections.remove(id);
+    }
+
+    /**
+     * Add a new Http/2 stream.
+     *
+     * @param stream The stream.
+     */
+    void registerStream(Http2Stream stream) {
+        this.streams.add(stream);
+    }
+
+    /**
+     * Remove a finished Http/2 stream.
+     *
+     * @param stream The stream.
+     */
+    void unregisterStream(Http2Stream stream) {
+        this.streams.remove(stream);
+    }
+
+    /**
+     * Add the loopback connection of a Http/2 stream to the main port. Must be called before the
+     * connection is established, so the main port sees the h2c client instead of 127.0.0.1.
+     *
+     * @param localPort The local port of the loopback connection.
+     * @param client The address of the h2c client.
+     */
+    void registerBridge(int localPort, SocketAddress client) {
+        this.bridgedClients.put(localPort, client);
+    }
+
+    /**
+     * Remove a closed loopback connection of a Http/2 stream.
+     *
+     * @param localPort The local port of the loopback connection.
+     */
+    void unregisterBridge(int localPort) {
+        this.bridgedClients.remove(localPort);
+    }
+
+    /**
+     * Get the h2c client of a connection of the main port.
+     *
+     * @param clientSocket The accepted socket of the main port.
+     * @return The address of the h2c client or null if the connection is no Http/2 stream.
+     */
+    SocketAddress getBridgedClient(Socket clientSocket) {
+        if (null == clientSocket.getInetAddress()
+                || !clientSocket.getInetAddress().isLoopbackAddress()) {
+            return null;
+        }
+        return this.bridgedClients.get(clientSocket.getPort());
+    }
+
+    /**
+     * Get the live connections.
+     *
+     * @return A snapshot of the connections.
+     */
+    Collection<DistributeForwardClientThread> getConnections() {
+        return new ArrayList<>(this.connections.values());
+    }
+
+    /**
+     * Get a live connection.
+     *
+     * @param id The id of the connection.
+     * @return The connection or null if it is closed.
+     */
+    DistributeForwardClientThread getConnection(long id) {
+        return this.connections.get(id);
+    }
+
+    /**
+     * Get a snapshot of the counters of all live connections.
+     *
+     * @return One info per connection.
+     */
+    List<ConnectionInfo> getConnectionInfos() {
+        List<ConnectionInfo> infos = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (DistributeForwardClientThread connection : this.connections.values()) {
+            infos.add(new ConnectionInfo(connection, now));
+        }
+        return infos;
+    }
+
+    /**
+     * Close a live connection.
+     *
+     * @param id The id of the connection.
+     * @return TRUE if the connection was found and closed.
+     */
+    boolean kill(long id) {
+        DistributeForwardClientThread connection = this.connections.get(id);
+        if (null == connection) {
+            return false;
+        }
+        LOGGER.info("Close connection {} of client {}.", id, connection.getClientEndpoint());
+        connection.closeSockets();
+        return true;
+    }
+
+    /**
+     * Get the number of live connections.
+     *
+     * @return Live connections.
+     */
+    public int size() {
+        return this.connections.size();
+    }
+
+    /**
+     * Wait until all connections and Http/2 streams are closed or the timeout is reached. Then
+     * close the remaining connections and streams. New connections must not be accepted any more.
+     *
+     * @param timeoutMillis Maximum time to wait for the connections in milliseconds.
+     * @return The number of connections and streams that were closed after the timeout.
+     */
+    int drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (timeoutMillis > 0 && !isDrained()) {
+            LOGGER.info(
+                    "Wait up to {} ms for {} connections and {} Http/2 streams to finish.",
+                    timeoutMillis,
+                    this.connections.size(),
+                    this.streams.size());
+        }
+        while (!isDrained() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        List<DistributeForwardClientThread> remaining = new ArrayList<>(this.connections.values());
+        List<Http2Stream> remainingStreams = new ArrayList<>(this.streams);
+        if (!remaining.isEmpty() || !remainingStreams.isEmpty()) {
+            LOGGER.info(
+                    "Close {} remaining connections and {} Http/2 streams.",
+                    remaining.size(),
+                    remainingStreams.size());
+        }
+        for (DistributeForwardClientThread connection : remaining) {
+            connection.closeSockets();
+        }
+        for (Http2Stream stream : remainingStreams) {
+            stream.cancel();
+        }
+        return remaining.size() + remainingStreams.size();
+    }
+
+    private boolean isDrained() {
+        return this.connections.isEmpty() && this.streams.isEmpty();
+    }
+
+    /** Snapshot of the counters of one connection. Taken once, so it can be sorted. */
+    static final class ConnectionInfo {
+        private final long id;
+        private final DistributeForwardClientThread.State state;
+        private final String client;
+        private final String host;
+        private final String upstream;
+        private final String endpoint;
+        private final long ageMillis;
+        private final long idleMillis;
+        private final long requestBytes;
+        private final long responseBytes;
+
+        ConnectionInfo(DistributeForwardClientThread connection, long now) {
+            this.id = connection.getRegistryId();
+            this.state = connection.getConnectionState();
+            this.client = connection.getClientEndpoint();
+            this.host = connection.getRoutedHost();
+            this.upstream = connection.getRoutedUpstream();
+            this.endpoint = connection.getUpstreamEndpoint();
+            this.ageMillis = now - connection.getStartTime();
+            this.idleMillis = connection.getIdleMillis();
+            this.requestBytes = connection.getRequestBytes();
+            this.responseBytes = connection.getResponseBytes();
+        }
+
+        long getId() {
+            return this.id;
+        }
+
+        DistributeForwardClientThread.State getState() {
+            return this.state;
+        }
+
+        String getClient() {
+            return this.client;
+        }
+
+        /**
+         * Get the destination host.
+         *
+         * @return The host or null if the connection is not routed yet.
+         */
+        String getHost() {
+            return this.host;
+        }
+
+        /**
+         * Get the upstream of the PAC decision.
+         *
+         * @return The upstream or null if the connection is not routed yet.
+         */
+        String getUpstream() {
+            return this.upstream;
+        }
+
+        long getAgeMillis() {
+            return this.ageMillis;
+        }
+
+        long getIdleMillis() {
+            return this.idleMillis;
+        }
+
+        long getRequestBytes() {
+            return this.requestBytes;
+        }
+
+        long getResponseBytes() {
+            return this.responseBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "id="
+                    + this.id
+                    + " state="
+                    + this.state
+                    + " client="
+                    + this.client
+                    + " host="
+                    + (null == this.host ? "-" : this.host)
+                    + " route="
+                    + (null == this.upstream ? "-" : this.upstream)
+                    + " endpoint="
+                    + this.endpoint
+                    + " ageMs="
+                    + this.ageMillis
+                    + " idleMs="
+                    + this.idleMillis
+                    + " up="
+                    + this.requestBytes
+                    + " down="
+                    + this.responseBytes;
+        }
+    }
+}
@@ -101,19 +101,21 @@ public class DirectForwardClientThread extends Thread implements ForwardServerTh
     }
 
     /**
-     * Read from client socket and write to the server socket until it is possible. If reading or
-     * writing can not be done (due to exception or when the stream is at his end) or writing is
-     * failed, exits the thread.
+     * Read from client socket and write to the server socket until it is possible. Only the
+     * requests until the remote server is connected are inspected, then the bytes are relayed
+     * without inspection (e.g. the encrypted payload after CONNECT). If reading or writing can not
+     * be done (due to exception or when the stream is at his end) or writing is failed, exits the
+     * thread.
      */
     @Override
     public void run() {
         byte[] request;
         try {
-            while (true) {
+            while (!this.directForwardServerThread.isServerSocketSet()) {
                 // thread should run until end of stream is reached or exception occurs
                 request = Util.readFromClientSocket(this.clientSocket);
                 if (request.length == 0) {
-                    break;
+                    return;
                 }
                 // US_ASCII !!!! not UTF-8 !!
                 String httpReq = new String(request, StandardCharsets.US_ASCII);
@@ -123,6 +125,7 @@ public class DirectForwardClientThread extends Thread implements ForwardServerTh
                 handleNonEncryptedHttpMethods(httpReq);
                 forwardRequest(httpReq, request);
             }
+            Util.relay(this.clientSocket, this.directForwardServerThread.getServerSocket(), null);
         } catch (Exception e) {
             // Connection is broken --> exit the thread
             LOGGER.debug("Connection is broken: ", e);
@@ -99,21 +99,25 @@ public class DirectForwardServer extends Thread {
             synchronized (waitForMe) {
                 waitForMe.notifyAll();
             }
-            // Accept client connections and process them until stopped
-            while (true) {
+            // Accept client connections and process them until the server socket is closed (stop)
+            while (!serverSocket.isClosed()) {
                 try {
                     acceptLoop(serverSocket);
                 } catch (Exception e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
                     LOGGER.info("DirectForwardServer acceptLoop Exception: " + e.getMessage());
                     LOGGER.trace("DirectForwardServer acceptLoop Exception Trace", e);
                 }
             }
+            LOGGER.info("Closing DirectForwardServer socket");
         } catch (BindException e) {
             throw new PreProxyFSException(
                     "Unable to bind DirectForwardServer to local port. Program exit.", e);
         } catch (SocketException e) {
             if (e.getMessage().equals("Socket closed")) {
-                LOGGER.info("Closing DistributeServer socket");
+                LOGGER.info("Closing DirectForwardServer socket");
             } else {
                 throw new PreProxyFSException(
                         "Error creating DirectForwardServer socket, Program exit.", e);
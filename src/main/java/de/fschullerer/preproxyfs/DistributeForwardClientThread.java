@@ -2,8 +2,14 @@ package de.fschullerer.preproxyfs;
 
 import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,14 +21,82 @@ import org.slf4j.LoggerFactory;
  */
 public class DistributeForwardClientThread extends Thread implements ForwardServerThreadInterface {
 
+    /**
+     * State of a connection: AWAITING_HEAD -&gt; CONNECTING -&gt; RELAYING or TUNNEL. RELAYING can
+     * switch to TUNNEL after a protocol upgrade. The requests are only inspected until the
+     * connection is routed.
+     */
+    public enum State {
+        /** Waiting for the first request header of the client. */
+        AWAITING_HEAD,
+        /** Routing the request and connecting to the upstream. */
+        CONNECTING,
+        /** Forwarding Http requests and responses (the first responses are inspected). */
+        RELAYING,
+        /** Raw byte relay in both directions (after CONNECT or a protocol upgrade). */
+        TUNNEL
+    }
+
     private static final Logger LOGGER =
             LoggerFactory.getLogger(DistributeForwardClientThread.class.getName());
+    private final PreProxyFSInstance instance;
     private final Socket clientSocket;
     private ForwardServerThread distributeForwardServerThread;
+    /** Http cache exchange that is handed over to the forward server thread when it is started. */
+    private HttpCache.Exchange pendingHttpCacheExchange;
+    /** The bulkhead of the upstream of this connection (null until a permit is acquired). */
+    private UpstreamBulkhead upstreamBulkhead;
+    /** Admission of the connection (null if not admitted by a {@link DistributeServer}). */
+    private AdmissionControl admissionControl;
+    /**
+     * Destination host and upstream for the {@link TrafficStatistics} and the {@link AccessLog}
+     * (null until routed).
+     */
+    private volatile String routedHost;
+
+    private volatile String routedUpstream;
+    /** Host of the first request answered from the Http cache (null if none). */
+    private volatile String cachedHost;
+    /** Bytes written to the client from the Http cache. */
+    private final AtomicLong cachedResponseBytes = new AtomicLong();
+    /** Bytes written to the server socket. */
+    private final AtomicLong requestBytes = new AtomicLong();
+    /** Time to evaluate the PAC script and select the upstream. */
+    private long routeMicros;
+
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    /** Time from accept until the thread runs in nanoseconds. */
+    private long runDelayNanos;
+    /** Id of the connection in the {@link TrafficCapture} (0 if not captured). */
+    private final long captureId;
+    /** TRUE after a CONNECT request: the following payload is encrypted. */
+    private boolean tunnel;
+    /** Id in the {@link ConnectionRegistry} of the instance (0 until the thread runs). */
+    private volatile long registryId;
 
-    /** Creates a new distribution thread. */
+    private final Object closeLock = new Object();
+    private boolean closed;
+    private volatile State state = State.AWAITING_HEAD;
+    /** Time ({@link System#nanoTime()}) of the last request of the client. */
+    private volatile long lastReadNanos = this.startNanos;
+
+    /** Creates a new distribution thread for the default instance of {@link PreProxyFS}. */
     public DistributeForwardClientThread(Socket clientSocket) {
+        this(PreProxyFS.getDefaultInstance(), clientSocket);
+    }
+
+    /**
+     * Creates a new distribution thread.
+     *
+     * @param instance The PreProxyFS instance with PAC script and routing table.
+     * @param clientSocket The socket of the client.
+     */
+    public DistributeForwardClientThread(PreProxyFSInstance instance, Socket clientSocket) {
+        this.instance = instance;
         this.clientSocket = clientSocket;
+        TrafficCapture capture = instance.getTrafficCapture();
+        this.captureId = null == capture ? 0 : capture.startConnection();
     }
 
     /**
@@ -35,12 +109,136 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
         this.distributeForwardServerThread = distributeForwardServerThread;
     }
 
+    /**
+     * Set the admission control that admitted this connection. The permit is released when the
+     * connection is closed.
+     *
+     * @param admittedBy The admission control of the instance.
+     */
+    void setAdmissionControl(AdmissionControl admittedBy) {
+        this.admissionControl = admittedBy;
+    }
+
     /** Get the client socket. The server thread needs it. */
     @Override
     public Socket getClientSocket() {
         return this.clientSocket;
     }
 
+    /**
+     * Get the id of this connection in the {@link ConnectionRegistry}.
+     *
+     * @return The id or 0 if the thread was not started.
+     */
+    long getRegistryId() {
+        return this.registryId;
+    }
+
+    /**
+     * Get the start time of the connection.
+     *
+     * @return Epoch milliseconds.
+     */
+    long getStartTime() {
+        return this.startTime;
+    }
+
+    /**
+     * Get the destination host.
+     *
+     * @return The host or null if the connection is not routed yet.
+     */
+    String getRoutedHost() {
+        return this.routedHost;
+    }
+
+    /**
+     * Get the upstream of the connection.
+     *
+     * @return The upstream e.g. remote.proxy1.com:8080 or DIRECT (null if not routed yet).
+     */
+    String getRoutedUpstream() {
+        return this.routedUpstream;
+    }
+
+    /**
+     * Get the bytes sent to the upstream.
+     *
+     * @return Request bytes.
+     */
+    long getRequestBytes() {
+        return this.requestBytes.get();
+    }
+
+    /**
+     * Get the bytes sent to the client.
+     *
+     * @return Response bytes.
+     */
+    long getResponseBytes() {
+        ForwardServerThread serverThread = this.distributeForwardServerThread;
+        return this.cachedResponseBytes.get()
+                + (null == serverThread ? 0 : serverThread.getForwardedBytes());
+    }
+
+    /**
+     * Get the state of the connection.
+     *
+     * @return The state.
+     */
+    State getConnectionState() {
+        return this.state;
+    }
+
+    /**
+     * Get the time since the last request or response.
+     *
+     * @return Idle time in milliseconds.
+     */
+    long getIdleMillis() {
+        long lastRead = this.lastReadNanos;
+        ForwardServerThread serverThread = this.distributeForwardServerThread;
+        if (null != serverThread && serverThread.getLastReadNanos() - lastRead > 0) {
+            lastRead = serverThread.getLastReadNanos();
+        }
+        return (System.nanoTime() - lastRead) / 1_000_000;
+    }
+
+    /**
+     * Get the address of the client.
+     *
+     * @return The address and port of the client e.g. /127.0.0.1:50312
+     */
+    String getClientEndpoint() {
+        SocketAddress bridged = getBridgedClient();
+        return String.valueOf(
+                null != bridged ? bridged : this.clientSocket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Get the h2c client if this connection is a Http/2 stream (see {@link Http2Stream}).
+     *
+     * @return The address of the h2c client or null.
+     */
+    private SocketAddress getBridgedClient() {
+        return this.instance.getConnectionRegistry().getBridgedClient(this.clientSocket);
+    }
+
+    /**
+     * Get the endpoints of the connection to the local forward server of the upstream.
+     *
+     * @return Local and remote address e.g. /127.0.0.1:50313->localhost/127.0.0.1:60001 or "-"
+     *     if the connection is not established.
+     */
+    String getUpstreamEndpoint() {
+        ForwardServerThread serverThread = this.distributeForwardServerThread;
+        if (null == serverThread || !serverThread.isServerSocketSet()) {
+            return "-";
+        }
+        Socket serverSocket = serverThread.getServerSocket();
+        return serverSocket.getLocalSocketAddress() + "->" + serverSocket.getRemoteSocketAddress();
+    }
+
     /**
      * Add basic authentication to request if needed.
      *
@@ -51,7 +249,7 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
      */
     public byte[] addHttpBasicAuthentication(byte[] orgRequest, String proxyToTake) {
         String httpReq = new String(orgRequest, StandardCharsets.US_ASCII);
-        String auth = PreProxyFS.getProxyAuthenticationForProxy(proxyToTake);
+        String auth = this.instance.getProxyAuthenticationForProxy(proxyToTake);
         byte[] modifiedRequest = orgRequest;
         if (!"".equals(auth) && !httpReq.contains("Proxy-Authorization")) {
             int lengthOfAuth = auth.length();
@@ -86,30 +284,84 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
      * Get the correct proxy for this request. It is tested if the proxy is reachable. If the proxy
      * is not reachable, try the DIRECT connection. This is useful, if PreProxyFS is used with a
      * VPN. If the VPN is off, PreProxyFS will forward all requests directly but always with a small
-     * delay, because the connection to the proxy is always tested with a timeout.
+     * delay, because the connection to the proxy is always tested with a timeout. If the PAC
+     * decision contains several proxies, the {@link UpstreamSelection} of the instance selects one
+     * of them. Proxies with an open {@link CircuitBreaker} are skipped.
      *
      * @param httpReq The request converted to a string.
-     * @return The proxy to take e.g. remote.proxy1.com:8080
+     * @return The proxy to take e.g. remote.proxy1.com:8080 or null if all proxies of the PAC
+     *     decision are unavailable (open circuit breaker) and the PAC decision has no DIRECT.
      * @throws ProxyEvaluationException Error while analyzing the PAC script.
      */
     public String getCorrectProxyForHttpRequest(String httpReq) throws ProxyEvaluationException {
+        long routeStart = System.nanoTime();
         String url = Util.getUrl(httpReq);
         String host = Util.getHost(httpReq);
-        String proxyInPAC = PreProxyFS.getPacScriptParser().evaluate(url, host);
+        String proxyInPAC = this.instance.findProxyForUrl(url, host);
         // fallback
         String proxyToTake = "DIRECT";
-        String[] proxyInPACSplit = proxyInPAC.split(" ");
-        if (proxyInPACSplit.length > 1 && "PROXY".equals(proxyInPACSplit[0])) {
-            proxyToTake = proxyInPACSplit[1].split(";")[0];
-            // check if proxy is reachable only when timeout is set in configuration
-            if (PreProxyFS.getTimeoutForProxyCheck() > 0) {
-                proxyToTake = Util.checkIfRemoteProxyIsReachable(proxyToTake);
+        List<String> candidates = Util.getPacCandidates(proxyInPAC);
+        if (!candidates.isEmpty() && !Util.DIRECT.equals(candidates.get(0))) {
+            // only proxies of the PAC decision, DIRECT stays the last fallback
+            boolean directAllowed = candidates.removeIf(Util.DIRECT::equals);
+            proxyToTake = selectAvailableProxy(candidates);
+            if (null == proxyToTake) {
+                if (!directAllowed) {
+                    LOGGER.warn("All proxies {} for host: {} are unavailable.", candidates, host);
+                    return null;
+                }
+                LOGGER.info("All proxies {} are unavailable. Use DIRECT for: {}", candidates, host);
+                proxyToTake = Util.DIRECT;
+            } else {
+                // check if proxy is reachable only when timeout is set in configuration
+                int timeout = this.instance.getTimeoutForProxyCheck();
+                if (timeout > 0) {
+                    String checkedProxy = Util.checkIfRemoteProxyIsReachable(proxyToTake, timeout);
+                    if (Util.DIRECT.equals(checkedProxy)) {
+                        this.instance.getUpstreamStats(proxyToTake).recordFailure();
+                    }
+                    proxyToTake = checkedProxy;
+                }
             }
         }
         LOGGER.debug("Proxy: {} is used to connect to host: {}", proxyToTake, host);
+        this.instance.getTrafficStatistics().recordConnection(host, proxyToTake);
+        this.routedHost = host;
+        this.routedUpstream = proxyToTake;
+        long routeEnd = System.nanoTime();
+        this.routeMicros = (routeEnd - routeStart) / 1000;
+        if (null != this.admissionControl) {
+            // queue delay of the routing stage: wait for the thread and the routing
+            this.admissionControl.recordRoutingDelay(
+                    this.runDelayNanos + routeEnd - routeStart);
+        }
         return proxyToTake;
     }
 
+    /**
+     * Select one of the proxies whose {@link CircuitBreaker} allows a connection.
+     *
+     * @param candidates The proxies of the PAC decision in PAC order.
+     * @return The proxy or null if no proxy is available.
+     */
+    private String selectAvailableProxy(List<String> candidates) {
+        List<String> available = new ArrayList<>(candidates);
+        available.removeIf(proxy -> !getCircuitBreaker(proxy).isCallPermitted());
+        while (!available.isEmpty()) {
+            String proxy = this.instance.getUpstreamSelection().select(available, this.instance);
+            // another connection may have taken the trial connection of a half-open breaker
+            if (getCircuitBreaker(proxy).allowRequest()) {
+                return proxy;
+            }
+            available.remove(proxy);
+        }
+        return null;
+    }
+
+    private CircuitBreaker getCircuitBreaker(String proxy) {
+        return this.instance.getUpstreamStats(proxy).getCircuitBreaker();
+    }
+
     /**
      * Write request to server socket.
      *
@@ -137,13 +389,30 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
         byte[] modifiedRequest = orgRequest;
         LOGGER.debug("Original request: {}", httpReq);
         if (Util.isHttpHeader(httpReq) && !this.distributeForwardServerThread.isServerSocketSet()) {
+            this.state = State.CONNECTING;
             // getting url/host from request
             String proxyToTake = getCorrectProxyForHttpRequest(httpReq);
-            int localBindPort = PreProxyFS.getLocalProxyPort(proxyToTake);
+            this.tunnel = httpReq.startsWith("CONNECT ");
+            if (null == proxyToTake) {
+                rejectWithServiceUnavailable("No available proxy for this request.");
+            }
+            acquireUpstreamPermit(proxyToTake);
+            int localBindPort = this.instance.getLocalProxyPort(proxyToTake);
             // set destination
             this.distributeForwardServerThread.setServerSocket("localhost", localBindPort);
+            TrafficCapture capture = this.instance.getTrafficCapture();
+            if (this.captureId != 0 && null != capture) {
+                this.distributeForwardServerThread.setTrafficCapture(
+                        capture, this.captureId, this.tunnel);
+            }
+            if (null != this.pendingHttpCacheExchange) {
+                this.distributeForwardServerThread.setHttpCacheExchange(
+                        this.pendingHttpCacheExchange);
+                this.pendingHttpCacheExchange = null;
+            }
             // start distribute server thread because now we now the destination
             this.distributeForwardServerThread.start();
+            this.state = this.tunnel ? State.TUNNEL : State.RELAYING;
             // if requests starts with Http header add "Proxy-Authorization: Basic ..." except
             // it already contains authorization
             // get user name and password for the server from configuration / settings file
@@ -153,14 +422,176 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
         return modifiedRequest;
     }
 
-    /** Close all sockets. */
+    /**
+     * Get a permit of the {@link UpstreamBulkhead} of the upstream. The permit is held until the
+     * connection is closed. If the upstream is saturated, the client gets a 503 response.
+     *
+     * @param upstream The upstream e.g. remote.proxy1.com:8080 or DIRECT
+     * @throws IOException The connection was rejected or the 503 response could not be written.
+     */
+    private void acquireUpstreamPermit(String upstream) throws IOException {
+        UpstreamBulkhead bulkhead = this.instance.getBulkhead(upstream);
+        if (!bulkhead.acquire(getClientAddress())) {
+            rejectWithServiceUnavailable("Upstream " + upstream + " is saturated.");
+        }
+        this.upstreamBulkhead = bulkhead;
+    }
+
+    private String getClientAddress() {
+        if (this.clientSocket instanceof UnixDomainSocket) {
+            return ((UnixDomainSocket) this.clientSocket).getClientKey();
+        }
+        SocketAddress bridged = getBridgedClient();
+        if (bridged instanceof InetSocketAddress) {
+            return ((InetSocketAddress) bridged).getAddress().getHostAddress();
+        }
+        InetAddress clientAddress = this.clientSocket.getInetAddress();
+        return null == clientAddress ? "" : clientAddress.getHostAddress();
+    }
+
+    /**
+     * Answer the client with 503 Service Unavailable and stop handling the connection.
+     *
+     * @param reason The reason for the exception.
+     * @throws IOException Always: the connection was rejected or the response could not be
+     *     written.
+     */
+    private void rejectWithServiceUnavailable(String reason) throws IOException {
+        this.clientSocket
+                .getOutputStream()
+                .write(Util.SERVICE_UNAVAILABLE.getBytes(StandardCharsets.US_ASCII));
+        this.clientSocket.getOutputStream().flush();
+        throw new IOException(reason);
+    }
+
+    /**
+     * Use the {@link HttpCache} (if enabled) for a plain Http GET request. A fresh cached response
+     * is written directly to the client without connecting to the remote proxy. Otherwise the
+     * response of the remote server will be stored or a stale cached response is revalidated with
+     * a conditional request.
+     *
+     * @param orgRequest The original request.
+     * @return An empty array if the request was answered from cache, else the request to forward.
+     * @throws IOException Error while writing the cached response to the client.
+     */
+    byte[] handleHttpCache(byte[] orgRequest) throws IOException {
+        HttpCache httpCache = this.instance.getHttpCache();
+        if (null == httpCache || this.distributeForwardServerThread.isServerSocketSet()) {
+            return orgRequest;
+        }
+        String httpReq = new String(orgRequest, StandardCharsets.US_ASCII);
+        String key = HttpCache.getCacheKey(httpReq);
+        if ("".equals(key) || HttpCache.isConditionalRequest(httpReq)) {
+            return orgRequest;
+        }
+        byte[] modifiedRequest = orgRequest;
+        HttpCache.Entry entry = httpCache.acquire(key);
+        if (null != entry) {
+            if (entry.isFresh(System.currentTimeMillis()) && !HttpCache.isNoCacheRequest(httpReq)) {
+                try {
+                    httpCache.writeTo(entry, this.clientSocket);
+                    this.cachedResponseBytes.addAndGet(entry.getLength());
+                    if (null == this.cachedHost) {
+                        this.cachedHost = Util.getHost(httpReq);
+                    }
+                } finally {
+                    httpCache.release(entry);
+                }
+                return new byte[] {};
+            }
+            if (entry.hasValidator()) {
+                modifiedRequest = HttpCache.addConditionalHeaders(orgRequest, entry);
+            } else {
+                httpCache.release(entry);
+                entry = null;
+            }
+        }
+        this.pendingHttpCacheExchange = httpCache.newExchange(key, entry);
+        return modifiedRequest;
+    }
+
+    /**
+     * Capture a request of the client (without the proxy authentication that is added later).
+     *
+     * @param request The request as read from the client.
+     */
+    private void captureRequest(byte[] request) {
+        captureRequest(request, 0, request.length);
+    }
+
+    private void captureRequest(byte[] buffer, int offset, int length) {
+        TrafficCapture capture = this.instance.getTrafficCapture();
+        if (this.captureId != 0 && null != capture) {
+            capture.capture(
+                    this.captureId,
+                    TrafficCapture.CLIENT_TO_UPSTREAM,
+                    buffer,
+                    offset,
+                    length,
+                    this.tunnel);
+        }
+    }
+
+    /**
+     * Record the bytes and durations of the routed connection. A connection that was only answered
+     * from the Http cache has the upstream {@link HttpCache#CACHE_UPSTREAM}.
+     */
+    private void recordClosedConnection() {
+        String host = null != this.routedHost ? this.routedHost : this.cachedHost;
+        String upstream =
+                null != this.routedHost ? this.routedUpstream : HttpCache.CACHE_UPSTREAM;
+        long responseBytes = getResponseBytes();
+        long bytes = this.requestBytes.get() + responseBytes;
+        this.instance.getTrafficStatistics().recordBytes(host, upstream, bytes);
+        AccessLog accessLog = this.instance.getAccessLog();
+        if (null != accessLog) {
+            accessLog.log(
+                    this.startTime,
+                    getClientAddress(),
+                    host,
+                    upstream,
+                    this.requestBytes.get(),
+                    responseBytes,
+                    this.routeMicros,
+                    (System.nanoTime() - this.startNanos) / 1_000_000);
+        }
+    }
+
+    /**
+     * Close all sockets. Can be called by another thread (e.g. to drain the connections on stop).
+     */
     void closeSockets() {
+        synchronized (this.closeLock) {
+            if (null != this.pendingHttpCacheExchange) {
+                // forward server thread was never started
+                this.pendingHttpCacheExchange.abort();
+                this.pendingHttpCacheExchange = null;
+            }
+            if (null != this.upstreamBulkhead) {
+                this.upstreamBulkhead.release();
+                this.upstreamBulkhead = null;
+            }
+            if (null != this.admissionControl) {
+                this.admissionControl.release();
+                this.admissionControl = null;
+            }
+            if (!this.closed) {
+                this.closed = true;
+                if (0 != this.registryId) {
+                    this.instance.getConnectionRegistry().unregister(this.registryId);
+                }
+                if (null != this.routedHost || null != this.cachedHost) {
+                    recordClosedConnection();
+                }
+            }
+        }
         try {
             if (null != this.clientSocket) {
                 this.clientSocket.close();
             }
+            // do not wait for a server socket that is never set (e.g. rejected connection)
             if (null != this.distributeForwardServerThread
-                    && null != this.distributeForwardServerThread.getServerSocket()) {
+                    && this.distributeForwardServerThread.isServerSocketSet()) {
                 this.distributeForwardServerThread.getServerSocket().close();
             }
         } catch (IOException e) {
@@ -168,6 +599,12 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
         }
     }
 
+    @Override
+    public void onProtocolSwitched() {
+        LOGGER.debug("Protocol switched for host: {}", this.routedHost);
+        this.state = State.TUNNEL;
+    }
+
     /**
      * Read from client socket and write to the server socket until it is possible. Handle proxy
      * authentication. If reading or writing can not be done (due to exception or when the stream is
@@ -175,16 +612,18 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
      */
     @Override
     public void run() {
-        byte[] request;
+        this.runDelayNanos = System.nanoTime() - this.startNanos;
+        ConnectionRegistry registry = this.instance.getConnectionRegistry();
+        // the id must be set before another thread can find this connection in the registry
+        this.registryId = registry.newConnectionId();
+        registry.register(this.registryId, this);
         try {
-            while (true) {
-                // thread should run until end of stream is reached or exception occurs
-                request = Util.readFromClientSocket(this.clientSocket);
-                if (request.length == 0) {
-                    break;
-                }
-                request = startForwardServerThreadForHttpRequest(request);
-                this.writeToServerSocket(request);
+            if (forwardUntilRouted()) {
+                // the upstream of the connection is fixed: no inspection of the requests any more
+                Util.relay(
+                        this.clientSocket,
+                        this.distributeForwardServerThread.getServerSocket(),
+                        this::onRelayedRequest);
             }
         } catch (IOException e) {
             // Connection is broken --> exit the thread
@@ -196,4 +635,38 @@ public class DistributeForwardClientThread extends Thread implements ForwardServ
             this.closeSockets();
         }
     }
+
+    /**
+     * Inspect the requests until the connection is routed: Answer from the Http cache, route the
+     * first request and add the proxy authentication.
+     *
+     * @return FALSE if the end of the stream was reached.
+     * @throws IOException Error while reading or writing.
+     * @throws ProxyEvaluationException Error getting correct proxy from PAC script.
+     */
+    private boolean forwardUntilRouted() throws IOException, ProxyEvaluationException {
+        while (!this.distributeForwardServerThread.isServerSocketSet()) {
+            byte[] request = Util.readFromClientSocket(this.clientSocket);
+            if (request.length == 0) {
+                return false;
+            }
+            this.lastReadNanos = System.nanoTime();
+            captureRequest(request);
+            request = handleHttpCache(request);
+            if (request.length == 0) {
+                // answered from Http cache
+                continue;
+            }
+            request = startForwardServerThreadForHttpRequest(request);
+            this.writeToServerSocket(request);
+            this.requestBytes.addAndGet(request.length);
+        }
+        return true;
+    }
+
+    private void onRelayedRequest(byte[] buffer, int offset, int length) {
+        this.lastReadNanos = System.nanoTime();
+        captureRequest(buffer, offset, length);
+        this.requestBytes.addAndGet(length);
+    }
 }
@@ -1,24 +1,37 @@
 package de.fschullerer.preproxyfs;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Permanent running thread. Distribute incoming requests on {@link #localBindPort} to {@link
- * ProxyForwardServer} or direct connection {@link DirectForwardServer}.
+ * ProxyForwardServer} or direct connection {@link DirectForwardServer}. New connections pass the
+ * {@link AdmissionControl} of the instance first.
  *
  * @author Frank Schullerer
  */
 public class DistributeServer extends Thread {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DistributeServer.class.getName());
+    /** Time in milliseconds a rejected client gets to send its request before it is drained. */
+    private static final long REJECT_DRAIN_DELAY = 200;
+    /** Maximum bytes of a rejected request that are drained. */
+    private static final int REJECT_DRAIN_LIMIT = 64 * 1024;
     private final Object waitForMe = new Object();
+    private final PreProxyFSInstance instance;
     private final Integer localBindPort;
+    /** Server socket that was bound before the thread is started (null: bind in run). */
+    private final ServerSocket boundServerSocket;
+
     private ServerSocket serverSocketD;
 
     /**
@@ -28,7 +41,33 @@ public class DistributeServer extends Thread {
      * @param localBindPort Local bind port.
      */
     public DistributeServer(int localBindPort) {
+        this(PreProxyFS.getDefaultInstance(), localBindPort);
+    }
+
+    /**
+     * Create a new DistributeServer for a PreProxyFS instance. Attention: the port must not be in
+     * use.
+     *
+     * @param instance The PreProxyFS instance that handles the requests.
+     * @param localBindPort Local bind port.
+     */
+    public DistributeServer(PreProxyFSInstance instance, int localBindPort) {
+        this.instance = instance;
         this.localBindPort = localBindPort;
+        this.boundServerSocket = null;
+    }
+
+    /**
+     * Create a new DistributeServer for an already bound server socket (e.g. to switch the main
+     * port: the new port is bound before the old port is closed).
+     *
+     * @param instance The PreProxyFS instance that handles the requests.
+     * @param boundServerSocket The bound server socket.
+     */
+    public DistributeServer(PreProxyFSInstance instance, ServerSocket boundServerSocket) {
+        this.instance = instance;
+        this.localBindPort = boundServerSocket.getLocalPort();
+        this.boundServerSocket = boundServerSocket;
     }
 
     /**
@@ -75,15 +114,95 @@ public class DistributeServer extends Thread {
     private void acceptLoop(ServerSocket serverSocket) throws Exception {
         // Accept client connections and process them until stopped
         // clientSocket is closed in ClientThread
-        Socket clientSocket = serverSocket.accept();
-        clientSocket.setKeepAlive(true);
-        DistributeForwardClientThread clientForward =
-                new DistributeForwardClientThread(clientSocket);
-        // bind the two threads together
-        ForwardServerThread serverForward = new ForwardServerThread(clientForward);
-        clientForward.setForwardServerThread(serverForward);
-        // start only the client thread, we don't know the remote server host name/port yet.
-        clientForward.start();
+        dispatch(this.instance, serverSocket.accept());
+    }
+
+    /**
+     * Admit a new connection and start its {@link DistributeForwardClientThread}. Also used by the
+     * {@link UnixDomainServer}.
+     *
+     * @param instance The PreProxyFS instance that handles the requests.
+     * @param clientSocket The accepted socket of the client.
+     * @throws Exception Some failure while starting ForwardServerThread/
+     *     DistributeForwardClientThread
+     */
+    static void dispatch(PreProxyFSInstance instance, Socket clientSocket) throws Exception {
+        AdmissionControl admissionControl = instance.getAdmissionControl();
+        AdmissionControl.Verdict verdict = admissionControl.admit();
+        if (AdmissionControl.Verdict.ADMITTED != verdict) {
+            reject(instance, clientSocket, verdict);
+            return;
+        }
+        try {
+            clientSocket.setKeepAlive(true);
+            DistributeForwardClientThread clientForward =
+                    new DistributeForwardClientThread(instance, clientSocket);
+            clientForward.setAdmissionControl(admissionControl);
+            // bind the two threads together
+            ForwardServerThread serverForward = new ForwardServerThread(clientForward);
+            clientForward.setForwardServerThread(serverForward);
+            // start only the client thread, we don't know the remote server host name/port yet.
+            clientForward.start();
+        } catch (Exception | Error e) {
+            // e.g. no more threads: the connection is not handled
+            admissionControl.release();
+            clientSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Answer a rejected connection at once with 503 Service Unavailable (in the accept thread: no
+     * thread is created for the connection). The output is shut down and the socket is closed
+     * later by the scheduler after the unread request was drained: closing a socket with unread
+     * input sends a reset, and the client may lose the 503 response.
+     *
+     * @param instance The PreProxyFS instance with the scheduler.
+     * @param clientSocket The socket of the client.
+     * @param verdict The reason of the rejection.
+     */
+    private static void reject(
+            PreProxyFSInstance instance, Socket clientSocket, AdmissionControl.Verdict verdict) {
+        LOGGER.debug("Connection {} rejected: {}", clientSocket, verdict);
+        try {
+            clientSocket
+                    .getOutputStream()
+                    .write(Util.SERVICE_UNAVAILABLE.getBytes(StandardCharsets.US_ASCII));
+            clientSocket.getOutputStream().flush();
+            clientSocket.shutdownOutput();
+            instance.getResources()
+                    .getScheduler()
+                    .schedule(
+                            () -> drainAndClose(clientSocket),
+                            REJECT_DRAIN_DELAY,
+                            TimeUnit.MILLISECONDS);
+        } catch (IOException | RejectedExecutionException e) {
+            LOGGER.trace("Error while rejecting connection.", e);
+            drainAndClose(clientSocket);
+        }
+    }
+
+    /**
+     * Read the request of a rejected client that has already arrived (without blocking) and close
+     * the socket.
+     *
+     * @param clientSocket The socket of the rejected client.
+     */
+    private static void drainAndClose(Socket clientSocket) {
+        try (Socket rejected = clientSocket) {
+            InputStream in = rejected.getInputStream();
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            while (drained < REJECT_DRAIN_LIMIT && in.available() > 0) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                drained += read;
+            }
+        } catch (IOException e) {
+            LOGGER.trace("Error while closing rejected connection.", e);
+        }
     }
 
     /**
@@ -97,13 +216,17 @@ public class DistributeServer extends Thread {
     @Override
     public void run() {
         // Bind server on given TCP port
-        try (ServerSocket serverSocket = new ServerSocket(localBindPort)) {
+        try (ServerSocket serverSocket =
+                null != this.boundServerSocket
+                        ? this.boundServerSocket
+                        : new ServerSocket(localBindPort)) {
             this.serverSocketD = serverSocket;
             LOGGER.info("Start DistributeServer on TCP port: {}", getPort());
             synchronized (waitForMe) {
                 waitForMe.notifyAll();
             }
-            while (true) {
+            // until the server socket is closed (stop or switch of the main port)
+            while (!serverSocket.isClosed()) {
                 try {
                     acceptLoop(serverSocket);
                 } catch (Exception e) {
@@ -111,6 +234,7 @@ public class DistributeServer extends Thread {
                     LOGGER.trace("DistributeServer acceptLoop Exception Trace", e);
                 }
             }
+            LOGGER.info("Closing DistributeServer socket");
         } catch (BindException e) {
             throw new PreProxyFSException(
                     "Unable to bind DirectForwardServer to local port "
@@ -2,7 +2,10 @@ package de.fschullerer.preproxyfs;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,9 +18,27 @@ public class ForwardServerThread extends Thread {
 
     private static final Logger LOGGER =
             LoggerFactory.getLogger(ForwardServerThread.class.getName());
+    /** Timeout in milliseconds to connect to the remote host. */
+    static final int CONNECT_TIMEOUT = 10_000;
     private final ForwardServerThreadInterface forwardClientThread;
     private Socket serverSocket;
     private final Object waitForMe = new Object();
+    /** Set if the first response on this connection should be handled by the {@link HttpCache}. */
+    private HttpCache.Exchange httpCacheExchange;
+    /** Set if the time to the first response should be recorded. */
+    private UpstreamStats upstreamStats;
+
+    private long connectedNanos;
+    /** Set if the responses should be captured. */
+    private TrafficCapture trafficCapture;
+
+    private long captureId;
+    /** TRUE if the responses of a tunnel are captured (only the first response completely). */
+    private boolean captureTunnel;
+    /** Bytes forwarded to the client. */
+    private final AtomicLong forwardedBytes = new AtomicLong();
+    /** Time ({@link System#nanoTime()}) of the last response (0 if nothing was read). */
+    private volatile long lastReadNanos;
 
     /**
      * Create server socket where we know the destination.
@@ -31,7 +52,19 @@ public class ForwardServerThread extends Thread {
             ForwardServerThreadInterface forwardClientThread, String remoteHost, int remotePort)
             throws IOException {
         this.forwardClientThread = forwardClientThread;
-        this.serverSocket = new Socket(remoteHost, remotePort);
+        this.serverSocket = connect(remoteHost, remotePort);
+    }
+
+    /**
+     * Create server thread for an already connected socket (e.g. of a {@link WarmSocketPool}).
+     *
+     * @param forwardClientThread The client thread.
+     * @param connectedSocket The connected socket to the destination.
+     */
+    public ForwardServerThread(
+            ForwardServerThreadInterface forwardClientThread, Socket connectedSocket) {
+        this.forwardClientThread = forwardClientThread;
+        this.serverSocket = connectedSocket;
     }
 
     /**
@@ -43,6 +76,25 @@ public class ForwardServerThread extends Thread {
         this.forwardClientThread = forwardClientThread;
     }
 
+    /**
+     * Connect to a remote host with {@link #CONNECT_TIMEOUT}.
+     *
+     * @param hostName The remote host name.
+     * @param port The remote host port.
+     * @return The connected socket.
+     * @throws IOException If host is not reachable (SocketTimeoutException: no answer in time).
+     */
+    static Socket connect(String hostName, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostName, port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
     /**
      * Get server socket.
      *
@@ -88,8 +140,8 @@ public class ForwardServerThread extends Thread {
     public void setServerSocket(String hostName, int port) throws IOException {
         if (null == this.serverSocket) {
             try {
-                this.serverSocket = new Socket(hostName, port);
-            } catch (ConnectException e) {
+                this.serverSocket = connect(hostName, port);
+            } catch (ConnectException | SocketTimeoutException e) {
                 LOGGER.debug("Cannot connect to host: {} and port: {}", hostName, port);
                 throw e;
             }
@@ -99,26 +151,154 @@ public class ForwardServerThread extends Thread {
         }
     }
 
-    /** Forward responses to client thread. */
+    /**
+     * Let the {@link HttpCache} handle the first response on this connection. Must be set before
+     * the thread is started.
+     *
+     * @param httpCacheExchange The cache exchange for the first request.
+     */
+    void setHttpCacheExchange(HttpCache.Exchange httpCacheExchange) {
+        this.httpCacheExchange = httpCacheExchange;
+    }
+
+    /**
+     * Record the time to the first response of the remote proxy. Must be set before the thread is
+     * started.
+     *
+     * @param upstreamStats The statistics of the remote proxy.
+     * @param connectedNanos The time ({@link System#nanoTime()}) the connection was established.
+     */
+    void setUpstreamStats(UpstreamStats upstreamStats, long connectedNanos) {
+        this.upstreamStats = upstreamStats;
+        this.connectedNanos = connectedNanos;
+    }
+
+    /**
+     * Capture the responses in a {@link TrafficCapture}. Must be set before the thread is started.
+     *
+     * @param capture The capture.
+     * @param connectionId The captured connection.
+     * @param tunnel TRUE if the connection is a tunnel (CONNECT).
+     */
+    void setTrafficCapture(TrafficCapture capture, long connectionId, boolean tunnel) {
+        this.trafficCapture = capture;
+        this.captureId = connectionId;
+        this.captureTunnel = tunnel;
+    }
+
+    /**
+     * Get the bytes that were forwarded to the client.
+     *
+     * @return Forwarded bytes.
+     */
+    long getForwardedBytes() {
+        return this.forwardedBytes.get();
+    }
+
+    /**
+     * Get the time of the last response of the server socket.
+     *
+     * @return {@link System#nanoTime()} of the last read or 0 if nothing was read.
+     */
+    long getLastReadNanos() {
+        return this.lastReadNanos;
+    }
+
+    /**
+     * Forward the responses that must be inspected: The first response and the responses the
+     * {@link HttpCache} needs.
+     *
+     * @return FALSE if the end of the stream was reached.
+     * @throws IOException Error while reading or writing.
+     */
+    private boolean forwardInspectedResponses() throws IOException {
+        boolean firstResponse = true;
+        while (firstResponse || null != this.httpCacheExchange) {
+            byte[] response = Util.readFromClientSocket(this.serverSocket);
+            if (response.length == 0) {
+                return false;
+            }
+            this.lastReadNanos = System.nanoTime();
+            Util.traceLogRequestResponse(this.getClass().getName(), response);
+            captureResponse(response, 0, response.length);
+            if (firstResponse) {
+                firstResponse = false;
+                if (null != this.upstreamStats) {
+                    this.upstreamStats.recordFirstResponse(
+                            System.nanoTime() - this.connectedNanos,
+                            Util.isGatewayErrorResponse(response));
+                    this.upstreamStats = null;
+                }
+                if (Util.isSwitchingProtocols(response)) {
+                    this.forwardClientThread.onProtocolSwitched();
+                }
+            }
+            if (null != this.httpCacheExchange) {
+                response =
+                        this.httpCacheExchange.onResponse(
+                                response, this.forwardClientThread.getClientSocket());
+                if (this.httpCacheExchange.isDone()) {
+                    this.httpCacheExchange = null;
+                }
+            }
+            // forward response
+            this.forwardClientThread.getClientSocket().getOutputStream().write(response);
+            this.forwardClientThread.getClientSocket().getOutputStream().flush();
+            this.forwardedBytes.addAndGet(response.length);
+        }
+        return true;
+    }
+
+    private void onRelayedResponse(byte[] buffer, int offset, int length) {
+        this.lastReadNanos = System.nanoTime();
+        captureResponse(buffer, offset, length);
+        this.forwardedBytes.addAndGet(length);
+    }
+
+    private void captureResponse(byte[] buffer, int offset, int length) {
+        if (null != this.trafficCapture) {
+            // after the CONNECT response the payload is encrypted
+            this.trafficCapture.capture(
+                    this.captureId,
+                    TrafficCapture.UPSTREAM_TO_CLIENT,
+                    buffer,
+                    offset,
+                    length,
+                    this.captureTunnel && this.forwardedBytes.get() > 0);
+        }
+    }
+
+    /** Forward a buffered incomplete response header if the connection is broken. */
+    private void abortHttpCacheExchange() {
+        if (null != this.httpCacheExchange) {
+            byte[] notForwarded = this.httpCacheExchange.abort();
+            this.httpCacheExchange = null;
+            try {
+                this.forwardClientThread.getClientSocket().getOutputStream().write(notForwarded);
+            } catch (IOException e) {
+                LOGGER.trace("Error while forwarding incomplete response.", e);
+            }
+        }
+    }
+
+    /**
+     * Forward responses to client thread. Only the first responses are inspected (Http cache,
+     * time to first response, protocol switch). Then the bytes are relayed without inspection.
+     */
     @Override
     public void run() {
-        byte[] response;
         try {
-            while (true) {
-                // thread should run until end of stream is reached or exception occurs
-                response = Util.readFromClientSocket(this.serverSocket);
-                if (response.length == 0) {
-                    break;
-                }
-                Util.traceLogRequestResponse(this.getClass().getName(), response);
-                // forward response
-                this.forwardClientThread.getClientSocket().getOutputStream().write(response);
-                this.forwardClientThread.getClientSocket().getOutputStream().flush();
+            if (forwardInspectedResponses()) {
+                Util.relay(
+                        this.serverSocket,
+                        this.forwardClientThread.getClientSocket(),
+                        this::onRelayedResponse);
             }
         } catch (IOException e) {
             // Connection is broken --> exit the thread
             LOGGER.debug("Connection is broken. ", e);
         } finally {
+            abortHttpCacheExchange();
             try {
                 if (null != this.serverSocket) {
                     this.serverSocket.close();
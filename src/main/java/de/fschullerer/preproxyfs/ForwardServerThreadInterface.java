@@ -18,4 +18,12 @@ public interface ForwardServerThreadInterface {
      * @return The client socket.
      */
     Socket getClientSocket();
+
+    /**
+     * The first response switched the connection to another protocol (101 Switching Protocols).
+     * From now on the bytes are relayed without inspection.
+     */
+    default void onProtocolSwitched() {
+        // only of interest for client threads with a connection state
+    }
 }
@@ -0,0 +1,199 @@
+package de.fschullerer.preproxyfs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streaming top-K tracker with fixed memory: A count-min sketch estimates the count of every key
+ * and a small candidate table keeps the keys with the highest estimates. Updates are lock-free
+ * (atomic adds and compare-and-set), so they can be done on every connection.
+ *
+ * <p>The estimates are never lower than the real counts, but can be higher for rare keys because
+ * of hash collisions. The candidate table can miss a heavy key for a short time if it is replaced
+ * by a concurrent update; the next update of the key adds it again.
+ *
+ * @author Frank Schullerer
+ */
+public class HeavyHitters {
+
+    /** Number of hash functions (rows) of the sketch. */
+    private static final int DEPTH = 4;
+    /** Number of candidate slots that are probed for a key. */
+    private static final int PROBES = 8;
+
+    private final int topK;
+    private final int widthMask;
+    private final AtomicLongArray sketch;
+    private final int candidateMask;
+    private final AtomicReferenceArray<String> candidates;
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Create a tracker.
+     *
+     * @param topK Number of keys returned by {@link #getTop()}.
+     * @param width Counters per row of the sketch (rounded up to a power of two). More counters
+     *     mean less overestimation. Memory: 4 * 8 bytes per counter.
+     */
+    public HeavyHitters(int topK, int width) {
+        this.topK = topK;
+        int sketchWidth = powerOfTwo(width);
+        this.widthMask = sketchWidth - 1;
+        this.sketch = new AtomicLongArray(DEPTH * sketchWidth);
+        // several slots per top key, so that new heavy keys find a place
+        int candidateSlots = powerOfTwo(Math.max(PROBES, topK * 4));
+        this.candidateMask = candidateSlots - 1;
+        this.candidates = new AtomicReferenceArray<>(candidateSlots);
+    }
+
+    private static int powerOfTwo(int value) {
+        int result = 1;
+        while (result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private static int hash(int hashCode, int seed) {
+        int h = hashCode ^ (seed * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Add a weight (e.g. 1 connection or the transferred bytes) to a key.
+     *
+     * @param key The key e.g. a host name.
+     * @param weight The weight. Ignored if not positive.
+     */
+    public void add(String key, long weight) {
+        if (null == key || weight <= 0) {
+            return;
+        }
+        int hashCode = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * (this.widthMask + 1) + (hash(hashCode, row) & this.widthMask);
+            estimate = Math.min(estimate, this.sketch.addAndGet(index, weight));
+        }
+        this.total.add(weight);
+        offerCandidate(key, hash(hashCode, DEPTH), estimate);
+    }
+
+    /**
+     * Put the key into the candidate table: Into a free slot or instead of the candidate with the
+     * lowest estimate if the key has a higher estimate.
+     */
+    private void offerCandidate(String key, int hash, long estimate) {
+        int lowestSlot = -1;
+        String lowestKey = null;
+        long lowestEstimate = Long.MAX_VALUE;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (hash + probe) & this.candidateMask;
+            String candidate = this.candidates.get(slot);
+            if (null == candidate) {
+                if (this.candidates.compareAndSet(slot, null, key)) {
+                    return;
+                }
+                candidate = this.candidates.get(slot);
+            }
+            if (key.equals(candidate)) {
+                return;
+            }
+            if (null != candidate) {
+                long candidateEstimate = estimate(candidate);
+                if (candidateEstimate < lowestEstimate) {
+                    lowestSlot = slot;
+                    lowestKey = candidate;
+                    lowestEstimate = candidateEstimate;
+                }
+            }
+        }
+        if (lowestSlot >= 0 && lowestEstimate < estimate) {
+            this.candidates.compareAndSet(lowestSlot, lowestKey, key);
+        }
+    }
+
+    /**
+     * Get the estimated count of a key.
+     *
+     * @param key The key.
+     * @return The estimate (never lower than the real count).
+     */
+    public long estimate(String key) {
+        int hashCode = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * (this.widthMask + 1) + (hash(hashCode, row) & this.widthMask);
+            estimate = Math.min(estimate, this.sketch.get(index));
+        }
+        return estimate;
+    }
+
+    /**
+     * Get the sum of all weights.
+     *
+     * @return The total count.
+     */
+    public long getTotal() {
+        return this.total.sum();
+    }
+
+    /**
+     * Get the keys with the highest estimates.
+     *
+     * @return At most top-K items, the highest estimate first.
+     */
+    public List<Item> getTop() {
+        Set<String> keys = new HashSet<>();
+        for (int slot = 0; slot <= this.candidateMask; slot++) {
+            String candidate = this.candidates.get(slot);
+            if (null != candidate) {
+                keys.add(candidate);
+            }
+        }
+        List<Item> items = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            items.add(new Item(key, estimate(key)));
+        }
+        items.sort((first, second) -> Long.compare(second.count, first.count));
+        return items.size() > this.topK ? items.subList(0, this.topK) : items;
+    }
+
+    /** A key with its estimated count. */
+    public static final class Item {
+        private final String key;
+        private final long count;
+
+        Item(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        /**
+         * Get the key.
+         *
+         * @return The key e.g. a host name.
+         */
+        public String getKey() {
+            return this.key;
+        }
+
+        /**
+         * Get the estimated count.
+         *
+         * @return The estimate.
+         */
+        public long getCount() {
+            return this.count;
+        }
+    }
+}
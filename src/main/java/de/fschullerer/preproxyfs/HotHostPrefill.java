@@ -0,0 +1,189 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prefill the routing caches with hot hosts right after the start: The PAC script is evaluated
+ * for every hot host in parallel on a background pool. This fills the {@link PacDecisionCache},
+ * the JVM wide DNS cache of {@link InetAddress} (hosts with a DIRECT decision and the DNS
+ * functions of the PAC script) and warms the PAC engine before real traffic arrives.
+ *
+ * <p>The hot hosts are configured and/or taken from a hosts file. On stop, the top hosts of the
+ * {@link TrafficStatistics} are stored in the hosts file for the next start.
+ *
+ * @author Frank Schullerer
+ */
+public class HotHostPrefill {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotHostPrefill.class.getName());
+
+    /** Default number of threads of the prefill pool. */
+    public static final int DEFAULT_THREADS = 4;
+
+    private final PreProxyFSInstance instance;
+    private final int threads;
+
+    /**
+     * Create a prefill for a started instance.
+     *
+     * @param instance The instance with the PAC script.
+     * @param threads Number of threads of the prefill pool.
+     */
+    public HotHostPrefill(PreProxyFSInstance instance, int threads) {
+        this.instance = instance;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Collect the hot hosts: The configured hosts first, then the hosts of the hosts file.
+     *
+     * @param configuredHosts Comma separated hosts e.g. intranet.company.com,github.com:443 (can
+     *     be null).
+     * @param hostsFile File with one host per line (can be null or missing).
+     * @return The hosts without duplicates.
+     */
+    static List<String> loadHosts(String configuredHosts, String hostsFile) {
+        Set<String> hosts = new LinkedHashSet<>();
+        if (null != configuredHosts) {
+            for (String host : configuredHosts.split(",")) {
+                addHost(hosts, host);
+            }
+        }
+        if (null != hostsFile && Files.isRegularFile(Paths.get(hostsFile))) {
+            try {
+                Path file = Paths.get(hostsFile);
+                for (String host : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    addHost(hosts, host);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read hot hosts file {}: {}", hostsFile, e.getMessage());
+            }
+        }
+        return new ArrayList<>(hosts);
+    }
+
+    private static void addHost(Set<String> hosts, String host) {
+        String trimmed = host.trim();
+        if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+            hosts.add(trimmed);
+        }
+    }
+
+    /**
+     * Store the top hosts of this run for the prefill of the next start.
+     *
+     * @param hostsFile The hosts file.
+     * @param statistics The traffic statistics of this run.
+     */
+    static void storeHosts(String hostsFile, TrafficStatistics statistics) {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Hot hosts of the last PreProxyFS run (most connections first).");
+        for (HeavyHitters.Item item : statistics.getHostConnections().getTop()) {
+            lines.add(item.getKey());
+        }
+        if (lines.size() == 1) {
+            // no traffic: keep the hosts of the previous run
+            return;
+        }
+        try {
+            Path file = Paths.get(hostsFile);
+            Path tempFile = Paths.get(hostsFile + ".tmp");
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("Stored {} hot hosts in {}", lines.size() - 1, hostsFile);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to store hot hosts file {}: {}", hostsFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluate the PAC script for the hosts in the background. Returns at once.
+     *
+     * @param hosts The hot hosts e.g. github.com or github.com:443 (like the Host header).
+     * @return The pool. It is shut down after the last host.
+     */
+    ExecutorService start(List<String> hosts) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool =
+                Executors.newFixedThreadPool(
+                        this.threads,
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "PreProxyFS-prefill-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        long start = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(hosts.size());
+        for (String host : hosts) {
+            pool.execute(
+                    () -> {
+                        prefill(host);
+                        if (remaining.decrementAndGet() == 0) {
+                            LOGGER.info(
+                                    "Prefilled routing of {} hot hosts in {} ms.",
+                                    hosts.size(),
+                                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        }
+                    });
+        }
+        pool.shutdown();
+        return pool;
+    }
+
+    /**
+     * Evaluate the PAC script for one host and resolve a host with a DIRECT decision. The PAC
+     * script gets the host without port like for a real request (see {@link Util#getHost}), so
+     * the prefilled decision is the cache entry of the first real request. The URL is a synthetic
+     * https URL of the host for PAC scripts with URL rules.
+     *
+     * @param host The host e.g. github.com:443
+     */
+    void prefill(String host) {
+        try {
+            String name = hostName(host);
+            String decision = this.instance.findProxyForUrl("https://" + host + "/", name);
+            List<String> candidates = Util.getPacCandidates(decision);
+            if (!candidates.isEmpty() && Util.DIRECT.equals(candidates.get(0))) {
+                InetAddress.getAllByName(name);
+            }
+            LOGGER.debug("Prefilled {}: {}", host, decision);
+        } catch (UnknownHostException e) {
+            LOGGER.debug("Prefill: unknown host {}", host);
+        } catch (Exception e) {
+            // the instance can be stopped during the prefill
+            LOGGER.debug("Prefill of {} failed: {}", host, e.getMessage());
+        }
+    }
+
+    /** Remove the port of host:port and the brackets of [IPv6]:port. */
+    private static String hostName(String host) {
+        if (host.startsWith("[") && host.indexOf(']') > 0) {
+            return host.substring(1, host.indexOf(']'));
+        }
+        int separator = host.indexOf(':');
+        if (separator > 0 && separator == host.lastIndexOf(':')) {
+            return host.substring(0, separator);
+        }
+        return host;
+    }
+}
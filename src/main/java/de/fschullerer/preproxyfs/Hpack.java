@@ -0,0 +1,415 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541) for the {@link Http2Server}. The {@link Decoder} supports
+ * the full format (dynamic table, Huffman coded strings). The encoder uses the static table and
+ * literals without indexing: No dynamic table state has to be kept for the client.
+ *
+ * <p>A header field is a String array of name and value. Strings are octets (ISO-8859-1).
+ *
+ * @author Frank Schullerer
+ */
+final class Hpack {
+
+    /** Default and maximum size of the dynamic table of the decoder. */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /** Overhead of a dynamic table entry in octets. */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""}
+    };
+
+    /** Huffman codes of the octets 0 to 255 and EOS (RFC 7541 Appendix B). */
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+        0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+        0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+        0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+        0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+        0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+        0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+        0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+        0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+        0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+        0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+        0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+        0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+        0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+        0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+        0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+        0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+        0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+        0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+        0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+        0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+        0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+        0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+        0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+        0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+        0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+        0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+        0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+        0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+        0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+        0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+        0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+    };
+
+    /** Length in bits of the Huffman codes. */
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28,
+        30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11,
+        8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6,
+        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6,
+        6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20,
+        22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21,
+        22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23,
+        22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26,
+        28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27,
+        26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+    };
+
+    /** Symbol of the EOS code. */
+    private static final int EOS = 256;
+
+    /** Root of the Huffman decoding tree. */
+    private static final HuffmanNode HUFFMAN_TREE = buildHuffmanTree();
+
+    private Hpack() {
+        // utility class
+    }
+
+    private static HuffmanNode buildHuffmanTree() {
+        HuffmanNode root = new HuffmanNode();
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            HuffmanNode node = root;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int index = (HUFFMAN_CODES[symbol] >>> bit) & 1;
+                if (null == node.children[index]) {
+                    node.children[index] = new HuffmanNode();
+                }
+                node = node.children[index];
+            }
+            node.symbol = symbol;
+        }
+        return root;
+    }
+
+    /**
+     * Encode a header list: Fields of the static table are indexed, all other fields are literals
+     * without indexing.
+     *
+     * @param headers The header fields (lower case names).
+     * @return The header block.
+     */
+    static byte[] encode(List<String[]> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String[] header : headers) {
+            int nameIndex = 0;
+            int fieldIndex = 0;
+            for (int i = 0; i < STATIC_TABLE.length && 0 == fieldIndex; i++) {
+                if (STATIC_TABLE[i][0].equals(header[0])) {
+                    if (0 == nameIndex) {
+                        nameIndex = i + 1;
+                    }
+                    if (STATIC_TABLE[i][1].equals(header[1])) {
+                        fieldIndex = i + 1;
+                    }
+                }
+            }
+            if (0 != fieldIndex) {
+                writeInteger(out, 0x80, 7, fieldIndex);
+            } else {
+                writeInteger(out, 0x00, 4, nameIndex);
+                if (0 == nameIndex) {
+                    writeString(out, header[0]);
+                }
+                writeString(out, header[1]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        int rest = value - max;
+        while (rest >= 0x80) {
+            out.write((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        out.write(rest);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] octets = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(out, 0x00, 7, octets.length);
+        out.write(octets, 0, octets.length);
+    }
+
+    /**
+     * Decoder of the header blocks of one Http/2 connection. The dynamic table is shared by all
+     * header blocks of the connection: Every block must be decoded in order.
+     */
+    static final class Decoder {
+
+        /** Newest entry first. */
+        private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<>();
+
+        private int tableSize;
+        private int maxTableSize = DEFAULT_TABLE_SIZE;
+        private byte[] block;
+        private int position;
+
+        /**
+         * Decode a header block.
+         *
+         * @param headerBlock The header block (of HEADERS and CONTINUATION frames).
+         * @return The header fields in order.
+         * @throws IOException Invalid header block (compression error of the connection).
+         */
+        List<String[]> decode(byte[] headerBlock) throws IOException {
+            this.block = headerBlock;
+            this.position = 0;
+            List<String[]> headers = new ArrayList<>();
+            while (this.position < this.block.length) {
+                int first = this.block[this.position] & 0xff;
+                if ((first & 0x80) != 0) {
+                    // indexed header field
+                    headers.add(getEntry(readInteger(7)));
+                } else if ((first & 0x40) != 0) {
+                    // literal with incremental indexing
+                    String[] header = readLiteral(6);
+                    headers.add(header);
+                    addEntry(header);
+                } else if ((first & 0x20) != 0) {
+                    // dynamic table size update
+                    int newSize = readInteger(5);
+                    if (newSize > DEFAULT_TABLE_SIZE) {
+                        throw new IOException("HPACK table size too large: " + newSize);
+                    }
+                    this.maxTableSize = newSize;
+                    evict();
+                } else {
+                    // literal without indexing or never indexed
+                    headers.add(readLiteral(4));
+                }
+            }
+            return headers;
+        }
+
+        private String[] readLiteral(int prefix) throws IOException {
+            int nameIndex = readInteger(prefix);
+            String name = 0 == nameIndex ? readString() : getEntry(nameIndex)[0];
+            return new String[] {name, readString()};
+        }
+
+        private String[] getEntry(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (index <= 0 || dynamicIndex >= this.dynamicTable.size()) {
+                throw new IOException("Invalid HPACK index: " + index);
+            }
+            Iterator<String[]> entries = this.dynamicTable.iterator();
+            for (int i = 0; i < dynamicIndex; i++) {
+                entries.next();
+            }
+            return entries.next();
+        }
+
+        private void addEntry(String[] header) {
+            this.dynamicTable.addFirst(header);
+            this.tableSize += entrySize(header);
+            evict();
+        }
+
+        private void evict() {
+            while (this.tableSize > this.maxTableSize) {
+                this.tableSize -= entrySize(this.dynamicTable.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] header) {
+            return header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+        }
+
+        private int readInteger(int prefix) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = nextOctet() & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int octet;
+            do {
+                if (shift > 21) {
+                    throw new IOException("HPACK integer too large.");
+                }
+                octet = nextOctet();
+                value += (octet & 0x7f) << shift;
+                shift += 7;
+            } while ((octet & 0x80) != 0);
+            return value;
+        }
+
+        private String readString() throws IOException {
+            if (this.position >= this.block.length) {
+                throw new IOException("Incomplete HPACK header block.");
+            }
+            boolean huffman = (this.block[this.position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > this.block.length - this.position) {
+                throw new IOException("HPACK string exceeds the header block.");
+            }
+            int start = this.position;
+            this.position += length;
+            if (huffman) {
+                return decodeHuffman(this.block, start, length);
+            }
+            return new String(this.block, start, length, StandardCharsets.ISO_8859_1);
+        }
+
+        private int nextOctet() throws IOException {
+            if (this.position >= this.block.length) {
+                throw new IOException("Incomplete HPACK header block.");
+            }
+            return this.block[this.position++] & 0xff;
+        }
+    }
+
+    /**
+     * Decode a Huffman coded string.
+     *
+     * @param data The octets.
+     * @param offset Start of the string.
+     * @param length Length of the string in octets.
+     * @return The decoded string.
+     * @throws IOException Invalid code or padding.
+     */
+    static String decodeHuffman(byte[] data, int offset, int length) throws IOException {
+        StringBuilder decoded = new StringBuilder(length * 8 / 5);
+        HuffmanNode node = HUFFMAN_TREE;
+        int bitsSinceSymbol = 0;
+        boolean onlyOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int index = (data[i] >>> bit) & 1;
+                node = node.children[index];
+                bitsSinceSymbol++;
+                onlyOnes &= 1 == index;
+                if (null == node) {
+                    throw new IOException("Invalid Huffman code.");
+                }
+                if (node.symbol >= 0) {
+                    if (EOS == node.symbol) {
+                        throw new IOException("Huffman coded string contains EOS.");
+                    }
+                    decoded.append((char) node.symbol);
+                    node = HUFFMAN_TREE;
+                    bitsSinceSymbol = 0;
+                    onlyOnes = true;
+                }
+            }
+        }
+        // padding: the most significant bits of EOS (only ones), shorter than one octet
+        if (bitsSinceSymbol > 7 || !onlyOnes) {
+            throw new IOException("Invalid Huffman padding.");
+        }
+        return decoded.toString();
+    }
+
+    /** Node of the Huffman decoding tree. */
+    private static final class HuffmanNode {
+        private final HuffmanNode[] children = new HuffmanNode[2];
+        private int symbol = -1;
+    }
+}
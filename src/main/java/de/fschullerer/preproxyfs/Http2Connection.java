@@ -0,0 +1,626 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One inbound Http/2 connection without TLS (h2c with prior knowledge, RFC 7540). This thread
+ * reads the frames of the client. Every request stream is handled by a {@link Http2Stream}. The
+ * frames of all streams are written through {@link #writeFrame} (one frame at a time).
+ *
+ * <p>Flow control: The connection receive window is refilled at once, the receive window of a
+ * stream only when its data was written to the upstream. So a slow upstream slows down only its
+ * own stream. Data is sent within the send windows of the client.
+ *
+ * @author Frank Schullerer
+ */
+public class Http2Connection extends Thread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2Connection.class.getName());
+
+    /** Connection preface of the client. */
+    static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    /** Initial window size and frame size of Http/2. */
+    static final int DEFAULT_WINDOW = 65_535;
+
+    static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    /** Maximum size of a header block (HEADERS and CONTINUATION frames). */
+    private static final int MAX_HEADER_BLOCK = 65_536;
+
+    private final PreProxyFSInstance instance;
+    private final Socket clientSocket;
+    private final Http2Server server;
+    private final int maxStreams;
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    /** Guards the send windows of the connection and of the streams. */
+    private final Object windowLock = new Object();
+
+    private OutputStream out;
+    private int lastStreamId;
+    private int connectionSendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private volatile int maxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+    private boolean goingAway;
+    /** Header block of a HEADERS frame without END_HEADERS (0: no CONTINUATION expected). */
+    private int continuationStreamId;
+
+    private boolean continuationEndStream;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * Create a connection thread.
+     *
+     * @param instance The PreProxyFS instance that routes the streams.
+     * @param clientSocket The socket of the client.
+     * @param server The server that accepted the connection.
+     * @param maxStreams Maximum concurrent streams of the connection.
+     */
+    Http2Connection(
+            PreProxyFSInstance instance, Socket clientSocket, Http2Server server, int maxStreams) {
+        super("PreProxyFS-h2-" + clientSocket.getPort());
+        this.instance = instance;
+        this.clientSocket = clientSocket;
+        this.server = server;
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * Get the instance of the connection.
+     *
+     * @return The PreProxyFS instance.
+     */
+    PreProxyFSInstance getInstance() {
+        return this.instance;
+    }
+
+    /**
+     * Get the address of the client.
+     *
+     * @return The address and port of the h2c client.
+     */
+    SocketAddress getClientAddress() {
+        return this.clientSocket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Get the number of open streams.
+     *
+     * @return Open streams.
+     */
+    int getStreamCount() {
+        return this.streams.size();
+    }
+
+    /** Read the frames of the client until the connection is closed. */
+    @Override
+    public void run() {
+        try {
+            this.clientSocket.setTcpNoDelay(true);
+            DataInputStream in =
+                    new DataInputStream(
+                            new BufferedInputStream(
+                                    this.clientSocket.getInputStream(), Util.DEFAULT_BUFFER_SIZE));
+            this.out =
+                    new BufferedOutputStream(
+                            this.clientSocket.getOutputStream(), Util.DEFAULT_BUFFER_SIZE);
+            byte[] preface = new byte[PREFACE.length];
+            in.readFully(preface);
+            if (!Arrays.equals(PREFACE, preface)) {
+                LOGGER.debug("No Http/2 connection preface from {}", getRemoteAddress());
+                return;
+            }
+            writeSettings();
+            // the streams have their own windows: the connection window is refilled at once
+            writeWindowUpdate(
+                    0, (int) Math.min((long) this.maxStreams * DEFAULT_WINDOW, MAX_WINDOW / 2));
+            while (!this.closed) {
+                readFrame(in);
+            }
+        } catch (ConnectionError e) {
+            LOGGER.debug("Http/2 connection error: {}", e.getMessage());
+            writeGoAway(e.errorCode);
+        } catch (IOException e) {
+            LOGGER.trace("Http/2 connection is closed.", e);
+        } finally {
+            close();
+        }
+    }
+
+    private String getRemoteAddress() {
+        return String.valueOf(this.clientSocket.getRemoteSocketAddress());
+    }
+
+    private void readFrame(DataInputStream in) throws IOException {
+        int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7fffffff;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Frame too large: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (0 != this.continuationStreamId
+                && (TYPE_CONTINUATION != type || streamId != this.continuationStreamId)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION frame expected.");
+        }
+        switch (type) {
+            case TYPE_DATA:
+                onData(streamId, flags, payload);
+                break;
+            case TYPE_HEADERS:
+                onHeaders(streamId, flags, payload);
+                break;
+            case TYPE_CONTINUATION:
+                onContinuation(streamId, flags, payload);
+                break;
+            case TYPE_RST_STREAM:
+                Http2Stream stream = this.streams.get(streamId);
+                if (null != stream) {
+                    stream.cancel();
+                }
+                break;
+            case TYPE_SETTINGS:
+                onSettings(streamId, flags, payload);
+                break;
+            case TYPE_PING:
+                if (8 != length) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PING frame.");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, length);
+                }
+                break;
+            case TYPE_GOAWAY:
+                // no new streams of the client: the open streams are finished
+                this.goingAway = true;
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client.");
+            default:
+                // PRIORITY and unknown frames are ignored
+                break;
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (0 == streamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame without stream.");
+        }
+        int start = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int end = payload.length - getPaddingLength(flags, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (end < start) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding.");
+        }
+        this.headerBlock.reset();
+        this.headerBlock.write(payload, start, end - start);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, (flags & FLAG_END_STREAM) != 0);
+        } else {
+            this.continuationStreamId = streamId;
+            this.continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != this.continuationStreamId || 0 == streamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame.");
+        }
+        if (this.headerBlock.size() + payload.length > MAX_HEADER_BLOCK) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block too large.");
+        }
+        this.headerBlock.write(payload, 0, payload.length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            this.continuationStreamId = 0;
+            onHeaderBlock(streamId, this.continuationEndStream);
+        }
+    }
+
+    /** A complete header block: a new stream or the trailers of a stream. */
+    private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+        List<String[]> headers;
+        try {
+            // every header block must be decoded: the dynamic table is shared
+            headers = this.decoder.decode(this.headerBlock.toByteArray());
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        Http2Stream stream = this.streams.get(streamId);
+        if (null != stream) {
+            // trailers are not forwarded
+            if (endStream) {
+                stream.onRequestEnd();
+            }
+            return;
+        }
+        if (streamId <= this.lastStreamId || streamId % 2 == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid stream id: " + streamId);
+        }
+        this.lastStreamId = streamId;
+        if (this.goingAway || this.streams.size() >= this.maxStreams) {
+            writeRstStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        synchronized (this.windowLock) {
+            stream = new Http2Stream(this, streamId, headers, endStream, this.initialSendWindow);
+        }
+        this.streams.put(streamId, stream);
+        stream.start();
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (0 == streamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA frame without stream.");
+        }
+        int start = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int end = payload.length - getPaddingLength(flags, payload);
+        if (end < start) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding.");
+        }
+        if (payload.length > 0) {
+            writeWindowUpdate(0, payload.length);
+        }
+        Http2Stream stream = this.streams.get(streamId);
+        if (null == stream) {
+            if (streamId > this.lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on idle stream.");
+            }
+            writeRstStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        stream.onData(
+                Arrays.copyOfRange(payload, start, end),
+                payload.length - (end - start),
+                (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private static int getPaddingLength(int flags, byte[] payload) throws ConnectionError {
+        if ((flags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (0 == payload.length) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Missing padding length.");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (0 != streamId || payload.length % 6 != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS frame.");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = readUnsignedInt(payload, i + 2);
+            if (SETTINGS_INITIAL_WINDOW_SIZE == id) {
+                if (value > MAX_WINDOW) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Window too large.");
+                }
+                changeInitialSendWindow((int) value);
+            } else if (SETTINGS_MAX_FRAME_SIZE == id) {
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid frame size.");
+                }
+                this.maxSendFrameSize = (int) value;
+            }
+        }
+        writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+
+    private void changeInitialSendWindow(int newInitialWindow) {
+        synchronized (this.windowLock) {
+            int delta = newInitialWindow - this.initialSendWindow;
+            this.initialSendWindow = newInitialWindow;
+            for (Http2Stream stream : this.streams.values()) {
+                stream.sendWindow += delta;
+            }
+            this.windowLock.notifyAll();
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (4 != payload.length) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame.");
+        }
+        int increment = (int) (readUnsignedInt(payload, 0) & 0x7fffffff);
+        if (0 == streamId) {
+            synchronized (this.windowLock) {
+                if (0 == increment || (long) this.connectionSendWindow + increment > MAX_WINDOW) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid window increment.");
+                }
+                this.connectionSendWindow += increment;
+                this.windowLock.notifyAll();
+            }
+            return;
+        }
+        Http2Stream stream = this.streams.get(streamId);
+        if (null == stream) {
+            return;
+        }
+        synchronized (this.windowLock) {
+            if (0 == increment || (long) stream.sendWindow + increment > MAX_WINDOW) {
+                stream.cancel();
+                writeRstStream(streamId, FLOW_CONTROL_ERROR);
+                return;
+            }
+            stream.sendWindow += increment;
+            this.windowLock.notifyAll();
+        }
+    }
+
+    static long readUnsignedInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Write the response headers of a stream (HEADERS and CONTINUATION frames).
+     *
+     * @param streamId The stream.
+     * @param headers The header fields (lower case names, :status first).
+     * @param endStream TRUE if the response has no body.
+     * @throws IOException The connection is closed.
+     */
+    void writeHeaders(int streamId, List<String[]> headers, boolean endStream)
+            throws IOException {
+        byte[] block = Hpack.encode(headers);
+        int frameSize = this.maxSendFrameSize;
+        synchronized (this.writeLock) {
+            int offset = 0;
+            int type = TYPE_HEADERS;
+            do {
+                int length = Math.min(frameSize, block.length - offset);
+                int flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+                if (TYPE_HEADERS == type && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrame(type, flags, streamId, block, offset, length);
+                offset += length;
+                type = TYPE_CONTINUATION;
+            } while (offset < block.length);
+        }
+    }
+
+    /**
+     * Write response data of a stream within the send windows. Waits for window updates of the
+     * client.
+     *
+     * @param stream The stream.
+     * @param data The data.
+     * @param offset Start of the data.
+     * @param length Length of the data (0: only END_STREAM).
+     * @param endStream TRUE for the last data of the stream.
+     * @throws IOException The connection or the stream is closed.
+     */
+    void writeData(Http2Stream stream, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        int position = offset;
+        int remaining = length;
+        do {
+            int allowed = 0 == remaining ? 0 : acquireSendWindow(stream, remaining);
+            boolean last = endStream && allowed == remaining;
+            writeFrame(
+                    TYPE_DATA,
+                    last ? FLAG_END_STREAM : 0,
+                    stream.getStreamId(),
+                    data,
+                    position,
+                    allowed);
+            position += allowed;
+            remaining -= allowed;
+        } while (remaining > 0);
+    }
+
+    private int acquireSendWindow(Http2Stream stream, int wanted) throws IOException {
+        synchronized (this.windowLock) {
+            while (!this.closed
+                    && !stream.isCancelled()
+                    && (this.connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+                try {
+                    this.windowLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for window.");
+                }
+            }
+            if (this.closed || stream.isCancelled()) {
+                throw new IOException("Http/2 stream " + stream.getStreamId() + " is closed.");
+            }
+            int allowed =
+                    Math.min(
+                            Math.min(wanted, this.maxSendFrameSize),
+                            Math.min(this.connectionSendWindow, stream.sendWindow));
+            this.connectionSendWindow -= allowed;
+            stream.sendWindow -= allowed;
+            return allowed;
+        }
+    }
+
+    /** Wake up the streams that wait for a send window (e.g. a cancelled stream). */
+    void notifyWindowWaiters() {
+        synchronized (this.windowLock) {
+            this.windowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Refill the receive window of a stream after its data was consumed.
+     *
+     * @param streamId The stream.
+     * @param increment Consumed bytes.
+     * @throws IOException The connection is closed.
+     */
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Reset a stream.
+     *
+     * @param streamId The stream.
+     * @param errorCode The Http/2 error code e.g. {@link #CANCEL}.
+     */
+    void writeRstStream(int streamId, int errorCode) {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        try {
+            writeFrame(TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+        } catch (IOException e) {
+            LOGGER.trace("Error while resetting stream.", e);
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[6];
+        payload[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+        writeInt(payload, 2, this.maxStreams);
+        writeFrame(TYPE_SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private void writeGoAway(int errorCode) {
+        byte[] payload = new byte[8];
+        writeInt(payload, 0, this.lastStreamId);
+        writeInt(payload, 4, errorCode);
+        try {
+            writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            LOGGER.trace("Error while writing GOAWAY.", e);
+        }
+    }
+
+    static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Write one frame.
+     *
+     * @param type The frame type.
+     * @param flags The flags.
+     * @param streamId The stream (0: connection).
+     * @param payload The payload.
+     * @param offset Start of the payload.
+     * @param length Length of the payload.
+     * @throws IOException The connection is closed.
+     */
+    void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (this.writeLock) {
+            if (null == this.out) {
+                throw new IOException("Http/2 connection is not open.");
+            }
+            this.out.write(length >>> 16);
+            this.out.write(length >>> 8);
+            this.out.write(length);
+            this.out.write(type);
+            this.out.write(flags);
+            this.out.write(streamId >>> 24);
+            this.out.write(streamId >>> 16);
+            this.out.write(streamId >>> 8);
+            this.out.write(streamId);
+            this.out.write(payload, offset, length);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Remove a finished stream.
+     *
+     * @param stream The stream.
+     */
+    void removeStream(Http2Stream stream) {
+        this.streams.remove(stream.getStreamId(), stream);
+    }
+
+    /** Close the connection and cancel all open streams. Can be called by another thread. */
+    void close() {
+        this.closed = true;
+        for (Http2Stream stream : new ArrayList<>(this.streams.values())) {
+            stream.cancel();
+        }
+        notifyWindowWaiters();
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            LOGGER.trace("Error while closing socket.", e);
+        }
+        this.server.removeConnection(this);
+    }
+
+    /** Error of the whole connection: answered with GOAWAY. */
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int errorCode;
+
+        ConnectionError(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+}
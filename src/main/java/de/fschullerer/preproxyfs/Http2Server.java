@@ -0,0 +1,133 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Permanent running thread. Optional inbound Http/2 listener of a PreProxyFS instance (h2c with
+ * prior knowledge: Http/2 without TLS and without upgrade). A client needs only one connection
+ * for many parallel requests and CONNECT tunnels. Every stream is routed through the main port
+ * (see {@link Http2Stream}).
+ *
+ * @author Frank Schullerer
+ */
+public class Http2Server extends Thread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2Server.class.getName());
+
+    /** Default maximum concurrent streams per Http/2 connection. */
+    public static final int DEFAULT_MAX_STREAMS = 100;
+
+    private final Object waitForMe = new Object();
+    private final PreProxyFSInstance instance;
+    private final int localBindPort;
+    private final int maxStreams;
+    private final Set<Http2Connection> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocketH;
+
+    /**
+     * Create a new Http2Server. Attention: the port must not be in use.
+     *
+     * @param instance The PreProxyFS instance that routes the streams.
+     * @param localBindPort Local bind port (0: random free port).
+     * @param maxStreams Maximum concurrent streams per connection.
+     */
+    public Http2Server(PreProxyFSInstance instance, int localBindPort, int maxStreams) {
+        this.instance = instance;
+        this.localBindPort = localBindPort;
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * The server socket port was not set directly. Get it here.
+     *
+     * @return The server socket port number.
+     */
+    public int getPort() {
+        waitForServerSocketToBeReady();
+        return this.serverSocketH.getLocalPort();
+    }
+
+    private void waitForServerSocketToBeReady() {
+        while (null == this.serverSocketH) {
+            synchronized (waitForMe) {
+                try {
+                    waitForMe.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PreProxyFSException(
+                            "Timeout waiting for server socket. Should not happen.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of open Http/2 connections.
+     *
+     * @return Open connections.
+     */
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    /**
+     * Remove a closed connection.
+     *
+     * @param connection The connection.
+     */
+    void removeConnection(Http2Connection connection) {
+        this.connections.remove(connection);
+    }
+
+    /**
+     * Get server socket for e.g. closing (stop accepting new connections).
+     *
+     * @return server socket
+     */
+    public ServerSocket getServerSocket() {
+        waitForServerSocketToBeReady();
+        return this.serverSocketH;
+    }
+
+    /** Close all open Http/2 connections and their streams. */
+    public void closeConnections() {
+        for (Http2Connection connection : new ArrayList<>(this.connections)) {
+            connection.close();
+        }
+    }
+
+    /** Starts the Http/2 server - binds on the given port and starts a thread per connection. */
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(this.localBindPort)) {
+            this.serverSocketH = serverSocket;
+            LOGGER.info("Start Http2Server (h2c) on TCP port: {}", serverSocket.getLocalPort());
+            synchronized (waitForMe) {
+                waitForMe.notifyAll();
+            }
+            while (!serverSocket.isClosed()) {
+                Socket clientSocket = serverSocket.accept();
+                Http2Connection connection =
+                        new Http2Connection(this.instance, clientSocket, this, this.maxStreams);
+                this.connections.add(connection);
+                connection.start();
+            }
+        } catch (BindException e) {
+            throw new PreProxyFSException(
+                    "Unable to bind Http2Server to local port " + this.localBindPort, e);
+        } catch (SocketException e) {
+            LOGGER.info("Closing Http2Server socket");
+        } catch (IOException e) {
+            throw new PreProxyFSException("Error creating Http2Server socket.", e);
+        }
+    }
+}
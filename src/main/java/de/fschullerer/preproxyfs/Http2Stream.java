@@ -0,0 +1,568 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One request stream of a {@link Http2Connection}. The stream is sent as Http/1.1 request to the
+ * main port of the instance, so it is routed like every other connection (PAC script, admission
+ * control, upstream limits, proxy authentication, Http cache). The loopback connection is
+ * registered as bridge in the {@link ConnectionRegistry}: the per-client limits and the access
+ * log see the h2c client, not 127.0.0.1.
+ *
+ * <ul>
+ *   <li>CONNECT streams (RFC 7540 8.3) become a CONNECT tunnel. The DATA frames are the payload
+ *       of the tunnel.
+ *   <li>Other requests become a Http/1.1 request with absolute URL and Connection: close. The
+ *       response is converted to HEADERS and DATA frames (a chunked body is decoded).
+ * </ul>
+ *
+ * <p>This thread reads the response. The request body is written by a second thread.
+ *
+ * @author Frank Schullerer
+ */
+public class Http2Stream extends Thread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2Stream.class.getName());
+
+    /** Marks the end of the request body in the queue. */
+    private static final byte[] END_OF_REQUEST = new byte[0];
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /** Characters of a method (token of RFC 9110). */
+    private static final String TOKEN_CHARACTERS = "!#$%&'*+-.^_`|~";
+
+    /** Http/1.1 headers that are not forwarded (connection specific). */
+    private static final Set<String> CONNECTION_HEADERS =
+            new HashSet<>(
+                    Arrays.asList(
+                            "connection",
+                            "keep-alive",
+                            "proxy-connection",
+                            "transfer-encoding",
+                            "upgrade",
+                            "te",
+                            "host"));
+
+    private final Http2Connection connection;
+    private final int streamId;
+    private final List<String[]> requestHeaders;
+    /** FALSE if the HEADERS frame ended the request. */
+    private final boolean requestWithBody;
+    private final LinkedBlockingQueue<byte[]> requestBody = new LinkedBlockingQueue<>();
+    /** Opened when the request body can be written (for CONNECT: after the tunnel is up). */
+    private final CountDownLatch bodyAllowed = new CountDownLatch(1);
+    /** Send window of the stream. Guarded by the window lock of the connection. */
+    int sendWindow;
+
+    private int receiveWindow = Http2Connection.DEFAULT_WINDOW;
+    private boolean requestEnded;
+    private volatile boolean cancelled;
+    private volatile Socket upstreamSocket;
+
+    /**
+     * Create a stream.
+     *
+     * @param connection The connection of the stream.
+     * @param streamId The stream id.
+     * @param requestHeaders The decoded request headers.
+     * @param endStream TRUE if the request has no body.
+     * @param sendWindow The initial send window.
+     */
+    Http2Stream(
+            Http2Connection connection,
+            int streamId,
+            List<String[]> requestHeaders,
+            boolean endStream,
+            int sendWindow) {
+        super("PreProxyFS-h2-stream-" + streamId);
+        this.connection = connection;
+        this.streamId = streamId;
+        this.requestHeaders = requestHeaders;
+        this.requestEnded = endStream;
+        this.requestWithBody = !endStream;
+        this.sendWindow = sendWindow;
+        if (endStream) {
+            this.requestBody.add(END_OF_REQUEST);
+        }
+    }
+
+    /**
+     * Get the stream id.
+     *
+     * @return The stream id.
+     */
+    int getStreamId() {
+        return this.streamId;
+    }
+
+    /**
+     * Check if the stream was cancelled (reset or connection closed).
+     *
+     * @return TRUE if cancelled.
+     */
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Request data of the client (called by the connection thread).
+     *
+     * @param data The data without padding.
+     * @param padding Padding bytes of the frame (count in the flow control).
+     * @param endStream TRUE for the last data of the request.
+     * @throws IOException The connection is closed.
+     */
+    void onData(byte[] data, int padding, boolean endStream) throws IOException {
+        synchronized (this) {
+            if (this.requestEnded) {
+                this.connection.writeRstStream(this.streamId, Http2Connection.STREAM_CLOSED);
+                cancel();
+                return;
+            }
+            this.receiveWindow -= data.length + padding;
+            if (this.receiveWindow < 0) {
+                this.connection.writeRstStream(
+                        this.streamId, Http2Connection.FLOW_CONTROL_ERROR);
+                cancel();
+                return;
+            }
+            this.receiveWindow += padding;
+        }
+        if (padding > 0) {
+            this.connection.writeWindowUpdate(this.streamId, padding);
+        }
+        if (data.length > 0) {
+            this.requestBody.add(data);
+        }
+        if (endStream) {
+            onRequestEnd();
+        }
+    }
+
+    /** End of the request of the client. */
+    synchronized void onRequestEnd() {
+        if (!this.requestEnded) {
+            this.requestEnded = true;
+            this.requestBody.add(END_OF_REQUEST);
+        }
+    }
+
+    /** Cancel the stream (reset by the client or connection closed). */
+    void cancel() {
+        this.cancelled = true;
+        this.requestBody.add(END_OF_REQUEST);
+        this.bodyAllowed.countDown();
+        closeUpstream();
+        this.connection.notifyWindowWaiters();
+    }
+
+    private void closeUpstream() {
+        Socket socket = this.upstreamSocket;
+        if (null != socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.trace("Error while closing socket.", e);
+            }
+        }
+    }
+
+    private String getHeader(String name) {
+        for (String[] header : this.requestHeaders) {
+            if (header[0].equals(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    /** Send the request to the main port and the response to the client. */
+    @Override
+    public void run() {
+        String method = getHeader(":method");
+        String authority = getHeader(":authority");
+        boolean connect = "CONNECT".equals(method);
+        // drained on stop like the connections of the main port
+        ConnectionRegistry registry = this.connection.getInstance().getConnectionRegistry();
+        registry.registerStream(this);
+        int bridgePort = 0;
+        try {
+            if (null == method
+                    || null == authority
+                    || (!connect && (null == getHeader(":path") || null == getHeader(":scheme")))
+                    || !isValidRequest(method)) {
+                // no request smuggling into the Http/1.1 request (RFC 9113 8.2.1)
+                this.connection.writeRstStream(this.streamId, Http2Connection.PROTOCOL_ERROR);
+                return;
+            }
+            Socket socket = new Socket();
+            this.upstreamSocket = socket;
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            bridgePort = socket.getLocalPort();
+            registry.registerBridge(bridgePort, this.connection.getClientAddress());
+            socket.connect(
+                    new InetSocketAddress(
+                            InetAddress.getLoopbackAddress(),
+                            this.connection.getInstance().getPort()));
+            if (this.cancelled) {
+                return;
+            }
+            socket.setTcpNoDelay(true);
+            boolean chunked =
+                    !connect && this.requestWithBody && null == getHeader("content-length");
+            OutputStream upstreamOut = socket.getOutputStream();
+            upstreamOut.write(buildRequestHead(method, authority, connect, chunked));
+            upstreamOut.flush();
+            if (!connect) {
+                this.bodyAllowed.countDown();
+            }
+            if (this.requestWithBody || connect) {
+                startRequestBodyWriter(upstreamOut, chunked, connect);
+            }
+            forwardResponse(
+                    new BufferedInputStream(socket.getInputStream(), Util.DEFAULT_BUFFER_SIZE),
+                    connect,
+                    "HEAD".equals(method));
+        } catch (IOException e) {
+            if (!this.cancelled) {
+                LOGGER.debug("Http/2 stream {} failed: {}", this.streamId, e.getMessage());
+                this.connection.writeRstStream(this.streamId, Http2Connection.CANCEL);
+            }
+        } finally {
+            this.cancelled = true;
+            this.requestBody.add(END_OF_REQUEST);
+            this.bodyAllowed.countDown();
+            closeUpstream();
+            this.connection.removeStream(this);
+            registry.unregisterStream(this);
+            if (0 != bridgePort) {
+                registry.unregisterBridge(bridgePort);
+            }
+        }
+    }
+
+    /**
+     * Check the request headers before they are copied into the Http/1.1 request (RFC 9113
+     * 8.2.1): names without upper case, control characters, whitespace or non-ASCII, values
+     * without NUL, CR, LF and without leading or trailing whitespace. The method is a token,
+     * authority and path have no whitespace or control characters.
+     *
+     * @param method The :method of the request.
+     * @return TRUE if the request can be translated.
+     */
+    private boolean isValidRequest(String method) {
+        if (method.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < method.length(); i++) {
+            char c = method.charAt(i);
+            boolean alphanumeric =
+                    (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+            if (!alphanumeric && TOKEN_CHARACTERS.indexOf(c) < 0) {
+                return false;
+            }
+        }
+        for (String[] header : this.requestHeaders) {
+            String name = header[0];
+            String value = header[1];
+            if (name.isEmpty() || !isValidValue(value)) {
+                return false;
+            }
+            for (int i = name.startsWith(":") ? 1 : 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c <= 0x20 || c >= 0x7f || (c >= 'A' && c <= 'Z') || c == ':') {
+                    return false;
+                }
+            }
+            if ((":authority".equals(name) || ":path".equals(name) || ":scheme".equals(name))
+                    && !isVisibleAscii(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidValue(String value) {
+        if (!value.isEmpty()
+                && (isWhitespace(value.charAt(0))
+                        || isWhitespace(value.charAt(value.length() - 1)))) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c == '\r' || c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isVisibleAscii(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c <= 0x20 || c >= 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] buildRequestHead(
+            String method, String authority, boolean connect, boolean chunked) {
+        StringBuilder head = new StringBuilder();
+        if (connect) {
+            head.append("CONNECT ").append(authority);
+        } else {
+            head.append(method)
+                    .append(' ')
+                    .append(getHeader(":scheme"))
+                    .append("://")
+                    .append(authority)
+                    .append(getHeader(":path"));
+        }
+        head.append(" HTTP/1.1\r\nHost: ").append(authority).append("\r\n");
+        List<String> cookies = new ArrayList<>();
+        for (String[] header : this.requestHeaders) {
+            if (header[0].startsWith(":") || CONNECTION_HEADERS.contains(header[0])) {
+                continue;
+            }
+            if ("cookie".equals(header[0])) {
+                cookies.add(header[1]);
+                continue;
+            }
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if (!cookies.isEmpty()) {
+            head.append("cookie: ").append(String.join("; ", cookies)).append("\r\n");
+        }
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        if (!connect) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Write the request body (DATA frames) to the main port in a second thread. */
+    private void startRequestBodyWriter(
+            OutputStream upstreamOut, boolean chunked, boolean connect) {
+        Thread writer =
+                new Thread(
+                        () -> writeRequestBody(upstreamOut, chunked, connect),
+                        getName() + "-body");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeRequestBody(OutputStream upstreamOut, boolean chunked, boolean connect) {
+        try {
+            this.bodyAllowed.await();
+            byte[] data;
+            while ((data = this.requestBody.take()) != END_OF_REQUEST) {
+                if (this.cancelled) {
+                    return;
+                }
+                if (chunked) {
+                    upstreamOut.write(
+                            (Integer.toHexString(data.length) + "\r\n")
+                                    .getBytes(StandardCharsets.US_ASCII));
+                }
+                upstreamOut.write(data);
+                if (chunked) {
+                    upstreamOut.write(CRLF);
+                }
+                upstreamOut.flush();
+                synchronized (this) {
+                    this.receiveWindow += data.length;
+                }
+                // the data is consumed: the client can send more
+                this.connection.writeWindowUpdate(this.streamId, data.length);
+            }
+            if (this.cancelled) {
+                return;
+            }
+            if (chunked) {
+                upstreamOut.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                upstreamOut.flush();
+            }
+            if (connect) {
+                // half close: the upstream can still answer
+                this.upstreamSocket.shutdownOutput();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.trace("Http/2 request body of stream {} failed.", this.streamId, e);
+        }
+    }
+
+    /**
+     * Read the Http/1.1 response of the main port and send it as HEADERS and DATA frames.
+     *
+     * @param upstreamIn The response of the main port.
+     * @param connect TRUE for a CONNECT stream.
+     * @param head TRUE for a HEAD request (no body).
+     * @throws IOException Error while reading or writing.
+     */
+    private void forwardResponse(InputStream upstreamIn, boolean connect, boolean head)
+            throws IOException {
+        List<String[]> responseHeaders = new ArrayList<>();
+        int status;
+        do {
+            responseHeaders.clear();
+            status = readResponseHead(upstreamIn, responseHeaders);
+            if (status >= 100 && status < 200) {
+                // informational response e.g. 100 Continue
+                this.connection.writeHeaders(
+                        this.streamId, responseHeaders.subList(0, 1), false);
+            }
+        } while (status >= 100 && status < 200);
+        String contentLength = null;
+        boolean chunked = false;
+        for (String[] header : responseHeaders) {
+            if ("content-length".equals(header[0])) {
+                contentLength = header[1].trim();
+            } else if ("transfer-encoding".equals(header[0])) {
+                chunked = header[1].toLowerCase(Locale.ROOT).contains("chunked");
+            }
+        }
+        responseHeaders.removeIf(header -> CONNECTION_HEADERS.contains(header[0]));
+        if (connect) {
+            this.connection.writeHeaders(this.streamId, responseHeaders, false);
+            if (status >= 200 && status < 300) {
+                this.bodyAllowed.countDown();
+            }
+            copyToEnd(upstreamIn);
+        } else if (head || 204 == status || 304 == status || "0".equals(contentLength)) {
+            this.connection.writeHeaders(this.streamId, responseHeaders, true);
+        } else if (chunked) {
+            this.connection.writeHeaders(this.streamId, responseHeaders, false);
+            copyChunked(upstreamIn);
+        } else if (null != contentLength && contentLength.matches("\\d{1,18}")) {
+            this.connection.writeHeaders(this.streamId, responseHeaders, false);
+            copy(upstreamIn, Long.parseLong(contentLength));
+            this.connection.writeData(this, new byte[0], 0, 0, true);
+        } else {
+            this.connection.writeHeaders(this.streamId, responseHeaders, false);
+            copyToEnd(upstreamIn);
+        }
+    }
+
+    /**
+     * Read a Http/1.1 response head.
+     *
+     * @param upstreamIn The response.
+     * @param responseHeaders Receives :status and the headers (lower case names).
+     * @return The status code.
+     * @throws IOException Invalid response or end of stream.
+     */
+    private static int readResponseHead(InputStream upstreamIn, List<String[]> responseHeaders)
+            throws IOException {
+        String statusLine = readLine(upstreamIn);
+        String[] statusParts = statusLine.split(" ", 3);
+        if (statusParts.length < 2
+                || !statusParts[0].startsWith("HTTP/")
+                || !statusParts[1].matches("\\d{3}")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        responseHeaders.add(new String[] {":status", statusParts[1]});
+        String line;
+        while (!(line = readLine(upstreamIn)).isEmpty()) {
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                responseHeaders.add(
+                        new String[] {
+                            line.substring(0, separator).trim().toLowerCase(Locale.ROOT),
+                            line.substring(separator + 1).trim()
+                        });
+            }
+        }
+        return Integer.parseInt(statusParts[1]);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int octet;
+        while ((octet = in.read()) != '\n') {
+            if (octet < 0) {
+                throw new IOException("Unexpected end of response.");
+            }
+            if (octet != '\r') {
+                line.write(octet);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private void copyToEnd(InputStream upstreamIn) throws IOException {
+        byte[] buffer = new byte[Http2Connection.DEFAULT_MAX_FRAME_SIZE];
+        int read;
+        while ((read = upstreamIn.read(buffer)) != -1) {
+            this.connection.writeData(this, buffer, 0, read, false);
+        }
+        this.connection.writeData(this, buffer, 0, 0, true);
+    }
+
+    private void copy(InputStream upstreamIn, long length) throws IOException {
+        byte[] buffer = new byte[Http2Connection.DEFAULT_MAX_FRAME_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = upstreamIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of response body.");
+            }
+            this.connection.writeData(this, buffer, 0, read, false);
+            remaining -= read;
+        }
+    }
+
+    private void copyChunked(InputStream upstreamIn) throws IOException {
+        while (true) {
+            String sizeLine = readLine(upstreamIn);
+            int extension = sizeLine.indexOf(';');
+            String size = (extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim();
+            if (!size.matches("[0-9a-fA-F]{1,15}")) {
+                throw new IOException("Invalid chunk size: " + sizeLine);
+            }
+            long chunkSize = Long.parseLong(size, 16);
+            if (0 == chunkSize) {
+                // trailers are not forwarded
+                while (!readLine(upstreamIn).isEmpty()) {
+                    LOGGER.trace("Trailer of stream {} skipped.", this.streamId);
+                }
+                this.connection.writeData(this, new byte[0], 0, 0, true);
+                return;
+            }
+            copy(upstreamIn, chunkSize);
+            readLine(upstreamIn);
+        }
+    }
+}
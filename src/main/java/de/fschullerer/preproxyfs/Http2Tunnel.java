@@ -0,0 +1,230 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One CONNECT tunnel (RFC 7540 8.3) as a stream of a {@link Http2UpstreamConnection}. The data of
+ * the remote proxy is queued until the client reads it. The queue is bounded by the receive window
+ * of the tunnel ({@link Http2UpstreamConnection#TUNNEL_WINDOW}): the window is refilled only
+ * after the client got the data.
+ *
+ * @author Frank Schullerer
+ */
+final class Http2Tunnel {
+
+    /** Marks the end of the data in the queue. */
+    private static final byte[] END_OF_DATA = new byte[0];
+
+    private final Http2UpstreamConnection connection;
+    private final int streamId;
+    private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final CountDownLatch responseReceived = new CountDownLatch(1);
+    /** Send window of the tunnel. Guarded by the window lock of the connection. */
+    int sendWindow;
+
+    private volatile List<String[]> responseHeaders;
+    /** Http/2 error code of a reset (-1: not reset). */
+    private volatile int resetCode = -1;
+
+    private boolean localEnded;
+    private boolean remoteEnded;
+
+    /**
+     * Create a tunnel.
+     *
+     * @param connection The connection of the tunnel.
+     * @param streamId The stream id.
+     * @param sendWindow The initial send window.
+     */
+    Http2Tunnel(Http2UpstreamConnection connection, int streamId, int sendWindow) {
+        this.connection = connection;
+        this.streamId = streamId;
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * Get the stream id.
+     *
+     * @return The stream id.
+     */
+    int getStreamId() {
+        return this.streamId;
+    }
+
+    /**
+     * Check if the tunnel was reset (by the remote proxy, the connection or {@link #cancel()}).
+     *
+     * @return TRUE if reset.
+     */
+    boolean isReset() {
+        return -1 != this.resetCode;
+    }
+
+    /**
+     * Wait for the response of the remote proxy to the CONNECT request.
+     *
+     * @param timeoutMillis Maximum time to wait.
+     * @return The response headers (:status first) or null on timeout or reset.
+     * @throws InterruptedIOException Interrupted while waiting.
+     */
+    List<String[]> awaitResponse(long timeoutMillis) throws InterruptedIOException {
+        try {
+            if (!this.responseReceived.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response.");
+        }
+        return this.responseHeaders;
+    }
+
+    /**
+     * Read the next data of the remote proxy. Call {@link #consumed(int)} after the data was
+     * written to the client.
+     *
+     * @return The data or null at the end of the stream.
+     * @throws IOException The tunnel was reset.
+     */
+    byte[] read() throws IOException {
+        byte[] data;
+        try {
+            data = this.received.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the tunnel.");
+        }
+        if (END_OF_DATA == data) {
+            // keep the marker for further reads
+            this.received.add(END_OF_DATA);
+            if (isReset()) {
+                throw new IOException("Http/2 tunnel " + this.streamId + " was reset.");
+            }
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Refill the receive window of the tunnel.
+     *
+     * @param length Bytes written to the client.
+     * @throws IOException The connection is closed.
+     */
+    void consumed(int length) throws IOException {
+        if (!isReset() && length > 0) {
+            this.connection.writeWindowUpdate(this.streamId, length);
+        }
+    }
+
+    /**
+     * Send data of the client. Waits for the send windows.
+     *
+     * @param data The data.
+     * @param offset Start of the data.
+     * @param length Length of the data.
+     * @throws IOException The tunnel or the connection is closed.
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        this.connection.writeData(this, data, offset, length, false);
+    }
+
+    /**
+     * The client has no more data: half-close the tunnel (END_STREAM).
+     *
+     * @throws IOException The tunnel or the connection is closed.
+     */
+    void finish() throws IOException {
+        this.connection.writeData(this, END_OF_DATA, 0, 0, true);
+        boolean ended;
+        synchronized (this) {
+            this.localEnded = true;
+            ended = this.remoteEnded;
+        }
+        if (ended) {
+            this.connection.removeTunnel(this);
+        }
+    }
+
+    /** Reset the tunnel if it is still open (e.g. the client closed the connection). */
+    void cancel() {
+        synchronized (this) {
+            if (isReset() || (this.localEnded && this.remoteEnded)) {
+                return;
+            }
+        }
+        this.connection.writeRstStream(this.streamId, Http2Connection.CANCEL);
+        onReset(Http2Connection.CANCEL);
+    }
+
+    /**
+     * Headers of the remote proxy: the response (informational responses are skipped) or
+     * trailers.
+     *
+     * @param headers The decoded headers.
+     * @param endStream TRUE if the remote proxy ended the stream.
+     */
+    void onHeaders(List<String[]> headers, boolean endStream) {
+        if (null == this.responseHeaders
+                && !headers.isEmpty()
+                && ":status".equals(headers.get(0)[0])
+                && !headers.get(0)[1].startsWith("1")) {
+            this.responseHeaders = headers;
+            this.responseReceived.countDown();
+        }
+        if (endStream) {
+            onRemoteEnd();
+        }
+    }
+
+    /**
+     * Data of the remote proxy.
+     *
+     * @param data The data without padding.
+     * @param endStream TRUE if the remote proxy ended the stream.
+     */
+    void onData(byte[] data, boolean endStream) {
+        if (data.length > 0) {
+            this.received.add(data);
+        }
+        if (endStream) {
+            onRemoteEnd();
+        }
+    }
+
+    private void onRemoteEnd() {
+        boolean ended;
+        synchronized (this) {
+            this.remoteEnded = true;
+            ended = this.localEnded;
+        }
+        this.received.add(END_OF_DATA);
+        // a stream that ends without response is answered by nobody
+        this.responseReceived.countDown();
+        if (ended) {
+            this.connection.removeTunnel(this);
+        }
+    }
+
+    /**
+     * The tunnel was reset (by the remote proxy or because the connection is closed).
+     *
+     * @param errorCode The Http/2 error code.
+     */
+    void onReset(int errorCode) {
+        synchronized (this) {
+            if (isReset()) {
+                return;
+            }
+            this.resetCode = errorCode;
+        }
+        this.received.add(END_OF_DATA);
+        this.responseReceived.countDown();
+        this.connection.removeTunnel(this);
+    }
+}
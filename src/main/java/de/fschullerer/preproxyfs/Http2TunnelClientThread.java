@@ -0,0 +1,238 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards one connection of the {@link ProxyForwardServer} to a remote proxy with Http/2. A
+ * CONNECT request becomes a stream ({@link Http2Tunnel}) of a shared connection of the {@link
+ * Http2UpstreamPool}. Other requests, and CONNECT requests the pool cannot carry (no Http/2, all
+ * streams in use, refused stream), get a connection of their own with Http/1.1.
+ *
+ * <p>This thread copies the client data to the tunnel. The data of the tunnel is copied to the
+ * client by a second thread. The client gets a Http/1.1 response to its CONNECT request.
+ *
+ * @author Frank Schullerer
+ */
+class Http2TunnelClientThread extends Thread {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(Http2TunnelClientThread.class.getName());
+
+    /** Maximum time in milliseconds to wait for the response of the remote proxy to CONNECT. */
+    static final long RESPONSE_TIMEOUT = 30_000;
+
+    /** Http/1.1 headers that are not sent as Http/2 headers (connection specific). */
+    private static final Set<String> CONNECTION_HEADERS =
+            new HashSet<>(
+                    Arrays.asList(
+                            "connection",
+                            "keep-alive",
+                            "proxy-connection",
+                            "transfer-encoding",
+                            "upgrade",
+                            "te",
+                            "host"));
+
+    private final Socket clientSocket;
+    private final Http2UpstreamPool pool;
+    private final ProxyForwardServer server;
+    private final UpstreamStats upstreamStats;
+
+    /**
+     * Create a thread for a connection of the client.
+     *
+     * @param clientSocket The socket of the client.
+     * @param pool The Http/2 connections to the remote proxy.
+     * @param server The server that accepted the connection (for the Http/1.1 fallback).
+     */
+    Http2TunnelClientThread(
+            Socket clientSocket, Http2UpstreamPool pool, ProxyForwardServer server) {
+        this.clientSocket = clientSocket;
+        this.pool = pool;
+        this.server = server;
+        this.upstreamStats = server.getUpstreamStats();
+    }
+
+    /** Open the tunnel (or fall back to Http/1.1) and copy the client data to the tunnel. */
+    @Override
+    public void run() {
+        boolean forwarded = false;
+        Http2Tunnel tunnel = null;
+        try {
+            byte[] request = Util.readFromClientSocket(this.clientSocket);
+            if (request.length == 0) {
+                return;
+            }
+            int headEnd = getHeadEnd(request);
+            long start = System.nanoTime();
+            if (headEnd > 0) {
+                tunnel = openTunnel(new String(request, 0, headEnd, StandardCharsets.US_ASCII));
+            }
+            List<String[]> response = null;
+            if (null != tunnel) {
+                response = tunnel.awaitResponse(RESPONSE_TIMEOUT);
+            }
+            if (null == response) {
+                if (null != tunnel) {
+                    tunnel.cancel();
+                }
+                // Http/1.1: the forward threads own the client socket now
+                forwarded = true;
+                this.server.forward(this.clientSocket, request);
+                return;
+            }
+            String status = response.get(0)[1];
+            this.upstreamStats.recordFirstResponse(
+                    System.nanoTime() - start,
+                    "502".equals(status) || "503".equals(status) || "504".equals(status));
+            OutputStream clientOut = this.clientSocket.getOutputStream();
+            clientOut.write(buildResponseHead(status, response));
+            clientOut.flush();
+            if (status.startsWith("2")) {
+                startDownstream(tunnel, clientOut);
+                if (request.length > headEnd) {
+                    tunnel.write(request, headEnd, request.length - headEnd);
+                }
+                copyClientData(tunnel);
+            } else {
+                // the body of the error response, then the connection is closed
+                copyTunnelData(tunnel, clientOut);
+            }
+        } catch (IOException e) {
+            LOGGER.trace("Http/2 tunnel is broken.", e);
+        } finally {
+            if (!forwarded) {
+                if (null != tunnel) {
+                    tunnel.cancel();
+                }
+                closeClientSocket();
+            }
+        }
+    }
+
+    /**
+     * Get the end of the request head.
+     *
+     * @return The position after the empty line of a CONNECT request or -1 for other requests.
+     */
+    private static int getHeadEnd(byte[] request) {
+        if (request.length < 8
+                || !"CONNECT ".equals(new String(request, 0, 8, StandardCharsets.US_ASCII))) {
+            return -1;
+        }
+        for (int i = 3; i < request.length; i++) {
+            if (request[i] == '\n'
+                    && request[i - 1] == '\r'
+                    && request[i - 2] == '\n'
+                    && request[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Open a Http/2 tunnel for a CONNECT request. The end-to-end headers (e.g.
+     * Proxy-Authorization) are sent with lower case names.
+     *
+     * @param head The request head.
+     * @return The tunnel or null if Http/1.1 must be used.
+     */
+    private Http2Tunnel openTunnel(String head) {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2) {
+            return null;
+        }
+        List<String[]> headers = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(':');
+            if (separator > 0) {
+                String name = lines[i].substring(0, separator).trim().toLowerCase(Locale.ROOT);
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    headers.add(new String[] {name, lines[i].substring(separator + 1).trim()});
+                }
+            }
+        }
+        return this.pool.openTunnel(requestLine[1], headers);
+    }
+
+    /** Convert the Http/2 response to a Http/1.1 response head. */
+    private static byte[] buildResponseHead(String status, List<String[]> response) {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status);
+        if (status.startsWith("2")) {
+            head.append(" Connection established\r\n");
+        } else {
+            head.append(" \r\nConnection: close\r\n");
+        }
+        for (String[] header : response) {
+            if (!header[0].startsWith(":")) {
+                head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+        }
+        return head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Copy the data of the tunnel to the client in a second thread. */
+    private void startDownstream(Http2Tunnel tunnel, OutputStream clientOut) {
+        Thread downstream =
+                new Thread(
+                        () -> {
+                            try {
+                                copyTunnelData(tunnel, clientOut);
+                                this.clientSocket.shutdownOutput();
+                            } catch (IOException e) {
+                                LOGGER.trace("Http/2 tunnel to client is broken.", e);
+                                closeClientSocket();
+                            }
+                        },
+                        getName() + "-down");
+        downstream.setDaemon(true);
+        downstream.start();
+    }
+
+    /** Copy the data of the tunnel to the client until the remote proxy ends the stream. */
+    private static void copyTunnelData(Http2Tunnel tunnel, OutputStream clientOut)
+            throws IOException {
+        byte[] data;
+        while (null != (data = tunnel.read())) {
+            clientOut.write(data);
+            clientOut.flush();
+            tunnel.consumed(data.length);
+        }
+    }
+
+    /**
+     * Copy the client data to the tunnel until the end of the stream. Then the connection is
+     * closed (like {@link ProxyForwardClientThread}).
+     */
+    private void copyClientData(Http2Tunnel tunnel) throws IOException {
+        InputStream clientIn = this.clientSocket.getInputStream();
+        byte[] buffer = new byte[Util.DEFAULT_BUFFER_SIZE];
+        int read;
+        while ((read = clientIn.read(buffer)) != -1) {
+            tunnel.write(buffer, 0, read);
+        }
+        tunnel.finish();
+    }
+
+    private void closeClientSocket() {
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            LOGGER.trace("Error while closing socket.", e);
+        }
+    }
+}
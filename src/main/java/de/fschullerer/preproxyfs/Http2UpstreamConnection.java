@@ -0,0 +1,577 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One outbound Http/2 connection without TLS (h2c with prior knowledge, RFC 7540) to a remote
+ * proxy. Many CONNECT tunnels ({@link Http2Tunnel}) share the connection as streams. This thread
+ * reads the frames of the remote proxy. The frames of all tunnels are written through {@link
+ * #writeFrame} (one frame at a time).
+ *
+ * <p>Flow control: The connection receive window is refilled at once, the receive window of a
+ * tunnel only when its data was written to the client. So a slow client slows down only its own
+ * tunnel. Data is sent within the send windows of the remote proxy.
+ *
+ * @author Frank Schullerer
+ */
+class Http2UpstreamConnection extends Thread {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(Http2UpstreamConnection.class.getName());
+
+    /** Receive window of every tunnel (the Http/2 default is too small for a long RTT). */
+    static final int TUNNEL_WINDOW = 262_144;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_STREAM_ID = Integer.MAX_VALUE;
+    /** Maximum size of a header block (HEADERS and CONTINUATION frames). */
+    private static final int MAX_HEADER_BLOCK = 65_536;
+
+    private final Socket socket;
+    private final String proxy;
+    private final int maxStreams;
+    private final Http2UpstreamPool pool;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final Map<Integer, Http2Tunnel> tunnels = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    /** Guards the send windows of the connection and of the tunnels. */
+    private final Object windowLock = new Object();
+
+    /** Next stream id. Guarded by the write lock (stream ids must be sent in order). */
+    private int nextStreamId = 1;
+
+    private int connectionSendWindow = Http2Connection.DEFAULT_WINDOW;
+    private int initialSendWindow = Http2Connection.DEFAULT_WINDOW;
+    private volatile int maxSendFrameSize = Http2Connection.DEFAULT_MAX_FRAME_SIZE;
+    private volatile int peerMaxStreams = Integer.MAX_VALUE;
+    private volatile boolean closed;
+    private volatile boolean goingAway;
+    /** Header block of a HEADERS frame without END_HEADERS (0: no CONTINUATION expected). */
+    private int continuationStreamId;
+
+    private boolean continuationEndStream;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    private Http2UpstreamConnection(
+            Socket socket, String proxy, int maxStreams, Http2UpstreamPool pool)
+            throws IOException {
+        super("PreProxyFS-h2-upstream-" + proxy);
+        setDaemon(true);
+        this.socket = socket;
+        this.proxy = proxy;
+        this.maxStreams = maxStreams;
+        this.pool = pool;
+        this.in =
+                new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), Util.DEFAULT_BUFFER_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), Util.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Connect to a remote proxy and start the connection thread. The remote proxy must answer the
+     * connection preface with a SETTINGS frame within the timeout, else it does not speak Http/2.
+     *
+     * @param host The remote proxy hostname/IP.
+     * @param port The remote proxy port.
+     * @param maxStreams Maximum concurrent tunnels of the connection.
+     * @param timeoutMillis Timeout of the connect and of the SETTINGS frame.
+     * @param pool The pool of the connection (is notified when the connection is closed).
+     * @return The started connection.
+     * @throws IOException The remote proxy is not reachable or does not speak Http/2.
+     */
+    static Http2UpstreamConnection connect(
+            String host, int port, int maxStreams, int timeoutMillis, Http2UpstreamPool pool)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setTcpNoDelay(true);
+            Http2UpstreamConnection connection =
+                    new Http2UpstreamConnection(socket, host + ":" + port, maxStreams, pool);
+            socket.setSoTimeout(timeoutMillis);
+            connection.handshake();
+            socket.setSoTimeout(0);
+            connection.start();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void handshake() throws IOException {
+        byte[] settings = new byte[12];
+        settings[1] = SETTINGS_ENABLE_PUSH;
+        settings[7] = Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE;
+        Http2Connection.writeInt(settings, 8, TUNNEL_WINDOW);
+        synchronized (this.writeLock) {
+            this.out.write(Http2Connection.PREFACE);
+            writeFrame(Http2Connection.TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+        }
+        // the tunnels have their own windows: the connection window is refilled at once
+        writeWindowUpdate(
+                0,
+                (int) Math.min((long) this.maxStreams * TUNNEL_WINDOW, MAX_WINDOW / 2)
+                        - Http2Connection.DEFAULT_WINDOW);
+        // the first frame of the server is SETTINGS (e.g. a Http/1.1 proxy answers 400)
+        int length = (this.in.readUnsignedByte() << 16) | this.in.readUnsignedShort();
+        int type = this.in.readUnsignedByte();
+        if (Http2Connection.TYPE_SETTINGS != type
+                || length > Http2Connection.DEFAULT_MAX_FRAME_SIZE) {
+            throw new IOException("Remote proxy " + this.proxy + " does not speak Http/2.");
+        }
+        readFrame(length, type);
+    }
+
+    /**
+     * Get the number of open tunnels.
+     *
+     * @return Open tunnels.
+     */
+    int getTunnelCount() {
+        return this.tunnels.size();
+    }
+
+    /**
+     * Check if a new tunnel can be opened on this connection.
+     *
+     * @return FALSE if the connection is closed, going away or has no free stream.
+     */
+    boolean hasCapacity() {
+        return !this.closed
+                && !this.goingAway
+                && this.tunnels.size() < Math.min(this.maxStreams, this.peerMaxStreams);
+    }
+
+    /**
+     * Open a CONNECT stream (RFC 7540 8.3).
+     *
+     * @param authority The destination e.g. www.example.com:443
+     * @param headers Further request headers (lower case names) e.g. proxy-authorization.
+     * @return The tunnel or null if the connection has no free stream.
+     * @throws IOException The connection is closed.
+     */
+    Http2Tunnel openTunnel(String authority, List<String[]> headers) throws IOException {
+        List<String[]> request = new ArrayList<>();
+        request.add(new String[] {":method", "CONNECT"});
+        request.add(new String[] {":authority", authority});
+        request.addAll(headers);
+        byte[] block = Hpack.encode(request);
+        synchronized (this.writeLock) {
+            if (!hasCapacity() || this.nextStreamId >= MAX_STREAM_ID - 2) {
+                return null;
+            }
+            int streamId = this.nextStreamId;
+            this.nextStreamId += 2;
+            Http2Tunnel tunnel;
+            synchronized (this.windowLock) {
+                tunnel = new Http2Tunnel(this, streamId, this.initialSendWindow);
+            }
+            this.tunnels.put(streamId, tunnel);
+            int frameSize = this.maxSendFrameSize;
+            int offset = 0;
+            int type = Http2Connection.TYPE_HEADERS;
+            do {
+                int length = Math.min(frameSize, block.length - offset);
+                int flags = offset + length == block.length ? Http2Connection.FLAG_END_HEADERS : 0;
+                writeFrame(type, flags, streamId, block, offset, length);
+                offset += length;
+                type = Http2Connection.TYPE_CONTINUATION;
+            } while (offset < block.length);
+            return tunnel;
+        }
+    }
+
+    /** Read the frames of the remote proxy until the connection is closed. */
+    @Override
+    public void run() {
+        try {
+            while (!this.closed) {
+                int length = (this.in.readUnsignedByte() << 16) | this.in.readUnsignedShort();
+                readFrame(length, this.in.readUnsignedByte());
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Http/2 connection to {} is closed: {}", this.proxy, e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    private void readFrame(int length, int type) throws IOException {
+        int flags = this.in.readUnsignedByte();
+        int streamId = this.in.readInt() & 0x7fffffff;
+        if (length > Http2Connection.DEFAULT_MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + length);
+        }
+        byte[] payload = new byte[length];
+        this.in.readFully(payload);
+        if (0 != this.continuationStreamId
+                && (Http2Connection.TYPE_CONTINUATION != type
+                        || streamId != this.continuationStreamId)) {
+            throw new IOException("CONTINUATION frame expected.");
+        }
+        switch (type) {
+            case Http2Connection.TYPE_DATA:
+                onData(streamId, flags, payload);
+                break;
+            case Http2Connection.TYPE_HEADERS:
+                onHeaders(streamId, flags, payload);
+                break;
+            case Http2Connection.TYPE_CONTINUATION:
+                onContinuation(streamId, flags, payload);
+                break;
+            case Http2Connection.TYPE_RST_STREAM:
+                Http2Tunnel tunnel = this.tunnels.remove(streamId);
+                if (null != tunnel && 4 == length) {
+                    tunnel.onReset((int) Http2Connection.readUnsignedInt(payload, 0));
+                }
+                break;
+            case Http2Connection.TYPE_SETTINGS:
+                onSettings(streamId, flags, payload);
+                break;
+            case Http2Connection.TYPE_PING:
+                if ((flags & Http2Connection.FLAG_ACK) == 0 && 8 == length) {
+                    writeFrame(
+                            Http2Connection.TYPE_PING,
+                            Http2Connection.FLAG_ACK,
+                            0,
+                            payload,
+                            0,
+                            length);
+                }
+                break;
+            case Http2Connection.TYPE_GOAWAY:
+                onGoAway(payload);
+                break;
+            case Http2Connection.TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case Http2Connection.TYPE_PUSH_PROMISE:
+                throw new IOException("PUSH_PROMISE although disabled.");
+            default:
+                // PRIORITY and unknown frames are ignored
+                break;
+        }
+    }
+
+    private static int getDataStart(int flags) {
+        return (flags & Http2Connection.FLAG_PADDED) != 0 ? 1 : 0;
+    }
+
+    private static int getDataEnd(int flags, byte[] payload) throws IOException {
+        if ((flags & Http2Connection.FLAG_PADDED) == 0) {
+            return payload.length;
+        }
+        if (0 == payload.length || (payload[0] & 0xff) >= payload.length) {
+            throw new IOException("Invalid padding.");
+        }
+        return payload.length - (payload[0] & 0xff);
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        int start = getDataStart(flags);
+        int end = getDataEnd(flags, payload);
+        if ((flags & Http2Connection.FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (0 == streamId || end < start) {
+            throw new IOException("Invalid HEADERS frame.");
+        }
+        this.headerBlock.reset();
+        this.headerBlock.write(payload, start, end - start);
+        if ((flags & Http2Connection.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, (flags & Http2Connection.FLAG_END_STREAM) != 0);
+        } else {
+            this.continuationStreamId = streamId;
+            this.continuationEndStream = (flags & Http2Connection.FLAG_END_STREAM) != 0;
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != this.continuationStreamId || 0 == streamId) {
+            throw new IOException("Unexpected CONTINUATION frame.");
+        }
+        if (this.headerBlock.size() + payload.length > MAX_HEADER_BLOCK) {
+            throw new IOException("Header block too large.");
+        }
+        this.headerBlock.write(payload, 0, payload.length);
+        if ((flags & Http2Connection.FLAG_END_HEADERS) != 0) {
+            this.continuationStreamId = 0;
+            onHeaderBlock(streamId, this.continuationEndStream);
+        }
+    }
+
+    private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+        // every header block must be decoded: the dynamic table is shared
+        List<String[]> headers = this.decoder.decode(this.headerBlock.toByteArray());
+        Http2Tunnel tunnel = this.tunnels.get(streamId);
+        if (null != tunnel) {
+            tunnel.onHeaders(headers, endStream);
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        int start = getDataStart(flags);
+        int end = getDataEnd(flags, payload);
+        if (0 == streamId || end < start) {
+            throw new IOException("Invalid DATA frame.");
+        }
+        if (payload.length > 0) {
+            writeWindowUpdate(0, payload.length);
+        }
+        Http2Tunnel tunnel = this.tunnels.get(streamId);
+        if (null == tunnel) {
+            writeRstStream(streamId, Http2Connection.STREAM_CLOSED);
+            return;
+        }
+        if (payload.length > end - start) {
+            // padding is not consumed by the client
+            writeWindowUpdate(streamId, payload.length - (end - start));
+        }
+        tunnel.onData(
+                Arrays.copyOfRange(payload, start, end),
+                (flags & Http2Connection.FLAG_END_STREAM) != 0);
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (0 != streamId || payload.length % 6 != 0) {
+            throw new IOException("Invalid SETTINGS frame.");
+        }
+        if ((flags & Http2Connection.FLAG_ACK) != 0) {
+            return;
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = Http2Connection.readUnsignedInt(payload, i + 2);
+            if (Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE == id) {
+                if (value > MAX_WINDOW) {
+                    throw new IOException("Window too large.");
+                }
+                changeInitialSendWindow((int) value);
+            } else if (Http2Connection.SETTINGS_MAX_FRAME_SIZE == id) {
+                if (value < Http2Connection.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                    throw new IOException("Invalid frame size.");
+                }
+                this.maxSendFrameSize = (int) value;
+            } else if (Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS == id) {
+                this.peerMaxStreams = (int) Math.min(value, Integer.MAX_VALUE);
+            }
+        }
+        writeFrame(Http2Connection.TYPE_SETTINGS, Http2Connection.FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+
+    private void changeInitialSendWindow(int newInitialWindow) {
+        synchronized (this.windowLock) {
+            int delta = newInitialWindow - this.initialSendWindow;
+            this.initialSendWindow = newInitialWindow;
+            for (Http2Tunnel tunnel : this.tunnels.values()) {
+                tunnel.sendWindow += delta;
+            }
+            this.windowLock.notifyAll();
+        }
+    }
+
+    private void onGoAway(byte[] payload) throws IOException {
+        if (payload.length < 8) {
+            throw new IOException("Invalid GOAWAY frame.");
+        }
+        this.goingAway = true;
+        int lastStreamId = (int) (Http2Connection.readUnsignedInt(payload, 0) & 0x7fffffff);
+        LOGGER.debug("GOAWAY of {} after stream {}", this.proxy, lastStreamId);
+        // tunnels after the last stream were not processed: they can be retried
+        for (Http2Tunnel tunnel : new ArrayList<>(this.tunnels.values())) {
+            if (tunnel.getStreamId() > lastStreamId) {
+                this.tunnels.remove(tunnel.getStreamId());
+                tunnel.onReset(Http2Connection.REFUSED_STREAM);
+            }
+        }
+        if (this.tunnels.isEmpty()) {
+            close();
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (4 != payload.length) {
+            throw new IOException("Invalid WINDOW_UPDATE frame.");
+        }
+        int increment = (int) (Http2Connection.readUnsignedInt(payload, 0) & 0x7fffffff);
+        Http2Tunnel tunnel = 0 == streamId ? null : this.tunnels.get(streamId);
+        if (0 != streamId && null == tunnel) {
+            return;
+        }
+        synchronized (this.windowLock) {
+            if (null == tunnel) {
+                if (0 == increment || (long) this.connectionSendWindow + increment > MAX_WINDOW) {
+                    throw new IOException("Invalid window increment.");
+                }
+                this.connectionSendWindow += increment;
+                this.windowLock.notifyAll();
+                return;
+            }
+            if (0 != increment && (long) tunnel.sendWindow + increment <= MAX_WINDOW) {
+                tunnel.sendWindow += increment;
+                this.windowLock.notifyAll();
+                return;
+            }
+        }
+        // the write lock is never taken while holding the window lock
+        this.tunnels.remove(streamId);
+        writeRstStream(streamId, Http2Connection.FLOW_CONTROL_ERROR);
+        tunnel.onReset(Http2Connection.FLOW_CONTROL_ERROR);
+    }
+
+    /**
+     * Write data of a tunnel within the send windows. Waits for window updates of the remote
+     * proxy.
+     *
+     * @param tunnel The tunnel.
+     * @param data The data.
+     * @param offset Start of the data.
+     * @param length Length of the data (0: only END_STREAM).
+     * @param endStream TRUE for the last data of the tunnel.
+     * @throws IOException The connection or the tunnel is closed.
+     */
+    void writeData(Http2Tunnel tunnel, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        int position = offset;
+        int remaining = length;
+        do {
+            int allowed = 0 == remaining ? 0 : acquireSendWindow(tunnel, remaining);
+            boolean last = endStream && allowed == remaining;
+            writeFrame(
+                    Http2Connection.TYPE_DATA,
+                    last ? Http2Connection.FLAG_END_STREAM : 0,
+                    tunnel.getStreamId(),
+                    data,
+                    position,
+                    allowed);
+            position += allowed;
+            remaining -= allowed;
+        } while (remaining > 0);
+    }
+
+    private int acquireSendWindow(Http2Tunnel tunnel, int wanted) throws IOException {
+        synchronized (this.windowLock) {
+            while (!this.closed
+                    && !tunnel.isReset()
+                    && (this.connectionSendWindow <= 0 || tunnel.sendWindow <= 0)) {
+                try {
+                    this.windowLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for window.");
+                }
+            }
+            if (this.closed || tunnel.isReset()) {
+                throw new IOException("Http/2 tunnel " + tunnel.getStreamId() + " is closed.");
+            }
+            int allowed =
+                    Math.min(
+                            Math.min(wanted, this.maxSendFrameSize),
+                            Math.min(this.connectionSendWindow, tunnel.sendWindow));
+            this.connectionSendWindow -= allowed;
+            tunnel.sendWindow -= allowed;
+            return allowed;
+        }
+    }
+
+    /**
+     * Refill the receive window of a tunnel after its data was written to the client.
+     *
+     * @param streamId The stream (0: connection).
+     * @param increment Consumed bytes.
+     * @throws IOException The connection is closed.
+     */
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        Http2Connection.writeInt(payload, 0, increment);
+        writeFrame(Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    /**
+     * Reset a stream.
+     *
+     * @param streamId The stream.
+     * @param errorCode The Http/2 error code e.g. {@link Http2Connection#CANCEL}.
+     */
+    void writeRstStream(int streamId, int errorCode) {
+        byte[] payload = new byte[4];
+        Http2Connection.writeInt(payload, 0, errorCode);
+        try {
+            writeFrame(Http2Connection.TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+        } catch (IOException e) {
+            LOGGER.trace("Error while resetting stream.", e);
+        }
+    }
+
+    private void writeFrame(
+            int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (this.writeLock) {
+            this.out.write(length >>> 16);
+            this.out.write(length >>> 8);
+            this.out.write(length);
+            this.out.write(type);
+            this.out.write(flags);
+            this.out.write(streamId >>> 24);
+            this.out.write(streamId >>> 16);
+            this.out.write(streamId >>> 8);
+            this.out.write(streamId);
+            this.out.write(payload, offset, length);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Remove a finished tunnel. A connection that is going away is closed with its last tunnel.
+     *
+     * @param tunnel The tunnel.
+     */
+    void removeTunnel(Http2Tunnel tunnel) {
+        this.tunnels.remove(tunnel.getStreamId(), tunnel);
+        synchronized (this.windowLock) {
+            this.windowLock.notifyAll();
+        }
+        if (this.goingAway && !this.closed && this.tunnels.isEmpty()) {
+            close();
+        }
+    }
+
+    /** Close the connection and reset all open tunnels. Can be called by another thread. */
+    void close() {
+        this.closed = true;
+        for (Http2Tunnel tunnel : new ArrayList<>(this.tunnels.values())) {
+            tunnel.onReset(Http2Connection.CANCEL);
+        }
+        this.tunnels.clear();
+        synchronized (this.windowLock) {
+            this.windowLock.notifyAll();
+        }
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            LOGGER.trace("Error while closing socket.", e);
+        }
+        if (null != this.pool) {
+            this.pool.removeConnection(this);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A few Http/2 connections ({@link Http2UpstreamConnection}) to one remote proxy that carry the
+ * CONNECT tunnels as streams. So hundreds of tunnels need only a few TCP handshakes and congestion
+ * windows to the remote proxy.
+ *
+ * <p>A tunnel is opened on the connection with the fewest tunnels. A new connection is opened if
+ * all connections are full. If all connections are full, or the remote proxy does not speak
+ * Http/2, {@link #openTunnel} returns null and the tunnel gets a Http/1.1 connection of its own. A
+ * remote proxy without Http/2 is retried after {@link #RETRY_INTERVAL} milliseconds.
+ *
+ * @author Frank Schullerer
+ */
+class Http2UpstreamPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2UpstreamPool.class.getName());
+
+    /** Default maximum Http/2 connections per remote proxy. */
+    static final int DEFAULT_CONNECTIONS = 2;
+    /** Time in milliseconds a remote proxy without Http/2 gets Http/1.1 only. */
+    static final long RETRY_INTERVAL = 60_000;
+    /** Timeout in milliseconds of the connect and of the Http/2 handshake. */
+    static final int CONNECT_TIMEOUT = 5_000;
+
+    private final String remoteProxyHost;
+    private final int remoteProxyPort;
+    private final int maxConnections;
+    private final int maxStreams;
+    private final UpstreamStats upstreamStats;
+    private final List<Http2UpstreamConnection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicLong tunnelCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+    /** Time ({@link System#nanoTime()}) until Http/1.1 is used (0: Http/2 is tried). */
+    private volatile long unsupportedUntil;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a pool. The connections are opened on demand.
+     *
+     * @param remoteProxyHost The remote proxy hostname/IP.
+     * @param remoteProxyPort The remote proxy port.
+     * @param maxConnections Maximum Http/2 connections to the remote proxy.
+     * @param maxStreams Maximum tunnels per connection.
+     * @param upstreamStats The statistics of the remote proxy.
+     */
+    Http2UpstreamPool(
+            String remoteProxyHost,
+            int remoteProxyPort,
+            int maxConnections,
+            int maxStreams,
+            UpstreamStats upstreamStats) {
+        this.remoteProxyHost = remoteProxyHost;
+        this.remoteProxyPort = remoteProxyPort;
+        this.maxConnections = maxConnections;
+        this.maxStreams = maxStreams;
+        this.upstreamStats = upstreamStats;
+    }
+
+    /**
+     * Check if Http/2 is tried for new tunnels.
+     *
+     * @return FALSE if the pool is closed or the remote proxy did not speak Http/2 recently.
+     */
+    boolean isAvailable() {
+        long until = this.unsupportedUntil;
+        return !this.closed && (0 == until || System.nanoTime() - until >= 0);
+    }
+
+    /**
+     * Open a CONNECT tunnel on one of the connections.
+     *
+     * @param authority The destination e.g. www.example.com:443
+     * @param headers Further request headers (lower case names) e.g. proxy-authorization.
+     * @return The tunnel or null if Http/1.1 must be used.
+     */
+    Http2Tunnel openTunnel(String authority, List<String[]> headers) {
+        if (isAvailable()) {
+            try {
+                Http2UpstreamConnection connection = selectConnection();
+                Http2Tunnel tunnel =
+                        null == connection ? null : connection.openTunnel(authority, headers);
+                if (null != tunnel) {
+                    this.tunnelCount.incrementAndGet();
+                    return tunnel;
+                }
+            } catch (IOException e) {
+                LOGGER.info(
+                        "No Http/2 to remote proxy {}:{} ({}). Using Http/1.1 for {} s.",
+                        this.remoteProxyHost,
+                        this.remoteProxyPort,
+                        e.getMessage(),
+                        TimeUnit.MILLISECONDS.toSeconds(RETRY_INTERVAL));
+                long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL);
+                this.unsupportedUntil = 0 == until ? 1 : until;
+            }
+        }
+        this.fallbackCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Select the connection with the fewest tunnels. A new connection is opened (while holding
+     * the lock) if all connections are full.
+     */
+    private synchronized Http2UpstreamConnection selectConnection() throws IOException {
+        Http2UpstreamConnection selected = null;
+        for (Http2UpstreamConnection connection : this.connections) {
+            if (connection.hasCapacity()
+                    && (null == selected
+                            || connection.getTunnelCount() < selected.getTunnelCount())) {
+                selected = connection;
+            }
+        }
+        if (null != selected || this.connections.size() >= this.maxConnections || this.closed) {
+            return selected;
+        }
+        long connectStart = System.nanoTime();
+        selected =
+                Http2UpstreamConnection.connect(
+                        this.remoteProxyHost,
+                        this.remoteProxyPort,
+                        this.maxStreams,
+                        CONNECT_TIMEOUT,
+                        this);
+        this.upstreamStats.recordConnect(System.nanoTime() - connectStart);
+        this.connections.add(selected);
+        LOGGER.debug(
+                "New Http/2 connection to remote proxy {}:{}",
+                this.remoteProxyHost,
+                this.remoteProxyPort);
+        return selected;
+    }
+
+    /**
+     * Remove a closed connection.
+     *
+     * @param connection The connection.
+     */
+    void removeConnection(Http2UpstreamConnection connection) {
+        this.connections.remove(connection);
+    }
+
+    /**
+     * Get the number of open Http/2 connections.
+     *
+     * @return Open connections.
+     */
+    int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    /**
+     * Get the number of tunnels that were opened with Http/2.
+     *
+     * @return Tunnels.
+     */
+    long getTunnelCount() {
+        return this.tunnelCount.get();
+    }
+
+    /**
+     * Get the number of tunnels that got a Http/1.1 connection of their own.
+     *
+     * @return Fallbacks.
+     */
+    long getFallbackCount() {
+        return this.fallbackCount.get();
+    }
+
+    /** Close all connections and their tunnels. */
+    void close() {
+        this.closed = true;
+        for (Http2UpstreamConnection connection : this.connections) {
+            connection.close();
+        }
+    }
+}
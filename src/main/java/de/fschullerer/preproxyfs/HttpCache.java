@@ -0,0 +1,878 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional cache for plain (non encrypted) Http responses. Https traffic (CONNECT) is never
+ * cached.
+ *
+ * <p>Responses are stored exactly as they were received (status line, header and body) in
+ * memory-mapped segment files. The number of segment files is fixed by the configured cache size
+ * and the files are reused, so the cache never grows above this size. If no segment is free, the
+ * segment of the least recently used entry is evicted (only the entries of this segment). Cache
+ * hits are written to the client with {@link FileChannel#transferTo} and never touch the remote
+ * proxy.
+ *
+ * <p>The cache directory is locked with a lock file. If another process (or another cache in this
+ * JVM) already uses the directory, the segment files are written to a new subdirectory that is
+ * deleted on {@link #close()}.
+ *
+ * <p>Only GET requests with an absolute http URL and only complete 200 responses with a
+ * Content-Length are cached. The freshness of a response is computed from Cache-Control
+ * (no-store, private, no-cache, max-age, s-maxage), Expires and Last-Modified, reduced by the Age
+ * header of the response (time the response was already stored in other caches). Stale entries with
+ * an ETag or Last-Modified header are revalidated with a conditional request (If-None-Match /
+ * If-Modified-Since). A 304 answer is replaced by the cached response.
+ *
+ * @author Frank Schullerer
+ */
+public class HttpCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpCache.class.getName());
+
+    /** Upstream of a connection that was only answered from the cache (e.g. in the access log). */
+    public static final String CACHE_UPSTREAM = "CACHE";
+
+    /** Default directory for the segment files. */
+    public static final String DEFAULT_CACHE_DIR =
+            Paths.get(System.getProperty("java.io.tmpdir"), "PreProxyFS-cache").toString();
+
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /** Maximum length of a response header that is buffered while checking the response. */
+    private static final int MAX_HEAD_SIZE = Util.DEFAULT_BUFFER_SIZE;
+    /** Heuristic freshness (RFC 7234 4.2.2) is limited to one day. */
+    private static final long MAX_HEURISTIC_FRESHNESS = 24L * 60 * 60 * 1000;
+
+    private static final byte[] HEAD_END = {13, 10, 13, 10};
+    /** Lock file of the process that uses a cache directory. */
+    private static final String LOCK_FILE = "cache.lock";
+    /** Prefix of the subdirectory if the cache directory is used by another process. */
+    private static final String PROCESS_DIR_PREFIX = "process-";
+
+    private final Path cacheDir;
+    /** TRUE if the cache directory was created for this cache and is deleted on close. */
+    private final boolean ownDirectory;
+    private final FileChannel lockChannel;
+    private final FileLock directoryLock;
+    private final int segmentSize;
+    private final Segment[] segments;
+    /** All entries in access order: the first entry is the least recently used. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int activeSegment;
+    private long hits;
+    private long misses;
+    private boolean closed;
+
+    /**
+     * Create a new Http cache. Old segment files in the cache directory are overwritten if the
+     * directory is not used by another process.
+     *
+     * @param cacheDir Directory for the segment files. Will be created if not existing.
+     * @param maxSizeBytes Maximum size of all segment files together.
+     */
+    public HttpCache(String cacheDir, long maxSizeBytes) {
+        long size = Math.max(maxSizeBytes / 8, MIN_SEGMENT_SIZE);
+        this.segmentSize = (int) Math.min(size, MAX_SEGMENT_SIZE);
+        int segmentCount = (int) Math.max(2, maxSizeBytes / this.segmentSize);
+        this.segments = new Segment[segmentCount];
+        try {
+            Path dir = Paths.get(cacheDir);
+            Files.createDirectories(dir);
+            FileChannel channel = openLockFile(dir);
+            FileLock lock = tryLock(channel);
+            boolean processDir = false;
+            if (null == lock) {
+                channel.close();
+                Path usedDir = dir;
+                dir = Files.createTempDirectory(usedDir, PROCESS_DIR_PREFIX);
+                LOGGER.info("Http cache directory: {} is used by another process.", usedDir);
+                channel = openLockFile(dir);
+                lock = tryLock(channel);
+                processDir = true;
+            }
+            this.cacheDir = dir;
+            this.ownDirectory = processDir;
+            this.lockChannel = channel;
+            this.directoryLock = lock;
+        } catch (IOException e) {
+            throw new PreProxyFSException("Unable to create Http cache directory: " + cacheDir, e);
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment(this.cacheDir.resolve("segment-" + i + ".dat"));
+        }
+        LOGGER.info(
+                "Using Http cache in: {} with {} segments of {} bytes.",
+                this.cacheDir,
+                segmentCount,
+                this.segmentSize);
+    }
+
+    private static FileChannel openLockFile(Path dir) throws IOException {
+        return FileChannel.open(
+                dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another cache of this JVM
+            return null;
+        }
+    }
+
+    /**
+     * Close the segment files and release the cache directory. Segments that are written to a
+     * client are closed on {@link #release}. The mapped memory is freed by the garbage collector.
+     * A subdirectory of this process is deleted.
+     */
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.entries.clear();
+        for (Segment segment : this.segments) {
+            segment.liveEntries = 0;
+            if (segment.refs == 0) {
+                segment.close();
+            }
+        }
+        try {
+            if (null != this.directoryLock) {
+                this.directoryLock.release();
+            }
+            this.lockChannel.close();
+            if (this.ownDirectory) {
+                for (Segment segment : this.segments) {
+                    Files.deleteIfExists(segment.file);
+                }
+                Files.deleteIfExists(this.cacheDir.resolve(LOCK_FILE));
+                Files.deleteIfExists(this.cacheDir);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to release Http cache directory: {}", this.cacheDir, e);
+        }
+        LOGGER.info("Http cache in: {} is closed.", this.cacheDir);
+    }
+
+    /**
+     * Get the directory of the segment files.
+     *
+     * @return The configured directory or the subdirectory of this process.
+     */
+    Path getCacheDir() {
+        return this.cacheDir;
+    }
+
+    /**
+     * Get the cache key for a request.
+     *
+     * @param httpReq The request as string.
+     * @return The absolute URL of the request or an empty string if the request is not cacheable.
+     *     Only GET requests with an absolute http URL, without authorization and without
+     *     Cache-Control: no-store are cacheable.
+     */
+    static String getCacheKey(String httpReq) {
+        String key = "";
+        if (httpReq.startsWith("GET ")
+                && null == getHeaderValue(httpReq, "Authorization")
+                && !containsToken(getHeaderValue(httpReq, "Cache-Control"), "no-store")) {
+            String url = Util.getUrl(httpReq);
+            if (url.toLowerCase(Locale.ROOT).startsWith("http://")) {
+                key = url;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Check if the client forces a revalidation with Cache-Control: no-cache or Pragma: no-cache.
+     *
+     * @param httpReq The request as string.
+     * @return TRUE if a cached response must not be used without revalidation.
+     */
+    static boolean isNoCacheRequest(String httpReq) {
+        return containsToken(getHeaderValue(httpReq, "Cache-Control"), "no-cache")
+                || containsToken(getHeaderValue(httpReq, "Pragma"), "no-cache");
+    }
+
+    /**
+     * Check if the client sent its own conditional request. Such requests are not touched by the
+     * cache, because the client must get the 304 answer.
+     *
+     * @param httpReq The request as string.
+     * @return TRUE if the request contains If-None-Match or If-Modified-Since.
+     */
+    static boolean isConditionalRequest(String httpReq) {
+        return null != getHeaderValue(httpReq, "If-None-Match")
+                || null != getHeaderValue(httpReq, "If-Modified-Since");
+    }
+
+    /**
+     * Get a header value (case insensitive header name).
+     *
+     * @param head The request or response header.
+     * @param name The header name e.g. Cache-Control
+     * @return The trimmed header value or null if the header does not exist.
+     */
+    static String getHeaderValue(String head, String name) {
+        int end = head.indexOf("\r\n\r\n");
+        String header = end == -1 ? head : head.substring(0, end);
+        for (String line : header.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsToken(String headerValue, String token) {
+        if (null == headerValue) {
+            return false;
+        }
+        for (String part : headerValue.split(",")) {
+            if (part.trim().toLowerCase(Locale.ROOT).startsWith(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigits(String toCheck) {
+        return null != toCheck && toCheck.matches("\\d{1,18}");
+    }
+
+    private static long getDirectiveSeconds(String cacheControl, String directive) {
+        if (null != cacheControl) {
+            for (String part : cacheControl.split(",")) {
+                String[] keyValue = part.trim().split("=", 2);
+                if (keyValue.length == 2
+                        && directive.equalsIgnoreCase(keyValue[0].trim())
+                        && isDigits(keyValue[1].trim())) {
+                    return Long.parseLong(keyValue[1].trim());
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long parseDate(String date) {
+        if (null == date) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant()
+                    .toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Compute how long a response is fresh.
+     *
+     * @param responseHead The response header.
+     * @param now The current time in milliseconds.
+     * @return The freshness lifetime in milliseconds (0 if the response must always be
+     *     revalidated) or -1 if the response must not be stored.
+     */
+    static long getFreshnessLifetime(String responseHead, long now) {
+        String cacheControl = getHeaderValue(responseHead, "Cache-Control");
+        if (containsToken(cacheControl, "no-store") || containsToken(cacheControl, "private")) {
+            return -1;
+        }
+        long lifetime;
+        long sharedMaxAge = getDirectiveSeconds(cacheControl, "s-maxage");
+        long maxAge = getDirectiveSeconds(cacheControl, "max-age");
+        long expires = parseDate(getHeaderValue(responseHead, "Expires"));
+        long lastModified = parseDate(getHeaderValue(responseHead, "Last-Modified"));
+        if (containsToken(cacheControl, "no-cache")) {
+            lifetime = 0;
+        } else if (sharedMaxAge >= 0) {
+            lifetime = sharedMaxAge * 1000;
+        } else if (maxAge >= 0) {
+            lifetime = maxAge * 1000;
+        } else if (expires >= 0) {
+            long date = parseDate(getHeaderValue(responseHead, "Date"));
+            lifetime = Math.max(0, expires - (date >= 0 ? date : now));
+        } else if (lastModified >= 0) {
+            lifetime = Math.min(Math.max(0, now - lastModified) / 10, MAX_HEURISTIC_FRESHNESS);
+        } else {
+            lifetime = 0;
+        }
+        if (lifetime == 0
+                && null == getHeaderValue(responseHead, "ETag")
+                && lastModified < 0) {
+            // without validator a response that is never fresh is useless
+            return -1;
+        }
+        return lifetime;
+    }
+
+    /**
+     * Get the Age header of a response: the time the response was already stored in other caches
+     * (RFC 7234 4.2.3). The apparent age from the Date header is not used: the clocks of the
+     * remote servers are not trusted.
+     *
+     * @param responseHead The response header.
+     * @return The age in milliseconds (0 if there is no valid Age header).
+     */
+    static long getAge(String responseHead) {
+        String age = getHeaderValue(responseHead, "Age");
+        return isDigits(age) ? Math.min(Long.parseLong(age), Long.MAX_VALUE / 2000) * 1000 : 0;
+    }
+
+    private static boolean hasValidator(String responseHead) {
+        return null != getHeaderValue(responseHead, "ETag")
+                || null != getHeaderValue(responseHead, "Last-Modified");
+    }
+
+    private static int getStatusCode(String responseHead) {
+        String[] statusLine = responseHead.split(" ", 3);
+        if (statusLine.length > 1 && isDigits(statusLine[1])) {
+            return Integer.parseInt(statusLine[1]);
+        }
+        return -1;
+    }
+
+    private static int indexOfHeadEnd(byte[] buffer, int length) {
+        for (int i = 0; i <= length - HEAD_END.length; i++) {
+            if (buffer[i] == HEAD_END[0]
+                    && buffer[i + 1] == HEAD_END[1]
+                    && buffer[i + 2] == HEAD_END[2]
+                    && buffer[i + 3] == HEAD_END[3]) {
+                return i + HEAD_END.length;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the validators of a cached entry to a request so that the remote server answers with 304
+     * if the cached response is still valid.
+     *
+     * @param orgRequest The original request.
+     * @param entry The stale cache entry.
+     * @return The request with If-None-Match and/or If-Modified-Since header.
+     */
+    static byte[] addConditionalHeaders(byte[] orgRequest, Entry entry) {
+        StringBuilder conditional = new StringBuilder();
+        if (null != entry.etag) {
+            conditional.append("If-None-Match: ").append(entry.etag).append("\r\n");
+        }
+        if (null != entry.lastModified) {
+            conditional.append("If-Modified-Since: ").append(entry.lastModified).append("\r\n");
+        }
+        int posFirstLineBreak = Util.getFirstLineBreakPos(orgRequest);
+        if (conditional.length() == 0 || posFirstLineBreak == -1) {
+            return orgRequest;
+        }
+        byte[] toAdd = conditional.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] modifiedRequest = new byte[orgRequest.length + toAdd.length];
+        System.arraycopy(orgRequest, 0, modifiedRequest, 0, posFirstLineBreak);
+        System.arraycopy(toAdd, 0, modifiedRequest, posFirstLineBreak, toAdd.length);
+        System.arraycopy(
+                orgRequest,
+                posFirstLineBreak,
+                modifiedRequest,
+                posFirstLineBreak + toAdd.length,
+                orgRequest.length - posFirstLineBreak);
+        return modifiedRequest;
+    }
+
+    /**
+     * Get a cache entry and protect its segment against reuse until {@link #release} is called.
+     *
+     * @param key The cache key (see {@link #getCacheKey}).
+     * @return The entry or null if not cached.
+     */
+    synchronized Entry acquire(String key) {
+        Entry entry = this.closed ? null : this.entries.get(key);
+        if (null == entry) {
+            this.misses++;
+        } else {
+            this.hits++;
+            entry.segment.refs++;
+        }
+        return entry;
+    }
+
+    /**
+     * Release an entry returned by {@link #acquire}.
+     *
+     * @param entry The entry.
+     */
+    synchronized void release(Entry entry) {
+        entry.segment.refs--;
+        if (this.closed && entry.segment.refs == 0) {
+            entry.segment.close();
+        }
+    }
+
+    /**
+     * Remove an entry from cache e.g. when the remote server sent a new non cacheable response.
+     *
+     * @param key The cache key.
+     */
+    synchronized void remove(String key) {
+        Entry entry = this.entries.remove(key);
+        if (null != entry) {
+            entry.segment.liveEntries--;
+        }
+    }
+
+    /**
+     * Get the number of cached responses.
+     *
+     * @return Number of entries.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Get the number of requests that were found in the cache.
+     *
+     * @return Number of hits (fresh and revalidated).
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Get the number of cacheable requests that were not found in the cache.
+     *
+     * @return Number of misses.
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Write a cached response to the client. The entry must be acquired with {@link #acquire}.
+     *
+     * @param entry The acquired entry.
+     * @param clientSocket The client socket.
+     * @throws IOException Error while writing to client socket.
+     */
+    void writeTo(Entry entry, Socket clientSocket) throws IOException {
+        OutputStream out = clientSocket.getOutputStream();
+        WritableByteChannel target =
+                null != clientSocket.getChannel()
+                        ? clientSocket.getChannel()
+                        : Channels.newChannel(out);
+        long transferred = 0;
+        while (transferred < entry.length) {
+            transferred +=
+                    entry.segment.channel.transferTo(
+                            entry.offset + transferred, entry.length - transferred, target);
+        }
+        out.flush();
+        LOGGER.debug("Served from Http cache: {}", entry.key);
+    }
+
+    /**
+     * Reserve space for a new response in the active segment. Switches to a free segment if the
+     * active segment is full and evicts least recently used entries if there is no free segment.
+     *
+     * @param length The length of the full response.
+     * @return The reservation or null if there is no space.
+     * @throws IOException Error while mapping the segment file.
+     */
+    private synchronized Reservation reserve(int length) throws IOException {
+        if (length > this.segmentSize || this.closed) {
+            return null;
+        }
+        Segment segment = this.segments[this.activeSegment];
+        if (segment.writePos + length > this.segmentSize || null == segment.buffer) {
+            segment = findFreeSegment();
+            if (null == segment) {
+                return null;
+            }
+            segment.open(this.segmentSize);
+            segment.writePos = 0;
+        }
+        Reservation reservation = new Reservation(segment, segment.writePos, length);
+        segment.writePos += length;
+        segment.reservations++;
+        return reservation;
+    }
+
+    /**
+     * Find a segment for new responses: a free segment or else the segment of the least recently
+     * used entry. Only the entries of this segment are evicted.
+     */
+    private Segment findFreeSegment() {
+        Segment active = this.segments[this.activeSegment];
+        for (int i = 1; i <= this.segments.length; i++) {
+            int index = (this.activeSegment + i) % this.segments.length;
+            Segment segment = this.segments[index];
+            if (segment.isFree()) {
+                this.activeSegment = index;
+                return segment;
+            }
+        }
+        Segment victim = null;
+        for (Entry entry : this.entries.values()) {
+            if (entry.segment != active
+                    && entry.segment.refs == 0
+                    && entry.segment.reservations == 0) {
+                victim = entry.segment;
+                break;
+            }
+        }
+        if (null == victim) {
+            return null;
+        }
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.segment == victim) {
+                iterator.remove();
+                victim.liveEntries--;
+                LOGGER.trace("Evicted from Http cache: {}", entry.key);
+            }
+        }
+        this.activeSegment = victim.index(this.segments);
+        return victim;
+    }
+
+    private synchronized void commit(Entry entry) {
+        entry.segment.reservations--;
+        if (this.closed) {
+            return;
+        }
+        entry.segment.liveEntries++;
+        Entry old = this.entries.put(entry.key, entry);
+        if (null != old) {
+            old.segment.liveEntries--;
+        }
+        LOGGER.debug("Stored in Http cache: {}", entry.key);
+    }
+
+    private synchronized void abort(Reservation reservation) {
+        reservation.segment.reservations--;
+    }
+
+    /**
+     * Start a new exchange for a cacheable request that is sent to the remote server.
+     *
+     * @param key The cache key.
+     * @param staleEntry The acquired stale entry that is revalidated or null.
+     * @return The exchange that must be given to {@link ForwardServerThread}.
+     */
+    Exchange newExchange(String key, Entry staleEntry) {
+        return new Exchange(this, key, staleEntry);
+    }
+
+    /** A cached response. */
+    static final class Entry {
+        private final String key;
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final String etag;
+        private final String lastModified;
+        private volatile long expiresAt;
+
+        private Entry(
+                String key,
+                Segment segment,
+                int offset,
+                int length,
+                String responseHead,
+                long expiresAt) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.etag = getHeaderValue(responseHead, "ETag");
+            this.lastModified = getHeaderValue(responseHead, "Last-Modified");
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh(long now) {
+            return now < this.expiresAt;
+        }
+
+        boolean hasValidator() {
+            return null != this.etag || null != this.lastModified;
+        }
+
+        /**
+         * Get the length of the cached response.
+         *
+         * @return Status line, header and body in bytes.
+         */
+        int getLength() {
+            return this.length;
+        }
+    }
+
+    /** One memory-mapped segment file. All fields are guarded by the cache lock. */
+    private static final class Segment {
+        private final Path file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int writePos;
+        /** Committed entries in the segment. */
+        private int liveEntries;
+        /** Responses that are currently written into the segment. */
+        private int reservations;
+        /** Entries that are currently written to a client. */
+        private int refs;
+
+        private Segment(Path file) {
+            this.file = file;
+        }
+
+        private void open(int size) throws IOException {
+            if (null == this.buffer) {
+                this.channel =
+                        FileChannel.open(
+                                this.file,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                // mapping extends the file to the segment size
+                this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        private boolean isFree() {
+            return this.liveEntries == 0 && this.reservations == 0 && this.refs == 0;
+        }
+
+        private void close() {
+            if (null != this.channel) {
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to close Http cache segment: {}", this.file, e);
+                }
+                this.channel = null;
+                this.buffer = null;
+            }
+        }
+
+        private int index(Segment[] all) {
+            for (int i = 0; i < all.length; i++) {
+                if (all[i] == this) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /** Space in a segment for a response that is currently received. */
+    private static final class Reservation {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final ByteBuffer target;
+        private int written;
+
+        private Reservation(Segment segment, int offset, int length) {
+            this.segment = segment;
+            // the mapping stays valid if the segment is closed while the response is received
+            this.target = segment.buffer.duplicate();
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Write bytes into the segment.
+         *
+         * @return The number of bytes written (never more than the remaining reserved space).
+         */
+        private int write(byte[] bytes, int off, int len) {
+            int toWrite = Math.min(len, this.length - this.written);
+            this.target.position(this.offset + this.written);
+            this.target.put(bytes, off, toWrite);
+            this.written += toWrite;
+            return toWrite;
+        }
+
+        private boolean isComplete() {
+            return this.written == this.length;
+        }
+    }
+
+    /**
+     * The first response to a cacheable request on a remote connection. The exchange is used only
+     * by one {@link ForwardServerThread}: It records a cacheable response while it is forwarded to
+     * the client and replaces a 304 answer to a revalidation with the cached response.
+     */
+    static final class Exchange {
+        private final HttpCache cache;
+        private final String key;
+        private final long requestTime = System.currentTimeMillis();
+        private Entry staleEntry;
+        private byte[] head = new byte[0];
+        private Reservation reservation;
+        private String responseHead;
+        private long expiresAt;
+        private boolean done;
+
+        private Exchange(HttpCache cache, String key, Entry staleEntry) {
+            this.cache = cache;
+            this.key = key;
+            this.staleEntry = staleEntry;
+        }
+
+        /**
+         * Check if the exchange is finished. Following responses are not touched anymore.
+         *
+         * @return TRUE if finished.
+         */
+        boolean isDone() {
+            return this.done;
+        }
+
+        /**
+         * Handle the next response bytes from the remote server.
+         *
+         * @param response The response bytes.
+         * @param clientSocket The client socket for writing a revalidated cached response.
+         * @return The bytes that must be forwarded to the client (can be empty).
+         * @throws IOException Error while writing to the client or to the segment file.
+         */
+        byte[] onResponse(byte[] response, Socket clientSocket) throws IOException {
+            if (null != this.reservation) {
+                record(response, 0, response.length);
+                return response;
+            }
+            byte[] buffered = new byte[this.head.length + response.length];
+            System.arraycopy(this.head, 0, buffered, 0, this.head.length);
+            System.arraycopy(response, 0, buffered, this.head.length, response.length);
+            int headLength = indexOfHeadEnd(buffered, buffered.length);
+            if (headLength == -1) {
+                if (buffered.length > MAX_HEAD_SIZE) {
+                    finish();
+                    return buffered;
+                }
+                // wait for the full response header
+                this.head = buffered;
+                return new byte[0];
+            }
+            this.head = new byte[0];
+            this.responseHead = new String(buffered, 0, headLength, StandardCharsets.US_ASCII);
+            int status = getStatusCode(this.responseHead);
+            if (status == 304 && null != this.staleEntry) {
+                return serveRevalidated(buffered, headLength, clientSocket);
+            }
+            if (status == 200) {
+                startRecording(headLength);
+            }
+            if (null == this.reservation) {
+                // not cacheable: a stale entry is not valid anymore
+                this.cache.remove(this.key);
+                finish();
+            } else {
+                record(buffered, 0, buffered.length);
+            }
+            return buffered;
+        }
+
+        private byte[] serveRevalidated(byte[] buffered, int headLength, Socket clientSocket)
+                throws IOException {
+            long lifetime = getFreshnessLifetime(this.responseHead, this.requestTime);
+            if (lifetime > 0) {
+                this.staleEntry.expiresAt =
+                        this.requestTime + lifetime - getAge(this.responseHead);
+            }
+            this.cache.writeTo(this.staleEntry, clientSocket);
+            finish();
+            byte[] rest = new byte[buffered.length - headLength];
+            System.arraycopy(buffered, headLength, rest, 0, rest.length);
+            return rest;
+        }
+
+        private void startRecording(int headLength) throws IOException {
+            String contentLength = getHeaderValue(this.responseHead, "Content-Length");
+            long lifetime = getFreshnessLifetime(this.responseHead, this.requestTime);
+            long age = getAge(this.responseHead);
+            if (lifetime >= 0
+                    && (lifetime > age || hasValidator(this.responseHead))
+                    && isDigits(contentLength)
+                    && null == getHeaderValue(this.responseHead, "Vary")
+                    && null == getHeaderValue(this.responseHead, "Set-Cookie")
+                    && null == getHeaderValue(this.responseHead, "Transfer-Encoding")) {
+                long length = headLength + Long.parseLong(contentLength);
+                if (length <= Integer.MAX_VALUE) {
+                    this.expiresAt = this.requestTime + lifetime - age;
+                    this.reservation = this.cache.reserve((int) length);
+                }
+            }
+        }
+
+        private void record(byte[] bytes, int off, int len) {
+            this.reservation.write(bytes, off, len);
+            if (this.reservation.isComplete()) {
+                Reservation complete = this.reservation;
+                this.cache.commit(
+                        new Entry(
+                                this.key,
+                                complete.segment,
+                                complete.offset,
+                                complete.length,
+                                this.responseHead,
+                                this.expiresAt));
+                this.reservation = null;
+                finish();
+            }
+        }
+
+        private void finish() {
+            this.done = true;
+            if (null != this.staleEntry) {
+                this.cache.release(this.staleEntry);
+                this.staleEntry = null;
+            }
+        }
+
+        /**
+         * Abort the exchange e.g. if the connection is broken.
+         *
+         * @return Buffered response header bytes that were not forwarded yet.
+         */
+        byte[] abort() {
+            if (null != this.reservation) {
+                this.cache.abort(this.reservation);
+                this.reservation = null;
+            }
+            byte[] rest = this.head;
+            this.head = new byte[0];
+            finish();
+            return rest;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache for PAC script decisions (the result of FindProxyForURL) per host. The cache is
+ * a memory-mapped file with a fixed number of slots, so decisions survive a restart and can be
+ * shared by several PreProxyFS processes on one machine.
+ *
+ * <p>Every entry is keyed by the hash of the PAC script content and the host. Entries of another
+ * PAC script content (e.g. an old version) are never used and are simply overwritten. Entries
+ * older than the time to live are ignored, because a PAC decision can depend on the network (e.g.
+ * myIpAddress with/without VPN).
+ *
+ * <p>Readers do not lock: Every slot has a sequence number (odd while written) and a CRC32 over
+ * the content. A reader only uses a slot if the sequence number did not change and the CRC32 is
+ * valid, so a torn read (concurrent write of another thread or process) is treated as a cache
+ * miss. Writers lock the slot region of the file.
+ *
+ * <p>Attention: PAC decisions are cached per host. PAC scripts that return different proxies for
+ * different URLs (paths) of the same host should not use this cache.
+ *
+ * @author Frank Schullerer
+ */
+public class PacDecisionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PacDecisionCache.class.getName());
+
+    /** Default time to live for a cached decision in seconds. */
+    public static final int DEFAULT_TTL_SECONDS = 3600;
+
+    private static final int SLOT_COUNT = 16384;
+    private static final int SLOT_SIZE = 256;
+    /** Number of slots checked for a host (linear probing). */
+    private static final int MAX_PROBES = 8;
+
+    // slot layout
+    private static final int SEQUENCE = 0;
+    private static final int CRC = 4;
+    private static final int PAC_HASH = 8;
+    private static final int HOST_HASH = 16;
+    private static final int STORED_AT = 24;
+    private static final int HOST_LENGTH = 32;
+    private static final int DECISION_LENGTH = 34;
+    private static final int DATA = 36;
+    private static final int MAX_DATA_LENGTH = SLOT_SIZE - DATA;
+
+    /**
+     * File locks are held by the JVM, not by a thread: Several caches (instances) with the same
+     * file in one JVM must not lock the same region at the same time.
+     */
+    private static final Object JVM_WRITE_LOCK = new Object();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long pacHash;
+    private final long ttlMillis;
+
+    /**
+     * Open (or create) a PAC decision cache file.
+     *
+     * @param cacheFile Path to the cache file.
+     * @param pacScriptContent The content of the used PAC script.
+     * @param ttlSeconds Time to live of an entry in seconds.
+     */
+    public PacDecisionCache(String cacheFile, String pacScriptContent, int ttlSeconds) {
+        this.pacHash = hashPacScript(pacScriptContent);
+        this.ttlMillis = ttlSeconds * 1000L;
+        Path path = Paths.get(cacheFile);
+        try {
+            if (null != path.getParent()) {
+                Files.createDirectories(path.getParent());
+            }
+            this.channel =
+                    FileChannel.open(
+                            path,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            this.buffer =
+                    this.channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOT_COUNT * SLOT_SIZE);
+        } catch (IOException e) {
+            throw new PreProxyFSException("Unable to open PAC decision cache: " + cacheFile, e);
+        }
+        LOGGER.info(
+                "Using PAC decision cache: {} with {} valid entries for the current PAC script.",
+                cacheFile,
+                countValidEntries());
+    }
+
+    /**
+     * Hash of the PAC script content.
+     *
+     * @param pacScriptContent The PAC script content.
+     * @return The first 8 bytes of the SHA-256 hash.
+     */
+    static long hashPacScript(String pacScriptContent) {
+        try {
+            byte[] digest =
+                    MessageDigest.getInstance("SHA-256")
+                            .digest(pacScriptContent.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreProxyFSException("SHA-256 is not available.", e);
+        }
+    }
+
+    private long hashHost(String host) {
+        // FNV-1a 64 bit, seeded with the PAC hash
+        long hash = 0xcbf29ce484222325L ^ this.pacHash;
+        for (int i = 0; i < host.length(); i++) {
+            hash ^= host.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // 0 marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int slotIndex(long hostHash, int probe) {
+        return (int) (((hostHash >>> 1) + probe) % SLOT_COUNT);
+    }
+
+    /**
+     * Get the cached PAC decision for a host.
+     *
+     * @param host The host name.
+     * @return The cached PAC decision e.g. PROXY remote.proxy1.com:8080 or null if not cached.
+     */
+    public String get(String host) {
+        String normalizedHost = host.toLowerCase(Locale.ROOT);
+        long hostHash = hashHost(normalizedHost);
+        long now = System.currentTimeMillis();
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slotIndex(hostHash, probe) * SLOT_SIZE;
+            long slotHostHash = this.buffer.getLong(slot + HOST_HASH);
+            if (slotHostHash == 0) {
+                return null;
+            }
+            if (slotHostHash == hostHash) {
+                SlotEntry entry = readSlot(slot);
+                if (null != entry && normalizedHost.equals(entry.host)) {
+                    return now - entry.storedAt < this.ttlMillis ? entry.decision : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a slot without locking.
+     *
+     * @param slot The slot position in the file.
+     * @return The entry or null if the slot is invalid or written right now.
+     */
+    private SlotEntry readSlot(int slot) {
+        int sequence = this.buffer.getInt(slot + SEQUENCE);
+        if ((sequence & 1) == 1) {
+            return null;
+        }
+        int crc = this.buffer.getInt(slot + CRC);
+        long slotPacHash = this.buffer.getLong(slot + PAC_HASH);
+        long storedAt = this.buffer.getLong(slot + STORED_AT);
+        int hostLength = this.buffer.getShort(slot + HOST_LENGTH);
+        int decisionLength = this.buffer.getShort(slot + DECISION_LENGTH);
+        if (slotPacHash != this.pacHash
+                || hostLength < 0
+                || decisionLength < 0
+                || hostLength + decisionLength > MAX_DATA_LENGTH) {
+            return null;
+        }
+        byte[] data = new byte[hostLength + decisionLength];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = this.buffer.get(slot + DATA + i);
+        }
+        if (sequence != this.buffer.getInt(slot + SEQUENCE)
+                || crc != checksum(slotPacHash, storedAt, data)) {
+            return null;
+        }
+        return new SlotEntry(
+                new String(data, 0, hostLength, StandardCharsets.UTF_8),
+                new String(data, hostLength, decisionLength, StandardCharsets.UTF_8),
+                storedAt);
+    }
+
+    private static int checksum(long pacHash, long storedAt, byte[] data) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 8; i++) {
+            crc.update((int) (pacHash >>> (i * 8)));
+            crc.update((int) (storedAt >>> (i * 8)));
+        }
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Store a PAC decision for a host. The decision is not stored if host and decision are too long
+     * for one slot.
+     *
+     * @param host The host name.
+     * @param decision The PAC decision.
+     */
+    public void put(String host, String decision) {
+        String normalizedHost = host.toLowerCase(Locale.ROOT);
+        byte[] hostBytes = normalizedHost.getBytes(StandardCharsets.UTF_8);
+        byte[] decisionBytes = decision.getBytes(StandardCharsets.UTF_8);
+        if (hostBytes.length + decisionBytes.length > MAX_DATA_LENGTH) {
+            return;
+        }
+        synchronized (JVM_WRITE_LOCK) {
+            long hostHash = hashHost(normalizedHost);
+            int slot = findSlotToWrite(hostHash, normalizedHost);
+            byte[] data = new byte[hostBytes.length + decisionBytes.length];
+            System.arraycopy(hostBytes, 0, data, 0, hostBytes.length);
+            System.arraycopy(decisionBytes, 0, data, hostBytes.length, decisionBytes.length);
+            long storedAt = System.currentTimeMillis();
+            FileLock slotLock = null;
+            try {
+                slotLock = this.channel.lock(slot, SLOT_SIZE, false);
+                int sequence = this.buffer.getInt(slot + SEQUENCE);
+                // odd sequence: readers ignore the slot while it is written
+                this.buffer.putInt(slot + SEQUENCE, (sequence | 1) + 2);
+                this.buffer.putLong(slot + PAC_HASH, this.pacHash);
+                this.buffer.putLong(slot + HOST_HASH, hostHash);
+                this.buffer.putLong(slot + STORED_AT, storedAt);
+                this.buffer.putShort(slot + HOST_LENGTH, (short) hostBytes.length);
+                this.buffer.putShort(slot + DECISION_LENGTH, (short) decisionBytes.length);
+                for (int i = 0; i < data.length; i++) {
+                    this.buffer.put(slot + DATA + i, data[i]);
+                }
+                this.buffer.putInt(slot + CRC, checksum(this.pacHash, storedAt, data));
+                this.buffer.putInt(slot + SEQUENCE, (sequence | 1) + 3);
+            } catch (IOException | OverlappingFileLockException e) {
+                LOGGER.debug("Unable to store PAC decision for host: {}", host, e);
+            } finally {
+                releaseLock(slotLock);
+            }
+        }
+    }
+
+    private static void releaseLock(FileLock lock) {
+        if (null != lock) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to release the lock of the PAC decision cache.", e);
+            }
+        }
+    }
+
+    /**
+     * Find the slot for a host: The slot that already contains the host, an empty slot, a slot of
+     * another PAC script or the oldest slot.
+     */
+    private int findSlotToWrite(long hostHash, String host) {
+        int oldestSlot = slotIndex(hostHash, 0) * SLOT_SIZE;
+        long oldestStoredAt = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = slotIndex(hostHash, probe) * SLOT_SIZE;
+            long slotHostHash = this.buffer.getLong(slot + HOST_HASH);
+            SlotEntry entry = readSlot(slot);
+            if (slotHostHash == 0
+                    || null == entry
+                    || (slotHostHash == hostHash && host.equals(entry.host))) {
+                return slot;
+            }
+            if (entry.storedAt < oldestStoredAt) {
+                oldestStoredAt = entry.storedAt;
+                oldestSlot = slot;
+            }
+        }
+        return oldestSlot;
+    }
+
+    /**
+     * Count the valid (current PAC script, not expired) entries.
+     *
+     * @return Number of valid entries.
+     */
+    public int countValidEntries() {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < SLOT_COUNT * SLOT_SIZE; slot += SLOT_SIZE) {
+            if (this.buffer.getLong(slot + HOST_HASH) != 0) {
+                SlotEntry entry = readSlot(slot);
+                if (null != entry && now - entry.storedAt < this.ttlMillis) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Close the cache file. */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LOGGER.trace("Error while closing PAC decision cache.", e);
+        }
+    }
+
+    /** Content of one slot. */
+    private static final class SlotEntry {
+        private final String host;
+        private final String decision;
+        private final long storedAt;
+
+        private SlotEntry(String host, String decision, long storedAt) {
+            this.host = host;
+            this.decision = decision;
+            this.storedAt = storedAt;
+        }
+    }
+}
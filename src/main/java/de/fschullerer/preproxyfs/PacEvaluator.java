@@ -0,0 +1,208 @@
+package de.fschullerer.preproxyfs;
+
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the PAC evaluations of an instance on a bounded thread pool with a deadline. A PAC script
+ * can block in its DNS functions (dnsResolve, isInNet, ...) on a slow resolver. Then the client
+ * connections do not wait: After the deadline the last known good decision for the host is used
+ * (or the default route). The slow evaluation finishes in the background and updates the caches
+ * for the next request. Slow evaluations and missed deadlines are logged.
+ *
+ * <p>Concurrent requests for the same URL and host share one evaluation (a PAC script can decide
+ * by the URL). If the pool and its queue are full, the fallback is used at once.
+ *
+ * @author Frank Schullerer
+ */
+public class PacEvaluator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PacEvaluator.class.getName());
+
+    /** Default number of PAC evaluation threads. */
+    public static final int DEFAULT_THREADS = 4;
+    /** Default number of waiting PAC evaluations. */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+    /** Maximum number of hosts with a last known good decision. */
+    private static final int MAX_LAST_KNOWN_GOOD = 10_000;
+
+    private final ThreadPoolExecutor executor;
+    private final long deadlineMillis;
+    private final String defaultRoute;
+    /** Running or waiting evaluations by URL and host. */
+    private final Map<String, FutureTask<String>> inFlight = new ConcurrentHashMap<>();
+    /** The last decision per host (least recently used are removed). */
+    private final Map<String, String> lastKnownGood =
+            Collections.synchronizedMap(
+                    new LinkedHashMap<String, String>(16, 0.75f, true) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                            return size() > MAX_LAST_KNOWN_GOOD;
+                        }
+                    });
+    private final AtomicLong missedDeadlines = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Create the evaluation pool.
+     *
+     * @param threads Number of evaluation threads.
+     * @param queueSize Maximum number of waiting evaluations.
+     * @param deadlineMillis Maximum time a connection waits for a PAC decision in milliseconds.
+     * @param defaultRoute The decision if the deadline is missed and the host has no last known
+     *     good decision e.g. DIRECT or PROXY remote.proxy1.com:8080
+     */
+    public PacEvaluator(int threads, int queueSize, long deadlineMillis, String defaultRoute) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor =
+                new ThreadPoolExecutor(
+                        Math.max(1, threads),
+                        Math.max(1, threads),
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "PreProxyFS-pac-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        this.deadlineMillis = deadlineMillis;
+        this.defaultRoute = defaultRoute;
+    }
+
+    /**
+     * Get the PAC decision for a host without URL within the deadline.
+     *
+     * @param host The host of the request.
+     * @param evaluation Evaluates the PAC script and stores the decision in the caches.
+     * @return The PAC decision, the last known good decision or the default route.
+     * @throws ProxyEvaluationException Error in the PAC script (within the deadline).
+     */
+    String evaluate(String host, Callable<String> evaluation) throws ProxyEvaluationException {
+        return evaluate("", host, evaluation);
+    }
+
+    /**
+     * Get the PAC decision for a request within the deadline.
+     *
+     * @param url The URL of the request (can be empty).
+     * @param host The host of the request.
+     * @param evaluation Evaluates the PAC script and stores the decision in the caches.
+     * @return The PAC decision, the last known good decision or the default route.
+     * @throws ProxyEvaluationException Error in the PAC script (within the deadline).
+     */
+    String evaluate(String url, String host, Callable<String> evaluation)
+            throws ProxyEvaluationException {
+        // a line break is neither part of a host nor of a URL
+        String key = host + '\n' + url;
+        FutureTask<String> task = this.inFlight.get(key);
+        if (null == task) {
+            FutureTask<String> newTask =
+                    new FutureTask<>(() -> evaluateAndRemember(key, host, evaluation));
+            task = this.inFlight.putIfAbsent(key, newTask);
+            if (null == task) {
+                task = newTask;
+                try {
+                    this.executor.execute(newTask);
+                } catch (RejectedExecutionException e) {
+                    this.inFlight.remove(key, newTask);
+                    this.rejections.incrementAndGet();
+                    String fallback = getFallback(host);
+                    LOGGER.warn("PAC evaluation queue is full. Using {} for: {}", fallback, host);
+                    return fallback;
+                }
+            }
+        }
+        try {
+            return task.get(this.deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            this.missedDeadlines.incrementAndGet();
+            String fallback = getFallback(host);
+            LOGGER.warn(
+                    "No PAC decision for {} within {} ms. Using {}",
+                    host,
+                    this.deadlineMillis,
+                    fallback);
+            return fallback;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return getFallback(host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProxyEvaluationException) {
+                throw (ProxyEvaluationException) e.getCause();
+            }
+            throw new ProxyEvaluationException(
+                    "Error evaluating PAC script: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private String evaluateAndRemember(String key, String host, Callable<String> evaluation)
+            throws Exception {
+        long start = System.nanoTime();
+        try {
+            String decision = evaluation.call();
+            if (null != decision) {
+                this.lastKnownGood.put(host, decision);
+            }
+            long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (durationMillis > this.deadlineMillis) {
+                LOGGER.warn(
+                        "Slow PAC evaluation for {}: {} ms. Decision: {}",
+                        host,
+                        durationMillis,
+                        decision);
+            }
+            return decision;
+        } finally {
+            this.inFlight.remove(key);
+        }
+    }
+
+    private String getFallback(String host) {
+        String decision = this.lastKnownGood.get(host);
+        return null == decision ? this.defaultRoute : decision;
+    }
+
+    /**
+     * Get the number of connections that used the fallback because of the deadline.
+     *
+     * @return Missed deadlines since start.
+     */
+    public long getMissedDeadlines() {
+        return this.missedDeadlines.get();
+    }
+
+    /**
+     * Get the number of connections that used the fallback because the queue was full.
+     *
+     * @return Rejected evaluations since start.
+     */
+    public long getRejections() {
+        return this.rejections.get();
+    }
+
+    /** Stop the evaluation threads. Running evaluations are interrupted. */
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+}
@@ -0,0 +1,46 @@
+package de.fschullerer.preproxyfs;
+
+import java.net.Authenticator;
+import java.net.PasswordAuthentication;
+
+/**
+ * An {@link Authenticator} that answers the proxy authentication requests of the JVM with the
+ * proxy authentications of a PreProxyFS instance (USER_PASSWORD_MAP). Use it together with {@link
+ * PreProxyFSProxySelector}. Changed proxy authentications of the instance are used immediately.
+ *
+ * <p>Attention: The JVM disables Basic authentication for CONNECT tunnels (Https) by default. Set
+ * the system property jdk.http.auth.tunneling.disabledSchemes to "" to allow it.
+ *
+ * @author Frank Schullerer
+ */
+public class PreProxyFSAuthenticator extends Authenticator {
+
+    private final PreProxyFSInstance instance;
+
+    /**
+     * Create an authenticator.
+     *
+     * @param instance The PreProxyFS instance with the proxy authentications.
+     */
+    public PreProxyFSAuthenticator(PreProxyFSInstance instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * Get the user name and password of the requesting proxy.
+     *
+     * @return The proxy authentication or null for servers and unknown proxies.
+     */
+    @Override
+    protected PasswordAuthentication getPasswordAuthentication() {
+        if (getRequestorType() != RequestorType.PROXY) {
+            return null;
+        }
+        String[] userPass =
+                this.instance.getProxyCredentials(getRequestingHost() + ":" + getRequestingPort());
+        if (null == userPass) {
+            return null;
+        }
+        return new PasswordAuthentication(userPass[0], userPass[1].toCharArray());
+    }
+}
@@ -0,0 +1,199 @@
+package de.fschullerer.preproxyfs;
+
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ProxySelector} for PreProxyFS used within another Java program. The Http clients of the
+ * JVM (e.g. {@link java.net.HttpURLConnection}) connect directly to the remote proxy of the PAC
+ * decision instead of going through the local port of the instance. The routing is the same as for
+ * the local port: PAC decision cache, PAC evaluation pool, {@link CircuitBreaker} and {@link
+ * UpstreamSelection}. The local port stays available for other processes.
+ *
+ * <pre>
+ * ProxySelector.setDefault(new PreProxyFSProxySelector(instance));
+ * Authenticator.setDefault(new PreProxyFSAuthenticator(instance));
+ * </pre>
+ *
+ * <p>Only PROXY and DIRECT entries of the PAC decision are supported. Non-Http connections (scheme
+ * socket) are always DIRECT.
+ *
+ * @author Frank Schullerer
+ */
+public class PreProxyFSProxySelector extends ProxySelector {
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(PreProxyFSProxySelector.class.getName());
+    private static final List<Proxy> NO_PROXY = Collections.singletonList(Proxy.NO_PROXY);
+    /** Connect timeout of a trial connection if no timeout for the proxy check is set. */
+    private static final int TRIAL_TIMEOUT = 3000;
+
+    private final PreProxyFSInstance instance;
+
+    /**
+     * Create a proxy selector for a started instance.
+     *
+     * @param instance The PreProxyFS instance with the PAC script and the upstream statistics.
+     */
+    public PreProxyFSProxySelector(PreProxyFSInstance instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * Get the proxies for a connection. The selected proxy is the first, the other available
+     * proxies of the PAC decision follow in PAC order (the JVM tries them if the connect fails).
+     * Proxies with an open {@link CircuitBreaker} are skipped. If the PAC script cannot be
+     * evaluated, DIRECT is used.
+     *
+     * <p>The JVM reports only failed connects. So the trial connection of a half-open breaker is
+     * a connect to the proxy by the selector: the breaker is closed if the proxy is reachable and
+     * opened again if not.
+     *
+     * @param uri The URI of the connection e.g. https://www.example.com/
+     * @return The proxies, never empty.
+     */
+    @Override
+    public List<Proxy> select(URI uri) {
+        if (null == uri) {
+            throw new IllegalArgumentException("URI must not be null.");
+        }
+        String scheme = null == uri.getScheme() ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        String host = uri.getHost();
+        if (null == host || !(scheme.startsWith("http") || "ftp".equals(scheme))) {
+            return NO_PROXY;
+        }
+        String pacDecision;
+        try {
+            pacDecision = this.instance.findProxyForUrl(uri.toString(), host);
+        } catch (ProxyEvaluationException e) {
+            LOGGER.warn("Error while analyzing the PAC script for host: {}. Use DIRECT.", host, e);
+            return NO_PROXY;
+        }
+        List<String> candidates = Util.getPacCandidates(null == pacDecision ? "" : pacDecision);
+        List<String> proxies = selectProxies(candidates, host);
+        List<Proxy> selected = new ArrayList<>();
+        for (String proxy : proxies) {
+            selected.add(Util.DIRECT.equals(proxy) ? Proxy.NO_PROXY : toProxy(proxy));
+        }
+        return selected.isEmpty() ? NO_PROXY : selected;
+    }
+
+    /**
+     * Order the candidates of the PAC decision like {@link
+     * DistributeForwardClientThread#getCorrectProxyForHttpRequest(String)}: the selected proxy
+     * first and DIRECT last. If all proxies are unavailable and the PAC decision has no DIRECT,
+     * all proxies are returned (the connect fails, as it would on the local port).
+     */
+    private List<String> selectProxies(List<String> candidates, String host) {
+        boolean directAllowed = candidates.removeIf(Util.DIRECT::equals);
+        List<String> available = new ArrayList<>(candidates);
+        available.removeIf(proxy -> !getCircuitBreaker(proxy).isCallPermitted());
+        List<String> proxies = new ArrayList<>();
+        String first = selectAvailableProxy(available);
+        if (null != first) {
+            proxies.add(first);
+            // the JVM tries the other proxies only if the connect to the first fails
+            available.removeIf(
+                    proxy -> getCircuitBreaker(proxy).getState() != CircuitBreaker.State.CLOSED);
+            proxies.addAll(available);
+        } else if (!directAllowed) {
+            LOGGER.warn("All proxies {} for host: {} are unavailable.", candidates, host);
+            proxies.addAll(candidates);
+        }
+        if (directAllowed || proxies.isEmpty()) {
+            proxies.add(Util.DIRECT);
+        }
+        String upstream = proxies.get(0);
+        LOGGER.debug("Proxy: {} is used to connect to host: {}", upstream, host);
+        this.instance.getTrafficStatistics().recordConnection(host, upstream);
+        return proxies;
+    }
+
+    /**
+     * Select one of the available proxies like {@link DistributeForwardClientThread}: the
+     * {@link CircuitBreaker} must allow the connection.
+     *
+     * @param available The proxies whose breaker permits a call. The selected proxy and the
+     *     proxies that failed their trial connection are removed.
+     * @return The proxy or null if no proxy is available.
+     */
+    private String selectAvailableProxy(List<String> available) {
+        while (!available.isEmpty()) {
+            String proxy = this.instance.getUpstreamSelection().select(available, this.instance);
+            available.remove(proxy);
+            CircuitBreaker circuitBreaker = getCircuitBreaker(proxy);
+            // another connection may have taken the trial connection of a half-open breaker
+            if (!circuitBreaker.allowRequest()) {
+                continue;
+            }
+            if (circuitBreaker.getState() == CircuitBreaker.State.CLOSED
+                    || isReachable(proxy)) {
+                return proxy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The trial connection of a half-open breaker.
+     *
+     * @param proxy The remote proxy e.g. remote.proxy1.com:8080
+     * @return TRUE if the proxy accepted the connection.
+     */
+    private boolean isReachable(String proxy) {
+        UpstreamStats upstreamStats = this.instance.getUpstreamStats(proxy);
+        int timeout = this.instance.getTimeoutForProxyCheck();
+        long start = System.nanoTime();
+        if (Util.DIRECT.equals(
+                Util.checkIfRemoteProxyIsReachable(proxy, timeout > 0 ? timeout : TRIAL_TIMEOUT))) {
+            upstreamStats.recordFailure();
+            return false;
+        }
+        upstreamStats.recordConnect(System.nanoTime() - start);
+        upstreamStats.getCircuitBreaker().onSuccess();
+        return true;
+    }
+
+    private CircuitBreaker getCircuitBreaker(String proxy) {
+        return this.instance.getUpstreamStats(proxy).getCircuitBreaker();
+    }
+
+    private static Proxy toProxy(String proxy) {
+        int separator = proxy.lastIndexOf(':');
+        String proxyHost = separator > 0 ? proxy.substring(0, separator) : proxy;
+        int proxyPort = separator > 0 ? Integer.parseInt(proxy.substring(separator + 1)) : 80;
+        return new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxyHost, proxyPort));
+    }
+
+    /**
+     * The JVM could not connect to a proxy. The failure is recorded in the statistics and the
+     * {@link CircuitBreaker} of the remote proxy.
+     *
+     * @param uri The URI of the connection.
+     * @param sa The address of the proxy.
+     * @param ioe The connect error.
+     */
+    @Override
+    public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+        if (null == uri || null == sa || null == ioe) {
+            throw new IllegalArgumentException("Arguments must not be null.");
+        }
+        if (sa instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) sa;
+            String proxy = address.getHostString() + ":" + address.getPort();
+            LOGGER.debug("Connect to proxy: {} failed: {}", proxy, ioe.getMessage());
+            this.instance.getUpstreamStats(proxy).recordFailure();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package de.fschullerer.preproxyfs;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resources that can be shared by several {@link PreProxyFSInstance}s in one JVM to save memory:
+ * The scheduler for short periodic tasks, the thread pool for blocking background work (e.g.
+ * connects of a {@link WarmSocketPool}) and the {@link HttpCache}. Host name lookups (DNS) of all
+ * instances already share the JVM wide cache of {@link java.net.InetAddress}.
+ *
+ * <p>Connections are not run on a shared pool: Every connection has a thread per direction with
+ * blocking I/O, so a pool would need a thread per connection anyway. Relay buffers are not pooled
+ * either: The {@link RelayBuffer} of a connection adapts its size and is released while the
+ * connection is idle, which saves more memory than a pool of fixed size buffers.
+ *
+ * <p>All instances that are created without own resources use {@link #getDefault()}.
+ *
+ * @author Frank Schullerer
+ */
+public class PreProxyFSResources {
+
+    private static final PreProxyFSResources DEFAULT_RESOURCES = new PreProxyFSResources();
+
+    /** Threads of the scheduler. Only for short tasks: blocking work uses the blocking pool. */
+    static final int SCHEDULER_THREADS = 4;
+    /** Maximum threads of the pool for blocking background work. */
+    static final int MAX_BLOCKING_THREADS = 16;
+    /** Time in seconds an unused thread of the blocking pool is kept. */
+    private static final long BLOCKING_KEEP_ALIVE = 60;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService blockingPool;
+    private volatile HttpCache httpCache;
+
+    /** Create new resources that can be given to {@link PreProxyFSInstance.Builder#resources}. */
+    public PreProxyFSResources() {
+        // empty
+    }
+
+    /**
+     * Get the resources that are used by all instances without own resources (and by the static
+     * {@link PreProxyFS} API).
+     *
+     * @return The default resources.
+     */
+    public static PreProxyFSResources getDefault() {
+        return DEFAULT_RESOURCES;
+    }
+
+    /**
+     * Enable the cache for plain Http responses for all instances using these resources. Https
+     * (CONNECT) requests are never cached. A previous cache is closed.
+     *
+     * @param cacheDir The directory for the cache segment files e.g. /tmp/PreProxyFS-cache
+     * @param cacheSizeMb The maximum cache size in megabytes.
+     */
+    public void enableHttpCache(String cacheDir, long cacheSizeMb) {
+        setHttpCache(new HttpCache(cacheDir, cacheSizeMb * 1024 * 1024));
+    }
+
+    /**
+     * Get the cache for plain Http responses.
+     *
+     * @return The cache or null if the cache is not enabled.
+     */
+    HttpCache getHttpCache() {
+        return this.httpCache;
+    }
+
+    /**
+     * (Separate call for better testing).
+     *
+     * @param httpCache The Http cache or null to disable the cache. A previous cache is closed.
+     */
+    synchronized void setHttpCache(HttpCache httpCache) {
+        HttpCache previous = this.httpCache;
+        this.httpCache = httpCache;
+        if (null != previous && previous != httpCache) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Get the scheduler for short periodic background tasks (e.g. settings check, PAC refresh,
+     * statistics). Tasks that can block for seconds must use {@link #getBlockingPool()}. The
+     * threads are daemon threads, so they do not prevent the JVM from exiting.
+     *
+     * @return The scheduler (created on first use).
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (null == this.scheduler) {
+            this.scheduler =
+                    Executors.newScheduledThreadPool(
+                            SCHEDULER_THREADS, createThreadFactory("PreProxyFS-background-"));
+        }
+        return this.scheduler;
+    }
+
+    /**
+     * Get the thread pool for blocking background work (e.g. connects to a remote proxy). Unused
+     * threads end after {@link #BLOCKING_KEEP_ALIVE} seconds. If all {@link #MAX_BLOCKING_THREADS}
+     * threads are busy, a new task is rejected (RejectedExecutionException) and must be tried
+     * again later.
+     *
+     * @return The pool (created on first use).
+     */
+    synchronized ExecutorService getBlockingPool() {
+        if (null == this.blockingPool) {
+            this.blockingPool =
+                    new ThreadPoolExecutor(
+                            0,
+                            MAX_BLOCKING_THREADS,
+                            BLOCKING_KEEP_ALIVE,
+                            TimeUnit.SECONDS,
+                            new SynchronousQueue<>(),
+                            createThreadFactory("PreProxyFS-blocking-"));
+        }
+        return this.blockingPool;
+    }
+
+    private static ThreadFactory createThreadFactory(String namePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -2,6 +2,7 @@ package de.fschullerer.preproxyfs;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,21 +16,22 @@ public class ProxyForwardClientThread extends Thread implements ForwardServerThr
     private static final Logger LOGGER =
             LoggerFactory.getLogger(ProxyForwardClientThread.class.getName());
     private final Socket clientSocket;
+    private final ProxyForwardServer proxyForwardServer;
+    private byte[] firstRequest;
     private ForwardServerThread proxyForwardServerThread;
 
-    /** Creates a new proxy forwarding thread. */
-    ProxyForwardClientThread(Socket clientSocket) {
-        this.clientSocket = clientSocket;
-    }
-
     /**
-     * Bind this ProxyForwardClientThread to a forwarding server thread. So it is possible to get
-     * the server socket.
+     * Creates a new proxy forwarding thread.
      *
-     * @param proxyForwardServerThread Bind this object with ForwardServerThread.
+     * @param clientSocket The socket of the client.
+     * @param proxyForwardServer The server that connects to the remote proxy.
+     * @param firstRequest A request that was already read from the client (null if none).
      */
-    void setForwardServerThread(ForwardServerThread proxyForwardServerThread) {
-        this.proxyForwardServerThread = proxyForwardServerThread;
+    ProxyForwardClientThread(
+            Socket clientSocket, ProxyForwardServer proxyForwardServer, byte[] firstRequest) {
+        this.clientSocket = clientSocket;
+        this.proxyForwardServer = proxyForwardServer;
+        this.firstRequest = firstRequest;
     }
 
     /** Get the client socket. The server thread needs it. */
@@ -38,21 +40,22 @@ public class ProxyForwardClientThread extends Thread implements ForwardServerThr
         return this.clientSocket;
     }
 
-    /** Read from client socket and write to the server socket until it is possible. */
+    /**
+     * Connect to the remote proxy, then read from client socket and write to the server socket
+     * until it is possible. The bytes are relayed with an adaptive buffer (see {@link
+     * RelayBuffer}).
+     */
     @Override
     public void run() {
-        byte[] request;
         try {
-            while (true) {
-                // thread should run until end of stream is reached or exception occurs
-                request = Util.readFromClientSocket(this.clientSocket);
-                if (request.length == 0) {
-                    break;
-                }
-                Util.traceLogRequestResponse(this.getClass().getName(), request);
-                this.proxyForwardServerThread.getServerSocket().getOutputStream().write(request);
-                this.proxyForwardServerThread.getServerSocket().getOutputStream().flush();
-            }
+            this.proxyForwardServerThread =
+                    this.proxyForwardServer.connect(this, this.firstRequest);
+            this.firstRequest = null;
+            // thread should run until end of stream is reached or exception occurs
+            Util.relay(
+                    this.clientSocket,
+                    this.proxyForwardServerThread.getServerSocket(),
+                    LOGGER.isTraceEnabled() ? this::traceLogRequest : null);
         } catch (Exception e) {
             // Connection is broken --> exit the thread
             LOGGER.debug("Connection is broken.", e);
@@ -71,4 +74,9 @@ public class ProxyForwardClientThread extends Thread implements ForwardServerThr
             }
         }
     }
+
+    private void traceLogRequest(byte[] buffer, int offset, int length) {
+        Util.traceLogRequestResponse(
+                this.getClass().getName(), Arrays.copyOfRange(buffer, offset, offset + length));
+    }
 }
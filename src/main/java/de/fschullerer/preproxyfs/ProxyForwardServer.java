@@ -21,6 +21,12 @@ public class ProxyForwardServer extends Thread {
     private final Object waitForMe = new Object();
     private final String remoteProxyHost;
     private final int remoteProxyPort;
+    private final String proxy;
+    private final UpstreamStats upstreamStats;
+    /** Optional pool of connected sockets to the remote proxy (null if disabled). */
+    private volatile WarmSocketPool warmSocketPool;
+    /** Optional Http/2 connections to the remote proxy for CONNECT tunnels (null if disabled). */
+    private volatile Http2UpstreamPool http2UpstreamPool;
     private ServerSocket serverSocketP;
 
     /**
@@ -31,8 +37,26 @@ public class ProxyForwardServer extends Thread {
      * @param remoteProxyPort The remote proxy port.
      */
     public ProxyForwardServer(String remoteProxyHost, int remoteProxyPort) {
+        this(
+                remoteProxyHost,
+                remoteProxyPort,
+                new UpstreamStats(remoteProxyHost + ":" + remoteProxyPort));
+    }
+
+    /**
+     * This will create a ProxyForwardServer to a concrete destination (a remote proxy) that
+     * records the connect and response times of the remote proxy.
+     *
+     * @param remoteProxyHost The remote proxy hostname/IP.
+     * @param remoteProxyPort The remote proxy port.
+     * @param upstreamStats The statistics of the remote proxy.
+     */
+    public ProxyForwardServer(
+            String remoteProxyHost, int remoteProxyPort, UpstreamStats upstreamStats) {
         this.remoteProxyHost = remoteProxyHost;
         this.remoteProxyPort = remoteProxyPort;
+        this.proxy = remoteProxyHost + ":" + remoteProxyPort;
+        this.upstreamStats = upstreamStats;
     }
 
     /**
@@ -75,7 +99,52 @@ public class ProxyForwardServer extends Thread {
      * @return Proxy
      */
     String getProxy() {
-        return this.remoteProxyHost + ":" + this.remoteProxyPort;
+        return this.proxy;
+    }
+
+    /**
+     * Get the statistics of the remote proxy.
+     *
+     * @return The statistics.
+     */
+    UpstreamStats getUpstreamStats() {
+        return this.upstreamStats;
+    }
+
+    /**
+     * Get the pool of connected sockets to the remote proxy.
+     *
+     * @return The pool or null if disabled.
+     */
+    WarmSocketPool getWarmSocketPool() {
+        return this.warmSocketPool;
+    }
+
+    /**
+     * Use a pool of connected sockets to the remote proxy for new connections.
+     *
+     * @param pool The pool or null to connect on demand.
+     */
+    void setWarmSocketPool(WarmSocketPool pool) {
+        this.warmSocketPool = pool;
+    }
+
+    /**
+     * Get the Http/2 connections to the remote proxy.
+     *
+     * @return The pool or null if disabled.
+     */
+    Http2UpstreamPool getHttp2UpstreamPool() {
+        return this.http2UpstreamPool;
+    }
+
+    /**
+     * Carry the CONNECT tunnels as streams of a few Http/2 connections to the remote proxy.
+     *
+     * @param pool The pool or null for a connection per tunnel.
+     */
+    void setHttp2UpstreamPool(Http2UpstreamPool pool) {
+        this.http2UpstreamPool = pool;
     }
 
     /**
@@ -89,14 +158,71 @@ public class ProxyForwardServer extends Thread {
         Socket clientSocket = serverSocket.accept();
         clientSocket.setSoTimeout(0);
         clientSocket.setKeepAlive(true);
-        ProxyForwardClientThread clientForward;
-        clientForward = new ProxyForwardClientThread(clientSocket);
-        // bind the two threads together
-        ForwardServerThread serverForward =
-                new ForwardServerThread(clientForward, this.remoteProxyHost, this.remoteProxyPort);
-        clientForward.setForwardServerThread(serverForward);
-        clientForward.start();
+        Http2UpstreamPool pool = this.http2UpstreamPool;
+        if (null != pool && pool.isAvailable()) {
+            // the first request decides: a Http/2 stream or a connection of its own
+            new Http2TunnelClientThread(clientSocket, pool, this).start();
+            return;
+        }
+        forward(clientSocket, null);
+    }
+
+    /**
+     * Forward a client connection over a connection of its own to the remote proxy. The remote
+     * proxy is connected by the connection thread: A remote proxy that does not answer must not
+     * block the accept thread.
+     *
+     * @param clientSocket The socket of the client (is closed by the forwarding threads).
+     * @param firstRequest A request that was already read from the client (null if none).
+     */
+    void forward(Socket clientSocket, byte[] firstRequest) {
+        new ProxyForwardClientThread(clientSocket, this, firstRequest).start();
+    }
+
+    /**
+     * Connect a client connection to the remote proxy and start the thread that forwards the
+     * responses. Called by the {@link ProxyForwardClientThread}.
+     *
+     * @param clientForward The connection thread.
+     * @param firstRequest A request that was already read from the client (null if none).
+     * @return The started thread that forwards the responses.
+     * @throws IOException The remote proxy is not reachable (recorded as failure of the remote
+     *     proxy, also if it does not answer within {@link ForwardServerThread#CONNECT_TIMEOUT}).
+     */
+    ForwardServerThread connect(ProxyForwardClientThread clientForward, byte[] firstRequest)
+            throws IOException {
+        WarmSocketPool pool = this.warmSocketPool;
+        Socket warmSocket = null == pool ? null : pool.take();
+        ForwardServerThread serverForward;
+        if (null != warmSocket) {
+            serverForward = new ForwardServerThread(clientForward, warmSocket);
+            serverForward.setUpstreamStats(this.upstreamStats, System.nanoTime());
+        } else {
+            long connectStart = System.nanoTime();
+            try {
+                serverForward =
+                        new ForwardServerThread(
+                                clientForward, this.remoteProxyHost, this.remoteProxyPort);
+            } catch (IOException e) {
+                this.upstreamStats.recordFailure();
+                LOGGER.info("Cannot connect to remote proxy {}: {}", this.proxy, e.toString());
+                throw e;
+            }
+            long connected = System.nanoTime();
+            this.upstreamStats.recordConnect(connected - connectStart);
+            serverForward.setUpstreamStats(this.upstreamStats, connected);
+        }
+        if (null != firstRequest) {
+            try {
+                serverForward.getServerSocket().getOutputStream().write(firstRequest);
+                serverForward.getServerSocket().getOutputStream().flush();
+            } catch (IOException e) {
+                serverForward.getServerSocket().close();
+                throw e;
+            }
+        }
         serverForward.start();
+        return serverForward;
     }
 
     /**
@@ -121,21 +247,25 @@ public class ProxyForwardServer extends Thread {
             synchronized (waitForMe) {
                 waitForMe.notifyAll();
             }
-            // Accept client connections and process them until stopped
-            while (true) {
+            // Accept client connections and process them until the server socket is closed (stop)
+            while (!serverSocket.isClosed()) {
                 try {
                     acceptLoop(serverSocket);
                 } catch (Exception e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
                     LOGGER.info("ProxyForwardServer acceptLoop Exception: " + e.getMessage());
                     LOGGER.trace("ProxyForwardServer acceptLoop Exception Trace", e);
                 }
             }
+            LOGGER.info("Closing ProxyForwardServer socket");
         } catch (BindException e) {
             throw new PreProxyFSException(
                     "Unable to bind ProxyForwardServer to local port. Program exit.", e);
         } catch (SocketException e) {
             if (e.getMessage().equals("Socket closed")) {
-                LOGGER.info("Closing DistributeServer socket");
+                LOGGER.info("Closing ProxyForwardServer socket");
             } else {
                 throw new PreProxyFSException(
                         "Error creating ProxyForwardServer socket, Program exit.", e);
@@ -0,0 +1,100 @@
+package de.fschullerer.preproxyfs;
+
+/**
+ * Adaptive buffer of one direction of a {@link Util#relay}. The size follows the reads:
+ *
+ * <ul>
+ *   <li>A read that fills the buffer (bulk transfer e.g. a download) doubles the size up to {@link
+ *       #MAX_SIZE}.
+ *   <li>Two reads in a row that use less than a quarter of the buffer (interactive e.g. a
+ *       WebSocket) halve the size down to {@link #MIN_SIZE}.
+ *   <li>An idle connection releases the buffer ({@link #release()}, hibernation). It is
+ *       allocated again with at most {@link #INITIAL_SIZE} when data arrives.
+ * </ul>
+ *
+ * <p>So thousands of idle tunnels hold no buffer at all, instead of one {@link
+ * Util#DEFAULT_BUFFER_SIZE} buffer per direction. Not thread safe: one instance per relay thread.
+ *
+ * @author Frank Schullerer
+ */
+final class RelayBuffer {
+
+    /** Smallest buffer size. */
+    static final int MIN_SIZE = 2048;
+    /** Size of a new buffer and maximum size after hibernation. */
+    static final int INITIAL_SIZE = 8192;
+    /** Largest buffer size (bulk transfer). */
+    static final int MAX_SIZE = 262_144;
+    /** Time in milliseconds without data until the buffer of a relay is released. */
+    static final int HIBERNATE_AFTER = 10_000;
+
+    private byte[] buffer;
+    private int size = INITIAL_SIZE;
+    private int smallReads;
+
+    /**
+     * Get the buffer for the next read. Allocated with the current size if it was released or
+     * resized.
+     *
+     * @return The buffer.
+     */
+    byte[] get() {
+        if (null == this.buffer) {
+            this.buffer = new byte[this.size];
+        }
+        return this.buffer;
+    }
+
+    /**
+     * Adapt the size to a read. A new size takes effect with the next {@link #get()} (the data of
+     * the current buffer stays valid until then).
+     *
+     * @param length The bytes of the read.
+     */
+    void onRead(int length) {
+        if (length >= this.size) {
+            this.smallReads = 0;
+            resize(Math.min(MAX_SIZE, this.size * 2));
+        } else if (length < this.size / 4) {
+            this.smallReads++;
+            if (this.smallReads >= 2) {
+                this.smallReads = 0;
+                resize(Math.max(MIN_SIZE, this.size / 2));
+            }
+        } else {
+            this.smallReads = 0;
+        }
+    }
+
+    private void resize(int newSize) {
+        if (newSize != this.size) {
+            this.size = newSize;
+            this.buffer = null;
+        }
+    }
+
+    /** Release the buffer while the connection is idle (hibernation). */
+    void release() {
+        this.buffer = null;
+        this.smallReads = 0;
+        this.size = Math.min(this.size, INITIAL_SIZE);
+    }
+
+    /**
+     * Get the current buffer size.
+     *
+     * @return The size of the next buffer.
+     */
+    int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Check if the buffer is released.
+     *
+     * @return TRUE while the relay hibernates.
+     */
+    boolean isReleased() {
+        return null == this.buffer;
+    }
+}
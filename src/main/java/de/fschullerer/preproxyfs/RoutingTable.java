@@ -0,0 +1,209 @@
+package de.fschullerer.preproxyfs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable routing table. Contains one {@link Route} for every remote proxy of the PAC script,
+ * for every proxy with a defined proxy authentication and for the DIRECT connection.
+ *
+ * <p>The table is never modified. A change (e.g. new proxy authentications) creates a new table
+ * that is published with one volatile write, so the request threads only do one hash map lookup
+ * and never wait for a reconfiguration.
+ *
+ * @author Frank Schullerer
+ */
+public final class RoutingTable {
+
+    /** Empty routing table (before start). */
+    static final RoutingTable EMPTY = new RoutingTable(Collections.<String, Route>emptyMap());
+
+    private final Map<String, Route> routes;
+
+    private RoutingTable(Map<String, Route> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Create a routing table for started {@link ProxyForwardServer}s. Waits until every server
+     * socket is bound.
+     *
+     * @param proxyForwardServers The started proxy forward servers.
+     * @param directPort The local port of the {@link DirectForwardServer} (0 if not known).
+     * @param proxyAuthentication The proxy authentications (proxy to user name and password).
+     * @return The new routing table.
+     */
+    static RoutingTable create(
+            Collection<ProxyForwardServer> proxyForwardServers,
+            int directPort,
+            Map<String, String[]> proxyAuthentication) {
+        Map<String, Route> routes = new HashMap<>();
+        for (ProxyForwardServer server : proxyForwardServers) {
+            Route route =
+                    new Route(
+                            server.getProxy(),
+                            server.getPort(),
+                            server,
+                            getProxyAuthorization(proxyAuthentication, server.getProxy()));
+            routes.put(route.key, route);
+        }
+        addAuthenticationOnlyRoutes(routes, proxyAuthentication);
+        routes.put(Util.DIRECT, new Route(Util.DIRECT, directPort, null, ""));
+        return new RoutingTable(Collections.unmodifiableMap(routes));
+    }
+
+    /**
+     * Create a new routing table with the same endpoints but other proxy authentications.
+     *
+     * @param proxyAuthentication The new proxy authentications.
+     * @return The new routing table.
+     */
+    RoutingTable withProxyAuthentication(Map<String, String[]> proxyAuthentication) {
+        Map<String, Route> newRoutes = new HashMap<>();
+        for (Route route : this.routes.values()) {
+            if (Util.DIRECT.equals(route.key) || null != route.proxyForwardServer) {
+                newRoutes.put(
+                        route.key,
+                        new Route(
+                                route.key,
+                                route.localPort,
+                                route.proxyForwardServer,
+                                getProxyAuthorization(proxyAuthentication, route.key)));
+            }
+        }
+        addAuthenticationOnlyRoutes(newRoutes, proxyAuthentication);
+        return new RoutingTable(Collections.unmodifiableMap(newRoutes));
+    }
+
+    /**
+     * Create a new routing table with another {@link DirectForwardServer} port.
+     *
+     * @param directPort The local port of the direct forward server.
+     * @return The new routing table.
+     */
+    RoutingTable withDirectPort(int directPort) {
+        Map<String, Route> newRoutes = new HashMap<>(this.routes);
+        newRoutes.put(Util.DIRECT, new Route(Util.DIRECT, directPort, null, ""));
+        return new RoutingTable(Collections.unmodifiableMap(newRoutes));
+    }
+
+    /**
+     * Proxies with authentication that are not in the PAC script. They have no local endpoint but
+     * the authentication is still known.
+     */
+    private static void addAuthenticationOnlyRoutes(
+            Map<String, Route> routes, Map<String, String[]> proxyAuthentication) {
+        for (String proxy : proxyAuthentication.keySet()) {
+            if (!routes.containsKey(proxy)) {
+                routes.put(
+                        proxy,
+                        new Route(
+                                proxy, 0, null, getProxyAuthorization(proxyAuthentication, proxy)));
+            }
+        }
+    }
+
+    private static String getProxyAuthorization(
+            Map<String, String[]> proxyAuthentication, String proxy) {
+        String[] userPass = proxyAuthentication.get(proxy);
+        if (null == userPass) {
+            return "";
+        }
+        return encodeProxyAuthorization(userPass[0], userPass[1]);
+    }
+
+    /**
+     * Base64 convert user name and password for proxy authentication.
+     *
+     * @param user User name for proxy.
+     * @param pass Password for proxy.
+     * @return The full Proxy-Authorization HTTP request header line. Ready to insert it to request
+     *     header.
+     */
+    static String encodeProxyAuthorization(String user, String pass) {
+        String userPass = user + ":" + pass;
+        // read from settings file with utf-8
+        return "Proxy-Authorization: Basic "
+                + Base64.getEncoder().encodeToString(userPass.getBytes(StandardCharsets.UTF_8))
+                + "\r\n";
+    }
+
+    /**
+     * Get the route for a proxy.
+     *
+     * @param proxy The proxy as proxyDNS:port string e.g. my.remote.proxy.com:8080 or DIRECT
+     * @return The route or null if the proxy is unknown.
+     */
+    Route getRoute(String proxy) {
+        return this.routes.get(proxy);
+    }
+
+    /**
+     * Get all routes.
+     *
+     * @return Unmodifiable collection of all routes.
+     */
+    Collection<Route> getRoutes() {
+        return this.routes.values();
+    }
+
+    /** One remote proxy (or DIRECT) with its local endpoint and the proxy authentication. */
+    static final class Route {
+        private final String key;
+        private final int localPort;
+        private final ProxyForwardServer proxyForwardServer;
+        private final String proxyAuthorization;
+
+        private Route(
+                String key,
+                int localPort,
+                ProxyForwardServer proxyForwardServer,
+                String proxyAuthorization) {
+            this.key = key;
+            this.localPort = localPort;
+            this.proxyForwardServer = proxyForwardServer;
+            this.proxyAuthorization = proxyAuthorization;
+        }
+
+        /**
+         * Get the key of this route.
+         *
+         * @return The remote proxy e.g. remote.proxy1.com:8080 or DIRECT
+         */
+        String getKey() {
+            return this.key;
+        }
+
+        /**
+         * Get the local endpoint.
+         *
+         * @return Local port of the {@link ProxyForwardServer} or {@link DirectForwardServer}. 0 if
+         *     there is no local endpoint.
+         */
+        int getLocalPort() {
+            return this.localPort;
+        }
+
+        /**
+         * Get the proxy forward server.
+         *
+         * @return The server or null for DIRECT and proxies that are not in the PAC script.
+         */
+        ProxyForwardServer getProxyForwardServer() {
+            return this.proxyForwardServer;
+        }
+
+        /**
+         * Get the encoded proxy authentication.
+         *
+         * @return Proxy-Authorization header line (with line break at the end) or an empty string.
+         */
+        String getProxyAuthorization() {
+            return this.proxyAuthorization;
+        }
+    }
+}
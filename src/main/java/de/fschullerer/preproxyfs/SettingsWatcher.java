@@ -0,0 +1,210 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watch the properties file of an instance and reload changed settings without a restart (e.g.
+ * rotated proxy credentials). The file is checked periodically (modification time and size). A
+ * changed file is read when it was not modified for {@link #SETTLE_MILLIS} and read again if it
+ * changed while reading (a file that is still written is never applied). It is validated
+ * completely before anything is changed: an invalid file or a file without PAC_URL,
+ * MAIN_LOCAL_PORT or USER_PASSWORD_MAP (if set before) is rejected and the running instance keeps
+ * its settings. See {@link PreProxyFSInstance#reload} for the settings that are applied live.
+ * Changes of other settings are logged and need a restart.
+ *
+ * @author Frank Schullerer
+ */
+public class SettingsWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettingsWatcher.class.getName());
+
+    /** Default check interval in seconds. */
+    public static final long DEFAULT_INTERVAL_SECONDS = 5;
+
+    /** Time in milliseconds a changed file must be unmodified before it is read. */
+    static final long SETTLE_MILLIS = 1000;
+    /** Maximum reads of a file that changes while it is read. */
+    private static final int MAX_READS = 3;
+
+    /**
+     * Settings a reload must not remove or empty (e.g. a partly written file must not wipe the
+     * proxy credentials or switch to the default port).
+     */
+    private static final Set<String> REQUIRED_SETTINGS =
+            new HashSet<>(Arrays.asList("PAC_URL", "MAIN_LOCAL_PORT", "USER_PASSWORD_MAP"));
+
+    /** Settings that are applied by {@link PreProxyFSInstance#reload}. */
+    private static final Set<String> RELOADABLE_SETTINGS =
+            new HashSet<>(
+                    Arrays.asList(
+                            "MAIN_LOCAL_PORT",
+                            "USER_PASSWORD_MAP",
+                            "TIMEOUT_FOR_PROXY_CHECK",
+                            "ADMISSION_MAX_CONNECTIONS",
+                            "ADMISSION_MAX_RATE",
+                            "ADMISSION_TARGET_DELAY",
+                            "UPSTREAM_MAX_CONNECTIONS",
+                            "UPSTREAM_QUEUE_SIZE",
+                            "UPSTREAM_QUEUE_TIMEOUT",
+                            "UPSTREAM_SELECTION",
+                            "CIRCUIT_BREAKER_FAILURES",
+                            "CIRCUIT_BREAKER_OPEN_TIME",
+                            "WARM_POOL_MAX_IDLE",
+                            "WARM_POOL_IDLE_TIME",
+                            "SHUTDOWN_DRAIN_TIMEOUT"));
+
+    private final PreProxyFSInstance instance;
+    private final File settingsFile;
+    /** The settings of the last successful load. */
+    private Properties appliedSettings;
+
+    private long lastModified;
+    private long lastLength;
+    private ScheduledFuture<?> check;
+
+    /**
+     * Create a watcher for the settings file of a started instance.
+     *
+     * @param instance The instance.
+     * @param settingsFilePath Path to the properties file.
+     * @param currentSettings The settings the instance was started with.
+     */
+    public SettingsWatcher(
+            PreProxyFSInstance instance, String settingsFilePath, Properties currentSettings) {
+        this.instance = instance;
+        this.settingsFile = new File(settingsFilePath);
+        this.appliedSettings = currentSettings;
+        this.lastModified = this.settingsFile.lastModified();
+        this.lastLength = this.settingsFile.length();
+    }
+
+    /**
+     * Start the periodic check of the settings file.
+     *
+     * @param scheduler The scheduler for the check.
+     * @param intervalSeconds Check interval in seconds.
+     */
+    public synchronized void start(ScheduledExecutorService scheduler, long intervalSeconds) {
+        this.check =
+                scheduler.scheduleWithFixedDelay(
+                        this::checkForChanges, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        LOGGER.info("Watch {} for changes every {} s.", this.settingsFile, intervalSeconds);
+    }
+
+    /** Stop the periodic check. */
+    public synchronized void stop() {
+        if (null != this.check) {
+            this.check.cancel(false);
+            this.check = null;
+        }
+    }
+
+    /**
+     * Reload the settings if the file was changed.
+     *
+     * @return TRUE if changed settings were applied.
+     */
+    synchronized boolean checkForChanges() {
+        long modified = this.settingsFile.lastModified();
+        long length = this.settingsFile.length();
+        if (modified == this.lastModified && length == this.lastLength) {
+            return false;
+        }
+        if (System.currentTimeMillis() - modified < SETTLE_MILLIS) {
+            // still written: next check
+            return false;
+        }
+        return reload();
+    }
+
+    /**
+     * Load, validate and apply the settings file.
+     *
+     * @return TRUE if the settings were applied.
+     */
+    synchronized boolean reload() {
+        Properties newSettings;
+        try {
+            newSettings = loadStable();
+        } catch (RuntimeException e) {
+            LOGGER.warn(
+                    "Settings of {} not read: {}. Try again.", this.settingsFile, e.getMessage());
+            return false;
+        }
+        try {
+            PreProxyFS.validateSettings(newSettings);
+            checkRequiredSettings(newSettings);
+            logRestartRequired(newSettings);
+            this.instance.reload(PreProxyFS.readSettings(newSettings));
+            this.appliedSettings = newSettings;
+            return true;
+        } catch (RuntimeException e) {
+            // also unexpected errors: the periodic check must go on
+            LOGGER.error(
+                    "Settings of {} rejected: {}. The running settings are not changed.",
+                    this.settingsFile,
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Load the settings file until it did not change while reading. Remembers the modification
+     * time and size of the loaded file: an invalid file is only reported once.
+     *
+     * @return The settings.
+     * @throws PreProxyFSException The file can not be read or changes on every read.
+     */
+    private Properties loadStable() {
+        for (int read = 0; read < MAX_READS; read++) {
+            long modified = this.settingsFile.lastModified();
+            long length = this.settingsFile.length();
+            Properties settings = PreProxyFS.loadSettings(this.settingsFile.getPath());
+            if (modified == this.settingsFile.lastModified()
+                    && length == this.settingsFile.length()) {
+                this.lastModified = modified;
+                this.lastLength = length;
+                return settings;
+            }
+        }
+        throw new PreProxyFSException("The file changed while reading");
+    }
+
+    private void checkRequiredSettings(Properties newSettings) {
+        for (String key : REQUIRED_SETTINGS) {
+            if (!"".equals(trimmed(this.appliedSettings.getProperty(key)))
+                    && "".equals(trimmed(newSettings.getProperty(key)))) {
+                throw new PreProxyFSException(
+                        key + " was removed. Use a restart to remove " + key);
+            }
+        }
+    }
+
+    private void logRestartRequired(Properties newSettings) {
+        Set<String> keys = new TreeSet<>(this.appliedSettings.stringPropertyNames());
+        keys.addAll(newSettings.stringPropertyNames());
+        for (String key : keys) {
+            if (!RELOADABLE_SETTINGS.contains(key)
+                    && !Objects.equals(
+                            trimmed(this.appliedSettings.getProperty(key)),
+                            trimmed(newSettings.getProperty(key)))) {
+                LOGGER.warn("{} was changed. The change is used after a restart.", key);
+            }
+        }
+    }
+
+    private static String trimmed(String value) {
+        return null == value ? "" : value.trim();
+    }
+}
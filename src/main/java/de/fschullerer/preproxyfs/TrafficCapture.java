@@ -0,0 +1,358 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary capture of the traffic between clients and upstreams into a memory-mapped ring file. If
+ * the file is full, the oldest frames are overwritten. A capture file can be replayed with {@link
+ * TrafficReplay}.
+ *
+ * <p>Every chunk read from a client or an upstream is stored as one frame: connection id,
+ * direction, timestamp and bytes. The payload of tunnels (after CONNECT) is encrypted and is only
+ * stored with its length. Requests are captured before the proxy authentication is added, so no
+ * credentials of the remote proxies are stored.
+ *
+ * <p>File layout: A header (magic, data start, write position, oldest frame position, wrapped
+ * flag) and the ring with the frames. A frame is: int frame length, long connection id, long
+ * timestamp (epoch microseconds), byte direction, byte flags, int original length, payload. A
+ * frame length of -1 marks the end of the ring before a wrap.
+ *
+ * <p>The monitor of the capture is only held to reserve the space of a frame in the ring. The
+ * payload is copied outside of the monitor, so the relay threads of different connections do not
+ * wait for each other's copies.
+ *
+ * @author Frank Schullerer
+ */
+public class TrafficCapture {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrafficCapture.class.getName());
+
+    /** Direction of a frame: From the client to the upstream. */
+    public static final byte CLIENT_TO_UPSTREAM = 0;
+    /** Direction of a frame: From the upstream to the client. */
+    public static final byte UPSTREAM_TO_CLIENT = 1;
+    /** Flag of a frame: The payload is not stored, only its length. */
+    public static final byte FLAG_HEADER_ONLY = 1;
+    /** Default size of the capture file in megabytes. */
+    public static final int DEFAULT_SIZE_MB = 64;
+
+    private static final long MAGIC = 0x5050465343415031L; // "PPFSCAP1"
+    private static final int DATA_START = 64;
+    private static final int WRITE_POSITION_OFFSET = 8;
+    private static final int OLDEST_POSITION_OFFSET = 16;
+    private static final int WRAPPED_OFFSET = 24;
+    /** Frame header: length, connection id, timestamp, direction, flags, original length. */
+    private static final int FRAME_HEADER_SIZE = 4 + 8 + 8 + 1 + 1 + 4;
+    private static final int END_MARKER = -1;
+
+    /** The mapped ring file. Null after {@link #close()}. */
+    private MappedByteBuffer buffer;
+    private final int capacity;
+    private final int maxFrameSize;
+    private final int samplePercent;
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final AtomicLong frameCount = new AtomicLong();
+    private int writePosition = DATA_START;
+    private int oldestPosition = DATA_START;
+    private boolean wrapped;
+
+    /**
+     * Create a new capture file. An existing file is overwritten.
+     *
+     * @param fileName The capture file e.g. /tmp/PreProxyFS.capture
+     * @param sizeMb Size of the ring file in megabytes.
+     * @param samplePercent Percentage of the connections that are captured (1 - 100).
+     * @throws IOException Error creating the file.
+     */
+    public TrafficCapture(String fileName, int sizeMb, int samplePercent) throws IOException {
+        this.capacity = sizeMb * 1024 * 1024;
+        this.maxFrameSize = (this.capacity - DATA_START) / 4;
+        this.samplePercent = samplePercent;
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.setLength(0);
+            file.setLength(this.capacity);
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        }
+        this.buffer.putLong(0, MAGIC);
+        writeHeader();
+        LOGGER.info(
+                "Capture {}% of the connections to {} ({} MB ring file).",
+                samplePercent,
+                fileName,
+                sizeMb);
+    }
+
+    /**
+     * Decide if a new connection is captured.
+     *
+     * @return The connection id of a captured connection or 0 if the connection is not captured.
+     */
+    long startConnection() {
+        if (this.samplePercent < 100
+                && ThreadLocalRandom.current().nextInt(100) >= this.samplePercent) {
+            return 0;
+        }
+        return this.connectionIds.incrementAndGet();
+    }
+
+    /**
+     * Capture a chunk of a connection.
+     *
+     * @param connectionId The id of {@link #startConnection()}. 0: not captured.
+     * @param direction {@link #CLIENT_TO_UPSTREAM} or {@link #UPSTREAM_TO_CLIENT}
+     * @param data The chunk.
+     * @param headerOnly TRUE if only the length of the chunk should be stored.
+     */
+    void capture(long connectionId, byte direction, byte[] data, boolean headerOnly) {
+        capture(connectionId, direction, data, 0, data.length, headerOnly);
+    }
+
+    /**
+     * Capture a chunk of a connection from a buffer (e.g. the buffer of a relay). The chunk is
+     * copied into the ring before this method returns.
+     *
+     * @param connectionId The id of {@link #startConnection()}. 0: not captured.
+     * @param direction {@link #CLIENT_TO_UPSTREAM} or {@link #UPSTREAM_TO_CLIENT}
+     * @param data The buffer with the chunk.
+     * @param offset The start of the chunk in the buffer.
+     * @param length The length of the chunk.
+     * @param headerOnly TRUE if only the length of the chunk should be stored.
+     */
+    void capture(
+            long connectionId,
+            byte direction,
+            byte[] data,
+            int offset,
+            int length,
+            boolean headerOnly) {
+        if (connectionId == 0) {
+            return;
+        }
+        long timestampMicros = System.currentTimeMillis() * 1000;
+        int payloadLength = headerOnly ? 0 : Math.min(length, this.maxFrameSize);
+        int frameLength = FRAME_HEADER_SIZE + payloadLength;
+        byte flags = payloadLength < length ? FLAG_HEADER_ONLY : 0;
+        int framePosition;
+        ByteBuffer frame;
+        synchronized (this) {
+            if (null == this.buffer) {
+                // closed
+                return;
+            }
+            reserve(frameLength);
+            framePosition = this.writePosition;
+            // the frame length is needed by reserve() of the next frames
+            this.buffer.putInt(framePosition, frameLength);
+            this.writePosition += frameLength;
+            writeHeader();
+            frame = this.buffer.duplicate();
+        }
+        frame.position(framePosition + 4);
+        frame.putLong(connectionId)
+                .putLong(timestampMicros)
+                .put(direction)
+                .put(flags)
+                .putInt(length)
+                .put(data, offset, payloadLength);
+        this.frameCount.incrementAndGet();
+    }
+
+    /**
+     * Make room for a frame at the write position: Wrap to the start of the ring if the frame
+     * does not fit before the end and drop the oldest frames that are overwritten.
+     */
+    private void reserve(int frameLength) {
+        if (this.writePosition + frameLength > this.capacity) {
+            if (this.writePosition + 4 <= this.capacity) {
+                this.buffer.putInt(this.writePosition, END_MARKER);
+            }
+            // frames behind the write position are older than the frames at the start
+            this.writePosition = DATA_START;
+            this.oldestPosition = DATA_START;
+            this.wrapped = true;
+        }
+        int end = this.writePosition + frameLength;
+        while (this.wrapped
+                && this.oldestPosition >= this.writePosition
+                && this.oldestPosition < end) {
+            int oldLength =
+                    this.oldestPosition + 4 <= this.capacity
+                            ? this.buffer.getInt(this.oldestPosition)
+                            : END_MARKER;
+            if (oldLength == END_MARKER) {
+                // all old frames are overwritten
+                this.oldestPosition = DATA_START;
+                this.wrapped = false;
+            } else {
+                this.oldestPosition += oldLength;
+            }
+        }
+    }
+
+    private void writeHeader() {
+        this.buffer.putInt(WRITE_POSITION_OFFSET, this.writePosition);
+        this.buffer.putInt(OLDEST_POSITION_OFFSET, this.oldestPosition);
+        this.buffer.put(WRAPPED_OFFSET, (byte) (this.wrapped ? 1 : 0));
+    }
+
+    /**
+     * Get the number of captured frames.
+     *
+     * @return Frames since start.
+     */
+    public long getFrameCount() {
+        return this.frameCount.get();
+    }
+
+    /**
+     * Write the captured frames to the disk and release the ring file. Later chunks are not
+     * captured. The mapped memory is freed by the garbage collector.
+     */
+    synchronized void close() {
+        if (null != this.buffer) {
+            this.buffer.force();
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Read all frames of a capture file, the oldest first.
+     *
+     * @param fileName The capture file.
+     * @return The frames.
+     * @throws IOException Error reading the file or not a capture file.
+     */
+    public static List<Frame> readFrames(String fileName) throws IOException {
+        ByteBuffer data;
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        if (data.capacity() < DATA_START || data.getLong(0) != MAGIC) {
+            throw new IOException(fileName + " is not a PreProxyFS capture file.");
+        }
+        int writePosition = data.getInt(WRITE_POSITION_OFFSET);
+        List<Frame> frames = new ArrayList<>();
+        if (data.get(WRAPPED_OFFSET) == 1) {
+            readFrames(data, data.getInt(OLDEST_POSITION_OFFSET), data.capacity(), frames);
+        }
+        readFrames(data, DATA_START, writePosition, frames);
+        return frames;
+    }
+
+    private static void readFrames(ByteBuffer data, int start, int end, List<Frame> frames) {
+        int position = start;
+        while (position + FRAME_HEADER_SIZE <= end) {
+            int frameLength = data.getInt(position);
+            if (frameLength < FRAME_HEADER_SIZE || position + frameLength > end) {
+                break;
+            }
+            ByteBuffer frame = data.duplicate();
+            frame.position(position + 4);
+            long connectionId = frame.getLong();
+            long timestampMicros = frame.getLong();
+            byte direction = frame.get();
+            byte flags = frame.get();
+            int originalLength = frame.getInt();
+            byte[] payload = new byte[frameLength - FRAME_HEADER_SIZE];
+            frame.get(payload);
+            frames.add(
+                    new Frame(
+                            connectionId,
+                            timestampMicros,
+                            direction,
+                            (flags & FLAG_HEADER_ONLY) != 0,
+                            originalLength,
+                            payload));
+            position += frameLength;
+        }
+    }
+
+    /** One captured chunk of a connection. */
+    public static final class Frame {
+        private final long connectionId;
+        private final long timestampMicros;
+        private final byte direction;
+        private final boolean headerOnly;
+        private final int originalLength;
+        private final byte[] payload;
+
+        Frame(
+                long connectionId,
+                long timestampMicros,
+                byte direction,
+                boolean headerOnly,
+                int originalLength,
+                byte[] payload) {
+            this.connectionId = connectionId;
+            this.timestampMicros = timestampMicros;
+            this.direction = direction;
+            this.headerOnly = headerOnly;
+            this.originalLength = originalLength;
+            this.payload = payload;
+        }
+
+        /**
+         * Get the id of the connection.
+         *
+         * @return The connection id.
+         */
+        public long getConnectionId() {
+            return this.connectionId;
+        }
+
+        /**
+         * Get the time the chunk was read.
+         *
+         * @return Epoch microseconds.
+         */
+        public long getTimestampMicros() {
+            return this.timestampMicros;
+        }
+
+        /**
+         * Get the direction.
+         *
+         * @return {@link #CLIENT_TO_UPSTREAM} or {@link #UPSTREAM_TO_CLIENT}
+         */
+        public byte getDirection() {
+            return this.direction;
+        }
+
+        /**
+         * Check if only the length of the chunk was stored.
+         *
+         * @return TRUE if the payload is missing or truncated.
+         */
+        public boolean isHeaderOnly() {
+            return this.headerOnly;
+        }
+
+        /**
+         * Get the length of the chunk.
+         *
+         * @return The original length in bytes.
+         */
+        public int getOriginalLength() {
+            return this.originalLength;
+        }
+
+        /**
+         * Get the stored payload.
+         *
+         * @return The payload (empty if only the header was stored).
+         */
+        public byte[] getPayload() {
+            return this.payload;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replay a {@link TrafficCapture} file against a (local) PreProxyFS: Every captured connection is
+ * opened again at the same time offset and the client chunks are sent with the same timing and
+ * sizes. Chunks that were captured without payload (tunnels) are sent as zero bytes with the
+ * original length. For every connection the received bytes and the time to the first response
+ * byte are logged, so stalls can be reproduced offline.
+ *
+ * <p>Usage: java -cp PreProxyFS.jar de.fschullerer.preproxyfs.TrafficReplay
+ * /tmp/PreProxyFS.capture localhost:65000 [speed factor e.g. 2.0]
+ *
+ * @author Frank Schullerer
+ */
+public class TrafficReplay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrafficReplay.class.getName());
+    /** Time to wait for the last responses after the last client chunk was sent. */
+    private static final long RESPONSE_WAIT_MILLIS = 5000;
+
+    private final String targetHost;
+    private final int targetPort;
+    private final double speed;
+
+    /**
+     * Create a replay.
+     *
+     * @param targetHost Host of the PreProxyFS e.g. localhost
+     * @param targetPort Main port of the PreProxyFS e.g. 65000
+     * @param speed Speed factor: 1 same timing, 2 twice as fast.
+     */
+    public TrafficReplay(String targetHost, int targetPort, double speed) {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.speed = speed;
+    }
+
+    /**
+     * Start the replay.
+     *
+     * @param args Capture file, target (host:port) and optional speed factor.
+     * @throws Exception Error reading the capture file or the replay was interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            LOGGER.error("Usage: TrafficReplay <capture file> <host:port> [speed factor]");
+            return;
+        }
+        int separator = args[1].lastIndexOf(':');
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        new TrafficReplay(
+                        args[1].substring(0, separator),
+                        Integer.parseInt(args[1].substring(separator + 1)),
+                        speed)
+                .replay(TrafficCapture.readFrames(args[0]));
+    }
+
+    /**
+     * Replay the frames. Returns when all connections are finished.
+     *
+     * @param frames The frames of a capture file, the oldest first.
+     * @return The results per connection id.
+     * @throws InterruptedException The replay was interrupted.
+     */
+    public Map<Long, Result> replay(List<TrafficCapture.Frame> frames)
+            throws InterruptedException {
+        Map<Long, List<TrafficCapture.Frame>> connections = new LinkedHashMap<>();
+        for (TrafficCapture.Frame frame : frames) {
+            connections
+                    .computeIfAbsent(frame.getConnectionId(), id -> new ArrayList<>())
+                    .add(frame);
+        }
+        if (connections.isEmpty()) {
+            LOGGER.info("No frames to replay.");
+            return new LinkedHashMap<>();
+        }
+        long firstTimestamp = frames.get(0).getTimestampMicros();
+        long replayStart = System.nanoTime();
+        Map<Long, Result> results = new LinkedHashMap<>();
+        List<Thread> threads = new ArrayList<>();
+        for (Map.Entry<Long, List<TrafficCapture.Frame>> connection : connections.entrySet()) {
+            Result result = new Result(connection.getKey(), connection.getValue());
+            results.put(connection.getKey(), result);
+            Thread thread =
+                    new Thread(
+                            () -> replayConnection(result, firstTimestamp, replayStart),
+                            "PreProxyFS-replay-" + connection.getKey());
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Result result : results.values()) {
+            LOGGER.info("{}", result);
+        }
+        return results;
+    }
+
+    private void sleepUntil(long replayStart, long offsetMicros) throws InterruptedException {
+        long dueNanos = replayStart + (long) (offsetMicros * 1000 / this.speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void replayConnection(Result result, long firstTimestamp, long replayStart) {
+        List<TrafficCapture.Frame> frames = result.frames;
+        try {
+            sleepUntil(replayStart, frames.get(0).getTimestampMicros() - firstTimestamp);
+            try (Socket socket = new Socket(this.targetHost, this.targetPort)) {
+                long connected = System.nanoTime();
+                Thread reader = new Thread(() -> readResponses(socket, result, connected));
+                reader.setDaemon(true);
+                reader.start();
+                OutputStream out = socket.getOutputStream();
+                for (TrafficCapture.Frame frame : frames) {
+                    if (frame.getDirection() == TrafficCapture.CLIENT_TO_UPSTREAM) {
+                        sleepUntil(replayStart, frame.getTimestampMicros() - firstTimestamp);
+                        out.write(getReplayBytes(frame));
+                        out.flush();
+                        result.sentBytes.addAndGet(frame.getOriginalLength());
+                    }
+                }
+                // wait for the remaining responses
+                reader.join(RESPONSE_WAIT_MILLIS);
+            }
+        } catch (IOException e) {
+            result.error = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.error = "interrupted";
+        }
+    }
+
+    private static byte[] getReplayBytes(TrafficCapture.Frame frame) {
+        byte[] payload = frame.getPayload();
+        if (payload.length == frame.getOriginalLength()) {
+            return payload;
+        }
+        // only the length was captured
+        byte[] replayBytes = new byte[frame.getOriginalLength()];
+        System.arraycopy(payload, 0, replayBytes, 0, payload.length);
+        return replayBytes;
+    }
+
+    private static void readResponses(Socket socket, Result result, long connected) {
+        byte[] readBuffer = new byte[64 * 1024];
+        try {
+            InputStream in = socket.getInputStream();
+            int read;
+            while ((read = in.read(readBuffer)) > 0) {
+                if (result.receivedBytes.get() == 0) {
+                    result.firstResponseMillis = (System.nanoTime() - connected) / 1_000_000;
+                }
+                if (result.receivedBytes.addAndGet(read) >= result.expectedBytes) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.trace("Replay connection closed.", e);
+        }
+    }
+
+    /** Result of one replayed connection. */
+    public static final class Result {
+        private final long connectionId;
+        private final List<TrafficCapture.Frame> frames;
+        private final long expectedBytes;
+        private final AtomicLong receivedBytes = new AtomicLong();
+        private final AtomicLong sentBytes = new AtomicLong();
+        private volatile long firstResponseMillis = -1;
+        private volatile String error;
+
+        Result(long connectionId, List<TrafficCapture.Frame> frames) {
+            this.connectionId = connectionId;
+            this.frames = frames;
+            long expected = 0;
+            for (TrafficCapture.Frame frame : frames) {
+                if (frame.getDirection() == TrafficCapture.UPSTREAM_TO_CLIENT) {
+                    expected += frame.getOriginalLength();
+                }
+            }
+            this.expectedBytes = expected;
+        }
+
+        /**
+         * Get the bytes sent to the PreProxyFS.
+         *
+         * @return Sent bytes.
+         */
+        public long getSentBytes() {
+            return this.sentBytes.get();
+        }
+
+        /**
+         * Get the bytes received from the PreProxyFS.
+         *
+         * @return Received bytes.
+         */
+        public long getReceivedBytes() {
+            return this.receivedBytes.get();
+        }
+
+        /**
+         * Get the bytes received in the captured connection.
+         *
+         * @return Expected bytes.
+         */
+        public long getExpectedBytes() {
+            return this.expectedBytes;
+        }
+
+        /**
+         * Get the time from connect to the first response byte.
+         *
+         * @return Milliseconds or -1 if nothing was received.
+         */
+        public long getFirstResponseMillis() {
+            return this.firstResponseMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Connection "
+                    + this.connectionId
+                    + ": sent="
+                    + this.sentBytes.get()
+                    + " received="
+                    + this.receivedBytes.get()
+                    + "/"
+                    + this.expectedBytes
+                    + " firstResponseMs="
+                    + this.firstResponseMillis
+                    + (null == this.error ? "" : " error=" + this.error);
+        }
+    }
+}
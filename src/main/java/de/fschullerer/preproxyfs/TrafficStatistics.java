@@ -0,0 +1,117 @@
+package de.fschullerer.preproxyfs;
+
+import java.util.List;
+
+/**
+ * Connections and bytes per destination host and per upstream (remote proxy or DIRECT) since
+ * start. Only the heaviest hosts and upstreams are kept ({@link HeavyHitters}), so the memory is
+ * fixed no matter how many distinct hosts are used.
+ *
+ * @author Frank Schullerer
+ */
+public class TrafficStatistics {
+
+    /** Default number of hosts/upstreams in the report. */
+    public static final int DEFAULT_TOP_K = 20;
+    /** Counters per sketch row. */
+    private static final int SKETCH_WIDTH = 4096;
+
+    private final HeavyHitters hostConnections;
+    private final HeavyHitters hostBytes;
+    private final HeavyHitters upstreamConnections;
+    private final HeavyHitters upstreamBytes;
+
+    /**
+     * Create empty statistics.
+     *
+     * @param topK Number of hosts/upstreams in the report.
+     */
+    public TrafficStatistics(int topK) {
+        this.hostConnections = new HeavyHitters(topK, SKETCH_WIDTH);
+        this.hostBytes = new HeavyHitters(topK, SKETCH_WIDTH);
+        this.upstreamConnections = new HeavyHitters(topK, SKETCH_WIDTH);
+        this.upstreamBytes = new HeavyHitters(topK, SKETCH_WIDTH);
+    }
+
+    /**
+     * Record a new connection.
+     *
+     * @param host The destination host.
+     * @param upstream The upstream e.g. remote.proxy1.com:8080 or DIRECT
+     */
+    void recordConnection(String host, String upstream) {
+        this.hostConnections.add(host, 1);
+        this.upstreamConnections.add(upstream, 1);
+    }
+
+    /**
+     * Record the transferred bytes of a closed connection.
+     *
+     * @param host The destination host.
+     * @param upstream The upstream e.g. remote.proxy1.com:8080 or DIRECT
+     * @param bytes Bytes sent and received.
+     */
+    void recordBytes(String host, String upstream, long bytes) {
+        this.hostBytes.add(host, bytes);
+        this.upstreamBytes.add(upstream, bytes);
+    }
+
+    /**
+     * Get the connections per destination host.
+     *
+     * @return The tracker.
+     */
+    public HeavyHitters getHostConnections() {
+        return this.hostConnections;
+    }
+
+    /**
+     * Get the bytes per destination host.
+     *
+     * @return The tracker.
+     */
+    public HeavyHitters getHostBytes() {
+        return this.hostBytes;
+    }
+
+    /**
+     * Get the connections per upstream.
+     *
+     * @return The tracker.
+     */
+    public HeavyHitters getUpstreamConnections() {
+        return this.upstreamConnections;
+    }
+
+    /**
+     * Get the bytes per upstream.
+     *
+     * @return The tracker.
+     */
+    public HeavyHitters getUpstreamBytes() {
+        return this.upstreamBytes;
+    }
+
+    /**
+     * Create a text report with the top hosts and upstreams.
+     *
+     * @return The report (one line per host/upstream).
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        appendTop(report, "Top hosts by connections", this.hostConnections);
+        appendTop(report, "Top hosts by bytes", this.hostBytes);
+        appendTop(report, "Top upstreams by connections", this.upstreamConnections);
+        appendTop(report, "Top upstreams by bytes", this.upstreamBytes);
+        return report.toString();
+    }
+
+    private static void appendTop(StringBuilder report, String title, HeavyHitters tracker) {
+        report.append(title).append(" (total ").append(tracker.getTotal()).append("):\n");
+        List<HeavyHitters.Item> top = tracker.getTop();
+        for (HeavyHitters.Item item : top) {
+            report.append("  ").append(item.getCount()).append(' ').append(item.getKey());
+            report.append('\n');
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Permanent running thread. Optional Unix domain socket listener of a PreProxyFS instance for
+ * local clients (e.g. curl --unix-socket). The connections are routed like the connections of the
+ * main port (see {@link DistributeServer#dispatch}) but without TCP handshake, ephemeral port and
+ * TIME_WAIT. The file permissions of the socket file control which local users can connect.
+ *
+ * <p>Unix domain sockets need Java 16 or newer at runtime. PreProxyFS is compiled for Java 8, so
+ * the socket is opened with reflection.
+ *
+ * @author Frank Schullerer
+ */
+public class UnixDomainServer extends Thread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UnixDomainServer.class.getName());
+
+    /** Default file permissions of the socket file: only the user of PreProxyFS. */
+    public static final String DEFAULT_PERMISSIONS = "rw-------";
+
+    private final PreProxyFSInstance instance;
+    private final Path socketPath;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * Create a new UnixDomainServer and bind the socket file. A stale socket file (e.g. of a
+     * crashed PreProxyFS) is replaced. Other existing files are not touched. The socket file has
+     * its permissions before it can be found under its path (see {@link #bind}).
+     *
+     * <p>The relays of the connections do not hibernate (see {@link UnixDomainSocket}): an idle
+     * connection keeps its buffers.
+     *
+     * @param instance The PreProxyFS instance that handles the requests.
+     * @param socketPath The path of the socket file.
+     * @param permissions The POSIX permissions of the socket file e.g. rw-rw---- (null or empty:
+     *     the permissions of the umask).
+     */
+    public UnixDomainServer(PreProxyFSInstance instance, String socketPath, String permissions) {
+        super("PreProxyFS-unix");
+        this.instance = instance;
+        this.socketPath = Paths.get(socketPath).toAbsolutePath();
+        try {
+            if (Files.exists(this.socketPath)
+                    && !Files.isRegularFile(this.socketPath)
+                    && !Files.isDirectory(this.socketPath)) {
+                Files.delete(this.socketPath);
+            }
+            if (Files.exists(this.socketPath)) {
+                throw new FileAlreadyExistsException(this.socketPath.toString());
+            }
+            this.serverChannel = bind(this.socketPath, permissions);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            throw new PreProxyFSException(
+                    "Unable to bind UnixDomainServer to socket file " + this.socketPath, e);
+        }
+    }
+
+    /**
+     * Bind the socket file with its permissions: The socket is bound in a new directory that only
+     * the user of PreProxyFS can access, gets its permissions there and is then renamed to its
+     * path. So no other user can connect while the socket file has the permissions of the umask.
+     *
+     * @param socketPath The path of the socket file.
+     * @param permissions The POSIX permissions of the socket file (null or empty: umask).
+     * @return The bound channel.
+     * @throws IOException Error while binding.
+     */
+    private static ServerSocketChannel bind(Path socketPath, String permissions)
+            throws IOException {
+        if (null == permissions || permissions.isEmpty()) {
+            return openServerChannel(socketPath);
+        }
+        Path bindDir =
+                Files.createTempDirectory(
+                        socketPath.getParent(),
+                        ".pfs",
+                        PosixFilePermissions.asFileAttribute(
+                                PosixFilePermissions.fromString("rwx------")));
+        Path bindPath = bindDir.resolve(socketPath.getFileName());
+        try {
+            ServerSocketChannel channel = openServerChannel(bindPath);
+            try {
+                Files.setPosixFilePermissions(
+                        bindPath, PosixFilePermissions.fromString(permissions));
+                Files.move(bindPath, socketPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        } finally {
+            Files.deleteIfExists(bindPath);
+            Files.deleteIfExists(bindDir);
+        }
+    }
+
+    /**
+     * Open and bind a Unix domain server socket channel (Java 16+ API via reflection).
+     *
+     * @param path The path of the socket file.
+     * @return The bound channel.
+     * @throws IOException Error while binding.
+     */
+    private static ServerSocketChannel openServerChannel(Path path) throws IOException {
+        ServerSocketChannel channel;
+        SocketAddress address;
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            channel =
+                    (ServerSocketChannel)
+                            ServerSocketChannel.class
+                                    .getMethod("open", ProtocolFamily.class)
+                                    .invoke(null, unix);
+            address =
+                    (SocketAddress)
+                            Class.forName("java.net.UnixDomainSocketAddress")
+                                    .getMethod("of", Path.class)
+                                    .invoke(null, path);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            if (e instanceof InvocationTargetException
+                    && e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new UnsupportedOperationException(
+                    "Unix domain sockets need Java 16 or newer.", e);
+        }
+        try {
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Get the path of the socket file.
+     *
+     * @return The absolute path.
+     */
+    public Path getSocketPath() {
+        return this.socketPath;
+    }
+
+    /** Stop accepting new connections and delete the socket file. */
+    public void close() {
+        try {
+            this.serverChannel.close();
+            Files.deleteIfExists(this.socketPath);
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing UnixDomainServer.", e);
+        }
+    }
+
+    /** Accept the connections and route them like the connections of the main port. */
+    @Override
+    public void run() {
+        LOGGER.info("Start UnixDomainServer on socket file: {}", this.socketPath);
+        while (this.serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = this.serverChannel.accept();
+                DistributeServer.dispatch(this.instance, new UnixDomainSocket(clientChannel));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (Exception e) {
+                LOGGER.info("UnixDomainServer acceptLoop Exception: " + e.getMessage());
+                LOGGER.trace("UnixDomainServer acceptLoop Exception Trace", e);
+            }
+        }
+        LOGGER.info("Closing UnixDomainServer socket");
+    }
+}
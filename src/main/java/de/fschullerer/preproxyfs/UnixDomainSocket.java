@@ -0,0 +1,229 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.security.Principal;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Socket} view of an accepted Unix domain socket channel (see {@link UnixDomainServer}).
+ * So the connection is handled by the same {@link DistributeForwardClientThread} as the TCP
+ * connections of the main port.
+ *
+ * <p>The streams read and write the channel directly: one thread can read while another thread
+ * writes (the streams of {@link java.nio.channels.Channels} block each other before Java 19). TCP
+ * options (e.g. keep alive, timeouts) are ignored. So the relay of a Unix domain socket connection
+ * does not hibernate (see {@link RelayBuffer}): an idle connection keeps its buffers.
+ *
+ * <p>There is no IP address: per-client limits use {@link #getClientKey()} (the local user of the
+ * client process).
+ *
+ * @author Frank Schullerer
+ */
+final class UnixDomainSocket extends Socket {
+
+    private final SocketChannel channel;
+    private String clientKey;
+    private final InputStream in = new ChannelInputStream();
+    private final OutputStream out = new ChannelOutputStream();
+
+    /**
+     * Create the socket view.
+     *
+     * @param channel The accepted channel (blocking mode).
+     */
+    UnixDomainSocket(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ensureOpen();
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        ensureOpen();
+        return this.out;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!this.channel.isOpen()) {
+            throw new IOException("Socket is closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        this.channel.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.channel.shutdownOutput();
+    }
+
+    /**
+     * Unix domain sockets have no IP address.
+     *
+     * @return null
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return null;
+    }
+
+    /**
+     * Get the key of the client for per-client limits: the local user of the client process (peer
+     * credentials, Java 16+ API via reflection) e.g. unix:alice. If the user is unknown, all
+     * clients of the socket file share the key unix:&lt;socket file&gt;.
+     *
+     * @return The client key (never empty).
+     */
+    synchronized String getClientKey() {
+        if (null == this.clientKey) {
+            try {
+                SocketOption<?> peerCredentials =
+                        (SocketOption<?>)
+                                Class.forName("jdk.net.ExtendedSocketOptions")
+                                        .getField("SO_PEERCRED")
+                                        .get(null);
+                Object principal = this.channel.getOption(peerCredentials);
+                Principal user =
+                        (Principal) principal.getClass().getMethod("user").invoke(principal);
+                this.clientKey = "unix:" + user.getName();
+            } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+                this.clientKey = "unix:" + getLocalSocketAddress();
+            }
+        }
+        return this.clientKey;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        try {
+            return this.channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        try {
+            return this.channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return 0;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return -1;
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+        // no TCP
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // no TCP
+    }
+
+    /**
+     * Ignored: blocking channel reads have no timeout. So the relay does not hibernate.
+     *
+     * @param timeout Ignored.
+     */
+    @Override
+    public synchronized void setSoTimeout(int timeout) {
+        // blocking channel reads have no timeout
+    }
+
+    @Override
+    public String toString() {
+        return "UnixDomainSocket[" + getLocalSocketAddress() + "]";
+    }
+
+    /** Reads the channel without a lock, so a concurrent write is not blocked. */
+    private final class ChannelInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int read;
+            do {
+                read = UnixDomainSocket.this.channel.read(ByteBuffer.wrap(buffer, offset, length));
+            } while (read == 0);
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixDomainSocket.this.close();
+        }
+    }
+
+    /** Writes the channel without a lock, so a concurrent read is not blocked. */
+    private final class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+            while (data.hasRemaining()) {
+                UnixDomainSocket.this.channel.write(data);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixDomainSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package de.fschullerer.preproxyfs;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulkhead for one upstream (a remote proxy or DIRECT): Limits the number of in-flight connections
+ * to the upstream, so a slow upstream can not use up the threads of the other upstreams.
+ *
+ * <p>If all permits are in use, a connection waits in a bounded queue until a permit is free or
+ * the wait time is over. A free permit is handed over round-robin between the client sources
+ * (client IP addresses), so one client with many connections can not starve the other clients.
+ * Connections are rejected if the queue is full or the wait time is over.
+ *
+ * <p>Every upstream has its own bulkhead with its own counters.
+ *
+ * @author Frank Schullerer
+ */
+public class UpstreamBulkhead {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamBulkhead.class.getName());
+
+    private final String upstream;
+    private int maxConnections;
+    private int maxQueueSize;
+    private long maxWaitMillis;
+
+    /** Waiting connections per client source. The order of the keys is the round-robin order. */
+    private final Map<String, ArrayDeque<Waiter>> waiters = new LinkedHashMap<>();
+
+    private int inFlight;
+    private int queued;
+    private long acquiredCount;
+    private long rejectedCount;
+
+    /**
+     * Create a bulkhead for one upstream.
+     *
+     * @param upstream The upstream e.g. remote.proxy1.com:8080 or DIRECT (for log messages).
+     * @param maxConnections Maximum in-flight connections. 0 means: no limit.
+     * @param maxQueueSize Maximum number of waiting connections.
+     * @param maxWaitMillis Maximum wait time for a permit in milliseconds.
+     */
+    public UpstreamBulkhead(
+            String upstream, int maxConnections, int maxQueueSize, long maxWaitMillis) {
+        this.upstream = upstream;
+        this.maxConnections = maxConnections;
+        this.maxQueueSize = maxQueueSize;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Get a permit for a new connection to the upstream. Waits in the queue if all permits are in
+     * use. Every successful call must be followed by one {@link #release()}.
+     *
+     * @param source The client source e.g. the client IP address.
+     * @return TRUE if a permit was acquired, FALSE if the connection is rejected.
+     */
+    public synchronized boolean acquire(String source) {
+        if (this.maxConnections <= 0 || (this.inFlight < this.maxConnections && 0 == this.queued)) {
+            this.inFlight++;
+            this.acquiredCount++;
+            return true;
+        }
+        if (this.queued >= this.maxQueueSize) {
+            reject("queue is full");
+            return false;
+        }
+        Waiter waiter = new Waiter();
+        this.waiters.computeIfAbsent(source, key -> new ArrayDeque<>()).addLast(waiter);
+        this.queued++;
+        long deadline = System.currentTimeMillis() + this.maxWaitMillis;
+        try {
+            long remaining = this.maxWaitMillis;
+            while (!waiter.granted && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (waiter.granted) {
+            // permit was handed over by release: inFlight is already counted
+            this.acquiredCount++;
+            return true;
+        }
+        removeWaiter(source, waiter);
+        reject("waited " + this.maxWaitMillis + " ms");
+        return false;
+    }
+
+    private void reject(String reason) {
+        this.rejectedCount++;
+        LOGGER.warn(
+                "Upstream {} is saturated ({} in-flight connections, {}). Connection rejected.",
+                this.upstream,
+                this.inFlight,
+                reason);
+    }
+
+    private void removeWaiter(String source, Waiter waiter) {
+        ArrayDeque<Waiter> sourceWaiters = this.waiters.get(source);
+        if (null != sourceWaiters && sourceWaiters.remove(waiter)) {
+            this.queued--;
+            if (sourceWaiters.isEmpty()) {
+                this.waiters.remove(source);
+            }
+        }
+    }
+
+    /** Release a permit. The permit is handed over to the next waiting connection (round-robin). */
+    public synchronized void release() {
+        if (this.waiters.isEmpty()
+                || (this.maxConnections > 0 && this.inFlight > this.maxConnections)) {
+            // no waiter or the limit was lowered
+            this.inFlight--;
+            return;
+        }
+        grantNextWaiter();
+    }
+
+    /**
+     * Change the limits (e.g. on a reload of the settings). A higher limit hands the new permits
+     * over to the waiting connections at once. A lower limit is reached when the in-flight
+     * connections are released.
+     *
+     * @param newMaxConnections Maximum in-flight connections. 0 means: no limit.
+     * @param newMaxQueueSize Maximum number of waiting connections.
+     * @param newMaxWaitMillis Maximum wait time for a permit in milliseconds (for new waiters).
+     */
+    public synchronized void setLimits(
+            int newMaxConnections, int newMaxQueueSize, long newMaxWaitMillis) {
+        this.maxConnections = newMaxConnections;
+        this.maxQueueSize = newMaxQueueSize;
+        this.maxWaitMillis = newMaxWaitMillis;
+        while (!this.waiters.isEmpty()
+                && (this.maxConnections <= 0 || this.inFlight < this.maxConnections)) {
+            this.inFlight++;
+            grantNextWaiter();
+        }
+    }
+
+    /** Hand a counted permit over to the next waiting connection (round-robin). */
+    private void grantNextWaiter() {
+        Iterator<Map.Entry<String, ArrayDeque<Waiter>>> sources =
+                this.waiters.entrySet().iterator();
+        Map.Entry<String, ArrayDeque<Waiter>> next = sources.next();
+        ArrayDeque<Waiter> sourceWaiters = next.getValue();
+        sourceWaiters.pollFirst().granted = true;
+        this.queued--;
+        // move the source to the end of the round-robin order
+        sources.remove();
+        if (!sourceWaiters.isEmpty()) {
+            this.waiters.put(next.getKey(), sourceWaiters);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the number of in-flight connections.
+     *
+     * @return In-flight connections.
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * Get the number of waiting connections.
+     *
+     * @return Waiting connections.
+     */
+    public synchronized int getQueued() {
+        return this.queued;
+    }
+
+    /**
+     * Get the number of acquired permits since start.
+     *
+     * @return Acquired permits.
+     */
+    public synchronized long getAcquiredCount() {
+        return this.acquiredCount;
+    }
+
+    /**
+     * Get the number of rejected connections since start.
+     *
+     * @return Rejected connections.
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejectedCount;
+    }
+
+    /** One waiting connection. */
+    private static final class Waiter {
+        private boolean granted;
+    }
+}
@@ -0,0 +1,65 @@
+package de.fschullerer.preproxyfs;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the upstream is selected if the PAC script returns several proxies for a request (e.g.
+ * PROXY remote.proxy1.com:8080; PROXY remote.proxy2.com:8080). Only proxies of the PAC decision
+ * are used.
+ *
+ * @author Frank Schullerer
+ */
+public enum UpstreamSelection {
+    /** Always use the first proxy of the PAC decision (default). */
+    FIRST,
+    /** Compare two random proxies of the PAC decision and use the one with lower costs. */
+    POWER_OF_TWO_CHOICES,
+    /** Use the proxy with the least outstanding connections (lower costs for equal counts). */
+    LEAST_OUTSTANDING;
+
+    /**
+     * Select one proxy of the candidates.
+     *
+     * @param candidates The proxies of the PAC decision in PAC order. Must not be empty.
+     * @param instance The instance with the statistics and bulkheads of the upstreams.
+     * @return The selected proxy.
+     */
+    String select(List<String> candidates, PreProxyFSInstance instance) {
+        if (this == FIRST || candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        if (this == POWER_OF_TWO_CHOICES) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            String firstCandidate = candidates.get(first);
+            String secondCandidate = candidates.get(second);
+            return getCost(secondCandidate, instance) < getCost(firstCandidate, instance)
+                    ? secondCandidate
+                    : firstCandidate;
+        }
+        String selected = candidates.get(0);
+        int selectedOutstanding = instance.getBulkhead(selected).getInFlight();
+        double selectedCost = getCost(selected, instance);
+        for (String candidate : candidates.subList(1, candidates.size())) {
+            int outstanding = instance.getBulkhead(candidate).getInFlight();
+            double cost = getCost(candidate, instance);
+            if (outstanding < selectedOutstanding
+                    || (outstanding == selectedOutstanding && cost < selectedCost)) {
+                selected = candidate;
+                selectedOutstanding = outstanding;
+                selectedCost = cost;
+            }
+        }
+        return selected;
+    }
+
+    private static double getCost(String upstream, PreProxyFSInstance instance) {
+        return instance.getUpstreamStats(upstream)
+                .getCost(instance.getBulkhead(upstream).getInFlight());
+    }
+}
@@ -0,0 +1,198 @@
+package de.fschullerer.preproxyfs;
+
+/**
+ * Latency and error statistics of one upstream (remote proxy). The values are exponentially
+ * weighted moving averages (EWMA) of the connect time, the time to the first response (e.g. the
+ * CONNECT 200 response) and the error rate.
+ *
+ * <p>The averages start with and decay toward a neutral prior (an unknown upstream: {@link
+ * #PRIOR_CONNECT_MILLIS}, {@link #PRIOR_FIRST_RESPONSE_MILLIS}, {@link #PRIOR_ERROR_RATE}) while no
+ * new samples arrive. So an upstream that was slow some time ago gets new connections again and
+ * can show that it is fast now, but an idle (maybe dead) upstream never looks better than an
+ * unknown one.
+ *
+ * <p>Failures and successes are also reported to the {@link CircuitBreaker} of the upstream.
+ *
+ * @author Frank Schullerer
+ */
+public class UpstreamStats {
+
+    /** Weight of a new sample. */
+    private static final double ALPHA = 0.3;
+    /** Decay time of the averages without new samples in milliseconds. */
+    private static final double DECAY_MILLIS = 30_000;
+    /** Connect time in milliseconds of an upstream without recent samples. */
+    static final double PRIOR_CONNECT_MILLIS = 100;
+    /** Time to the first response in milliseconds of an upstream without recent samples. */
+    static final double PRIOR_FIRST_RESPONSE_MILLIS = 200;
+    /** Error rate of an upstream without recent samples. */
+    static final double PRIOR_ERROR_RATE = 0.1;
+    /** Cost of an error (as connect time in milliseconds) for a failed connection. */
+    private static final double ERROR_PENALTY_MILLIS = 1000;
+
+    private final String upstream;
+    private final CircuitBreaker circuitBreaker;
+    private double connectMillis = PRIOR_CONNECT_MILLIS;
+    private double firstResponseMillis = PRIOR_FIRST_RESPONSE_MILLIS;
+    private double errorRate = PRIOR_ERROR_RATE;
+    private long lastUpdate;
+
+    /**
+     * Create empty statistics for one upstream without circuit breaker.
+     *
+     * @param upstream The remote proxy e.g. remote.proxy1.com:8080
+     */
+    public UpstreamStats(String upstream) {
+        this(upstream, new CircuitBreaker(upstream, 0, 0));
+    }
+
+    /**
+     * Create empty statistics for one upstream.
+     *
+     * @param upstream The remote proxy e.g. remote.proxy1.com:8080
+     * @param circuitBreaker The circuit breaker of the upstream.
+     */
+    public UpstreamStats(String upstream, CircuitBreaker circuitBreaker) {
+        this.upstream = upstream;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Get the upstream of these statistics.
+     *
+     * @return The remote proxy e.g. remote.proxy1.com:8080
+     */
+    public String getUpstream() {
+        return this.upstream;
+    }
+
+    /**
+     * Get the circuit breaker of the upstream.
+     *
+     * @return The circuit breaker.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    private static double ewma(double average, double sample) {
+        return average + ALPHA * (sample - average);
+    }
+
+    private static double decay(double average, double prior, double factor) {
+        return prior + (average - prior) * factor;
+    }
+
+    /**
+     * Decay the averages toward the priors for the time without samples. Must be called while
+     * synchronized.
+     */
+    private void decay(long now) {
+        if (this.lastUpdate > 0 && now > this.lastUpdate) {
+            double factor = Math.exp(-(now - this.lastUpdate) / DECAY_MILLIS);
+            this.connectMillis = decay(this.connectMillis, PRIOR_CONNECT_MILLIS, factor);
+            this.firstResponseMillis =
+                    decay(this.firstResponseMillis, PRIOR_FIRST_RESPONSE_MILLIS, factor);
+            this.errorRate = decay(this.errorRate, PRIOR_ERROR_RATE, factor);
+        }
+        this.lastUpdate = now;
+    }
+
+    /**
+     * Record a successful connect.
+     *
+     * @param connectNanos The connect time in nanoseconds.
+     */
+    public synchronized void recordConnect(long connectNanos) {
+        decay(System.currentTimeMillis());
+        this.connectMillis = ewma(this.connectMillis, connectNanos / 1_000_000.0);
+        this.errorRate = ewma(this.errorRate, 0);
+    }
+
+    /** Record a failed connect or a timeout. */
+    public void recordFailure() {
+        synchronized (this) {
+            decay(System.currentTimeMillis());
+            this.errorRate = ewma(this.errorRate, 1);
+        }
+        this.circuitBreaker.onFailure();
+    }
+
+    /**
+     * Record the first response of the upstream on a connection.
+     *
+     * @param responseNanos Time from connect to the first response in nanoseconds.
+     * @param gatewayError TRUE if the response is a gateway error (502, 503, 504) of the upstream.
+     */
+    public void recordFirstResponse(long responseNanos, boolean gatewayError) {
+        synchronized (this) {
+            decay(System.currentTimeMillis());
+            this.firstResponseMillis =
+                    ewma(this.firstResponseMillis, responseNanos / 1_000_000.0);
+            this.errorRate = ewma(this.errorRate, gatewayError ? 1 : 0);
+        }
+        if (gatewayError) {
+            this.circuitBreaker.onFailure();
+        } else {
+            this.circuitBreaker.onSuccess();
+        }
+    }
+
+    /**
+     * Get the EWMA connect time.
+     *
+     * @return Connect time in milliseconds.
+     */
+    public synchronized double getConnectMillis() {
+        decay(System.currentTimeMillis());
+        return this.connectMillis;
+    }
+
+    /**
+     * Get the EWMA time to the first response.
+     *
+     * @return Time to first response in milliseconds.
+     */
+    public synchronized double getFirstResponseMillis() {
+        decay(System.currentTimeMillis());
+        return this.firstResponseMillis;
+    }
+
+    /**
+     * Get the EWMA error rate.
+     *
+     * @return Error rate between 0 and 1.
+     */
+    public synchronized double getErrorRate() {
+        decay(System.currentTimeMillis());
+        return this.errorRate;
+    }
+
+    /**
+     * Get the expected cost of a new connection: The expected latency (with a penalty for errors)
+     * multiplied with the number of outstanding connections plus one.
+     *
+     * @param outstanding The number of outstanding (in-flight) connections to the upstream.
+     * @return The cost. Lower is better.
+     */
+    public double getCost(int outstanding) {
+        return getCost(outstanding, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the expected cost of a new connection at a point in time.
+     *
+     * @param outstanding The number of outstanding (in-flight) connections to the upstream.
+     * @param now The time in milliseconds (not before the last sample).
+     * @return The cost. Lower is better.
+     */
+    synchronized double getCost(int outstanding, long now) {
+        decay(now);
+        double latency =
+                this.connectMillis
+                        + this.firstResponseMillis
+                        + this.errorRate * ERROR_PENALTY_MILLIS;
+        // 1 ms base latency: even a perfect upstream has costs for outstanding connections
+        return (latency + 1) * (outstanding + 1);
+    }
+}
@@ -1,10 +1,15 @@
 package de.fschullerer.preproxyfs;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -26,6 +31,15 @@ public final class Util {
     public static final String CONNECTION_ESTABLISHED =
             "HTTP/1.0 200 Connection established\r\n\r\n";
 
+    /** Response for connections that are rejected because of overload. */
+    static final String SERVICE_UNAVAILABLE =
+            "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n";
+
+    /** Start of the response to a protocol upgrade (e.g. WebSocket). */
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101".getBytes(StandardCharsets.US_ASCII);
+
     /** Retry value for failed connections. */
     static final int RETRY_FAILED = 5;
     /** Retry wait time for failed connections in milliseconds. */
@@ -90,6 +104,49 @@ public final class Util {
         return host.split(":")[0];
     }
 
+    /**
+     * Get all entries of a PAC decision in PAC order.
+     *
+     * @param pacDecision The PAC decision e.g. PROXY remote.proxy1.com:8080; PROXY
+     *     remote.proxy2.com:8080; DIRECT
+     * @return The proxies (e.g. remote.proxy1.com:8080) and {@link #DIRECT}. Other entries (e.g.
+     *     SOCKS) are not supported and ignored.
+     */
+    static List<String> getPacCandidates(String pacDecision) {
+        List<String> candidates = new ArrayList<>();
+        for (String entry : pacDecision.split(";")) {
+            String[] entrySplit = entry.trim().split("\\s+");
+            if (entrySplit.length > 1 && "PROXY".equals(entrySplit[0])) {
+                candidates.add(entrySplit[1]);
+            } else if (DIRECT.equals(entrySplit[0])) {
+                candidates.add(DIRECT);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Check if a response starts with an Http gateway error status line (502 Bad Gateway, 503
+     * Service Unavailable or 504 Gateway Timeout). These are typical errors of a remote proxy
+     * (other 5xx errors are normally errors of the remote server).
+     *
+     * @param response The response.
+     * @return TRUE if it is a gateway error response.
+     */
+    static boolean isGatewayErrorResponse(byte[] response) {
+        // "HTTP/1.1 502"
+        return response.length > 11
+                && response[0] == 'H'
+                && response[1] == 'T'
+                && response[2] == 'T'
+                && response[3] == 'P'
+                && response[8] == ' '
+                && response[9] == '5'
+                && response[10] == '0'
+                && response[11] >= '2'
+                && response[11] <= '4';
+    }
+
     /**
      * Check if HTTP requests starts with header.
      *
@@ -130,6 +187,10 @@ public final class Util {
             try {
                 orgRequest = readFromClientSocketRetry(socket);
             } catch (IOException e) {
+                if (socket.isClosed()) {
+                    // closed by another thread (e.g. drain on stop): no retry
+                    break;
+                }
                 failed = true;
                 // retry every X seconds
                 sleep(RETRY_WAIT_TIME);
@@ -156,6 +217,90 @@ public final class Util {
         return orgRequest;
     }
 
+    /**
+     * Raw byte relay: Copy everything from one socket to the other until the end of the stream.
+     * The chunks are not inspected. The buffer adapts to the traffic (see {@link RelayBuffer}) and
+     * is released while no data arrives for {@link RelayBuffer#HIBERNATE_AFTER} milliseconds.
+     *
+     * @param from The socket to read from.
+     * @param to The socket to write to.
+     * @param listener Gets every forwarded chunk (can be null).
+     * @throws IOException Error while reading or writing.
+     */
+    static void relay(Socket from, Socket to, RelayListener listener) throws IOException {
+        relay(from, to, listener, RelayBuffer.HIBERNATE_AFTER);
+    }
+
+    /**
+     * Raw byte relay with an adaptive buffer that is released after an idle time.
+     *
+     * @param from The socket to read from. Its read timeout is used to detect the idle time.
+     * @param to The socket to write to.
+     * @param listener Gets every forwarded chunk (can be null).
+     * @param hibernateAfter Idle time in milliseconds until the buffer is released (0: never).
+     * @throws IOException Error while reading or writing.
+     */
+    static void relay(Socket from, Socket to, RelayListener listener, int hibernateAfter)
+            throws IOException {
+        RelayBuffer relayBuffer = new RelayBuffer();
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        from.setSoTimeout(hibernateAfter);
+        while (true) {
+            byte[] buffer = relayBuffer.get();
+            int length;
+            try {
+                length = in.read(buffer);
+            } catch (SocketTimeoutException e) {
+                // idle: wait for the next byte without a buffer
+                relayBuffer.release();
+                from.setSoTimeout(0);
+                int first = in.read();
+                from.setSoTimeout(hibernateAfter);
+                if (first == -1) {
+                    return;
+                }
+                buffer = relayBuffer.get();
+                buffer[0] = (byte) first;
+                length = 1 + readAvailable(in, buffer, 1);
+            }
+            if (length == -1) {
+                return;
+            }
+            out.write(buffer, 0, length);
+            out.flush();
+            if (null != listener) {
+                listener.onChunk(buffer, 0, length);
+            }
+            relayBuffer.onRead(length);
+        }
+    }
+
+    /** Read the bytes that can be read without blocking. */
+    private static int readAvailable(InputStream in, byte[] buffer, int offset)
+            throws IOException {
+        int available = Math.min(in.available(), buffer.length - offset);
+        return available > 0 ? Math.max(0, in.read(buffer, offset, available)) : 0;
+    }
+
+    /**
+     * Check if a response switches the connection to another protocol (101 Switching Protocols).
+     *
+     * @param response The first response of the connection.
+     * @return TRUE for a 101 response.
+     */
+    static boolean isSwitchingProtocols(byte[] response) {
+        if (response.length < SWITCHING_PROTOCOLS.length) {
+            return false;
+        }
+        for (int i = 0; i < SWITCHING_PROTOCOLS.length; i++) {
+            if (response[i] != SWITCHING_PROTOCOLS[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static void sleep(long time) {
         try {
             Thread.sleep(time);
@@ -202,6 +347,17 @@ public final class Util {
      * @return The proxy if it is reachable or "DIRECT" if not.
      */
     public static String checkIfRemoteProxyIsReachable(String proxyToTake) {
+        return checkIfRemoteProxyIsReachable(proxyToTake, PreProxyFS.getTimeoutForProxyCheck());
+    }
+
+    /**
+     * Check if remote server is reachable with timeout.
+     *
+     * @param proxyToTake The remote proxy e.g. remote.proxy.com:8080
+     * @param timeout The connect timeout in milliseconds.
+     * @return The proxy if it is reachable or "DIRECT" if not.
+     */
+    public static String checkIfRemoteProxyIsReachable(String proxyToTake, int timeout) {
         String proxyToTakeChecked = DIRECT;
         String[] proxy = proxyToTake.split(":");
         if (proxy.length == 2) {
@@ -210,7 +366,7 @@ public final class Util {
             SocketAddress address = new InetSocketAddress(hostName, port);
             try (Socket socket = new Socket()) {
                 LOGGER.trace("Try connect to host: {}", hostName);
-                socket.connect(address, PreProxyFS.getTimeoutForProxyCheck());
+                socket.connect(address, timeout);
                 // is alive -> TRUE
                 proxyToTakeChecked = proxyToTake;
             } catch (IOException e) {
@@ -221,4 +377,17 @@ public final class Util {
         }
         return proxyToTakeChecked;
     }
+
+    /** Gets the chunks of a {@link #relay}. */
+    interface RelayListener {
+
+        /**
+         * A chunk was forwarded.
+         *
+         * @param buffer The buffer of the relay (reused or replaced for the next chunk).
+         * @param offset The start of the chunk in the buffer.
+         * @param length The length of the chunk.
+         */
+        void onChunk(byte[] buffer, int offset, int length);
+    }
 }
@@ -0,0 +1,353 @@
+package de.fschullerer.preproxyfs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of idle, already connected sockets to one remote proxy. A new connection takes a warm
+ * socket and does not wait for the TCP handshake with the remote proxy. Tunnels (CONNECT) can not
+ * be reused, so every socket of the pool is used only once.
+ *
+ * <p>The pool size adapts to the arrival rate of new connections: A background task measures the
+ * connections per second and keeps as many sockets as are needed while new sockets are connected
+ * (arrival rate multiplied with the connect time of the remote proxy, with headroom). Sockets that
+ * are idle for too long or were closed by the remote proxy are evicted.
+ *
+ * <p>The maintenance runs on the shared scheduler, the connects of a refill run on the pool for
+ * blocking work. After a failed connect the pool is not refilled for a backoff time that doubles
+ * with every further failure (also without circuit breaker).
+ *
+ * @author Frank Schullerer
+ */
+public class WarmSocketPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmSocketPool.class.getName());
+
+    /** Interval of the background maintenance (rate measurement, eviction, refill). */
+    private static final long MAINTENANCE_MILLIS = 1000;
+    /** Weight of the newest rate sample. */
+    private static final double ALPHA = 0.3;
+    /** Factor for the pool size above the expected usage during one connect. */
+    private static final double HEADROOM = 2;
+    /** Minimum connect time to calculate the pool size (if the connect time is not known yet). */
+    private static final double MIN_CONNECT_MILLIS = 100;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    /** Maximum backoff in milliseconds after failed connects. */
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final String remoteProxyHost;
+    private final int remoteProxyPort;
+    private volatile int maxIdle;
+    private volatile long maxIdleMillis;
+    private final UpstreamStats upstreamStats;
+    private final ConcurrentLinkedDeque<PooledSocket> idleSockets = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger arrivals = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    /** Arrival rate of new connections per second (EWMA). */
+    private volatile double arrivalRate;
+    /** Failed connects in a row. */
+    private volatile int connectFailures;
+    /** No refill before this time ({@link System#currentTimeMillis()}) after failed connects. */
+    private volatile long backoffUntil;
+
+    private volatile boolean closed;
+    private volatile Executor connectExecutor;
+    private ScheduledFuture<?> maintenance;
+
+    /**
+     * Create a pool for one remote proxy. The pool is empty until {@link #start} is called.
+     *
+     * @param remoteProxyHost The remote proxy hostname/IP.
+     * @param remoteProxyPort The remote proxy port.
+     * @param maxIdle Maximum number of idle sockets.
+     * @param maxIdleMillis Maximum time in milliseconds a socket is kept idle.
+     * @param upstreamStats The statistics of the remote proxy (connect times, circuit breaker).
+     */
+    public WarmSocketPool(
+            String remoteProxyHost,
+            int remoteProxyPort,
+            int maxIdle,
+            long maxIdleMillis,
+            UpstreamStats upstreamStats) {
+        this.remoteProxyHost = remoteProxyHost;
+        this.remoteProxyPort = remoteProxyPort;
+        this.maxIdle = maxIdle;
+        this.maxIdleMillis = maxIdleMillis;
+        this.upstreamStats = upstreamStats;
+    }
+
+    /**
+     * Start the background maintenance.
+     *
+     * @param backgroundScheduler The scheduler for the maintenance.
+     * @param blockingExecutor The executor for the connects of a refill.
+     */
+    synchronized void start(
+            ScheduledExecutorService backgroundScheduler, Executor blockingExecutor) {
+        this.connectExecutor = blockingExecutor;
+        this.maintenance =
+                backgroundScheduler.scheduleWithFixedDelay(
+                        this::maintain,
+                        MAINTENANCE_MILLIS,
+                        MAINTENANCE_MILLIS,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Change the limits (e.g. on a reload of the settings). Surplus sockets are evicted by the
+     * next maintenance.
+     *
+     * @param newMaxIdle Maximum number of idle sockets.
+     * @param newMaxIdleMillis Maximum time in milliseconds a socket is kept idle.
+     */
+    void setLimits(int newMaxIdle, long newMaxIdleMillis) {
+        this.maxIdle = newMaxIdle;
+        this.maxIdleMillis = newMaxIdleMillis;
+    }
+
+    /**
+     * Take a warm socket for a new connection.
+     *
+     * @return A connected socket or null if the pool has no usable socket.
+     */
+    Socket take() {
+        this.arrivals.incrementAndGet();
+        PooledSocket pooledSocket;
+        while (null != (pooledSocket = this.idleSockets.pollFirst())) {
+            this.idleCount.decrementAndGet();
+            if (isUsable(pooledSocket)) {
+                this.hitCount.incrementAndGet();
+                triggerRefill();
+                return pooledSocket.socket;
+            }
+            evict(pooledSocket);
+        }
+        this.missCount.incrementAndGet();
+        triggerRefill();
+        return null;
+    }
+
+    /** Measure the arrival rate, evict stale sockets and refill the pool. */
+    void maintain() {
+        double rate = this.arrivals.getAndSet(0) * 1000.0 / MAINTENANCE_MILLIS;
+        this.arrivalRate = this.arrivalRate + ALPHA * (rate - this.arrivalRate);
+        int target = getTargetSize();
+        // oldest sockets are at the end
+        PooledSocket pooledSocket;
+        while (null != (pooledSocket = this.idleSockets.peekLast())
+                && (this.idleCount.get() > target || isExpired(pooledSocket))) {
+            if (this.idleSockets.removeLastOccurrence(pooledSocket)) {
+                this.idleCount.decrementAndGet();
+                evict(pooledSocket);
+            }
+        }
+        triggerRefill();
+    }
+
+    /**
+     * Get the pool size for the current arrival rate.
+     *
+     * @return The number of idle sockets to keep.
+     */
+    int getTargetSize() {
+        double rate = this.arrivalRate;
+        if (rate < 0.01) {
+            return 0;
+        }
+        double connectSeconds =
+                Math.max(this.upstreamStats.getConnectMillis(), MIN_CONNECT_MILLIS) / 1000;
+        int target = (int) Math.ceil(rate * connectSeconds * HEADROOM);
+        return Math.min(this.maxIdle, Math.max(1, target));
+    }
+
+    /**
+     * Start a refill on the executor for blocking work. Only one refill at a time, no refill
+     * during the backoff after failed connects or while the circuit breaker is not closed.
+     */
+    private void triggerRefill() {
+        Executor executor = this.connectExecutor;
+        if (null == executor
+                || this.closed
+                || this.idleCount.get() >= getTargetSize()
+                || System.currentTimeMillis() < this.backoffUntil
+                || this.upstreamStats.getCircuitBreaker().getState()
+                        != CircuitBreaker.State.CLOSED
+                || !this.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::refill);
+        } catch (RejectedExecutionException e) {
+            this.refilling.set(false);
+            LOGGER.debug("Refill of warm socket pool for {} rejected.", getProxy(), e);
+        }
+    }
+
+    /** Connect new sockets until the target size is reached. */
+    private void refill() {
+        try {
+            while (!this.closed && this.idleCount.get() < getTargetSize()) {
+                Socket socket = new Socket();
+                long connectStart = System.nanoTime();
+                try {
+                    socket.connect(
+                            new InetSocketAddress(this.remoteProxyHost, this.remoteProxyPort),
+                            CONNECT_TIMEOUT_MILLIS);
+                    socket.setKeepAlive(true);
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    this.upstreamStats.recordFailure();
+                    int failures = ++this.connectFailures;
+                    long backoff =
+                            Math.min(
+                                    MAX_BACKOFF_MILLIS,
+                                    MAINTENANCE_MILLIS << Math.min(failures - 1, 16));
+                    this.backoffUntil = System.currentTimeMillis() + backoff;
+                    LOGGER.debug(
+                            "Warm socket to {} failed: {}. No refill for {} ms.",
+                            getProxy(),
+                            e.getMessage(),
+                            backoff);
+                    return;
+                }
+                this.connectFailures = 0;
+                this.upstreamStats.recordConnect(System.nanoTime() - connectStart);
+                this.idleSockets.addFirst(new PooledSocket(socket, System.currentTimeMillis()));
+                this.idleCount.incrementAndGet();
+                if (this.closed) {
+                    // close() may have missed this socket
+                    closeIdleSockets();
+                }
+            }
+        } finally {
+            this.refilling.set(false);
+        }
+    }
+
+    private boolean isExpired(PooledSocket pooledSocket) {
+        return System.currentTimeMillis() - pooledSocket.idleSince > this.maxIdleMillis;
+    }
+
+    /**
+     * Check if an idle socket can be used: Not too old and not closed by the remote proxy. A
+     * remote proxy must not send anything before the request, so a readable socket is stale.
+     */
+    private boolean isUsable(PooledSocket pooledSocket) {
+        Socket socket = pooledSocket.socket;
+        if (isExpired(pooledSocket) || socket.isClosed() || socket.isInputShutdown()) {
+            return false;
+        }
+        try {
+            socket.setSoTimeout(1);
+            try {
+                // -1: closed by remote proxy, data: unexpected
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                socket.setSoTimeout(0);
+                return true;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evict(PooledSocket pooledSocket) {
+        this.evictedCount.incrementAndGet();
+        closeQuietly(pooledSocket.socket);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.trace("Error closing warm socket.", e);
+        }
+    }
+
+    private void closeIdleSockets() {
+        PooledSocket pooledSocket;
+        while (null != (pooledSocket = this.idleSockets.pollFirst())) {
+            this.idleCount.decrementAndGet();
+            closeQuietly(pooledSocket.socket);
+        }
+    }
+
+    /** Stop the background maintenance and close all idle sockets. */
+    synchronized void close() {
+        this.closed = true;
+        if (null != this.maintenance) {
+            this.maintenance.cancel(false);
+        }
+        closeIdleSockets();
+    }
+
+    private String getProxy() {
+        return this.remoteProxyHost + ":" + this.remoteProxyPort;
+    }
+
+    /**
+     * Get the number of idle sockets.
+     *
+     * @return Idle sockets.
+     */
+    public int getIdleCount() {
+        return this.idleCount.get();
+    }
+
+    /**
+     * Get the number of connections that got a warm socket.
+     *
+     * @return Hits since start.
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Get the number of connections that had to connect on demand.
+     *
+     * @return Misses since start.
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Get the number of idle sockets that were closed because they were stale or not needed.
+     *
+     * @return Evicted sockets since start.
+     */
+    public long getEvictedCount() {
+        return this.evictedCount.get();
+    }
+
+    /** An idle socket with the time it was put into the pool. */
+    private static final class PooledSocket {
+        private final Socket socket;
+        private final long idleSince;
+
+        private PooledSocket(Socket socket, long idleSince) {
+            this.socket = socket;
+            this.idleSince = idleSince;
+        }
+    }
+}
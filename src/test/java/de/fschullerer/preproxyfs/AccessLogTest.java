@@ -0,0 +1,54 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for AccessLog. */
+class AccessLogTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("AL001: Assert that records are written with the fixed layout.")
+    void assertRecordsWritten() throws IOException {
+        Path logFile = Files.createTempDirectory("testPreProxyFSAccessLog").resolve("access.log");
+        AccessLog accessLog = new AccessLog(logFile.toString(), 10, 2, 64);
+        accessLog.log(0, "127.0.0.1", "www.example.com", "DIRECT", 100, 2000, 15, 42);
+        accessLog.log(1000, "127.0.0.2", "intranet.corp", "proxy1.corporate.com:8080", 1, 2, 3, 4);
+        accessLog.close();
+        List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
+        assertThat(lines)
+                .as("One line per record.")
+                .containsExactly(
+                        "1970-01-01T00:00:00Z 127.0.0.1 www.example.com DIRECT 100 2000 15 42",
+                        "1970-01-01T00:00:01Z 127.0.0.2 intranet.corp"
+                                + " proxy1.corporate.com:8080 1 2 3 4");
+        assertThat(accessLog.getWrittenCount()).as("Two written records.").isEqualTo(2);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("AL002: Assert that records are dropped and not blocked if the buffer is full.")
+    void assertDropWhenFull() throws IOException {
+        Path logFile = Files.createTempDirectory("testPreProxyFSAccessLog").resolve("access.log");
+        // rotate after every batch
+        AccessLog accessLog = new AccessLog(logFile.toString(), 0, 2, 4);
+        for (int i = 0; i < 10_000; i++) {
+            accessLog.log(0, "127.0.0.1", "host" + i, "DIRECT", 1, 1, 1, 1);
+        }
+        accessLog.close();
+        assertThat(accessLog.getWrittenCount() + accessLog.getDroppedCount())
+                .as("Every record is written or dropped.")
+                .isEqualTo(10_000);
+        assertThat(logFile.resolveSibling("access.log.3"))
+                .as("Only two rotated files are kept.")
+                .doesNotExist();
+    }
+}
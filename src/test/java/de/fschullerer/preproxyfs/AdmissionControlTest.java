@@ -0,0 +1,121 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for AdmissionControl. */
+class AdmissionControlTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("AC001: Assert that the concurrent connections are limited.")
+    void assertMaxConnections() {
+        AdmissionControl admissionControl = new AdmissionControl(2, 0, 0, 100);
+        assertThat(admissionControl.admit()).isEqualTo(AdmissionControl.Verdict.ADMITTED);
+        assertThat(admissionControl.admit()).isEqualTo(AdmissionControl.Verdict.ADMITTED);
+        assertThat(admissionControl.admit())
+                .as("Third concurrent connection is rejected.")
+                .isEqualTo(AdmissionControl.Verdict.MAX_CONNECTIONS);
+        admissionControl.release();
+        assertThat(admissionControl.admit())
+                .as("Released permit is used again.")
+                .isEqualTo(AdmissionControl.Verdict.ADMITTED);
+        assertThat(admissionControl.getActive()).as("Active connections.").isEqualTo(2);
+        assertThat(admissionControl.getRejectedCount(AdmissionControl.Verdict.MAX_CONNECTIONS))
+                .as("Rejected connections.")
+                .isEqualTo(1);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("AC002: Assert that the rate of new connections is limited.")
+    void assertMaxRate() throws InterruptedException {
+        AdmissionControl admissionControl = new AdmissionControl(0, 10, 0, 100);
+        int admitted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (AdmissionControl.Verdict.ADMITTED == admissionControl.admit()) {
+                admitted++;
+            }
+        }
+        assertThat(admitted).as("Burst of one second.").isEqualTo(10);
+        Thread.sleep(250);
+        assertThat(admissionControl.admit())
+                .as("Tokens are refilled.")
+                .isEqualTo(AdmissionControl.Verdict.ADMITTED);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("AC003: Assert that new connections are shed while the routing is slow.")
+    void assertShedding() throws InterruptedException {
+        AdmissionControl admissionControl = new AdmissionControl(0, 0, 50, 100);
+        // a single slow routing does not shed
+        admissionControl.recordRoutingDelay(TimeUnit.MILLISECONDS.toNanos(500));
+        admissionControl.recordRoutingDelay(TimeUnit.MILLISECONDS.toNanos(1));
+        Thread.sleep(120);
+        assertThat(admissionControl.admit())
+                .as("Minimum delay below the target.")
+                .isEqualTo(AdmissionControl.Verdict.ADMITTED);
+        // a standing queue sheds
+        admissionControl.recordRoutingDelay(TimeUnit.MILLISECONDS.toNanos(200));
+        admissionControl.recordRoutingDelay(TimeUnit.MILLISECONDS.toNanos(300));
+        Thread.sleep(120);
+        assertThat(admissionControl.admit())
+                .as("Minimum delay above the target.")
+                .isEqualTo(AdmissionControl.Verdict.OVERLOADED);
+        assertThat(admissionControl.isOverloaded()).as("Overloaded.").isTrue();
+        // no routed connections in the next interval: admit again
+        Thread.sleep(120);
+        assertThat(admissionControl.admit())
+                .as("Overload ends.")
+                .isEqualTo(AdmissionControl.Verdict.ADMITTED);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("AC004: Assert that a rejected client gets the 503 response and no reset.")
+    void assertRejectedConnection() throws Exception {
+        PreProxyFSInstance instance =
+                PreProxyFSInstance.builder()
+                        .admissionControl(1, 0, 0)
+                        .resources(new PreProxyFSResources())
+                        .build();
+        assertThat(instance.getAdmissionControl().admit())
+                .as("The only permit is taken.")
+                .isEqualTo(AdmissionControl.Verdict.ADMITTED);
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                Socket client = new Socket("localhost", serverSocket.getLocalPort())) {
+            client.setSoTimeout(5000);
+            char[] body = new char[16 * 1024];
+            Arrays.fill(body, 'a');
+            // the request is not read by the proxy
+            client.getOutputStream()
+                    .write(
+                            ("POST http://www.example.com/ HTTP/1.1\r\nContent-Length: "
+                                            + body.length
+                                            + "\r\n\r\n"
+                                            + new String(body))
+                                    .getBytes(StandardCharsets.US_ASCII));
+            DistributeServer.dispatch(instance, serverSocket.accept());
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream in = client.getInputStream();
+            int read;
+            while ((read = in.read()) != -1) {
+                response.write(read);
+            }
+            assertThat(response.toString("US-ASCII"))
+                    .as("The complete 503 response.")
+                    .isEqualTo(Util.SERVICE_UNAVAILABLE);
+        }
+    }
+}
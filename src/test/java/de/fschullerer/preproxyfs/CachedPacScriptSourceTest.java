@@ -0,0 +1,163 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for CachedPacScriptSource with a slow local PAC server. */
+class CachedPacScriptSourceTest {
+
+    private static final long SERVER_DELAY_MILLIS = 1500;
+    private static final String PAC_SCRIPT =
+            "function FindProxyForURL(url, host) {return \"PROXY proxy1.corporate.com:8080\";}";
+
+    /** PAC server that answers every request after a delay. Supports If-None-Match. */
+    private static final class SlowPacServer extends Thread {
+        private final ServerSocket serverSocket;
+        private final List<String> conditionalRequests = new CopyOnWriteArrayList<>();
+        private volatile String script = PAC_SCRIPT;
+        private volatile String etag = "\"v1\"";
+
+        private SlowPacServer() throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        private String getUrl() {
+            return "http://localhost:" + this.serverSocket.getLocalPort() + "/proxy.pac";
+        }
+
+        @Override
+        public void run() {
+            while (!this.serverSocket.isClosed()) {
+                try (Socket socket = this.serverSocket.accept()) {
+                    answer(socket);
+                } catch (IOException | InterruptedException e) {
+                    // next request
+                }
+            }
+        }
+
+        private void answer(Socket socket) throws IOException, InterruptedException {
+            BufferedReader in =
+                    new BufferedReader(
+                            new InputStreamReader(
+                                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            String ifNoneMatch = null;
+            String line = in.readLine();
+            while (null != line && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("if-none-match:")) {
+                    ifNoneMatch = line.substring(14).trim();
+                    this.conditionalRequests.add(ifNoneMatch);
+                }
+                line = in.readLine();
+            }
+            Thread.sleep(SERVER_DELAY_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            if (this.etag.equals(ifNoneMatch)) {
+                out.write(
+                        "HTTP/1.1 304 Not Modified\r\nConnection: close\r\n\r\n"
+                                .getBytes(StandardCharsets.US_ASCII));
+            } else {
+                byte[] body = this.script.getBytes(StandardCharsets.UTF_8);
+                out.write(
+                        ("HTTP/1.1 200 OK\r\nETag: "
+                                        + this.etag
+                                        + "\r\nContent-Length: "
+                                        + body.length
+                                        + "\r\nConnection: close\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+            }
+            out.flush();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPS001: Assert that a start from the local copy does not wait for the server.")
+    void assertStartFromCopy() throws IOException {
+        SlowPacServer server = new SlowPacServer();
+        server.start();
+        String copyFile = Files.createTempDirectory("testPreProxyFS") + "/proxy.pac";
+        long start = System.nanoTime();
+        CachedPacScriptSource firstStart = new CachedPacScriptSource(server.getUrl(), copyFile);
+        assertThat(firstStart.getScriptContent()).as("Downloaded script.").isEqualTo(PAC_SCRIPT);
+        firstStart.storeCopy();
+        long downloadMillis = (System.nanoTime() - start) / 1_000_000;
+        start = System.nanoTime();
+        CachedPacScriptSource secondStart = new CachedPacScriptSource(server.getUrl(), copyFile);
+        assertThat(secondStart.getScriptContent()).as("Script of the copy.").isEqualTo(PAC_SCRIPT);
+        long copyMillis = (System.nanoTime() - start) / 1_000_000;
+        assertThat(downloadMillis)
+                .as("The first start waits for the slow PAC server.")
+                .isGreaterThanOrEqualTo(SERVER_DELAY_MILLIS);
+        assertThat(copyMillis)
+                .as("The second start uses the copy (" + copyMillis + " ms).")
+                .isLessThan(SERVER_DELAY_MILLIS / 2);
+        assertThat(secondStart.isFromCopy()).as("From copy.").isTrue();
+        assertThat(secondStart.revalidate()).as("The script is not changed.").isFalse();
+        assertThat(server.conditionalRequests)
+                .as("Conditional GET with the stored ETag.")
+                .containsExactly("\"v1\"");
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPS002: Assert that a changed PAC script is downloaded and stored.")
+    void assertChangedScript() throws IOException {
+        SlowPacServer server = new SlowPacServer();
+        server.start();
+        String copyFile = Files.createTempDirectory("testPreProxyFS") + "/proxy.pac";
+        CachedPacScriptSource source = new CachedPacScriptSource(server.getUrl(), copyFile);
+        source.getScriptContent();
+        source.storeCopy();
+        server.script = PAC_SCRIPT.replace("proxy1", "proxy2");
+        server.etag = "\"v2\"";
+        assertThat(source.revalidate()).as("The script is changed.").isTrue();
+        source.storeCopy();
+        assertThat(new CachedPacScriptSource(server.getUrl(), copyFile).getScriptContent())
+                .as("The copy contains the changed script.")
+                .contains("proxy2");
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPS003: Assert that a broken PAC script does not replace the last good copy.")
+    void assertBrokenScriptNotStored() throws IOException {
+        SlowPacServer server = new SlowPacServer();
+        server.start();
+        String copyFile = Files.createTempDirectory("testPreProxyFS") + "/proxy.pac";
+        CachedPacScriptSource source = new CachedPacScriptSource(server.getUrl(), copyFile);
+        source.getScriptContent();
+        source.storeCopy();
+        server.script = "<html>Login</html>";
+        server.etag = "\"v2\"";
+        assertThrows(IOException.class, source::revalidate);
+        assertThat(source.getScriptContent()).as("No PAC script is ignored.").isEqualTo(PAC_SCRIPT);
+        server.script = "function FindProxyForURL(url, host) {";
+        server.etag = "\"v3\"";
+        assertThat(source.revalidate()).as("The broken script is downloaded.").isTrue();
+        // the parser rejects the script
+        source.discardDownload();
+        assertThat(source.getScriptContent())
+                .as("The last good script is used again.")
+                .isEqualTo(PAC_SCRIPT);
+        assertThat(new CachedPacScriptSource(server.getUrl(), copyFile).getScriptContent())
+                .as("The copy contains the last good script.")
+                .isEqualTo(PAC_SCRIPT);
+    }
+}
@@ -0,0 +1,69 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for CircuitBreaker. */
+class CircuitBreakerTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CB001: Assert that the breaker opens after the failure threshold.")
+    void assertOpenAfterFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("proxy1.corporate.com:8080", 3, 60_000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertThat(breaker.getState())
+                .as("A success resets the consecutive failures.")
+                .isEqualTo(CircuitBreaker.State.CLOSED);
+        breaker.onFailure();
+        assertThat(breaker.getState())
+                .as("Third consecutive failure opens the breaker.")
+                .isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.allowRequest()).as("Open breaker rejects connections.").isFalse();
+        assertThat(breaker.getOpenedCount()).as("Opened once.").isEqualTo(1);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CB002: Assert that one trial connection is allowed after the open time.")
+    void assertHalfOpenTrial() {
+        CircuitBreaker breaker = new CircuitBreaker("proxy1.corporate.com:8080", 1, 20);
+        breaker.onFailure();
+        await().atMost(2, TimeUnit.SECONDS).until(breaker::isCallPermitted);
+        assertThat(breaker.allowRequest()).as("Trial connection.").isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.allowRequest()).as("Only one trial connection.").isFalse();
+        breaker.onFailure();
+        assertThat(breaker.getState())
+                .as("Failed trial opens the breaker again.")
+                .isEqualTo(CircuitBreaker.State.OPEN);
+        await().atMost(2, TimeUnit.SECONDS).until(breaker::isCallPermitted);
+        assertThat(breaker.allowRequest()).as("Second trial connection.").isTrue();
+        breaker.onSuccess();
+        assertThat(breaker.getState())
+                .as("Successful trial closes the breaker.")
+                .isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.getOpenedCount()).as("Opened twice.").isEqualTo(2);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CB003: Assert that a breaker with threshold 0 is disabled.")
+    void assertDisabled() {
+        CircuitBreaker breaker = new CircuitBreaker("proxy1.corporate.com:8080", 0, 60_000);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure();
+        }
+        assertThat(breaker.allowRequest()).as("Disabled breaker allows everything.").isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+}
@@ -0,0 +1,130 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.markusbernhardt.proxy.selector.pac.JavaxPacScriptParser;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptParser;
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import de.fschullerer.preproxyfs.testutil.PacScriptSourceString;
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for CompiledPacScriptParser. */
+class CompiledPacScriptParserTest {
+
+    private static final String[] HOSTS = {
+        UtilT.REMOTE_SERVER_ENDPOINT1, UtilT.REMOTE_SERVER_ENDPOINT2, "www.example.com"
+    };
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPP001: Assert that the compiled PAC script returns the same decisions.")
+    void assertSameDecisions() throws ProxyEvaluationException {
+        PacScriptSourceString pacScript = new PacScriptSourceString(UtilT.PAC_SCRIPT_1);
+        CompiledPacScriptParser compiledParser = new CompiledPacScriptParser(pacScript);
+        JavaxPacScriptParser interpretedParser = new JavaxPacScriptParser(pacScript);
+        assertThat(compiledParser.isCompiled()).as("Compiled into classes.").isTrue();
+        for (String host : HOSTS) {
+            assertThat(compiledParser.evaluate("", host))
+                    .as("Same decision for " + host)
+                    .isEqualTo(interpretedParser.evaluate("", host));
+        }
+        assertThat(compiledParser.evaluate("", "www.example.com"))
+                .as("DIRECT for other hosts.")
+                .isEqualTo(Util.DIRECT);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPP002: Assert that the compiled classes are stored in the class cache.")
+    void assertClassCache() throws ProxyEvaluationException, IOException {
+        // a new script: not compiled by other tests
+        String script = UtilT.PAC_SCRIPT_1 + "// " + System.nanoTime();
+        String classCacheDir = Files.createTempDirectory("testPreProxyFS").toString();
+        new CompiledPacScriptParser(new PacScriptSourceString(script), classCacheDir);
+        File[] classFiles = new File(classCacheDir).listFiles();
+        assertThat(classFiles).as("One class file for the PAC script.").hasSize(1);
+        assertThat(classFiles[0].length()).as("Class file is not empty.").isPositive();
+        CompiledPacScriptParser reused =
+                new CompiledPacScriptParser(new PacScriptSourceString(script), classCacheDir);
+        assertThat(reused.evaluate("", UtilT.REMOTE_SERVER_ENDPOINT1))
+                .as("Reused classes.")
+                .isEqualTo("PROXY " + UtilT.PROXY1_CORPORATE);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPP003: Assert that an invalid PAC script is rejected.")
+    void assertInvalidScript() {
+        assertThrows(
+                ProxyEvaluationException.class,
+                () -> new CompiledPacScriptParser(new PacScriptSourceString("function {")));
+        assertThrows(
+                ProxyEvaluationException.class,
+                () -> new CompiledPacScriptParser(new PacScriptSourceString("var x = 1;")));
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPP004: Assert that repeated evaluations return the same decisions.")
+    void assertRepeatedEvaluations() throws ProxyEvaluationException {
+        PacScriptSourceString pacScript = new PacScriptSourceString(UtilT.PAC_SCRIPT_1);
+        PacScriptParser compiledParser = new CompiledPacScriptParser(pacScript);
+        PacScriptParser interpretedParser = new JavaxPacScriptParser(pacScript);
+        // enough evaluations for the JIT to compile the generated classes
+        for (int i = 0; i < 2000; i++) {
+            String host = HOSTS[i % HOSTS.length];
+            assertThat(compiledParser.evaluate("", host))
+                    .as("Same decision for " + host)
+                    .isEqualTo(interpretedParser.evaluate("", host));
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CPP005: Assert that the PAC script has no access to Java and can not hang.")
+    void assertSandbox() throws ProxyEvaluationException {
+        CompiledPacScriptParser parser =
+                new CompiledPacScriptParser(
+                        new PacScriptSourceString(
+                                "function FindProxyForURL(url, host) {\n"
+                                        + "  if (host == 'getClass') {\n"
+                                        + "    return String(__pacutil.getClass().getName());\n"
+                                        + "  }\n"
+                                        + "  if (host == 'packages') {\n"
+                                        + "    return String(Packages.java.lang.System"
+                                        + ".getProperty('user.home'));\n"
+                                        + "  }\n"
+                                        + "  if (host == 'loop') {\n"
+                                        + "    while (true) {}\n"
+                                        + "  }\n"
+                                        + "  return isPlainHostName(host) ? 'DIRECT' : 'PROXY p:1';"
+                                        + "}"),
+                        null,
+                        200);
+        assertThat(parser.evaluate("", "www.example.com"))
+                .as("PAC helper functions work.")
+                .isEqualTo("PROXY p:1");
+        assertThrows(ProxyEvaluationException.class, () -> parser.evaluate("", "getClass"));
+        assertThrows(ProxyEvaluationException.class, () -> parser.evaluate("", "packages"));
+        long start = System.nanoTime();
+        assertThrows(ProxyEvaluationException.class, () -> parser.evaluate("", "loop"));
+        assertThat((System.nanoTime() - start) / 1_000_000)
+                .as("The endless loop is stopped after the maximum run time.")
+                .isLessThan(5_000);
+        assertThat(parser.evaluate("", "localhost"))
+                .as("The parser works after a stopped run.")
+                .isEqualTo(Util.DIRECT);
+        assertThrows(
+                ProxyEvaluationException.class,
+                () ->
+                        new CompiledPacScriptParser(
+                                new PacScriptSourceString("while (true) {}"), null, 200));
+    }
+}
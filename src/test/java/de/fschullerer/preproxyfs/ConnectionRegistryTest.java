@@ -0,0 +1,313 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for ConnectionRegistry. */
+class ConnectionRegistryTest {
+
+    private static PreProxyFSInstance createInstance() {
+        return PreProxyFSInstance.builder().resources(new PreProxyFSResources()).build();
+    }
+
+    private static String adminRequest(int port, String requestLine, String headers)
+            throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream()
+                    .write(
+                            (requestLine + " HTTP/1.1\r\n" + headers + "\r\n\r\n")
+                                    .getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR001: Assert that drain closes the remaining connections after the timeout.")
+    void assertDrainClosesRemainingConnections() throws IOException, InterruptedException {
+        PreProxyFSInstance instance = createInstance();
+        ConnectionRegistry registry = instance.getConnectionRegistry();
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                Socket client = new Socket("localhost", serverSocket.getLocalPort());
+                Socket accepted = serverSocket.accept()) {
+            // the client never sends a request: the connection stays open
+            DistributeForwardClientThread connection =
+                    new DistributeForwardClientThread(instance, accepted);
+            connection.setForwardServerThread(new ForwardServerThread(connection));
+            connection.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(registry.getConnection(connection.getRegistryId()))
+                    .as("The running connection is registered.")
+                    .isSameAs(connection);
+            assertThat(registry.drain(200)).as("One connection is closed.").isEqualTo(1);
+            assertThat(client.getInputStream().read())
+                    .as("The client gets the end of the stream.")
+                    .isEqualTo(-1);
+            connection.join(5000);
+            assertThat(connection.isAlive()).as("The connection thread is finished.").isFalse();
+            assertThat(registry.size()).as("No connection is left.").isZero();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR002: Assert that drain returns at once if there are no connections.")
+    void assertDrainWithoutConnections() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        long start = System.currentTimeMillis();
+        assertThat(registry.drain(10_000)).as("Nothing to close.").isZero();
+        assertThat(System.currentTimeMillis() - start)
+                .as("Drain must not wait for the timeout.")
+                .isLessThan(5000);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR003: Assert that the admin endpoint lists, filters and kills connections.")
+    void assertAdminConnections() throws IOException, InterruptedException {
+        PreProxyFSInstance instance = createInstance();
+        ConnectionRegistry registry = instance.getConnectionRegistry();
+        AdminServer admin = new AdminServer(instance, 0);
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                Socket client = new Socket("localhost", serverSocket.getLocalPort());
+                Socket accepted = serverSocket.accept()) {
+            DistributeForwardClientThread connection =
+                    new DistributeForwardClientThread(instance, accepted);
+            connection.setForwardServerThread(new ForwardServerThread(connection));
+            connection.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(admin.getResponseBody("/connections?sort=idle"))
+                    .as("The connection waits for the request header.")
+                    .startsWith("id=" + connection.getRegistryId() + " state=AWAITING_HEAD");
+            assertThat(admin.getResponseBody("/connections?state=RELAYING"))
+                    .as("No connection is relaying.")
+                    .isEmpty();
+            assertThat(admin.killConnection("/connections/" + connection.getRegistryId()))
+                    .as("The connection is closed.")
+                    .isNotNull();
+            assertThat(client.getInputStream().read())
+                    .as("The client gets the end of the stream.")
+                    .isEqualTo(-1);
+            assertThat(admin.getResponseBody("/connections")).as("No connection.").isEmpty();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR004: Assert that the admin endpoint checks the Host header and the token.")
+    void assertAdminAccess() throws IOException {
+        AdminServer admin = new AdminServer(createInstance(), 0, "secret", false);
+        admin.start();
+        try {
+            int port = admin.getPort();
+            String token = "\r\nAuthorization: Bearer secret";
+            assertThat(adminRequest(port, "GET /connections", "Host: evil.example.com" + token))
+                    .as("A foreign Host header (DNS rebinding) is rejected.")
+                    .startsWith("HTTP/1.1 403");
+            assertThat(adminRequest(port, "GET /connections", "Host: localhost:" + port))
+                    .as("A request without token is rejected.")
+                    .startsWith("HTTP/1.1 401");
+            assertThat(
+                            adminRequest(
+                                    port,
+                                    "GET /connections",
+                                    "Host: localhost\r\nAuthorization: Bearer wrong"))
+                    .as("A request with a wrong token is rejected.")
+                    .startsWith("HTTP/1.1 401");
+            assertThat(adminRequest(port, "GET /connections", "Host: 127.0.0.1:" + port + token))
+                    .as("A local request with the token is answered.")
+                    .startsWith("HTTP/1.1 200");
+            assertThat(adminRequest(port, "DELETE /connections/1", "Host: localhost" + token))
+                    .as("DELETE is disabled by default.")
+                    .startsWith("HTTP/1.1 403");
+        } finally {
+            admin.getServerSocket().close();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR005: Assert that an idle admin client does not block other admin requests.")
+    void assertAdminIdleClient() throws IOException {
+        AdminServer admin = new AdminServer(createInstance(), 0);
+        admin.start();
+        int port = admin.getPort();
+        try (Socket idleClient = new Socket("localhost", port)) {
+            // the idle client sends nothing: its request waits for the read timeout
+            long start = System.currentTimeMillis();
+            assertThat(adminRequest(port, "GET /connections", "Host: localhost"))
+                    .as("The request is answered.")
+                    .startsWith("HTTP/1.1 200");
+            assertThat(System.currentTimeMillis() - start)
+                    .as("The request does not wait for the idle client.")
+                    .isLessThan(4000);
+        } finally {
+            admin.getServerSocket().close();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR006: Assert that the instance is not locked while the connections are drained.")
+    void assertDrainWithoutLock() throws IOException, InterruptedException {
+        PreProxyFSInstance instance =
+                PreProxyFSInstance.builder()
+                        .name("drainWithoutLock")
+                        .pacUrl(
+                                UtilT.createTempPropFile(
+                                        "function FindProxyForURL(url, host) {return \"DIRECT\";}"))
+                        .port(0)
+                        .build();
+        instance.start();
+        ConnectionRegistry registry = instance.getConnectionRegistry();
+        Thread stop;
+        try (Socket client = new Socket("localhost", instance.getPort())) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            stop = new Thread(() -> instance.stop(10_000));
+            stop.start();
+            Thread.sleep(200);
+            long start = System.currentTimeMillis();
+            instance.getAdminPort();
+            assertThat(System.currentTimeMillis() - start)
+                    .as("The instance answers while the connection is drained.")
+                    .isLessThan(1000);
+            assertThat(stop.isAlive()).as("The open connection is drained.").isTrue();
+        }
+        stop.join(5000);
+        assertThat(stop.isAlive()).as("The drain ends with the last connection.").isFalse();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR007: Assert that a loopback connection of a Http/2 stream has the h2c client.")
+    void assertBridgedClient() throws IOException {
+        ConnectionRegistry registry = createInstance().getConnectionRegistry();
+        InetSocketAddress h2cClient = new InetSocketAddress("192.0.2.7", 41000);
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket client = new Socket()) {
+            client.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            registry.registerBridge(client.getLocalPort(), h2cClient);
+            client.connect(serverSocket.getLocalSocketAddress());
+            try (Socket accepted = serverSocket.accept()) {
+                assertThat(registry.getBridgedClient(accepted))
+                        .as("The h2c client of the bridge.")
+                        .isEqualTo(h2cClient);
+                registry.unregisterBridge(client.getLocalPort());
+                assertThat(registry.getBridgedClient(accepted))
+                        .as("No h2c client after the bridge is closed.")
+                        .isNull();
+            }
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR008: Assert that only a local Host header and the exact token are accepted.")
+    void assertAdminHostAndToken() {
+        for (String host : new String[] {"localhost", "LOCALHOST:8099", "127.0.0.1:80", "[::1]"}) {
+            assertThat(AdminServer.isLocalHost(host)).as("Local host " + host).isTrue();
+        }
+        for (String host :
+                new String[] {
+                    null, "", "evil.example.com", "localhost.evil.com", "127.0.0.1.nip.io", "[::2]"
+                }) {
+            assertThat(AdminServer.isLocalHost(host)).as("Foreign host " + host).isFalse();
+        }
+        AdminServer admin = new AdminServer(createInstance(), 0, "secret", false);
+        assertThat(admin.isAuthorized("Bearer secret")).as("The token.").isTrue();
+        for (String authorization :
+                new String[] {
+                    null, "", "Bearer", "Bearer secre", "Bearer secretX", "Basic secret"
+                }) {
+            assertThat(admin.isAuthorized(authorization))
+                    .as("Missing or wrong token " + authorization)
+                    .isFalse();
+        }
+        assertThat(new AdminServer(createInstance(), 0, "", false).isAuthorized(null))
+                .as("No token configured.")
+                .isTrue();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("CR009: Assert that DELETE closes a connection only with privilege and token.")
+    void assertAdminDeletePrivilege() throws IOException, InterruptedException {
+        PreProxyFSInstance instance = createInstance();
+        ConnectionRegistry registry = instance.getConnectionRegistry();
+        AdminServer withoutToken = new AdminServer(instance, 0, null, true);
+        AdminServer admin = new AdminServer(instance, 0, "secret", true);
+        withoutToken.start();
+        admin.start();
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                Socket client = new Socket("localhost", serverSocket.getLocalPort());
+                Socket accepted = serverSocket.accept()) {
+            DistributeForwardClientThread connection =
+                    new DistributeForwardClientThread(instance, accepted);
+            connection.setForwardServerThread(new ForwardServerThread(connection));
+            connection.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.size() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            String delete = "DELETE /connections/" + connection.getRegistryId();
+            assertThat(adminRequest(withoutToken.getPort(), delete, "Host: localhost"))
+                    .as("DELETE without a configured token is disabled.")
+                    .startsWith("HTTP/1.1 403");
+            assertThat(adminRequest(admin.getPort(), delete, "Host: localhost"))
+                    .as("DELETE without token is rejected.")
+                    .startsWith("HTTP/1.1 401");
+            assertThat(
+                            adminRequest(
+                                    admin.getPort(),
+                                    delete,
+                                    "Host: localhost\r\nAuthorization: Bearer wrong"))
+                    .as("DELETE with a wrong token is rejected.")
+                    .startsWith("HTTP/1.1 401");
+            assertThat(registry.getConnection(connection.getRegistryId()))
+                    .as("The connection is still open.")
+                    .isSameAs(connection);
+            assertThat(
+                            adminRequest(
+                                    admin.getPort(),
+                                    delete,
+                                    "Host: localhost\r\nAuthorization: Bearer secret"))
+                    .as("DELETE with privilege and token closes the connection.")
+                    .startsWith("HTTP/1.1 200");
+            assertThat(client.getInputStream().read())
+                    .as("The client gets the end of the stream.")
+                    .isEqualTo(-1);
+        } finally {
+            withoutToken.getServerSocket().close();
+            admin.getServerSocket().close();
+        }
+    }
+}
@@ -88,4 +88,18 @@ class DirectForwardServerIT {
                 .as("Input and output should be the same!")
                 .isEqualTo(responseFromTestingServer);
     }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("DFIT003: Assert that the DirectForwardServer thread ends when it is closed.")
+    void assertStop() throws IOException, InterruptedException {
+        DirectForwardServer directForwardServer = new DirectForwardServer();
+        directForwardServer.start();
+        directForwardServer.getPort();
+        directForwardServer.getServerSocketD().close();
+        directForwardServer.join(5000);
+        assertThat(directForwardServer.isAlive())
+                .as("The accept loop must not spin on a closed socket.")
+                .isFalse();
+    }
 }
@@ -0,0 +1,52 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for HeavyHitters. */
+class HeavyHittersTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HH001: Assert that the heaviest keys are found among many rare keys.")
+    void assertHeavyKeysFound() {
+        HeavyHitters heavyHitters = new HeavyHitters(3, 1024);
+        for (int i = 0; i < 100_000; i++) {
+            heavyHitters.add("host" + i + ".example.com", 1);
+        }
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.add("a.example.com", 3);
+            heavyHitters.add("b.example.com", 2);
+            heavyHitters.add("c.example.com", 1);
+        }
+        List<String> top =
+                heavyHitters.getTop().stream()
+                        .map(HeavyHitters.Item::getKey)
+                        .collect(Collectors.toList());
+        assertThat(top)
+                .as("The heavy keys in order of their counts.")
+                .containsExactly("a.example.com", "b.example.com", "c.example.com");
+        assertThat(heavyHitters.getTotal()).as("Sum of all weights.").isEqualTo(106_000);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HH002: Assert that the estimates are never lower than the real counts.")
+    void assertNoUnderestimation() {
+        HeavyHitters heavyHitters = new HeavyHitters(5, 64);
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.add("host" + (i % 100), i % 100 + 1L);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertThat(heavyHitters.estimate("host" + i))
+                    .as("Estimate of host" + i)
+                    .isGreaterThanOrEqualTo(10L * (i + 1));
+        }
+        assertThat(heavyHitters.getTop()).as("Only top-K keys.").hasSize(5);
+    }
+}
@@ -0,0 +1,82 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for HotHostPrefill. */
+class HotHostPrefillTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HHP001: Assert that configured hosts and the hosts file are merged.")
+    void assertLoadHosts() throws IOException {
+        Path hostsFile = Files.createTempFile("testPreProxyFS", ".hosts");
+        Files.write(
+                hostsFile,
+                Arrays.asList("# comment", "github.com:443", "", "intranet.company.com"),
+                StandardCharsets.UTF_8);
+        assertThat(
+                        HotHostPrefill.loadHosts(
+                                " intranet.company.com, example.com,", hostsFile.toString()))
+                .as("Configured hosts first, no duplicates, no comments.")
+                .containsExactly("intranet.company.com", "example.com", "github.com:443");
+        assertThat(HotHostPrefill.loadHosts(null, hostsFile + ".missing"))
+                .as("Missing hosts file.")
+                .isEmpty();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HHP002: Assert that the top hosts of a run are used on the next start.")
+    void assertStoreHosts() throws IOException {
+        String hostsFile = Files.createTempDirectory("testPreProxyFS") + "/hosts.txt";
+        TrafficStatistics statistics = new TrafficStatistics(2);
+        HotHostPrefill.storeHosts(hostsFile, statistics);
+        assertThat(HotHostPrefill.loadHosts(null, hostsFile))
+                .as("Nothing stored without traffic.")
+                .isEmpty();
+        for (int i = 0; i < 10; i++) {
+            statistics.recordConnection("github.com:443", "DIRECT");
+            statistics.recordConnection(i % 2 == 0 ? "example.com" : "rare" + i, "DIRECT");
+        }
+        HotHostPrefill.storeHosts(hostsFile, statistics);
+        assertThat(HotHostPrefill.loadHosts(null, hostsFile))
+                .as("The top hosts, most connections first.")
+                .containsExactly("github.com:443", "example.com");
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HHP003: Assert that the first request of a prefilled host hits the cache.")
+    void assertPrefillHitsCache() throws IOException {
+        String cacheFile = Files.createTempDirectory("testPreProxyFS") + "/pac-decisions.cache";
+        PreProxyFSInstance instance =
+                PreProxyFSInstance.builder()
+                        .name("prefill")
+                        .pacUrl(
+                                UtilT.createTempPropFile(
+                                        "function FindProxyForURL(url, host) {"
+                                                + "return \"PROXY remote.proxy1.com:8080\";}"))
+                        .port(0)
+                        .pacDecisionCache(cacheFile, 60)
+                        .build();
+        instance.start();
+        try {
+            new HotHostPrefill(instance, 1).prefill("github.com:443");
+            assertThat(instance.getPacDecisionCache().get("github.com"))
+                    .as("A request has the host without port (Util.getHost).")
+                    .isEqualTo("PROXY remote.proxy1.com:8080");
+        } finally {
+            instance.stop();
+        }
+    }
+}
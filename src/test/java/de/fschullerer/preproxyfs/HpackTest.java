@@ -0,0 +1,82 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for Hpack. */
+class HpackTest {
+
+    private static byte[] hex(String hex) {
+        String digits = hex.replace(" ", "");
+        byte[] data = new byte[digits.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
+    }
+
+    private static String[] header(String name, String value) {
+        return new String[] {name, value};
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HP001: Assert that the RFC 7541 requests with Huffman coding are decoded.")
+    void assertDecodeRequests() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertThat(decoder.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")))
+                .as("First request (C.4.1).")
+                .containsExactly(
+                        header(":method", "GET"),
+                        header(":scheme", "http"),
+                        header(":path", "/"),
+                        header(":authority", "www.example.com"));
+        assertThat(decoder.decode(hex("8286 84be 5886 a8eb 1064 9cbf")))
+                .as("Second request uses the dynamic table (C.4.2).")
+                .containsExactly(
+                        header(":method", "GET"),
+                        header(":scheme", "http"),
+                        header(":path", "/"),
+                        header(":authority", "www.example.com"),
+                        header("cache-control", "no-cache"));
+        assertThat(
+                        decoder.decode(
+                                hex(
+                                        "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8"
+                                                + " b4bf")))
+                .as("Third request (C.4.3).")
+                .containsExactly(
+                        header(":method", "GET"),
+                        header(":scheme", "https"),
+                        header(":path", "/index.html"),
+                        header(":authority", "www.example.com"),
+                        header("custom-key", "custom-value"));
+        assertThrows(
+                IOException.class,
+                () -> new Hpack.Decoder().decode(hex("be")),
+                "Unknown dynamic table index.");
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HP002: Assert that encoded headers are decoded unchanged.")
+    void assertRoundTrip() throws IOException {
+        List<String[]> headers =
+                Arrays.asList(
+                        header(":status", "200"),
+                        header(":status", "502"),
+                        header("content-type", "text/plain"),
+                        header("x-long", String.join("", Collections.nCopies(300, "a"))));
+        assertThat(new Hpack.Decoder().decode(Hpack.encode(headers)))
+                .as("Same headers.")
+                .containsExactlyElementsOf(headers);
+    }
+}
@@ -0,0 +1,238 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Integration test of the inbound Http/2 (h2c) listener. */
+class Http2ServerIT {
+    private static final String PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+    static ServerSocket remoteProxy;
+    static PreProxyFSInstance instance;
+
+    @BeforeAll
+    public static void setup() throws IOException {
+        remoteProxy = new ServerSocket(0);
+        Thread proxyThread = new Thread(Http2ServerIT::acceptLoop);
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        instance =
+                PreProxyFSInstance.builder()
+                        .name("h2c")
+                        .pacUrl(
+                                UtilT.createTempPropFile(
+                                        "function FindProxyForURL(url, host) {return \"PROXY"
+                                                + " localhost:"
+                                                + remoteProxy.getLocalPort()
+                                                + "\";}"))
+                        .port(0)
+                        .http2(0, 10)
+                        .build();
+        instance.start();
+    }
+
+    /** Fake remote proxy: echo CONNECT tunnels, answer other requests with a chunked body. */
+    private static void acceptLoop() {
+        while (!remoteProxy.isClosed()) {
+            try {
+                Socket socket = remoteProxy.accept();
+                Thread handler = new Thread(() -> handle(socket));
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void handle(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            StringBuilder head = new StringBuilder();
+            int b;
+            while (!head.toString().endsWith("\r\n\r\n") && (b = in.read()) != -1) {
+                head.append((char) b);
+            }
+            if (head.toString().startsWith("CONNECT ")) {
+                out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes());
+                out.flush();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } else {
+                out.write(
+                        ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                                        + "b\r\nhello world\r\n0\r\n\r\n")
+                                .getBytes());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed by the test
+        }
+    }
+
+    private static void writeFrame(
+            OutputStream out, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (payload.length >>> 16);
+        header[1] = (byte) (payload.length >>> 8);
+        header[2] = (byte) payload.length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        header[5] = (byte) (streamId >>> 24);
+        header[6] = (byte) (streamId >>> 16);
+        header[7] = (byte) (streamId >>> 8);
+        header[8] = (byte) streamId;
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName(
+            "H2SI001: Assert that a CONNECT tunnel and a request share one Http/2 connection.")
+    void assertMultiplexedStreams() throws IOException {
+        try (Socket client = new Socket("localhost", instance.getHttp2Port())) {
+            client.setSoTimeout(10000);
+            OutputStream out = client.getOutputStream();
+            out.write(PREFACE.getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, 0, new byte[0]);
+            writeFrame(
+                    out,
+                    Http2Connection.TYPE_HEADERS,
+                    Http2Connection.FLAG_END_HEADERS,
+                    1,
+                    Hpack.encode(
+                            Arrays.asList(
+                                    new String[] {":method", "CONNECT"},
+                                    new String[] {":authority", "tunnel.example.com:443"})));
+            writeFrame(
+                    out,
+                    Http2Connection.TYPE_HEADERS,
+                    Http2Connection.FLAG_END_HEADERS | Http2Connection.FLAG_END_STREAM,
+                    3,
+                    Hpack.encode(
+                            Arrays.asList(
+                                    new String[] {":method", "GET"},
+                                    new String[] {":scheme", "http"},
+                                    new String[] {":authority", "www.example.com"},
+                                    new String[] {":path", "/"})));
+            writeFrame(out, Http2Connection.TYPE_DATA, 0, 1, "ping".getBytes());
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            Hpack.Decoder decoder = new Hpack.Decoder();
+            ByteArrayOutputStream tunnel = new ByteArrayOutputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            String tunnelStatus = null;
+            String requestStatus = null;
+            boolean requestComplete = false;
+            while (tunnel.size() < 4 || !requestComplete) {
+                byte[] header = new byte[9];
+                in.readFully(header);
+                int length =
+                        ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+                int type = header[3] & 0xFF;
+                int flags = header[4] & 0xFF;
+                int streamId =
+                        ((header[5] & 0x7F) << 24)
+                                | ((header[6] & 0xFF) << 16)
+                                | ((header[7] & 0xFF) << 8)
+                                | (header[8] & 0xFF);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == Http2Connection.TYPE_HEADERS) {
+                    String status = decoder.decode(payload).get(0)[1];
+                    if (streamId == 1) {
+                        tunnelStatus = status;
+                    } else {
+                        requestStatus = status;
+                    }
+                } else if (type == Http2Connection.TYPE_DATA) {
+                    (streamId == 1 ? tunnel : body).write(payload);
+                }
+                if (streamId == 3 && (flags & Http2Connection.FLAG_END_STREAM) != 0) {
+                    requestComplete = true;
+                }
+            }
+            assertThat(tunnelStatus).as("CONNECT must be established.").isEqualTo("200");
+            assertThat(tunnel.toString("US-ASCII"))
+                    .as("Tunnel data must be echoed.")
+                    .isEqualTo("ping");
+            assertThat(requestStatus).as("Request status.").isEqualTo("200");
+            assertThat(body.toString("US-ASCII"))
+                    .as("Chunked body must be decoded into DATA frames.")
+                    .isEqualTo("hello world");
+        }
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("H2SI002: Assert that a header value with CR LF resets the stream.")
+    void assertInvalidHeaderResetsStream() throws IOException {
+        try (Socket client = new Socket("localhost", instance.getHttp2Port())) {
+            client.setSoTimeout(10000);
+            OutputStream out = client.getOutputStream();
+            out.write(PREFACE.getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, 0, new byte[0]);
+            writeFrame(
+                    out,
+                    Http2Connection.TYPE_HEADERS,
+                    Http2Connection.FLAG_END_HEADERS | Http2Connection.FLAG_END_STREAM,
+                    1,
+                    Hpack.encode(
+                            Arrays.asList(
+                                    new String[] {":method", "GET"},
+                                    new String[] {":scheme", "http"},
+                                    new String[] {":authority", "www.example.com"},
+                                    new String[] {":path", "/"},
+                                    new String[] {"x-test", "a\r\nX-Injected: 1"})));
+
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            while (true) {
+                byte[] header = new byte[9];
+                in.readFully(header);
+                int length =
+                        ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int type = header[3] & 0xFF;
+                assertThat(type)
+                        .as("The request must not be forwarded.")
+                        .isNotEqualTo(Http2Connection.TYPE_HEADERS);
+                if (type == Http2Connection.TYPE_RST_STREAM) {
+                    assertThat(header[8] & 0xFF).as("Reset stream.").isEqualTo(1);
+                    assertThat(payload[3] & 0xFF)
+                            .as("Error code.")
+                            .isEqualTo(Http2Connection.PROTOCOL_ERROR);
+                    break;
+                }
+            }
+        }
+    }
+
+    @AfterAll
+    public static void tearDown() throws IOException {
+        instance.stop();
+        remoteProxy.close();
+    }
+}
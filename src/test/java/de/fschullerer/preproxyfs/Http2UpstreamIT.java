@@ -0,0 +1,192 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Integration test of the CONNECT tunnels over Http/2 to a remote proxy. The stand-in Http/2 proxy
+ * is a second instance with an inbound Http/2 listener that forwards to a Http/1.1 echo proxy.
+ */
+class Http2UpstreamIT {
+    static ServerSocket remoteProxy;
+    static PreProxyFSInstance standInH2Proxy;
+    static PreProxyFSInstance viaH2;
+    static PreProxyFSInstance viaFallback;
+
+    private static String pacScriptFor(int proxyPort) throws IOException {
+        return UtilT.createTempPropFile(
+                "function FindProxyForURL(url, host) {return \"PROXY localhost:"
+                        + proxyPort
+                        + "\";}");
+    }
+
+    @BeforeAll
+    public static void setup() throws IOException {
+        remoteProxy = new ServerSocket(0);
+        Thread proxyThread = new Thread(Http2UpstreamIT::acceptLoop);
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        standInH2Proxy =
+                PreProxyFSInstance.builder()
+                        .name("standInH2Proxy")
+                        .pacUrl(pacScriptFor(remoteProxy.getLocalPort()))
+                        .port(0)
+                        .http2(0, 10)
+                        .build();
+        standInH2Proxy.start();
+        String h2Proxy = "localhost:" + standInH2Proxy.getHttp2Port();
+        viaH2 =
+                PreProxyFSInstance.builder()
+                        .name("viaH2")
+                        .pacUrl(pacScriptFor(standInH2Proxy.getHttp2Port()))
+                        .port(0)
+                        .http2Upstreams(h2Proxy, 1, 10)
+                        .build();
+        viaH2.start();
+        // the echo proxy does not speak Http/2
+        viaFallback =
+                PreProxyFSInstance.builder()
+                        .name("viaFallback")
+                        .pacUrl(pacScriptFor(remoteProxy.getLocalPort()))
+                        .port(0)
+                        .http2Upstreams("localhost:" + remoteProxy.getLocalPort(), 1, 10)
+                        .build();
+        viaFallback.start();
+    }
+
+    /** Fake Http/1.1 remote proxy: echo CONNECT tunnels, answer other requests with 400. */
+    private static void acceptLoop() {
+        while (!remoteProxy.isClosed()) {
+            try {
+                Socket socket = remoteProxy.accept();
+                Thread handler = new Thread(() -> handle(socket));
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void handle(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            String head = readHead(in);
+            if (head.startsWith("CONNECT ")) {
+                out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes());
+                out.flush();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } else {
+                out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed by the test
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while (!head.toString().endsWith("\r\n\r\n") && (b = in.read()) != -1) {
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    /** Open a CONNECT tunnel through the main port of an instance. */
+    private static Socket openTunnel(PreProxyFSInstance instance) throws IOException {
+        Socket client = new Socket("localhost", instance.getPort());
+        client.setSoTimeout(10000);
+        client.getOutputStream()
+                .write(
+                        ("CONNECT tunnel.example.com:443 HTTP/1.1\r\n"
+                                        + "Host: tunnel.example.com:443\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+        assertThat(readHead(client.getInputStream()))
+                .as("Tunnel must be established.")
+                .startsWith("HTTP/1.1 200");
+        return client;
+    }
+
+    private static String echo(Socket client, String message) throws IOException {
+        client.getOutputStream().write(message.getBytes(StandardCharsets.US_ASCII));
+        byte[] answer = new byte[message.length()];
+        int offset = 0;
+        while (offset < answer.length) {
+            int read = client.getInputStream().read(answer, offset, answer.length - offset);
+            if (read == -1) {
+                break;
+            }
+            offset += read;
+        }
+        return new String(answer, 0, offset, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("H2UI001: Assert that parallel tunnels share one Http/2 connection.")
+    void assertTunnelsShareConnection() throws IOException {
+        List<Socket> tunnels = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                tunnels.add(openTunnel(viaH2));
+            }
+            for (int i = 0; i < tunnels.size(); i++) {
+                assertThat(echo(tunnels.get(i), "ping-" + i))
+                        .as("Tunnel data must be echoed.")
+                        .isEqualTo("ping-" + i);
+            }
+            Http2UpstreamPool pool =
+                    viaH2.getHttp2UpstreamPool("localhost:" + standInH2Proxy.getHttp2Port());
+            assertThat(pool.getConnectionCount()).as("One Http/2 connection.").isEqualTo(1);
+            assertThat(pool.getTunnelCount()).as("Tunnels over Http/2.").isEqualTo(3);
+        } finally {
+            for (Socket tunnel : tunnels) {
+                tunnel.close();
+            }
+        }
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("H2UI002: Assert that a remote proxy without Http/2 gets Http/1.1 tunnels.")
+    void assertFallback() throws IOException {
+        try (Socket tunnel = openTunnel(viaFallback)) {
+            assertThat(echo(tunnel, "ping")).as("Tunnel data must be echoed.").isEqualTo("ping");
+        }
+        Http2UpstreamPool pool =
+                viaFallback.getHttp2UpstreamPool("localhost:" + remoteProxy.getLocalPort());
+        assertThat(pool.getTunnelCount()).as("No tunnel over Http/2.").isEqualTo(0);
+        assertThat(pool.getFallbackCount()).as("Http/1.1 tunnel.").isEqualTo(1);
+        assertThat(pool.isAvailable()).as("Http/2 is not tried again.").isFalse();
+    }
+
+    @AfterAll
+    public static void tearDown() throws IOException {
+        viaH2.stop();
+        viaFallback.stop();
+        standInH2Proxy.stop();
+        remoteProxy.close();
+    }
+}
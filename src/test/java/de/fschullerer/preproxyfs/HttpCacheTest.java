@@ -0,0 +1,231 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.MockSocket;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for HttpCache. */
+class HttpCacheTest {
+
+    private static final String URL = "http://mirror.example.com/pool/main/package.deb";
+    private static final String REQUEST =
+            "GET " + URL + " HTTP/1.1\r\nHost: mirror.example.com\r\nUser-agent:foo\r\n\r\n";
+
+    private static String response(String cacheHeaders, String body) {
+        return "HTTP/1.1 200 OK\r\n"
+                + cacheHeaders
+                + "Content-Length: "
+                + body.length()
+                + "\r\n\r\n"
+                + body;
+    }
+
+    private static HttpCache createCache() throws IOException {
+        String dir = Files.createTempDirectory("testPreProxyFSCache").toString();
+        return new HttpCache(dir, 4L * 1024 * 1024);
+    }
+
+    private static void store(HttpCache cache, String key, String response) throws IOException {
+        HttpCache.Exchange exchange = cache.newExchange(key, null);
+        byte[] forwarded =
+                exchange.onResponse(response.getBytes(StandardCharsets.US_ASCII), new MockSocket());
+        assertThat(new String(forwarded, StandardCharsets.US_ASCII))
+                .as("The response must be forwarded unchanged while it is stored.")
+                .isEqualTo(response);
+        assertThat(exchange.isDone()).as("The exchange should be finished.").isTrue();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName(
+            "HC001: Assert that only plain Http GET requests without authorization are cached.")
+    void assertCacheKey() {
+        assertThat(HttpCache.getCacheKey(REQUEST)).as("GET should be cached.").isEqualTo(URL);
+        assertThat(HttpCache.getCacheKey(REQUEST.replace("GET", "POST")))
+                .as("POST should not be cached.")
+                .isEmpty();
+        assertThat(
+                        HttpCache.getCacheKey(
+                                "CONNECT mirror.example.com:443 HTTP/1.1\r\n"
+                                        + "Host: mirror.example.com:443\r\n\r\n"))
+                .as("CONNECT should not be cached.")
+                .isEmpty();
+        assertThat(HttpCache.getCacheKey(REQUEST.replace("User-agent", "Authorization")))
+                .as("Requests with authorization should not be cached.")
+                .isEmpty();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HC002: Assert that Cache-Control is honored for the freshness lifetime.")
+    void assertFreshnessLifetime() {
+        long now = System.currentTimeMillis();
+        String maxAge = response("Cache-Control: max-age=60\r\n", "");
+        assertThat(HttpCache.getFreshnessLifetime(maxAge, now)).isEqualTo(60000);
+        assertThat(
+                        HttpCache.getFreshnessLifetime(
+                                response("Cache-Control: max-age=60, s-maxage=10\r\n", ""), now))
+                .isEqualTo(10000);
+        assertThat(
+                        HttpCache.getFreshnessLifetime(
+                                response("Cache-Control: no-store\r\nETag: \"1\"\r\n", ""), now))
+                .as("no-store must not be stored.")
+                .isEqualTo(-1);
+        assertThat(
+                        HttpCache.getFreshnessLifetime(
+                                response("Cache-Control: no-cache\r\nETag: \"1\"\r\n", ""), now))
+                .as("no-cache must always be revalidated.")
+                .isZero();
+        assertThat(HttpCache.getFreshnessLifetime(response("", ""), now))
+                .as("Without freshness and validator nothing should be stored.")
+                .isEqualTo(-1);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HC003: Assert that a fresh stored response is served from cache.")
+    void assertFreshResponseIsServed() throws IOException {
+        HttpCache cache = createCache();
+        String response = response("Cache-Control: max-age=600\r\n", "package content");
+        store(cache, URL, response);
+        HttpCache.Entry entry = cache.acquire(URL);
+        assertThat(entry).as("Response should be cached.").isNotNull();
+        assertThat(entry.isFresh(System.currentTimeMillis())).isTrue();
+        MockSocket client = new MockSocket();
+        cache.writeTo(entry, client);
+        cache.release(entry);
+        assertThat(new String(client.getBytesWritten(), StandardCharsets.US_ASCII))
+                .as("The cached response should be written to client.")
+                .isEqualTo(response);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName(
+            "HC004: Assert that a 304 answer to a revalidation is replaced by the cached response.")
+    void assertRevalidation() throws IOException {
+        HttpCache cache = createCache();
+        String response =
+                response("Cache-Control: max-age=0\r\nETag: \"v1\"\r\n", "package content");
+        store(cache, URL, response);
+        HttpCache.Entry entry = cache.acquire(URL);
+        assertThat(entry.isFresh(System.currentTimeMillis()))
+                .as("Entry should be stale.")
+                .isFalse();
+        byte[] conditional =
+                HttpCache.addConditionalHeaders(
+                        REQUEST.getBytes(StandardCharsets.US_ASCII), entry);
+        assertThat(new String(conditional, StandardCharsets.US_ASCII))
+                .contains("\r\nIf-None-Match: \"v1\"\r\n");
+        HttpCache.Exchange exchange = cache.newExchange(URL, entry);
+        MockSocket client = new MockSocket();
+        byte[] forwarded =
+                exchange.onResponse(
+                        "HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=600\r\n\r\n"
+                                .getBytes(StandardCharsets.US_ASCII),
+                        client);
+        assertThat(forwarded).as("The 304 answer must not be forwarded.").isEmpty();
+        assertThat(new String(client.getBytesWritten(), StandardCharsets.US_ASCII))
+                .as("The cached response should be written to client.")
+                .isEqualTo(response);
+        assertThat(entry.isFresh(System.currentTimeMillis()))
+                .as("Entry should be fresh after revalidation.")
+                .isTrue();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HC005: Assert that the cache size is limited by evicting old entries.")
+    void assertEviction() throws IOException {
+        HttpCache cache = createCache();
+        // 4 MB cache with 4 segments: only one of these responses fits into one segment
+        char[] body = new char[600 * 1024];
+        Arrays.fill(body, 'x');
+        for (int i = 0; i < 5; i++) {
+            store(cache, URL + i, response("Cache-Control: max-age=600\r\n", new String(body)));
+        }
+        assertThat(cache.size()).as("Only 4 entries fit into the cache.").isEqualTo(4);
+        assertThat(cache.acquire(URL + "0")).as("Oldest entry should be evicted.").isNull();
+        assertThat(cache.acquire(URL + "4")).as("Newest entry should be cached.").isNotNull();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HC006: Assert that only the segment of the least recently used entry is evicted.")
+    void assertEvictionOfOneSegment() throws IOException {
+        HttpCache cache = createCache();
+        // 4 segments of 1 MB: three responses per segment
+        char[] body = new char[300 * 1024];
+        Arrays.fill(body, 'x');
+        for (int i = 0; i < 12; i++) {
+            store(cache, URL + i, response("Cache-Control: max-age=600\r\n", new String(body)));
+        }
+        // least recently used: 3 (second segment), then 6 (third segment)
+        for (int i : new int[] {3, 6, 4, 5, 0, 1, 2, 7, 8, 9, 10, 11}) {
+            cache.release(cache.acquire(URL + i));
+        }
+        store(cache, URL + 12, response("Cache-Control: max-age=600\r\n", new String(body)));
+        assertThat(cache.size()).as("The entries of one segment are evicted.").isEqualTo(10);
+        for (int i : new int[] {3, 4, 5}) {
+            assertThat(cache.acquire(URL + i)).as("Evicted entry " + i).isNull();
+        }
+        assertThat(cache.acquire(URL + 6))
+                .as("The entries of the other segments are kept.")
+                .isNotNull();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HC007: Assert that the Age header reduces the freshness of a response.")
+    void assertAge() throws IOException {
+        HttpCache cache = createCache();
+        long now = System.currentTimeMillis();
+        store(cache, URL, response("Cache-Control: max-age=600\r\nAge: 590\r\n", "content"));
+        HttpCache.Entry entry = cache.acquire(URL);
+        assertThat(entry.isFresh(now)).as("Fresh for the remaining 10 seconds.").isTrue();
+        assertThat(entry.isFresh(now + 20_000)).as("Stale after 10 seconds.").isFalse();
+        cache.release(entry);
+        store(cache, URL + "old", response("Cache-Control: max-age=60\r\nAge: 100\r\n", "x"));
+        assertThat(cache.acquire(URL + "old"))
+                .as("A response older than its lifetime without validator is not stored.")
+                .isNull();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("HC008: Assert that a cache directory in use is not overwritten.")
+    void assertCacheDirectoryLock() throws IOException {
+        String dir = Files.createTempDirectory("testPreProxyFSCache").toString();
+        HttpCache first = new HttpCache(dir, 4L * 1024 * 1024);
+        HttpCache second = new HttpCache(dir, 4L * 1024 * 1024);
+        assertThat(first.getCacheDir().toString())
+                .as("The first cache uses the directory.")
+                .isEqualTo(dir);
+        assertThat(second.getCacheDir().getParent().toString())
+                .as("The second cache uses a subdirectory.")
+                .isEqualTo(dir);
+        String response = response("Cache-Control: max-age=600\r\n", "first");
+        store(first, URL, response);
+        store(second, URL, response("Cache-Control: max-age=600\r\n", "second"));
+        MockSocket client = new MockSocket();
+        HttpCache.Entry entry = first.acquire(URL);
+        first.writeTo(entry, client);
+        first.release(entry);
+        assertThat(new String(client.getBytesWritten(), StandardCharsets.US_ASCII))
+                .as("The response of the first cache is not overwritten.")
+                .isEqualTo(response);
+        Path processDir = second.getCacheDir();
+        second.close();
+        assertThat(Files.exists(processDir)).as("The subdirectory is deleted.").isFalse();
+        first.close();
+        assertThat(first.acquire(URL)).as("A closed cache has no entries.").isNull();
+    }
+}
@@ -0,0 +1,74 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for PacDecisionCache. */
+class PacDecisionCacheTest {
+
+    private static final String DECISION = "PROXY " + UtilT.PROXY1_CORPORATE + "; DIRECT";
+
+    private static String createCacheFile() throws IOException {
+        Path path = Files.createTempFile("testPreProxyFS", ".pac.cache");
+        path.toFile().deleteOnExit();
+        return path.toString();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PDC001: Assert that a stored decision is found again (case insensitive host).")
+    void assertStoredDecisionIsFound() throws IOException {
+        PacDecisionCache cache = new PacDecisionCache(createCacheFile(), UtilT.PAC_SCRIPT_1, 60);
+        assertThat(cache.get(UtilT.REMOTE_SERVER_ENDPOINT1)).as("Cache should be empty.").isNull();
+        cache.put(UtilT.REMOTE_SERVER_ENDPOINT1, DECISION);
+        assertThat(cache.get(UtilT.REMOTE_SERVER_ENDPOINT1.toUpperCase()))
+                .as("Stored decision should be found.")
+                .isEqualTo(DECISION);
+        assertThat(cache.get(UtilT.REMOTE_SERVER_ENDPOINT2)).as("Other host.").isNull();
+        cache.close();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName(
+            "PDC002: Assert that decisions are read back by a second cache (restart or other "
+                    + "process) but only for the same PAC script.")
+    void assertDecisionIsShared() throws IOException {
+        String cacheFile = createCacheFile();
+        PacDecisionCache cache = new PacDecisionCache(cacheFile, UtilT.PAC_SCRIPT_1, 60);
+        cache.put(UtilT.REMOTE_SERVER_ENDPOINT1, DECISION);
+        PacDecisionCache samePac = new PacDecisionCache(cacheFile, UtilT.PAC_SCRIPT_1, 60);
+        assertThat(samePac.get(UtilT.REMOTE_SERVER_ENDPOINT1))
+                .as("Decision should be read from the shared file.")
+                .isEqualTo(DECISION);
+        assertThat(samePac.countValidEntries()).isEqualTo(1);
+        PacDecisionCache changedPac =
+                new PacDecisionCache(cacheFile, UtilT.PAC_SCRIPT_1 + "\n", 60);
+        assertThat(changedPac.get(UtilT.REMOTE_SERVER_ENDPOINT1))
+                .as("Decision of another PAC script must not be used.")
+                .isNull();
+        assertThat(changedPac.countValidEntries()).isZero();
+        cache.close();
+        samePac.close();
+        changedPac.close();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PDC003: Assert that expired decisions are not used.")
+    void assertExpiredDecisionIsNotUsed() throws IOException {
+        PacDecisionCache cache = new PacDecisionCache(createCacheFile(), UtilT.PAC_SCRIPT_1, 0);
+        cache.put(UtilT.REMOTE_SERVER_ENDPOINT1, DECISION);
+        assertThat(cache.get(UtilT.REMOTE_SERVER_ENDPOINT1))
+                .as("Expired decision should not be used.")
+                .isNull();
+        cache.close();
+    }
+}
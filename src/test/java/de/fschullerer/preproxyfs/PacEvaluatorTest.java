@@ -0,0 +1,118 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for PacEvaluator. */
+class PacEvaluatorTest {
+
+    private static final String PROXY1 = "PROXY proxy1.corporate.com:8080";
+    private static final String PROXY2 = "PROXY proxy2.corporate.com:8090";
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PE001: Assert that a missed deadline uses the last known good decision.")
+    void assertDeadline() throws ProxyEvaluationException, InterruptedException {
+        PacEvaluator evaluator = new PacEvaluator(2, 10, 100, Util.DIRECT);
+        CountDownLatch slowResolver = new CountDownLatch(1);
+        AtomicInteger evaluations = new AtomicInteger();
+        long start = System.nanoTime();
+        assertThat(
+                        evaluator.evaluate(
+                                "slow.example.com",
+                                () -> {
+                                    evaluations.incrementAndGet();
+                                    slowResolver.await();
+                                    return PROXY1;
+                                }))
+                .as("Default route without last known good decision.")
+                .isEqualTo(Util.DIRECT);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .as("The connection does not wait for the slow evaluation.")
+                .isLessThan(1000);
+        assertThat(evaluator.evaluate("slow.example.com", () -> PROXY2))
+                .as("The running evaluation is shared.")
+                .isEqualTo(Util.DIRECT);
+        slowResolver.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        String decision = Util.DIRECT;
+        while (!PROXY1.equals(decision) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            decision =
+                    evaluator.evaluate(
+                            "slow.example.com",
+                            () -> {
+                                Thread.sleep(1000);
+                                return PROXY2;
+                            });
+        }
+        assertThat(decision)
+                .as("The background evaluation is the last known good decision.")
+                .isEqualTo(PROXY1);
+        assertThat(evaluations.get()).as("One slow evaluation.").isEqualTo(1);
+        assertThat(evaluator.getMissedDeadlines())
+                .as("Missed deadlines.")
+                .isGreaterThanOrEqualTo(2);
+        evaluator.shutdown();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PE002: Assert that the default route is used at once if the queue is full.")
+    void assertQueueFull() throws ProxyEvaluationException {
+        PacEvaluator evaluator = new PacEvaluator(1, 1, 50, PROXY2);
+        CountDownLatch blocked = new CountDownLatch(1);
+        evaluator.evaluate("host1", () -> blocked.await(5, TimeUnit.SECONDS) ? PROXY1 : null);
+        evaluator.evaluate("host2", () -> blocked.await(5, TimeUnit.SECONDS) ? PROXY1 : null);
+        assertThat(evaluator.evaluate("host3", () -> PROXY1))
+                .as("Default route.")
+                .isEqualTo(PROXY2);
+        assertThat(evaluator.getRejections()).as("Rejected evaluation.").isEqualTo(1);
+        blocked.countDown();
+        evaluator.shutdown();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PE003: Assert that PAC errors within the deadline are reported.")
+    void assertPacError() throws ProxyEvaluationException {
+        PacEvaluator evaluator = new PacEvaluator(1, 1, 1000, Util.DIRECT);
+        assertThrows(
+                ProxyEvaluationException.class,
+                () ->
+                        evaluator.evaluate(
+                                "host1",
+                                () -> {
+                                    throw new ProxyEvaluationException("Invalid PAC script.");
+                                }));
+        assertThat(evaluator.evaluate("host1", () -> PROXY1))
+                .as("Fast evaluation.")
+                .isEqualTo(PROXY1);
+        evaluator.shutdown();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PE004: Assert that evaluations for other URLs of the host are not shared.")
+    void assertUrlNotShared() throws ProxyEvaluationException {
+        PacEvaluator evaluator = new PacEvaluator(2, 10, 1000, Util.DIRECT);
+        CountDownLatch slowResolver = new CountDownLatch(1);
+        evaluator.evaluate(
+                "http://www.example.com/slow",
+                "www.example.com",
+                () -> slowResolver.await(5, TimeUnit.SECONDS) ? PROXY1 : null);
+        assertThat(evaluator.evaluate("http://www.example.com/", "www.example.com", () -> PROXY2))
+                .as("The other URL has an evaluation of its own.")
+                .isEqualTo(PROXY2);
+        slowResolver.countDown();
+        evaluator.shutdown();
+    }
+}
@@ -0,0 +1,156 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import com.github.markusbernhardt.proxy.selector.pac.UrlPacScriptSource;
+import de.fschullerer.preproxyfs.testutil.ServerSocketThread;
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Integration test of several independent PreProxyFS instances in one JVM. */
+class PreProxyFSInstanceIT {
+    static ServerSocketThread zoneAProxy;
+    static ServerSocketThread zoneBProxy;
+    static PreProxyFSInstance zoneA;
+    static PreProxyFSInstance zoneB;
+
+    private static String pacScriptFor(int proxyPort) throws IOException {
+        return UtilT.createTempPropFile(
+                "function FindProxyForURL(url, host) {return \"PROXY localhost:"
+                        + proxyPort
+                        + "\";}");
+    }
+
+    private static boolean isPortFree(int port) {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            return serverSocket.isBound();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @BeforeAll
+    public static void setup() throws IOException {
+        zoneAProxy = new ServerSocketThread();
+        zoneAProxy.start();
+        zoneBProxy = new ServerSocketThread();
+        zoneBProxy.start();
+        PreProxyFSResources resources = new PreProxyFSResources();
+        zoneA =
+                PreProxyFSInstance.builder()
+                        .name("zoneA")
+                        .pacUrl(pacScriptFor(zoneAProxy.getPort()))
+                        .port(0)
+                        .resources(resources)
+                        .build();
+        zoneB =
+                PreProxyFSInstance.builder()
+                        .name("zoneB")
+                        .pacUrl(pacScriptFor(zoneBProxy.getPort()))
+                        .port(0)
+                        .resources(resources)
+                        .build();
+        zoneA.start();
+        zoneB.start();
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("PREFSI001: Assert that every instance uses its own PAC script.")
+    void assertInstance1() throws IOException {
+        String request =
+                "GET / HTTP/1.1\r\nHost: " + UtilT.REMOTE_SERVER_ENDPOINT1 + "\r\nUser-agent:a\r\n";
+        UtilT.simpleWriteToSocket("localhost", zoneA.getPort(), request);
+        assertThat(zoneAProxy.getMessagesReceived())
+                .as("Request to zone A must be forwarded to the proxy of zone A!")
+                .isEqualTo(request);
+        UtilT.simpleWriteToSocket("localhost", zoneB.getPort(), request);
+        assertThat(zoneBProxy.getMessagesReceived())
+                .as("Request to zone B must be forwarded to the proxy of zone B!")
+                .isEqualTo(request);
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("PREFSI002: Assert that a stopped instance can be started again.")
+    void assertInstance2() throws IOException {
+        zoneB.stop();
+        zoneB.start();
+        String request =
+                "GET / HTTP/1.1\r\nHost: " + UtilT.REMOTE_SERVER_ENDPOINT2 + "\r\nUser-agent:b\r\n";
+        UtilT.simpleWriteToSocket("localhost", zoneB.getPort(), request);
+        assertThat(zoneBProxy.getMessagesReceived())
+                .as("Restarted instance must forward requests!")
+                .isEqualTo(request);
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("PREFSI003: Assert that a failed start closes the already started servers.")
+    void assertInstance3() throws IOException {
+        int mainPort;
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            mainPort = freePort.getLocalPort();
+        }
+        // an existing regular file lets the Unix domain socket listener fail after the main server
+        File socketFile = File.createTempFile("preproxyfs", ".sock");
+        socketFile.deleteOnExit();
+        PreProxyFSInstance broken =
+                PreProxyFSInstance.builder()
+                        .name("broken")
+                        .pacUrl(pacScriptFor(zoneAProxy.getPort()))
+                        .port(mainPort)
+                        .unixSocket(socketFile.getAbsolutePath(), null)
+                        .build();
+        assertThrows(PreProxyFSException.class, broken::start);
+        assertThat(broken.getPort())
+                .as("Main distribution server of a failed start must be released!")
+                .isZero();
+        // the socket is released when the accept thread has left accept
+        await().atMost(5, TimeUnit.SECONDS).until(() -> isPortFree(mainPort));
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName(
+            "PREFSI004: Assert that a changed PAC script closes the forward servers of dropped "
+                    + "proxies.")
+    void assertInstance4() throws IOException, ProxyEvaluationException {
+        PreProxyFSInstance switched =
+                PreProxyFSInstance.builder()
+                        .name("switched")
+                        .pacUrl(pacScriptFor(zoneAProxy.getPort()))
+                        .port(0)
+                        .build();
+        switched.start();
+        try {
+            int droppedPort = switched.getLocalProxyPort("localhost:" + zoneAProxy.getPort());
+            switched.usePacScript(new UrlPacScriptSource(pacScriptFor(zoneBProxy.getPort())));
+            assertThat(switched.getLocalProxyPort("localhost:" + zoneBProxy.getPort()))
+                    .as("Forward server of the new proxy must be started!")
+                    .isPositive();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> isPortFree(droppedPort));
+        } finally {
+            switched.stop();
+        }
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        zoneA.stop();
+        zoneB.stop();
+        zoneAProxy.closeSocket();
+        zoneBProxy.closeSocket();
+    }
+}
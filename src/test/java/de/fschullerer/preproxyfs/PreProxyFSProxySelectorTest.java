@@ -0,0 +1,163 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.markusbernhardt.proxy.selector.pac.JavaxPacScriptParser;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptSource;
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+import de.fschullerer.preproxyfs.testutil.PacScriptSourceString;
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for PreProxyFSProxySelector and PreProxyFSAuthenticator. */
+class PreProxyFSProxySelectorTest {
+
+    private static PreProxyFSInstance createInstance() throws ProxyEvaluationException {
+        PreProxyFSInstance instance =
+                PreProxyFSInstance.builder()
+                        .circuitBreaker(1, 60_000)
+                        .proxyAuthentication(
+                                Collections.singletonMap(
+                                        UtilT.PROXY1_CORPORATE, new String[] {"user", "pass"}))
+                        .resources(new PreProxyFSResources())
+                        .build();
+        PacScriptSource pacScript =
+                new PacScriptSourceString(
+                        "function FindProxyForURL(url, host) {return \"PROXY "
+                                + UtilT.PROXY1_CORPORATE
+                                + "; DIRECT\";}");
+        instance.setPacScriptParser(new JavaxPacScriptParser(pacScript));
+        return instance;
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PS001: Assert that the proxy of the PAC decision is selected, DIRECT last.")
+    void assertSelect() throws ProxyEvaluationException {
+        PreProxyFSInstance instance = createInstance();
+        PreProxyFSProxySelector selector = new PreProxyFSProxySelector(instance);
+        List<Proxy> proxies = selector.select(URI.create("https://www.example.com/"));
+        assertThat(proxies.size()).as("Proxy and DIRECT.").isEqualTo(2);
+        assertThat(proxies.get(0).address())
+                .as("The remote proxy of the PAC decision.")
+                .isEqualTo(InetSocketAddress.createUnresolved("proxy1.corporate.com", 8080));
+        assertThat(proxies.get(1)).as("DIRECT is the fallback.").isEqualTo(Proxy.NO_PROXY);
+        assertThat(selector.select(URI.create("socket://www.example.com:25")).get(0))
+                .as("Non-Http connections are DIRECT.")
+                .isEqualTo(Proxy.NO_PROXY);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PS002: Assert that a failed connect opens the circuit breaker of the proxy.")
+    void assertConnectFailed() throws ProxyEvaluationException {
+        PreProxyFSInstance instance = createInstance();
+        PreProxyFSProxySelector selector = new PreProxyFSProxySelector(instance);
+        URI uri = URI.create("http://www.example.com/");
+        selector.connectFailed(
+                uri,
+                selector.select(uri).get(0).address(),
+                new ConnectException("Connection refused"));
+        assertThat(selector.select(uri))
+                .as("The proxy with an open circuit breaker is skipped.")
+                .containsExactly(Proxy.NO_PROXY);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PS003: Assert that the authenticator answers only proxy requests.")
+    void assertAuthenticator() throws ProxyEvaluationException {
+        Authenticator.setDefault(new PreProxyFSAuthenticator(createInstance()));
+        try {
+            PasswordAuthentication proxyAuth =
+                    Authenticator.requestPasswordAuthentication(
+                            "proxy1.corporate.com",
+                            null,
+                            8080,
+                            "http",
+                            "Proxy",
+                            "basic",
+                            null,
+                            Authenticator.RequestorType.PROXY);
+            assertThat(proxyAuth.getUserName()).as("User of the proxy.").isEqualTo("user");
+            assertThat(new String(proxyAuth.getPassword()))
+                    .as("Password of the proxy.")
+                    .isEqualTo("pass");
+            assertThat(
+                            Authenticator.requestPasswordAuthentication(
+                                    "proxy1.corporate.com",
+                                    null,
+                                    8080,
+                                    "http",
+                                    "Server",
+                                    "basic",
+                                    null,
+                                    Authenticator.RequestorType.SERVER))
+                    .as("Servers get no proxy authentication.")
+                    .isNull();
+        } finally {
+            Authenticator.setDefault(null);
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("PS004: Assert that a half-open circuit breaker is closed or opened by a trial.")
+    void assertHalfOpenTrial()
+            throws IOException, InterruptedException, ProxyEvaluationException {
+        PreProxyFSInstance instance =
+                PreProxyFSInstance.builder()
+                        .circuitBreaker(1, 100)
+                        .resources(new PreProxyFSResources())
+                        .build();
+        ServerSocket remoteProxy = new ServerSocket(0);
+        String proxy = "localhost:" + remoteProxy.getLocalPort();
+        instance.setPacScriptParser(
+                new JavaxPacScriptParser(
+                        new PacScriptSourceString(
+                                "function FindProxyForURL(url, host) {return \"PROXY "
+                                        + proxy
+                                        + "; DIRECT\";}")));
+        CircuitBreaker circuitBreaker = instance.getUpstreamStats(proxy).getCircuitBreaker();
+        PreProxyFSProxySelector selector = new PreProxyFSProxySelector(instance);
+        URI uri = URI.create("http://www.example.com/");
+        InetSocketAddress address =
+                InetSocketAddress.createUnresolved("localhost", remoteProxy.getLocalPort());
+        try {
+            selector.connectFailed(uri, address, new ConnectException("Connection refused"));
+            assertThat(selector.select(uri))
+                    .as("The open breaker skips the proxy.")
+                    .containsExactly(Proxy.NO_PROXY);
+            Thread.sleep(200);
+            assertThat(selector.select(uri).get(0).address())
+                    .as("The proxy is reachable: the trial connection succeeds.")
+                    .isEqualTo(address);
+            assertThat(circuitBreaker.getState())
+                    .as("The successful trial closes the breaker.")
+                    .isEqualTo(CircuitBreaker.State.CLOSED);
+            selector.connectFailed(uri, address, new ConnectException("Connection refused"));
+        } finally {
+            remoteProxy.close();
+        }
+        Thread.sleep(200);
+        assertThat(selector.select(uri))
+                .as("The proxy is not reachable: the trial connection fails.")
+                .containsExactly(Proxy.NO_PROXY);
+        assertThat(circuitBreaker.getState())
+                .as("The failed trial opens the breaker again.")
+                .isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.getOpenedCount()).as("Opened three times.").isEqualTo(3);
+    }
+}
@@ -8,6 +8,8 @@ import de.fschullerer.preproxyfs.testutil.PacScriptSourceString;
 import de.fschullerer.preproxyfs.testutil.ServerSocketThread;
 import de.fschullerer.preproxyfs.testutil.UtilT;
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
@@ -48,4 +50,36 @@ class ProxyForwardServerIT {
                 .as("Input and output should be the same!")
                 .isEqualTo(messageRead);
     }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName(
+            "PFIT002: Assert that a failed connect to the remote proxy is recorded as failure.")
+    void assertConnectFailure() throws IOException {
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        CircuitBreaker circuitBreaker = new CircuitBreaker("localhost:" + closedPort, 2, 60_000);
+        ProxyForwardServer proxyServer =
+                new ProxyForwardServer(
+                        "localhost",
+                        closedPort,
+                        new UpstreamStats("localhost:" + closedPort, circuitBreaker));
+        proxyServer.start();
+        try {
+            for (int i = 0; i < 2; i++) {
+                try (Socket client = new Socket("localhost", proxyServer.getPort())) {
+                    assertThat(client.getInputStream().read())
+                            .as("The client connection is closed by the connection thread.")
+                            .isEqualTo(-1);
+                }
+            }
+            assertThat(circuitBreaker.getState())
+                    .as("The failed connects open the circuit breaker.")
+                    .isEqualTo(CircuitBreaker.State.OPEN);
+        } finally {
+            proxyServer.getServerSocketP().close();
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for RelayBuffer. */
+class RelayBufferTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("RB001: Assert that the buffer grows for bulk reads and shrinks for small reads.")
+    void assertAdaptiveSize() {
+        RelayBuffer relayBuffer = new RelayBuffer();
+        assertThat(relayBuffer.get().length)
+                .as("A new buffer has the initial size.")
+                .isEqualTo(RelayBuffer.INITIAL_SIZE);
+        for (int i = 0; i < 10; i++) {
+            relayBuffer.onRead(relayBuffer.get().length);
+        }
+        assertThat(relayBuffer.get().length)
+                .as("Full reads grow the buffer to the maximum.")
+                .isEqualTo(RelayBuffer.MAX_SIZE);
+        relayBuffer.onRead(100);
+        assertThat(relayBuffer.getSize())
+                .as("One small read is ignored.")
+                .isEqualTo(RelayBuffer.MAX_SIZE);
+        for (int i = 0; i < 20; i++) {
+            relayBuffer.onRead(100);
+        }
+        assertThat(relayBuffer.get().length)
+                .as("Small reads shrink the buffer to the minimum.")
+                .isEqualTo(RelayBuffer.MIN_SIZE);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("RB002: Assert that a released buffer is allocated again with the initial size.")
+    void assertRelease() {
+        RelayBuffer relayBuffer = new RelayBuffer();
+        for (int i = 0; i < 10; i++) {
+            relayBuffer.onRead(relayBuffer.get().length);
+        }
+        relayBuffer.release();
+        assertThat(relayBuffer.isReleased()).as("No buffer while hibernating.").isTrue();
+        assertThat(relayBuffer.get().length)
+                .as("After hibernation at most the initial size.")
+                .isEqualTo(RelayBuffer.INITIAL_SIZE);
+        assertThat(relayBuffer.isReleased()).as("Buffer is allocated again.").isFalse();
+    }
+}
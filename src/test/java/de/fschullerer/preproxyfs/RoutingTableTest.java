@@ -0,0 +1,74 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for RoutingTable. */
+class RoutingTableTest {
+
+    private static final String PROXY = "localhost:3128";
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("RT001: Assert that routes contain local endpoint and proxy authentication.")
+    void assertRoutes() throws IOException {
+        ProxyForwardServer proxyForwardServer = new ProxyForwardServer("localhost", 3128);
+        proxyForwardServer.start();
+        Map<String, String[]> proxyAuthentication = new HashMap<>();
+        proxyAuthentication.put(PROXY, UtilT.TEST_AUTH);
+        proxyAuthentication.put(UtilT.PROXY1_CORPORATE, UtilT.TEST_AUTH);
+        RoutingTable routingTable =
+                RoutingTable.create(
+                        Collections.singletonList(proxyForwardServer), 4711, proxyAuthentication);
+        proxyForwardServer.getServerSocketP().close();
+        RoutingTable.Route route = routingTable.getRoute(PROXY);
+        assertThat(route.getLocalPort())
+                .as("Local port of the ProxyForwardServer should be used.")
+                .isEqualTo(proxyForwardServer.getPort());
+        assertThat(route.getProxyAuthorization())
+                .isEqualTo(
+                        "Proxy-Authorization: Basic "
+                                + UtilT.BASIC_AUTH_BASE64_FOR_TEST_AUTH
+                                + "\r\n");
+        assertThat(routingTable.getRoute(Util.DIRECT).getLocalPort()).isEqualTo(4711);
+        RoutingTable.Route authenticationOnly = routingTable.getRoute(UtilT.PROXY1_CORPORATE);
+        assertThat(authenticationOnly.getLocalPort())
+                .as("Proxy that is not in PAC script has no local endpoint.")
+                .isZero();
+        assertThat(authenticationOnly.getProxyAuthorization()).isNotEmpty();
+        assertThat(routingTable.getRoute(UtilT.PROXY2_CORPORATE)).isNull();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("RT002: Assert that a new proxy authentication creates a new table.")
+    void assertNewProxyAuthentication() throws IOException {
+        ProxyForwardServer proxyForwardServer = new ProxyForwardServer("localhost", 3128);
+        proxyForwardServer.start();
+        RoutingTable routingTable =
+                RoutingTable.create(
+                        Collections.singletonList(proxyForwardServer),
+                        4711,
+                        Collections.<String, String[]>emptyMap());
+        proxyForwardServer.getServerSocketP().close();
+        Map<String, String[]> proxyAuthentication = new HashMap<>();
+        proxyAuthentication.put(PROXY, UtilT.TEST_AUTH);
+        RoutingTable newRoutingTable = routingTable.withProxyAuthentication(proxyAuthentication);
+        assertThat(routingTable.getRoute(PROXY).getProxyAuthorization())
+                .as("Old table must not be modified.")
+                .isEmpty();
+        assertThat(newRoutingTable.getRoute(PROXY).getProxyAuthorization()).isNotEmpty();
+        assertThat(newRoutingTable.getRoute(PROXY).getLocalPort())
+                .isEqualTo(routingTable.getRoute(PROXY).getLocalPort());
+        assertThat(newRoutingTable.withDirectPort(4712).getRoute(Util.DIRECT).getLocalPort())
+                .isEqualTo(4712);
+    }
+}
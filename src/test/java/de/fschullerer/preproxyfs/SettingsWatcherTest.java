@@ -0,0 +1,104 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for SettingsWatcher and the reload of PreProxyFSInstance. */
+class SettingsWatcherTest {
+
+    private static final String SETTINGS = "PAC_URL = http://my.pac.server/remote.pac\n";
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("SW001: Assert that changed credentials and timeouts are applied.")
+    void assertReload() throws IOException {
+        String settingsFile = UtilT.createTempPropFile(SETTINGS);
+        Properties settings = PreProxyFS.loadSettings(settingsFile);
+        PreProxyFSInstance instance =
+                PreProxyFS.readSettings(settings).resources(new PreProxyFSResources()).build();
+        SettingsWatcher watcher = new SettingsWatcher(instance, settingsFile, settings);
+        Files.write(
+                Paths.get(settingsFile),
+                (SETTINGS
+                                + "TIMEOUT_FOR_PROXY_CHECK = 300\n"
+                                + "USER_PASSWORD_MAP = ["
+                                + UtilT.PROXY1_CORPORATE
+                                + "[[user][secret]]]\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        assertThat(watcher.reload()).as("Valid settings are applied.").isTrue();
+        assertThat(instance.getTimeoutForProxyCheck()).as("New timeout.").isEqualTo(300);
+        assertThat(instance.getProxyAuthenticationForProxy(UtilT.PROXY1_CORPORATE))
+                .as("New credentials.")
+                .startsWith("Proxy-Authorization: Basic ");
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("SW002: Assert that invalid settings do not change the running settings.")
+    void assertInvalidSettingsRejected() throws IOException {
+        String settingsFile =
+                UtilT.createTempPropFile(SETTINGS + "TIMEOUT_FOR_PROXY_CHECK = 300\n");
+        Properties settings = PreProxyFS.loadSettings(settingsFile);
+        PreProxyFSInstance instance =
+                PreProxyFS.readSettings(settings).resources(new PreProxyFSResources()).build();
+        SettingsWatcher watcher = new SettingsWatcher(instance, settingsFile, settings);
+        Files.write(
+                Paths.get(settingsFile),
+                (SETTINGS + "TIMEOUT_FOR_PROXY_CHECK = 10\nMAIN_LOCAL_PORT = 6500O\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        assertThat(watcher.reload()).as("Invalid port is rejected.").isFalse();
+        Files.write(
+                Paths.get(settingsFile),
+                (SETTINGS + "TIMEOUT_FOR_PROXY_CHECK = 10\nUSER_PASSWORD_MAP = [[a][b]][[c][d]]\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        assertThat(watcher.reload()).as("Invalid credentials are rejected.").isFalse();
+        assertThat(instance.getTimeoutForProxyCheck()).as("Old timeout.").isEqualTo(300);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("SW003: Assert that removed credentials, wrong ports and new files are rejected.")
+    void assertUnsafeSettingsRejected() throws IOException {
+        String credentials =
+                "USER_PASSWORD_MAP = [" + UtilT.PROXY1_CORPORATE + "[[user][secret]]]\n";
+        String settingsFile = UtilT.createTempPropFile(SETTINGS + credentials);
+        Properties settings = PreProxyFS.loadSettings(settingsFile);
+        PreProxyFSInstance instance =
+                PreProxyFS.readSettings(settings).resources(new PreProxyFSResources()).build();
+        SettingsWatcher watcher = new SettingsWatcher(instance, settingsFile, settings);
+        Files.write(
+                Paths.get(settingsFile),
+                (SETTINGS + "TIMEOUT_FOR_PROXY_CHECK = 300\n").getBytes(StandardCharsets.UTF_8));
+        assertThat(watcher.reload()).as("Removed credentials are rejected.").isFalse();
+        assertThat(instance.getProxyAuthenticationForProxy(UtilT.PROXY1_CORPORATE))
+                .as("Credentials are kept.")
+                .startsWith("Proxy-Authorization: Basic ");
+        Files.write(
+                Paths.get(settingsFile),
+                (SETTINGS + credentials + "MAIN_LOCAL_PORT = 70000\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        assertThat(watcher.reload()).as("Port above 65535 is rejected.").isFalse();
+        Files.write(
+                Paths.get(settingsFile),
+                (SETTINGS + credentials + "TIMEOUT_FOR_PROXY_CHECK = 300\n")
+                        .getBytes(StandardCharsets.UTF_8));
+        File file = new File(settingsFile);
+        file.setLastModified(System.currentTimeMillis());
+        assertThat(watcher.checkForChanges())
+                .as("A file that is still written is not read.")
+                .isFalse();
+        file.setLastModified(System.currentTimeMillis() - SettingsWatcher.SETTLE_MILLIS * 2);
+        assertThat(watcher.checkForChanges()).as("A settled file is applied.").isTrue();
+        assertThat(instance.getTimeoutForProxyCheck()).as("New timeout.").isEqualTo(300);
+    }
+}
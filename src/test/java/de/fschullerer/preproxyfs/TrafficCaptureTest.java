@@ -0,0 +1,153 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for TrafficCapture and TrafficReplay. */
+class TrafficCaptureTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("TC001: Assert that the newest frames are kept in order if the ring wraps.")
+    void assertRingWrap() throws IOException {
+        String file = Files.createTempFile("testPreProxyFS", ".capture").toString();
+        TrafficCapture capture = new TrafficCapture(file, 1, 100);
+        for (int i = 0; i < 20_000; i++) {
+            capture.capture(
+                    capture.startConnection(),
+                    TrafficCapture.CLIENT_TO_UPSTREAM,
+                    new byte[300],
+                    i % 2 == 0);
+        }
+        List<TrafficCapture.Frame> frames = TrafficCapture.readFrames(file);
+        assertThat(frames.size())
+                .as("The ring holds only a part of the frames.")
+                .isLessThan(20_000);
+        assertThat(frames.get(frames.size() - 1).getConnectionId())
+                .as("The newest frame is the last frame.")
+                .isEqualTo(20_000);
+        for (int i = 1; i < frames.size(); i++) {
+            assertThat(frames.get(i).getConnectionId())
+                    .as("No gaps between the frames.")
+                    .isEqualTo(frames.get(i - 1).getConnectionId() + 1);
+        }
+        assertThat(frames.get(0).getOriginalLength()).as("Original length.").isEqualTo(300);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("TC002: Assert that a captured connection is replayed with the same bytes.")
+    void assertReplay() throws IOException, InterruptedException {
+        String file = Files.createTempFile("testPreProxyFS", ".capture").toString();
+        TrafficCapture capture = new TrafficCapture(file, 1, 100);
+        long connectionId = capture.startConnection();
+        byte[] request =
+                "CONNECT example.com:443 HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        capture.capture(connectionId, TrafficCapture.CLIENT_TO_UPSTREAM, request, false);
+        capture.capture(connectionId, TrafficCapture.UPSTREAM_TO_CLIENT, request, false);
+        // encrypted tunnel payload: only the length
+        capture.capture(connectionId, TrafficCapture.CLIENT_TO_UPSTREAM, new byte[100], true);
+        capture.capture(connectionId, TrafficCapture.UPSTREAM_TO_CLIENT, new byte[100], true);
+        try (ServerSocket echoServer = new ServerSocket(0)) {
+            Thread echo = new Thread(() -> echo(echoServer));
+            echo.setDaemon(true);
+            echo.start();
+            Map<Long, TrafficReplay.Result> results =
+                    new TrafficReplay("localhost", echoServer.getLocalPort(), 1)
+                            .replay(TrafficCapture.readFrames(file));
+            TrafficReplay.Result result = results.get(connectionId);
+            assertThat(result.getSentBytes())
+                    .as("Request and tunnel payload are sent.")
+                    .isEqualTo(request.length + 100L);
+            assertThat(result.getReceivedBytes())
+                    .as("All expected bytes are received.")
+                    .isEqualTo(result.getExpectedBytes());
+        }
+    }
+
+    private static void echo(ServerSocket echoServer) {
+        try (Socket socket = echoServer.accept()) {
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                socket.getOutputStream().write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // replay closed the connection
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("TC003: Assert that concurrent captures of buffer ranges keep every chunk.")
+    void assertConcurrentCapture() throws IOException, InterruptedException {
+        String file = Files.createTempFile("testPreProxyFS", ".capture").toString();
+        TrafficCapture capture = new TrafficCapture(file, 1, 100);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            long connectionId = capture.startConnection();
+            threads[t] =
+                    new Thread(
+                            () -> {
+                                // the chunk is in the middle of a relay buffer
+                                byte[] buffer = new byte[64];
+                                for (int i = 0; i < 100; i++) {
+                                    buffer[10] = (byte) connectionId;
+                                    buffer[11] = (byte) i;
+                                    capture.capture(
+                                            connectionId,
+                                            TrafficCapture.UPSTREAM_TO_CLIENT,
+                                            buffer,
+                                            10,
+                                            2,
+                                            false);
+                                }
+                            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+        List<TrafficCapture.Frame> frames = TrafficCapture.readFrames(file);
+        assertThat(frames.size()).as("All chunks are captured.").isEqualTo(400);
+        Map<Long, Integer> nextChunk = new HashMap<>();
+        for (TrafficCapture.Frame frame : frames) {
+            int chunk = nextChunk.getOrDefault(frame.getConnectionId(), 0);
+            assertThat(frame.getPayload())
+                    .as("Only the range of the buffer, in order per connection.")
+                    .isEqualTo(new byte[] {(byte) frame.getConnectionId(), (byte) chunk});
+            nextChunk.put(frame.getConnectionId(), chunk + 1);
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("TC004: Assert that a closed capture keeps its frames and ignores later chunks.")
+    void assertClose() throws IOException {
+        String file = Files.createTempFile("testPreProxyFS", ".capture").toString();
+        TrafficCapture capture = new TrafficCapture(file, 1, 100);
+        long connectionId = capture.startConnection();
+        byte[] request = "GET / HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        capture.capture(connectionId, TrafficCapture.CLIENT_TO_UPSTREAM, request, false);
+        capture.close();
+        capture.capture(connectionId, TrafficCapture.UPSTREAM_TO_CLIENT, new byte[10], false);
+        capture.close();
+        List<TrafficCapture.Frame> frames = TrafficCapture.readFrames(file);
+        assertThat(frames.size()).as("Only the chunk before close is captured.").isEqualTo(1);
+        assertThat(frames.get(0).getPayload()).as("Captured chunk.").isEqualTo(request);
+        assertThat(capture.getFrameCount()).as("Ignored chunks are not counted.").isEqualTo(1);
+    }
+}
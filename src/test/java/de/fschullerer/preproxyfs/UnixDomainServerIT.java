@@ -0,0 +1,186 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Integration test of the Unix domain socket listener. Needs Java 16 or newer (skipped on older
+ * Java versions).
+ */
+class UnixDomainServerIT {
+
+    private static boolean isUnixDomainSocketSupported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /** Connect to a socket file (Java 16+ API via reflection: the tests are built for Java 8). */
+    private static SocketChannel connect(Path socketPath) throws Exception {
+        SocketChannel channel =
+                (SocketChannel)
+                        SocketChannel.class
+                                .getMethod("open", ProtocolFamily.class)
+                                .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        channel.connect(
+                (SocketAddress)
+                        Class.forName("java.net.UnixDomainSocketAddress")
+                                .getMethod("of", Path.class)
+                                .invoke(null, socketPath));
+        return channel;
+    }
+
+    /** Bind a socket file (Java 16+ API via reflection). */
+    private static ServerSocketChannel bind(Path socketPath) throws Exception {
+        ServerSocketChannel channel =
+                (ServerSocketChannel)
+                        ServerSocketChannel.class
+                                .getMethod("open", ProtocolFamily.class)
+                                .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        channel.bind(
+                (SocketAddress)
+                        Class.forName("java.net.UnixDomainSocketAddress")
+                                .getMethod("of", Path.class)
+                                .invoke(null, socketPath));
+        return channel;
+    }
+
+    /** Fake Http/1.1 remote proxy: answer one CONNECT tunnel and echo the data. */
+    private static void echoTunnel(ServerSocket remoteProxy) {
+        try (Socket socket = remoteProxy.accept()) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            readHead(in);
+            out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes());
+            out.flush();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed by the test
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while (!head.toString().endsWith("\r\n\r\n") && (b = in.read()) != -1) {
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    private static String readFrom(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            // until the expected length
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("UD001: Assert that a CONNECT tunnel over the Unix domain socket is routed.")
+    void assertTunnelOverUnixSocket() throws Exception {
+        assumeTrue(isUnixDomainSocketSupported(), "Unix domain sockets need Java 16.");
+        Path socketDir = Files.createTempDirectory("PreProxyFS-unix");
+        try (ServerSocket remoteProxy = new ServerSocket(0)) {
+            Thread proxyThread = new Thread(() -> echoTunnel(remoteProxy));
+            proxyThread.setDaemon(true);
+            proxyThread.start();
+            PreProxyFSInstance instance =
+                    PreProxyFSInstance.builder()
+                            .name("unixSocket")
+                            .pacUrl(
+                                    UtilT.createTempPropFile(
+                                            "function FindProxyForURL(url, host) {return \"PROXY"
+                                                    + " localhost:"
+                                                    + remoteProxy.getLocalPort()
+                                                    + "\";}"))
+                            .port(0)
+                            .unixSocket(socketDir.resolve("proxy.sock").toString(), "rw-------")
+                            .build();
+            instance.start();
+            try {
+                Path socketPath = instance.getUnixSocketPath();
+                assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(socketPath)))
+                        .as("Only the user of PreProxyFS can connect.")
+                        .isEqualTo("rw-------");
+                try (Stream<Path> files = Files.list(socketDir)) {
+                    assertThat(files.count())
+                            .as("The socket file was bound in a removed directory.")
+                            .isEqualTo(1L);
+                }
+                try (SocketChannel client = connect(socketPath)) {
+                    String connect =
+                            "CONNECT tunnel.example.com:443 HTTP/1.1\r\n"
+                                    + "Host: tunnel.example.com:443\r\n\r\n";
+                    client.write(ByteBuffer.wrap(connect.getBytes(StandardCharsets.US_ASCII)));
+                    String established = "HTTP/1.1 200 Connection established\r\n\r\n";
+                    assertThat(readFrom(client, established.length()))
+                            .as("Tunnel must be established.")
+                            .isEqualTo(established);
+                    client.write(ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII)));
+                    assertThat(readFrom(client, 4))
+                            .as("Tunnel data must be echoed.")
+                            .isEqualTo("ping");
+                }
+            } finally {
+                instance.stop();
+            }
+            assertThat(Files.exists(socketDir.resolve("proxy.sock")))
+                    .as("The socket file is deleted on stop.")
+                    .isFalse();
+        } finally {
+            Files.deleteIfExists(socketDir.resolve("proxy.sock"));
+            Files.delete(socketDir);
+        }
+    }
+
+    @Test
+    @Tag("IntegrationTest")
+    @DisplayName("UD002: Assert that a Unix domain socket client is keyed by its local user.")
+    void assertClientKey() throws Exception {
+        assumeTrue(isUnixDomainSocketSupported(), "Unix domain sockets need Java 16.");
+        Path socketDir = Files.createTempDirectory("PreProxyFS-unix");
+        Path socketPath = socketDir.resolve("key.sock");
+        try (ServerSocketChannel server = bind(socketPath);
+                SocketChannel client = connect(socketPath);
+                UnixDomainSocket accepted = new UnixDomainSocket(server.accept())) {
+            assertThat(accepted.getInetAddress()).as("No IP address.").isNull();
+            assertThat(accepted.getClientKey())
+                    .as("Per-client limits use the user of the client process.")
+                    .isEqualTo("unix:" + System.getProperty("user.name"));
+        } finally {
+            Files.deleteIfExists(socketPath);
+            Files.delete(socketDir);
+        }
+    }
+}
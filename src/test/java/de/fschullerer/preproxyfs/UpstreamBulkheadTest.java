@@ -0,0 +1,104 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for UpstreamBulkhead. */
+class UpstreamBulkheadTest {
+
+    private static Thread waitForPermit(
+            UpstreamBulkhead bulkhead, String source, List<String> grantedSources) {
+        Thread waiter =
+                new Thread(
+                        () -> {
+                            if (bulkhead.acquire(source)) {
+                                grantedSources.add(source);
+                            }
+                        });
+        waiter.start();
+        return waiter;
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("UB001: Assert that connections are rejected if limit and queue are full.")
+    void assertRejectWhenFull() {
+        UpstreamBulkhead bulkhead = new UpstreamBulkhead("proxy1.corporate.com:8080", 2, 0, 10);
+        assertThat(bulkhead.acquire("127.0.0.1")).as("First permit.").isTrue();
+        assertThat(bulkhead.acquire("127.0.0.1")).as("Second permit.").isTrue();
+        assertThat(bulkhead.acquire("127.0.0.1")).as("Limit reached, no queue.").isFalse();
+        assertThat(bulkhead.getRejectedCount()).as("One rejected connection.").isEqualTo(1);
+        bulkhead.release();
+        assertThat(bulkhead.acquire("127.0.0.1")).as("Released permit is free again.").isTrue();
+        assertThat(bulkhead.getInFlight()).as("Two in-flight connections.").isEqualTo(2);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("UB002: Assert that a waiting connection is rejected after the wait time.")
+    void assertRejectAfterWaitTime() {
+        UpstreamBulkhead bulkhead = new UpstreamBulkhead("DIRECT", 1, 5, 50);
+        assertThat(bulkhead.acquire("127.0.0.1")).as("First permit.").isTrue();
+        long start = System.currentTimeMillis();
+        assertThat(bulkhead.acquire("127.0.0.1")).as("No permit within wait time.").isFalse();
+        assertThat(System.currentTimeMillis() - start)
+                .as("The connection must wait for the wait time.")
+                .isGreaterThanOrEqualTo(50);
+        assertThat(bulkhead.getQueued()).as("The queue must be empty again.").isZero();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("UB003: Assert that free permits are handed over round-robin between sources.")
+    void assertRoundRobin() throws InterruptedException {
+        UpstreamBulkhead bulkhead = new UpstreamBulkhead("proxy1.corporate.com:8080", 1, 10, 5000);
+        List<String> grantedSources = Collections.synchronizedList(new ArrayList<>());
+        assertThat(bulkhead.acquire("10.0.0.1")).as("First permit.").isTrue();
+        List<Thread> waiters = new ArrayList<>();
+        // a busy client with three waiting connections, then a second client
+        for (String source : new String[] {"10.0.0.1", "10.0.0.1", "10.0.0.1", "10.0.0.2"}) {
+            int queuedBefore = bulkhead.getQueued();
+            waiters.add(waitForPermit(bulkhead, source, grantedSources));
+            await().atMost(2, TimeUnit.SECONDS).until(() -> bulkhead.getQueued() > queuedBefore);
+        }
+        for (int i = 0; i < 2; i++) {
+            int grantedBefore = grantedSources.size();
+            bulkhead.release();
+            await().atMost(2, TimeUnit.SECONDS).until(() -> grantedSources.size() > grantedBefore);
+        }
+        assertThat(grantedSources)
+                .as("The second client must not wait for all connections of the first client.")
+                .containsExactly("10.0.0.1", "10.0.0.2");
+        bulkhead.release();
+        bulkhead.release();
+        for (Thread waiter : waiters) {
+            waiter.join(2000);
+        }
+        assertThat(bulkhead.getAcquiredCount()).as("All connections got a permit.").isEqualTo(5);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("UB004: Assert that a higher limit hands permits over to the waiting connections.")
+    void assertSetLimits() throws InterruptedException {
+        UpstreamBulkhead bulkhead = new UpstreamBulkhead("DIRECT", 1, 10, 5000);
+        List<String> grantedSources = Collections.synchronizedList(new ArrayList<>());
+        assertThat(bulkhead.acquire("10.0.0.1")).as("First permit.").isTrue();
+        Thread waiter = waitForPermit(bulkhead, "10.0.0.2", grantedSources);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> bulkhead.getQueued() == 1);
+        bulkhead.setLimits(2, 10, 5000);
+        waiter.join(2000);
+        assertThat(grantedSources).as("The waiting connection got a permit.").hasSize(1);
+        bulkhead.setLimits(1, 10, 5000);
+        bulkhead.release();
+        assertThat(bulkhead.getInFlight()).as("The lower limit is reached.").isEqualTo(1);
+    }
+}
@@ -0,0 +1,99 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for UpstreamSelection and UpstreamStats. */
+class UpstreamSelectionTest {
+
+    private static final List<String> CANDIDATES =
+            Arrays.asList(UtilT.PROXY1_CORPORATE, UtilT.PROXY2_CORPORATE);
+
+    private static PreProxyFSInstance createInstance(UpstreamSelection selection) {
+        return PreProxyFSInstance.builder()
+                .upstreamSelection(selection)
+                .resources(new PreProxyFSResources())
+                .build();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("US001: Assert that FIRST always selects the first proxy of the PAC decision.")
+    void assertFirst() {
+        PreProxyFSInstance instance = createInstance(UpstreamSelection.FIRST);
+        instance.getUpstreamStats(UtilT.PROXY1_CORPORATE).recordFailure();
+        assertThat(UpstreamSelection.FIRST.select(CANDIDATES, instance))
+                .as("FIRST must ignore the statistics.")
+                .isEqualTo(UtilT.PROXY1_CORPORATE);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("US002: Assert that POWER_OF_TWO_CHOICES avoids a slow and failing proxy.")
+    void assertPowerOfTwoChoices() {
+        PreProxyFSInstance instance = createInstance(UpstreamSelection.POWER_OF_TWO_CHOICES);
+        UpstreamStats slow = instance.getUpstreamStats(UtilT.PROXY1_CORPORATE);
+        UpstreamStats fast = instance.getUpstreamStats(UtilT.PROXY2_CORPORATE);
+        for (int i = 0; i < 10; i++) {
+            slow.recordConnect(200_000_000L);
+            slow.recordFirstResponse(400_000_000L, i % 2 == 0);
+            fast.recordConnect(5_000_000L);
+            fast.recordFirstResponse(10_000_000L, false);
+        }
+        // a successful connect is a success sample too: a quarter of the samples are errors
+        assertThat(slow.getErrorRate())
+                .as("The errors raise the error rate above the prior.")
+                .isGreaterThan(UpstreamStats.PRIOR_ERROR_RATE);
+        for (int i = 0; i < 20; i++) {
+            assertThat(UpstreamSelection.POWER_OF_TWO_CHOICES.select(CANDIDATES, instance))
+                    .as("With two candidates the faster proxy must always win.")
+                    .isEqualTo(UtilT.PROXY2_CORPORATE);
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("US003: Assert that LEAST_OUTSTANDING selects the proxy with less connections.")
+    void assertLeastOutstanding() {
+        PreProxyFSInstance instance = createInstance(UpstreamSelection.LEAST_OUTSTANDING);
+        instance.getBulkhead(UtilT.PROXY1_CORPORATE).acquire("127.0.0.1");
+        assertThat(UpstreamSelection.LEAST_OUTSTANDING.select(CANDIDATES, instance))
+                .as("The first proxy has one outstanding connection.")
+                .isEqualTo(UtilT.PROXY2_CORPORATE);
+        instance.getBulkhead(UtilT.PROXY1_CORPORATE).release();
+        assertThat(UpstreamSelection.LEAST_OUTSTANDING.select(CANDIDATES, instance))
+                .as("Equal connections and no statistics: the first proxy.")
+                .isEqualTo(UtilT.PROXY1_CORPORATE);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("US004: Assert that the statistics of an idle upstream decay to a neutral prior.")
+    void assertDecayToPrior() {
+        UpstreamStats failing = new UpstreamStats(UtilT.PROXY1_CORPORATE);
+        UpstreamStats fast = new UpstreamStats(UtilT.PROXY2_CORPORATE);
+        for (int i = 0; i < 20; i++) {
+            failing.recordFailure();
+            fast.recordConnect(5_000_000L);
+            fast.recordFirstResponse(10_000_000L, false);
+        }
+        double unknownCost = new UpstreamStats("unknown.proxy:8080").getCost(0);
+        long now = System.currentTimeMillis();
+        assertThat(failing.getCost(0, now)).as("Failing upstream.").isGreaterThan(unknownCost);
+        assertThat(fast.getCost(0, now)).as("Fast upstream.").isLessThan(unknownCost);
+        long idle = now + 10 * 60_000;
+        assertThat(failing.getCost(0, idle))
+                .as("An idle failing upstream does not look perfect.")
+                .isCloseTo(unknownCost, within(1.0));
+        assertThat(fast.getCost(0, idle))
+                .as("An idle fast upstream looks like an unknown upstream.")
+                .isCloseTo(unknownCost, within(1.0));
+    }
+}
@@ -3,6 +3,16 @@ package de.fschullerer.preproxyfs;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import de.fschullerer.preproxyfs.testutil.ServerSocketThread;
+import de.fschullerer.preproxyfs.testutil.UtilT;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
@@ -34,4 +44,125 @@ class UtilTest {
                 .as("If proxy is not available take DIRECT connection!")
                 .isEqualTo(direct);
     }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("Util003: Assert that all proxies and DIRECT of a PAC decision are found.")
+    void assertUtil3() {
+        assertThat(
+                        Util.getPacCandidates(
+                                "PROXY proxy1.corporate.com:8080; PROXY  proxy2.corporate.com:8090;"
+                                        + " SOCKS socks.corporate.com:1080; DIRECT"))
+                .as("Proxies and DIRECT in PAC order, SOCKS is not supported.")
+                .containsExactly(
+                        UtilT.PROXY1_CORPORATE, UtilT.PROXY2_CORPORATE, Util.DIRECT);
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("Util004: Assert that a protocol switch (101) response is detected.")
+    void assertUtil4() {
+        assertThat(
+                        Util.isSwitchingProtocols(
+                                "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n\r\n"
+                                        .getBytes(StandardCharsets.US_ASCII)))
+                .as("101 response switches the protocol.")
+                .isTrue();
+        assertThat(
+                        Util.isSwitchingProtocols(
+                                "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII)))
+                .as("200 response does not switch the protocol.")
+                .isFalse();
+        assertThat(Util.isSwitchingProtocols(new byte[] {1, 2}))
+                .as("Short payload does not switch the protocol.")
+                .isFalse();
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("Util005: Assert that the relay copies all bytes and reports every chunk.")
+    void assertUtil5() throws IOException, InterruptedException {
+        byte[] payload = new byte[300_000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        AtomicLong relayedBytes = new AtomicLong();
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                Socket writer = new Socket("localhost", serverSocket.getLocalPort());
+                Socket from = serverSocket.accept();
+                Socket to = new Socket("localhost", serverSocket.getLocalPort());
+                Socket reader = serverSocket.accept()) {
+            Thread relay =
+                    new Thread(
+                            () -> {
+                                try {
+                                    Util.relay(
+                                            from,
+                                            to,
+                                            (buffer, offset, length) ->
+                                                    relayedBytes.addAndGet(length));
+                                } catch (IOException e) {
+                                    // checked by the received bytes
+                                }
+                            });
+            relay.start();
+            try (OutputStream out = writer.getOutputStream()) {
+                out.write(payload);
+            }
+            byte[] received = new byte[payload.length];
+            new DataInputStream(reader.getInputStream()).readFully(received);
+            relay.join(10_000);
+            assertThat(received).as("All bytes are relayed unchanged.").isEqualTo(payload);
+            assertThat(relayedBytes.get())
+                    .as("Every relayed chunk is reported.")
+                    .isEqualTo(payload.length);
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("Util006: Assert that the relay continues after hibernation without data loss.")
+    void assertUtil6() throws IOException, InterruptedException {
+        List<Integer> chunkBuffers = new CopyOnWriteArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0);
+                Socket writer = new Socket("localhost", serverSocket.getLocalPort());
+                Socket from = serverSocket.accept();
+                Socket to = new Socket("localhost", serverSocket.getLocalPort());
+                Socket reader = serverSocket.accept()) {
+            Thread relay =
+                    new Thread(
+                            () -> {
+                                try {
+                                    Util.relay(
+                                            from,
+                                            to,
+                                            (buffer, offset, length) ->
+                                                    chunkBuffers.add(buffer.length),
+                                            100);
+                                } catch (IOException e) {
+                                    // checked by the received bytes
+                                }
+                            });
+            relay.start();
+            OutputStream out = writer.getOutputStream();
+            DataInputStream in = new DataInputStream(reader.getInputStream());
+            byte[] bulk = new byte[200_000];
+            out.write(bulk);
+            in.readFully(new byte[bulk.length]);
+            // idle longer than the hibernation time
+            Thread.sleep(500);
+            out.write("wake up".getBytes(StandardCharsets.US_ASCII));
+            byte[] received = new byte[7];
+            in.readFully(received);
+            writer.shutdownOutput();
+            relay.join(10_000);
+            assertThat(new String(received, StandardCharsets.US_ASCII))
+                    .as("The first bytes after hibernation are relayed.")
+                    .isEqualTo("wake up");
+            assertThat(chunkBuffers.get(chunkBuffers.size() - 1))
+                    .as("After hibernation a small buffer is used.")
+                    .isLessThanOrEqualTo(RelayBuffer.INITIAL_SIZE);
+            assertThat(relay.isAlive()).as("The relay ends with the stream.").isFalse();
+        }
+    }
 }
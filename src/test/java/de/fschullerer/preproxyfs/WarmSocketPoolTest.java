@@ -0,0 +1,136 @@
+package de.fschullerer.preproxyfs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Unit tests for WarmSocketPool. */
+class WarmSocketPoolTest {
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("WSP001: Assert that the pool is refilled for new connections.")
+    void assertWarmSocketIsUsed() throws IOException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService connectExecutor = Executors.newSingleThreadExecutor();
+        // the remote proxy does not need to accept: the TCP handshake is done by the backlog
+        try (ServerSocket remoteProxy = new ServerSocket(0)) {
+            WarmSocketPool pool =
+                    new WarmSocketPool(
+                            "localhost",
+                            remoteProxy.getLocalPort(),
+                            4,
+                            60_000,
+                            new UpstreamStats("localhost:" + remoteProxy.getLocalPort()));
+            pool.start(scheduler, connectExecutor);
+            assertThat(pool.take()).as("Empty pool before the first connections.").isNull();
+            for (int i = 0; i < 20; i++) {
+                pool.take();
+            }
+            pool.maintain();
+            assertThat(pool.getTargetSize()).as("Pool size adapts to the rate.").isPositive();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() > 0);
+            Socket socket = pool.take();
+            assertThat(socket).as("A warm socket.").isNotNull();
+            assertThat(socket.isConnected()).as("The warm socket is connected.").isTrue();
+            assertThat(pool.getHitCount()).as("One hit.").isEqualTo(1);
+            socket.close();
+            pool.close();
+            assertThat(pool.getIdleCount()).as("Closed pool has no idle sockets.").isZero();
+        } finally {
+            scheduler.shutdownNow();
+            connectExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("WSP002: Assert that sockets closed by the remote proxy are evicted.")
+    void assertStaleSocketIsEvicted() throws IOException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService connectExecutor = Executors.newSingleThreadExecutor();
+        try (ServerSocket remoteProxy = new ServerSocket(0)) {
+            WarmSocketPool pool =
+                    new WarmSocketPool(
+                            "localhost",
+                            remoteProxy.getLocalPort(),
+                            1,
+                            60_000,
+                            new UpstreamStats("localhost:" + remoteProxy.getLocalPort()));
+            pool.start(scheduler, connectExecutor);
+            pool.take();
+            pool.maintain();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> pool.getIdleCount() > 0);
+            // remote proxy closes the idle connection
+            remoteProxy.accept().close();
+            await().atMost(5, TimeUnit.SECONDS)
+                    .until(
+                            () -> {
+                                Socket socket = pool.take();
+                                if (null != socket) {
+                                    socket.close();
+                                }
+                                return pool.getEvictedCount() > 0;
+                            });
+            pool.close();
+        } finally {
+            scheduler.shutdownNow();
+            connectExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    @Tag("UnitTest")
+    @DisplayName("WSP003: Assert that the pool is not refilled after a failed connect.")
+    void assertBackoffAfterFailedConnect() throws IOException {
+        int closedPort;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            closedPort = serverSocket.getLocalPort();
+        }
+        AtomicInteger refills = new AtomicInteger();
+        // the refills run at once on the calling thread
+        Executor connectExecutor =
+                runnable -> {
+                    refills.incrementAndGet();
+                    runnable.run();
+                };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            // no circuit breaker: the default statistics never open it
+            WarmSocketPool pool =
+                    new WarmSocketPool(
+                            "localhost",
+                            closedPort,
+                            4,
+                            60_000,
+                            new UpstreamStats("localhost:" + closedPort));
+            pool.start(scheduler, connectExecutor);
+            for (int i = 0; i < 20; i++) {
+                pool.take();
+            }
+            pool.maintain();
+            assertThat(refills.get()).as("The first refill fails.").isEqualTo(1);
+            for (int i = 0; i < 3; i++) {
+                pool.take();
+                pool.maintain();
+            }
+            assertThat(refills.get()).as("No refill during the backoff.").isEqualTo(1);
+            assertThat(pool.getIdleCount()).as("No warm socket.").isZero();
+            pool.close();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
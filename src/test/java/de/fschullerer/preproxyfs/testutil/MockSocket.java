@@ -13,7 +13,6 @@ import java.util.List;
  * @author From internet but modified.
  */
 public class MockSocket extends Socket {
-    @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
     private final List<Byte> bytesList = new ArrayList<>();
 
     private byte[] input;
@@ -38,6 +37,19 @@ public class MockSocket extends Socket {
         };
     }
 
+    /**
+     * Get all bytes that were written to the output stream of this mocked socket.
+     *
+     * @return The written bytes.
+     */
+    public byte[] getBytesWritten() {
+        byte[] written = new byte[bytesList.size()];
+        for (int i = 0; i < written.length; i++) {
+            written[i] = bytesList.get(i);
+        }
+        return written;
+    }
+
     /**
      * Set the input of this mocked socket.
      *